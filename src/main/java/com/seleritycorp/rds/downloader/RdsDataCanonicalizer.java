@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Rewrites RDS data into a canonical form.
+ *
+ * <p>In canonical form, the records within each enum type's section are ordered by identifier,
+ * and the keys of all JSON objects are ordered by name. So fetching unchanged data twice yields
+ * byte-wise identical files, regardless of the order the server returned records in. This
+ * keeps digests stable, lets chunk-based transfers and deduplication find unchanged parts, and
+ * allows binary searching identifiers within a section.
+ *
+ * <p>Sections are sorted by an external merge sort. Records are collected until the configured
+ * memory budget is used up, and then get sorted and spilled to a run file next to the output.
+ * Finally, the runs get merged. At most {@link #MAX_MERGE_WIDTH} runs (fewer, if the memory
+ * budget does not cover their read buffers) are merged at once. With more runs, groups of runs
+ * are first merged into longer runs. So canonicalizing works with a small heap and a bounded
+ * number of open files even for enum types with millions of records.
+ *
+ * <p>The read and write buffers of spilling and merging come out of the same memory budget as
+ * the records. Merging happens after a section's records have been spilled, so it reuses that
+ * memory.
+ */
+public class RdsDataCanonicalizer {
+  private static final Log log = LogFactory.getLog(RdsDataCanonicalizer.class);
+
+  // Rough per-record overhead of the record object, its two strings, and the list slot.
+  private static final long RECORD_OVERHEAD = 96;
+
+  /**
+   * The maximum number of runs that get merged at once.
+   */
+  static final int MAX_MERGE_WIDTH = 64;
+  private static final int MIN_IO_BUFFER_SIZE = 1024;
+  private static final int MAX_IO_BUFFER_SIZE = 64 * 1024;
+
+  private static final Comparator<Record> ORDER = (left, right) -> {
+    int result = left.key.compareTo(right.key);
+    return (result != 0) ? result : left.json.compareTo(right.json);
+  };
+
+  private final String identifierField;
+  private final long maxMemoryBytes;
+  private final int ioBufferSize;
+  private final int mergeWidth;
+  private long spills;
+  private long merges;
+  private long records;
+
+  /**
+   * Receives merged records.
+   */
+  private interface RecordSink {
+    void write(Record record) throws IOException;
+  }
+
+  private static class Record {
+    private final String key;
+    private final String json;
+
+    private Record(String key, String json) {
+      this.key = key;
+      this.json = json;
+    }
+
+    private long getEstimatedSize() {
+      return RECORD_OVERHEAD + 2L * (key.length() + json.length());
+    }
+  }
+
+  /**
+   * Creates a canonicalizer.
+   *
+   * @param identifierField For sections that are arrays of records, the record field holding
+   *     the identifier to order by.
+   * @param maxMemoryBytes The estimated memory that records of a section may take before they
+   *     get spilled to disk.
+   */
+  public RdsDataCanonicalizer(String identifierField, long maxMemoryBytes) {
+    if (maxMemoryBytes <= 0) {
+      throw new IllegalArgumentException("Memory budget has to be positive, but is "
+          + maxMemoryBytes);
+    }
+    this.identifierField = identifierField;
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.ioBufferSize = getIoBufferSize(maxMemoryBytes);
+    this.mergeWidth = getMergeWidth(maxMemoryBytes);
+  }
+
+  /**
+   * Gets the size of the read and write buffers of spilling and merging.
+   *
+   * @param maxMemoryBytes The memory budget of the sort.
+   * @return the buffer size, so that a full-width merge fits the budget, within sane bounds.
+   */
+  static int getIoBufferSize(long maxMemoryBytes) {
+    return (int) Math.max(MIN_IO_BUFFER_SIZE,
+        Math.min(MAX_IO_BUFFER_SIZE, maxMemoryBytes / (MAX_MERGE_WIDTH + 1)));
+  }
+
+  /**
+   * Gets the number of runs to merge at once.
+   *
+   * @param maxMemoryBytes The memory budget of the sort.
+   * @return the number of runs whose read buffers fit the budget, along with one buffer for the
+   *     merge's output, if it goes to an intermediate run. At least 2, and at most
+   *     {@link #MAX_MERGE_WIDTH}.
+   */
+  static int getMergeWidth(long maxMemoryBytes) {
+    return (int) Math.max(2,
+        Math.min(MAX_MERGE_WIDTH, maxMemoryBytes / getIoBufferSize(maxMemoryBytes) - 1));
+  }
+
+  /**
+   * Rewrites RDS data into canonical form.
+   *
+   * @param source The file holding the RDS data to rewrite.
+   * @param writer The writer to write the canonical RDS data to.
+   * @param runDirectory The directory to spill sorted runs to.
+   * @throws IOException if reading, writing, or spilling fails, or the data is malformed.
+   */
+  public void canonicalize(Path source, Writer writer, Path runDirectory) throws IOException {
+    spills = 0;
+    merges = 0;
+    records = 0;
+    try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(
+        Files.newInputStream(source), StandardCharsets.UTF_8),
+        RdsDataMemoryBudget.UNRESERVED_BUFFER_BYTES / 2))) {
+      writer.write('{');
+      reader.beginObject();
+      boolean first = true;
+      while (reader.hasNext()) {
+        if (!first) {
+          writer.write(',');
+        }
+        first = false;
+        String name = reader.nextName();
+        writeName(name, writer);
+        if ("data".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+          writeData(reader, writer, runDirectory);
+        } else {
+          writer.write(normalize(new JsonParser().parse(reader)).toString());
+        }
+      }
+      reader.endObject();
+      writer.write('}');
+    } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+      throw new IOException("Malformed RDS data in " + source, e);
+    }
+  }
+
+  /**
+   * Gets the number of runs spilled to disk by the last canonicalization.
+   *
+   * @return the number of spilled runs.
+   */
+  public long getSpills() {
+    return spills;
+  }
+
+  /**
+   * Gets the number of intermediate merges of the last canonicalization.
+   *
+   * <p>Intermediate merges combine runs into longer runs, if a section has more runs than can be
+   * merged at once.
+   *
+   * @return the number of intermediate merges.
+   */
+  public long getMerges() {
+    return merges;
+  }
+
+  /**
+   * Gets the number of section records sorted by the last canonicalization.
+   *
+   * @return the number of sorted records.
+   */
+  public long getRecords() {
+    return records;
+  }
+
+  private void writeData(JsonReader reader, Writer writer, Path runDirectory)
+      throws IOException {
+    writer.write('{');
+    reader.beginObject();
+    boolean first = true;
+    while (reader.hasNext()) {
+      if (!first) {
+        writer.write(',');
+      }
+      first = false;
+      String enumType = reader.nextName();
+      writeName(enumType, writer);
+      JsonToken token = reader.peek();
+      if (token == JsonToken.BEGIN_ARRAY) {
+        reader.beginArray();
+        writer.write('[');
+        sort(reader, false, writer, runDirectory);
+        writer.write(']');
+        reader.endArray();
+      } else if (token == JsonToken.BEGIN_OBJECT) {
+        reader.beginObject();
+        writer.write('{');
+        sort(reader, true, writer, runDirectory);
+        writer.write('}');
+        reader.endObject();
+      } else {
+        writer.write(normalize(new JsonParser().parse(reader)).toString());
+      }
+    }
+    reader.endObject();
+    writer.write('}');
+  }
+
+  /**
+   * Sorts the records of a section.
+   *
+   * @param reader The reader positioned at the first record of the section.
+   * @param keyed If true, the section is an object and each record is a name/value pair.
+   *     Otherwise, the section is an array of records.
+   * @param writer The writer to write the sorted records to.
+   * @param runDirectory The directory to spill sorted runs to.
+   */
+  private void sort(JsonReader reader, boolean keyed, Writer writer, Path runDirectory)
+      throws IOException {
+    JsonParser parser = new JsonParser();
+    List<Record> records = new ArrayList<>();
+    List<Path> runs = new ArrayList<>();
+    long used = 0;
+    try {
+      while (reader.hasNext()) {
+        Record record;
+        if (keyed) {
+          String name = reader.nextName();
+          JsonElement value = normalize(parser.parse(reader));
+          record = new Record(name, quote(name) + ":" + value.toString());
+        } else {
+          JsonElement value = normalize(parser.parse(reader));
+          String identifier = RdsDataIdentifiers.get(value, identifierField);
+          // Records without identifier sort first, ordered by their content.
+          record = new Record((identifier != null) ? identifier : "", value.toString());
+        }
+        records.add(record);
+        this.records++;
+        used += record.getEstimatedSize();
+        // The spill's write buffer has to fit in the budget too.
+        if (used + ioBufferSize >= maxMemoryBytes) {
+          runs.add(spill(records, runDirectory));
+          records.clear();
+          used = 0;
+        }
+      }
+      Collections.sort(records, ORDER);
+      if (runs.isEmpty()) {
+        boolean first = true;
+        for (Record record : records) {
+          if (!first) {
+            writer.write(',');
+          }
+          first = false;
+          writer.write(record.json);
+        }
+      } else {
+        if (!records.isEmpty()) {
+          runs.add(spill(records, runDirectory));
+          records.clear();
+        }
+        merge(runs, writer, runDirectory);
+      }
+    } finally {
+      for (Path run : runs) {
+        Files.deleteIfExists(run);
+      }
+    }
+  }
+
+  private Path spill(List<Record> records, Path runDirectory) throws IOException {
+    Collections.sort(records, ORDER);
+    Path run = Files.createTempFile(runDirectory, ".rds-data-", ".run");
+    try (DataOutputStream out = newRunOutput(run)) {
+      for (Record record : records) {
+        writeRecord(record, out);
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(run);
+      throw new IOException("Failed to spill sorted run to " + run, e);
+    }
+    spills++;
+    log.debug("Spilled " + records.size() + " records to " + run);
+    return run;
+  }
+
+  private static class RunCursor {
+    private final DataInputStream in;
+    private Record current;
+
+    private RunCursor(DataInputStream in) {
+      this.in = in;
+    }
+
+    private boolean advance() throws IOException {
+      String key;
+      try {
+        key = readString(in);
+      } catch (EOFException e) {
+        current = null;
+        return false;
+      }
+      current = new Record(key, readString(in));
+      return true;
+    }
+  }
+
+  /**
+   * Merges sorted runs.
+   *
+   * @param runs The runs to merge. Intermediate runs get added, so the caller can clean them up.
+   * @param writer The writer to write the merged records to.
+   * @param runDirectory The directory to write intermediate runs to.
+   */
+  private void merge(List<Path> runs, Writer writer, Path runDirectory) throws IOException {
+    Deque<Path> pending = new ArrayDeque<>(runs);
+    while (pending.size() > mergeWidth) {
+      List<Path> inputs = new ArrayList<>(mergeWidth);
+      for (int i = 0; i < mergeWidth; i++) {
+        inputs.add(pending.poll());
+      }
+      Path run = Files.createTempFile(runDirectory, ".rds-data-", ".run");
+      runs.add(run);
+      try (DataOutputStream out = newRunOutput(run)) {
+        mergeRuns(inputs, record -> writeRecord(record, out));
+      }
+      for (Path input : inputs) {
+        Files.delete(input);
+      }
+      pending.add(run);
+      merges++;
+    }
+    log.debug("Merging " + pending.size() + " runs after " + merges + " intermediate merges");
+    mergeRuns(new ArrayList<>(pending), new RecordSink() {
+      private boolean first = true;
+
+      @Override
+      public void write(Record record) throws IOException {
+        if (!first) {
+          writer.write(',');
+        }
+        first = false;
+        writer.write(record.json);
+      }
+    });
+  }
+
+  private void mergeRuns(List<Path> runs, RecordSink sink) throws IOException {
+    PriorityQueue<RunCursor> queue = new PriorityQueue<>(runs.size(),
+        (left, right) -> ORDER.compare(left.current, right.current));
+    List<RunCursor> cursors = new ArrayList<>(runs.size());
+    try {
+      for (Path run : runs) {
+        RunCursor cursor = new RunCursor(new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(run), ioBufferSize)));
+        cursors.add(cursor);
+        if (cursor.advance()) {
+          queue.add(cursor);
+        }
+      }
+      while (!queue.isEmpty()) {
+        RunCursor cursor = queue.poll();
+        sink.write(cursor.current);
+        if (cursor.advance()) {
+          queue.add(cursor);
+        }
+      }
+    } finally {
+      for (RunCursor cursor : cursors) {
+        cursor.in.close();
+      }
+    }
+  }
+
+  /**
+   * Orders the keys of all objects within a JSON element by name.
+   *
+   * @param element The element to normalize.
+   * @return the normalized element.
+   */
+  static JsonElement normalize(JsonElement element) {
+    if (element.isJsonObject()) {
+      Map<String, JsonElement> sorted = new TreeMap<>();
+      for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+        sorted.put(entry.getKey(), normalize(entry.getValue()));
+      }
+      JsonObject normalized = new JsonObject();
+      for (Map.Entry<String, JsonElement> entry : sorted.entrySet()) {
+        normalized.add(entry.getKey(), entry.getValue());
+      }
+      return normalized;
+    }
+    if (element.isJsonArray()) {
+      for (int i = 0; i < element.getAsJsonArray().size(); i++) {
+        element.getAsJsonArray().set(i, normalize(element.getAsJsonArray().get(i)));
+      }
+    }
+    return element;
+  }
+
+  private static void writeName(String name, Writer writer) throws IOException {
+    writer.write(quote(name));
+    writer.write(':');
+  }
+
+  private static String quote(String value) {
+    return new JsonPrimitive(value).toString();
+  }
+
+  private DataOutputStream newRunOutput(Path run) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run),
+        ioBufferSize));
+  }
+
+  private static void writeRecord(Record record, DataOutputStream out) throws IOException {
+    writeString(record.key, out);
+    writeString(record.json, out);
+  }
+
+  private static void writeString(String value, DataOutputStream out) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Publishes a gzip compressed copy of persisted snapshots.
+ *
+ * <p>The snapshot gets streamed through a {@link RdsDataParallelGzipOutputStream}, which
+ * compresses blocks of the snapshot on all cores and writes them as a multi-member gzip file.
+ * The blocks in flight are reserved from the memory budget. The compressed copy is published
+ * atomically next to the snapshot as {@code <target>.gz}.
+ *
+ * <p>Compression reads the snapshot back after it got published rather than compressing the
+ * persister's output stream, as the bytes written to that stream are not necessarily the
+ * snapshot's: canonicalization rewrites them, and a failed run discards them. Reading the
+ * snapshot right after it got written is mostly served from the page cache.
+ */
+@Singleton
+public class RdsDataCompressor implements RdsDataSnapshotListener {
+  private static final Log log = LogFactory.getLog(RdsDataCompressor.class);
+
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final boolean enabled;
+  private final int threads;
+  private final int blockSizeBytes;
+  private final int level;
+  private final RdsDataMemoryBudget memoryBudget;
+  private final RdsDataMetrics metrics;
+
+  /**
+   * Creates a compressor of snapshots.
+   *
+   * @param appConfig The application config to use.
+   * @param memoryBudget The budget to reserve block memory from.
+   * @param metrics The metrics to record compression times and sizes to.
+   */
+  @Inject
+  public RdsDataCompressor(@ApplicationConfig Config appConfig,
+      RdsDataMemoryBudget memoryBudget, RdsDataMetrics metrics) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.compressor");
+    this.enabled = config.getBoolean("enabled", false);
+    int configuredThreads = config.getInt("threads", 0);
+    this.threads = (configuredThreads > 0) ? configuredThreads
+        : Runtime.getRuntime().availableProcessors();
+    this.blockSizeBytes = config.getInt("blockSizeBytes", 1024 * 1024);
+    this.level = config.getInt("level", 6);
+    if (blockSizeBytes <= 0) {
+      throw new IllegalArgumentException("RdsDataDownloader.compressor.blockSizeBytes is "
+          + blockSizeBytes + ", but must be positive");
+    }
+    if (level < 0 || level > 9) {
+      throw new IllegalArgumentException("RdsDataDownloader.compressor.level is " + level
+          + ", but must be between 0 and 9");
+    }
+    this.memoryBudget = memoryBudget;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Gets the compressed copy of a snapshot file.
+   *
+   * @param target The snapshot file.
+   * @return the compressed copy of the snapshot file.
+   */
+  public static Path getPath(Path target) {
+    Path fileName = Paths.get(target.getFileName() + ".gz");
+    Path parent = target.getParent();
+    return (parent == null) ? fileName : parent.resolve(fileName);
+  }
+
+  @Override
+  public String getName() {
+    return "compressor";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Compresses a snapshot.
+   *
+   * @param snapshot The snapshot to compress.
+   * @throws IOException if reading the snapshot or writing the compressed copy fails.
+   */
+  @Override
+  public void onSnapshot(RdsDataSnapshot snapshot) throws IOException {
+    long start = System.nanoTime();
+    Path target = getPath(snapshot.getPath());
+    Path tmpTarget = target.resolveSibling(target.getFileName() + ".tmp");
+    // Each block in flight takes up to a block for its data and another for its compressed
+    // form, and one more block gets filled meanwhile.
+    long preferredBytes = (4L * threads + 1) * blockSizeBytes;
+    long compressed;
+    int maxInFlight;
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        RdsDataThreads.newDaemonThreadFactory("RdsDataDownloader-compress"));
+    try (RdsDataMemoryBudget.Reservation reservation = memoryBudget.reserve(
+        "compression blocks", preferredBytes, 3L * blockSizeBytes)) {
+      maxInFlight = (int) Math.max(1, (reservation.getBytes() / blockSizeBytes - 1) / 2);
+      try (InputStream in = Files.newInputStream(snapshot.getPath());
+          RdsDataParallelGzipOutputStream out = new RdsDataParallelGzipOutputStream(
+              Files.newOutputStream(tmpTarget), executor, blockSizeBytes, maxInFlight,
+              level)) {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+          out.write(buffer, 0, read);
+        }
+      }
+      compressed = Files.size(tmpTarget);
+      Files.move(tmpTarget, target, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmpTarget);
+      throw e;
+    } finally {
+      executor.shutdownNow();
+      awaitTermination(executor);
+    }
+    long nanos = System.nanoTime() - start;
+    metrics.record("compressor.compress", nanos);
+    log.info("Compressed generation " + snapshot.getGeneration() + " to " + target + " in "
+        + nanos / 1000000 + " ms on " + threads + " threads with " + maxInFlight
+        + " blocks in flight. " + compressed + " instead of " + snapshot.getSize() + " bytes");
+  }
+
+  private static void awaitTermination(ExecutorService executor) {
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        log.warn("Compression tasks did not end within a minute after cancelling them");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigImpl;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Detects changes to the config file.
+ *
+ * <p>The config file gets polled for changed content. A changed file gets parsed into a fresh
+ * config, which {@link RdsDataLifecycle} validates and applies between runs. Settings that are
+ * not in the file fall back to their defaults.
+ */
+@Singleton
+public class RdsDataConfigReloader {
+  private static final Log log = LogFactory.getLog(RdsDataConfigReloader.class);
+
+  private final Path file;
+  private final long checkIntervalMillis;
+  private byte[] seen;
+
+  /**
+   * Creates a reloader for the config file.
+   *
+   * @param appConfig The application config to use.
+   */
+  @Inject
+  public RdsDataConfigReloader(@ApplicationConfig Config appConfig) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.reload");
+    String fileName = config.get("file");
+    this.file = (fileName == null || !config.getBoolean("enabled", true)) ? null
+        : Paths.get(fileName);
+    this.checkIntervalMillis = config.getDurationMillis("checkInterval", 10, TimeUnit.SECONDS);
+    this.seen = null;
+    if (file != null) {
+      try {
+        this.seen = Files.readAllBytes(file);
+      } catch (IOException e) {
+        log.warn("Failed to read config file " + file + ". Changes get picked up once it is "
+            + "readable", e);
+      }
+    }
+  }
+
+  /**
+   * Checks whether the config file gets watched.
+   *
+   * @return true, if the process got started with a config file and reloading is enabled.
+   */
+  public boolean isEnabled() {
+    return file != null;
+  }
+
+  /**
+   * Gets the config file.
+   *
+   * @return the watched config file, or null if reloading is disabled.
+   */
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Gets how often the config file gets checked for changes.
+   *
+   * @return the check interval in milliseconds.
+   */
+  public long getCheckIntervalMillis() {
+    return checkIntervalMillis;
+  }
+
+  /**
+   * Loads the config file, if it changed since the last call.
+   *
+   * <p>Each content is handed out only once. So a rejected config is not retried until the
+   * file changes again.
+   *
+   * @return the changed config, or null if the file did not change.
+   * @throws IOException if the file cannot be read or parsed.
+   */
+  public synchronized Config loadIfChanged() throws IOException {
+    if (file == null) {
+      return null;
+    }
+    byte[] content = Files.readAllBytes(file);
+    if (seen != null && Arrays.equals(seen, content)) {
+      return null;
+    }
+    seen = content;
+    Properties properties = new Properties();
+    try (Reader reader = new StringReader(new String(content, StandardCharsets.UTF_8))) {
+      properties.load(reader);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Malformed config file " + file, e);
+    }
+    log.info("Config file " + file + " changed");
+    return new ConfigImpl() {
+      {
+        for (String key : properties.stringPropertyNames()) {
+          set(key, properties.getProperty(key).trim());
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Exports persisted snapshots into their dictionary-encoded binary form.
+ *
+ * <p>The snapshot gets streamed through a {@link RdsDataReader} into a
+ * {@link RdsDataDictionarySnapshot.Writer}, whose dictionary memory is reserved from the memory
+ * budget. The encoded snapshot is published atomically next to the snapshot as
+ * {@code <target>.dict}.
+ */
+@Singleton
+public class RdsDataDictionaryExporter implements RdsDataSnapshotListener {
+  private static final Log log = LogFactory.getLog(RdsDataDictionaryExporter.class);
+
+  private static final long MIN_DICTIONARY_MEMORY = 1024 * 1024;
+
+  private final boolean enabled;
+  private final String identifierField;
+  private final int maxEntries;
+  private final long maxMemoryBytes;
+  private final RdsDataMemoryBudget memoryBudget;
+  private final RdsDataMetrics metrics;
+
+  /**
+   * Creates an exporter into dictionary-encoded snapshots.
+   *
+   * @param appConfig The application config to use.
+   * @param memoryBudget The budget to reserve dictionary memory from.
+   * @param metrics The metrics to record encoding times and sizes to.
+   */
+  @Inject
+  public RdsDataDictionaryExporter(@ApplicationConfig Config appConfig,
+      RdsDataMemoryBudget memoryBudget, RdsDataMetrics metrics) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.dictionary");
+    this.enabled = config.getBoolean("enabled", false);
+    this.identifierField = config.get("identifierField", "identifier");
+    this.maxEntries = config.getInt("maxEntries", 65536);
+    this.maxMemoryBytes = config.getLong("maxMemoryBytes", 8 * 1024 * 1024);
+    this.memoryBudget = memoryBudget;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public String getName() {
+    return "dictionary";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Encodes a snapshot.
+   *
+   * @param snapshot The snapshot to encode.
+   * @throws IOException if reading the snapshot or writing the encoded form fails.
+   */
+  @Override
+  public void onSnapshot(RdsDataSnapshot snapshot) throws IOException {
+    long start = System.nanoTime();
+    Path target = RdsDataDictionarySnapshot.getPath(snapshot.getPath());
+    Path tmpTarget = target.resolveSibling(target.getFileName() + ".tmp");
+    long records;
+    int entries;
+    long references;
+    long literals;
+    try (RdsDataMemoryBudget.Reservation reservation = memoryBudget.reserve(
+        "dictionary encoding memory", maxMemoryBytes,
+        Math.min(maxMemoryBytes, MIN_DICTIONARY_MEMORY))) {
+      try (RdsDataDictionarySnapshot.Writer writer = new RdsDataDictionarySnapshot.Writer(
+          tmpTarget, snapshot.getGeneration(), maxEntries, reservation.getBytes());
+          RdsDataReader reader = new RdsDataReader(snapshot.getPath(), identifierField)) {
+        for (String enumType : reader.getEnumTypes()) {
+          writer.startSection(enumType);
+          reader.forEach(enumType, writer::add);
+        }
+        writer.finish();
+        records = writer.getRecords();
+        entries = writer.getDictionarySize();
+        references = writer.getReferences();
+        literals = writer.getLiterals();
+      }
+      Files.move(tmpTarget, target, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmpTarget);
+      throw e;
+    }
+    long nanos = System.nanoTime() - start;
+    long size = Files.size(target);
+    metrics.record("dictionary.encode", nanos);
+    metrics.updateMax("dictionary.maxEntries", entries);
+    log.info("Encoded " + records + " records of generation " + snapshot.getGeneration()
+        + " to " + target + " in " + nanos / 1000000 + " ms. " + size + " instead of "
+        + snapshot.getSize() + " bytes, with " + entries + " dictionary entries, " + references
+        + " references, and " + literals + " literals");
+  }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary-encoded binary form of a snapshot.
+ *
+ * <p>Strings that repeat within and across enum types (e.g.: field names, country codes,
+ * references to industries) are written only once and are afterwards referenced by their
+ * integer id. The dictionary is built while writing and rebuilt while reading, so the file is
+ * written and read in a single streaming pass and has no separate string table.
+ *
+ * <p>The file starts with a header (magic number, version, and generation), followed by a
+ * section marker for each enum type, which is followed by the type's records. Each record holds
+ * its identifier and its fields as (name, type, value) triples, where identifiers, names, and
+ * values are string references. A string reference is a varint, which is 0 for absent strings, 1
+ * for a literal that does not enter the dictionary, 2 for a literal that enters the dictionary,
+ * and the dictionary id plus 3 otherwise. Literals are a varint length followed by the string's
+ * UTF-8 bytes. Nested objects and arrays are kept as JSON text. An end marker with the number of
+ * records closes the file, so truncated files are detected.
+ */
+public class RdsDataDictionarySnapshot implements Closeable {
+  static final long MAGIC = 0x5244534449435431L;
+  static final int VERSION = 1;
+
+  private static final int END = 0;
+  private static final int SECTION = 1;
+  private static final int RECORD = 2;
+
+  private static final int REF_ABSENT = 0;
+  private static final int REF_LITERAL = 1;
+  private static final int REF_ADDED_LITERAL = 2;
+  private static final int REF_ID_BASE = 3;
+
+  private static final RdsDataRecord.Type[] TYPES = RdsDataRecord.Type.values();
+
+  private final Path file;
+  private final DataInputStream in;
+  private final long generation;
+  private final List<byte[]> dictionary;
+  private boolean read;
+
+  /**
+   * Writes the dictionary-encoded form of a snapshot.
+   *
+   * <p>The dictionary's memory is bounded. Once it is full, further strings are written as
+   * literals. Fields that turn out to have mostly distinct values (e.g.: identifiers or
+   * descriptions) stop adding their values to the dictionary early, so they do not crowd out
+   * strings that repeat.
+   *
+   * <p>Usage:
+   *
+   * <pre>
+   * try (RdsDataDictionarySnapshot.Writer writer =
+   *     new RdsDataDictionarySnapshot.Writer(file, generation, 65536, 4 * 1024 * 1024)) {
+   *   for (each enum type) {
+   *     writer.startSection(enumType);
+   *     for (each record of the enum type) {
+   *       writer.add(record);
+   *     }
+   *   }
+   *   writer.finish();
+   * }
+   * </pre>
+   */
+  public static class Writer implements Closeable {
+    // Rough per-entry overhead of the dictionary's hash map entry, string, and id.
+    private static final long ENTRY_OVERHEAD = 96;
+    private static final int CARDINALITY_SAMPLE = 256;
+    private static final String IDENTIFIER_STATS = "\u0000identifier";
+
+    private final DataOutputStream out;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Map<String, Integer> dictionary;
+    private final Map<String, FieldStats> fieldStats;
+    private long dictionaryBytes;
+    private long records;
+    private long literals;
+    private long references;
+    private boolean finished;
+
+    private static class FieldStats {
+      private long seen;
+      private long hits;
+      private boolean highCardinality;
+    }
+
+    /**
+     * Creates a writer.
+     *
+     * @param file The file to write to.
+     * @param generation The generation of the encoded snapshot.
+     * @param maxEntries The maximum number of dictionary entries.
+     * @param maxBytes The estimated maximum heap of the dictionary in bytes.
+     * @throws IOException if the file cannot be created.
+     */
+    public Writer(Path file, long generation, int maxEntries, long maxBytes)
+        throws IOException {
+      this(Files.newOutputStream(file), generation, maxEntries, maxBytes);
+    }
+
+    /**
+     * Creates a writer.
+     *
+     * @param out The stream to write to. It gets closed by the writer.
+     * @param generation The generation of the encoded snapshot.
+     * @param maxEntries The maximum number of dictionary entries.
+     * @param maxBytes The estimated maximum heap of the dictionary in bytes.
+     * @throws IOException if writing the header fails.
+     */
+    public Writer(OutputStream out, long generation, int maxEntries, long maxBytes)
+        throws IOException {
+      this.out = new DataOutputStream(new BufferedOutputStream(out,
+          RdsDataMemoryBudget.UNRESERVED_BUFFER_BYTES));
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+      this.dictionary = new HashMap<>();
+      this.fieldStats = new HashMap<>();
+      this.dictionaryBytes = 0;
+      this.records = 0;
+      this.literals = 0;
+      this.references = 0;
+      this.finished = false;
+      this.out.writeLong(MAGIC);
+      this.out.writeInt(VERSION);
+      this.out.writeLong(generation);
+    }
+
+    /**
+     * Starts the records of an enum type.
+     *
+     * @param enumType The enum type of the following records.
+     * @throws IOException if writing fails.
+     */
+    public void startSection(String enumType) throws IOException {
+      out.write(SECTION);
+      writeString(enumType, null);
+    }
+
+    /**
+     * Appends a record to the current section.
+     *
+     * @param record The record to append.
+     * @throws IOException if writing fails.
+     */
+    public void add(RdsDataRecord record) throws IOException {
+      out.write(RECORD);
+      writeString(record.getIdentifier(), IDENTIFIER_STATS);
+      int fieldCount = record.getFieldCount();
+      writeVarint(fieldCount);
+      for (int i = 0; i < fieldCount; i++) {
+        String name = record.getFieldName(i);
+        RdsDataRecord.Type type = record.getType(i);
+        writeString(name, null);
+        out.write(type.ordinal());
+        if (type != RdsDataRecord.Type.NULL) {
+          writeString(record.getString(i), name);
+        }
+      }
+      records++;
+    }
+
+    /**
+     * Writes a string reference.
+     *
+     * @param value The string to write. May be null.
+     * @param field The field that the string is a value of, or null if it is not a value.
+     */
+    private void writeString(String value, String field) throws IOException {
+      if (value == null) {
+        writeVarint(REF_ABSENT);
+        return;
+      }
+      FieldStats stats = null;
+      if (field != null) {
+        stats = fieldStats.get(field);
+        if (stats == null) {
+          stats = new FieldStats();
+          fieldStats.put(field, stats);
+        }
+        stats.seen++;
+      }
+      Integer id = dictionary.get(value);
+      if (id != null) {
+        if (stats != null) {
+          stats.hits++;
+        }
+        writeVarint(id + REF_ID_BASE);
+        references++;
+        return;
+      }
+      if (stats != null && !stats.highCardinality && stats.seen >= CARDINALITY_SAMPLE
+          && stats.hits * 8 < stats.seen) {
+        // Less than an eighth of the field's values repeat, so adding further values would
+        // mostly fill the dictionary with strings that do not get referenced again.
+        stats.highCardinality = true;
+      }
+      long size = ENTRY_OVERHEAD + 2L * value.length();
+      boolean add = (stats == null || !stats.highCardinality) && dictionary.size() < maxEntries
+          && dictionaryBytes + size <= maxBytes;
+      if (add) {
+        dictionary.put(value, dictionary.size());
+        dictionaryBytes += size;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarint(add ? REF_ADDED_LITERAL : REF_LITERAL);
+      writeVarint(bytes.length);
+      out.write(bytes);
+      literals++;
+    }
+
+    private void writeVarint(int value) throws IOException {
+      while ((value & ~0x7f) != 0) {
+        out.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    /**
+     * Gets the number of added records.
+     *
+     * @return the number of records added so far.
+     */
+    public long getRecords() {
+      return records;
+    }
+
+    /**
+     * Gets the number of dictionary entries.
+     *
+     * @return the number of strings in the dictionary.
+     */
+    public int getDictionarySize() {
+      return dictionary.size();
+    }
+
+    /**
+     * Gets the number of strings written as dictionary references.
+     *
+     * @return the number of strings that have been written as references.
+     */
+    public long getReferences() {
+      return references;
+    }
+
+    /**
+     * Gets the number of strings written as literals.
+     *
+     * @return the number of strings that have been written as literals.
+     */
+    public long getLiterals() {
+      return literals;
+    }
+
+    /**
+     * Writes the end marker.
+     *
+     * @throws IOException if writing fails.
+     */
+    public void finish() throws IOException {
+      out.write(END);
+      out.writeLong(records);
+      out.flush();
+      finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+      if (!finished) {
+        throw new IOException("Dictionary-encoded snapshot closed before it got finished");
+      }
+    }
+  }
+
+  /**
+   * Opens a dictionary-encoded snapshot.
+   *
+   * @param file The file to read.
+   * @throws IOException if the file cannot be read or is not a dictionary-encoded snapshot.
+   */
+  public RdsDataDictionarySnapshot(Path file) throws IOException {
+    this.file = file;
+    this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+        64 * 1024));
+    this.dictionary = new ArrayList<>();
+    this.read = false;
+    try {
+      if (in.readLong() != MAGIC) {
+        throw new IOException("Not a dictionary-encoded snapshot, as " + file
+            + " lacks the magic number");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported dictionary-encoded snapshot version " + version
+            + " in " + file);
+      }
+      this.generation = in.readLong();
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Gets the dictionary-encoded snapshot file for a snapshot file.
+   *
+   * @param target The snapshot file.
+   * @return the file holding the dictionary-encoded form of the snapshot.
+   */
+  public static Path getPath(Path target) {
+    Path fileName = Paths.get(target.getFileName() + ".dict");
+    Path parent = target.getParent();
+    return (parent == null) ? fileName : parent.resolve(fileName);
+  }
+
+  /**
+   * Gets the generation of the encoded snapshot.
+   *
+   * @return the snapshot's generation.
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Streams all records.
+   *
+   * <p>Records are decoded into a single record object per enum type, just like
+   * {@link RdsDataReader} does. As the file is read in a single pass, this can only be called
+   * once.
+   *
+   * @param handler The handler for the records.
+   * @throws IOException if reading fails, the file is malformed, or the handler fails.
+   */
+  public void forEach(RdsDataReader.RecordHandler handler) throws IOException {
+    if (read) {
+      throw new IllegalStateException("Records of " + file + " have already been read");
+    }
+    read = true;
+    RdsDataRecord.Names names = new RdsDataRecord.Names();
+    RdsDataRecord record = null;
+    long records = 0;
+    try {
+      while (true) {
+        int marker = in.readUnsignedByte();
+        if (marker == END) {
+          long expected = in.readLong();
+          if (expected != records) {
+            throw new IOException("Read " + records + " records instead of " + expected
+                + " from " + file);
+          }
+          return;
+        } else if (marker == SECTION) {
+          record = new RdsDataRecord(new String(readRequiredString(), StandardCharsets.UTF_8),
+              names);
+        } else if (marker == RECORD && record != null) {
+          readRecord(record);
+          records++;
+          handler.onRecord(record);
+        } else {
+          throw new IOException("Unexpected marker " + marker + " in " + file);
+        }
+      }
+    } catch (EOFException e) {
+      throw new IOException("Unexpected end of " + file, e);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Malformed dictionary-encoded snapshot " + file, e);
+    }
+  }
+
+  private void readRecord(RdsDataRecord record) throws IOException {
+    record.clear();
+    byte[] identifier = readString();
+    if (identifier != null) {
+      int start = record.getLength();
+      record.append(identifier, 0, identifier.length);
+      record.setIdentifier(start, identifier.length);
+    }
+    int fieldCount = readVarint();
+    for (int i = 0; i < fieldCount; i++) {
+      byte[] name = readRequiredString();
+      RdsDataRecord.Type type = TYPES[in.readUnsignedByte()];
+      int nameStart = record.getLength();
+      record.append(name, 0, name.length);
+      int valueStart = record.getLength();
+      if (type == RdsDataRecord.Type.NULL) {
+        record.append('n');
+        record.append('u');
+        record.append('l');
+        record.append('l');
+      } else {
+        byte[] value = readRequiredString();
+        record.append(value, 0, value.length);
+      }
+      record.addField(nameStart, name.length, valueStart, record.getLength() - valueStart,
+          type);
+    }
+  }
+
+  private byte[] readRequiredString() throws IOException {
+    byte[] bytes = readString();
+    if (bytes == null) {
+      throw new IOException("Missing string in " + file);
+    }
+    return bytes;
+  }
+
+  private byte[] readString() throws IOException {
+    int ref = readVarint();
+    if (ref == REF_ABSENT) {
+      return null;
+    } else if (ref >= REF_ID_BASE) {
+      return dictionary.get(ref - REF_ID_BASE);
+    }
+    int length = readVarint();
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    if (ref == REF_ADDED_LITERAL) {
+      dictionary.add(bytes);
+    }
+    return bytes;
+  }
+
+  private int readVarint() throws IOException {
+    int value = 0;
+    int shift = 0;
+    int current;
+    do {
+      current = in.readUnsignedByte();
+      value |= (current & 0x7f) << shift;
+      shift += 7;
+    } while ((current & 0x80) != 0);
+    return value;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -53,6 +53,11 @@ public class RdsDataDownloaderMain {
 
     RdsDataLifecycle lifecycle = injector.getInstance(RdsDataLifecycle.class);
     lifecycle.start();
+    // Lets a run in progress finish on SIGTERM, instead of leaving partial files behind.
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      log.info("Shutting down");
+      lifecycle.stop();
+    }, "RdsDataDownloader-shutdown"));
 
     sm.setMainAppState(AppState.READY);
 
@@ -68,13 +73,6 @@ public class RdsDataDownloaderMain {
 
   static Injector init(String[] args) {
 
-    Config appDefaults = new ConfigImpl() {
-      {
-        set("paths.data", "data");
-        set("paths.dataState", "state");
-      }
-    };
-
     switch (args.length) {
       case 0:
         //no arguments then go with the default configuration strategy
@@ -87,8 +85,9 @@ public class RdsDataDownloaderMain {
       case 2:
         Path confDir = Paths.get(args[1]);
         if (args[0].equals("--config") && confDir.toFile().isFile()) {
+          Path configFile = Paths.get(args[1]).toAbsolutePath();
           InjectorFactory.register(
-                  new CustomConfigModule(Paths.get(args[1]).toAbsolutePath(), appDefaults));
+                  new CustomConfigModule(configFile, getAppDefaults(configFile)));
           return InjectorFactory.getInjector();
         }
         break;
@@ -99,6 +98,22 @@ public class RdsDataDownloaderMain {
     return null;
   }
 
+  /**
+   * Gets the defaults for a config file.
+   *
+   * @param configFile The config file, which gets watched for changes.
+   * @return the defaults for settings that the config file does not set.
+   */
+  static Config getAppDefaults(Path configFile) {
+    return new ConfigImpl() {
+      {
+        set("paths.data", "data");
+        set("paths.dataState", "state");
+        set("RdsDataDownloader.reload.file", configFile.toString());
+      }
+    };
+  }
+
   static void printUsageAndExit(PrintStream pw, int exitStatus) {
     String usage = ""
             + "Usage: java -jar RDSDataDownloader.jar [--help] [--config <file>]\n"
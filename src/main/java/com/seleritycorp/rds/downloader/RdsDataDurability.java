@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+/**
+ * How hard the persister tries to make published snapshots survive power loss.
+ */
+public enum RdsDataDurability {
+  /**
+   * No fsync at all. Leaves flushing to the operating system. Fastest, but after a power loss
+   * the target may be empty or missing.
+   */
+  NONE,
+
+  /**
+   * Fsync the data before moving it into place. The target always holds complete data, but
+   * after a power loss the move itself might get lost, leaving the previous snapshot in place.
+   */
+  DATA,
+
+  /**
+   * Fsync the data before moving it into place, and the directory afterwards. Once persisting
+   * finished, the new snapshot survives power loss.
+   */
+  DATA_AND_DIRECTORY
+}
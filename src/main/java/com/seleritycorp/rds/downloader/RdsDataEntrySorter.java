@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts key-value entries by key with an external merge sort.
+ *
+ * <p>Entries are collected until the memory budget is used up, and then get sorted and spilled
+ * to a run file. Runs get merged like in {@link RdsDataCanonicalizer}: at most
+ * {@link RdsDataCanonicalizer#MAX_MERGE_WIDTH} runs at once, with read and write buffers that come
+ * out of the same memory budget as the entries.
+ *
+ * <p>Entries with equal keys keep the order they got added in.
+ */
+final class RdsDataEntrySorter implements Closeable {
+  private static final Log log = LogFactory.getLog(RdsDataEntrySorter.class);
+
+  // Rough per-entry overhead of the entry object, its two arrays, and the list slot.
+  private static final long ENTRY_OVERHEAD = 88;
+
+  private static final Comparator<Entry> ORDER = (left, right) -> {
+    int result = RdsDataKeyValueStore.compare(left.key, right.key);
+    return (result != 0) ? result : Long.compare(left.sequence, right.sequence);
+  };
+
+  private final Path runDirectory;
+  private final long maxMemoryBytes;
+  private final int ioBufferSize;
+  private final int mergeWidth;
+  private final List<Entry> entries;
+  private final List<Path> runs;
+  private long used;
+  private long sequence;
+  private long spills;
+  private long merges;
+
+  /**
+   * Receives sorted entries.
+   */
+  interface EntrySink {
+    /**
+     * Receives the next entry.
+     *
+     * @param key The key of the entry.
+     * @param value The value of the entry.
+     * @throws IOException if processing the entry fails.
+     */
+    void accept(byte[] key, byte[] value) throws IOException;
+  }
+
+  /**
+   * Receives merged entries along with their sequence.
+   */
+  private interface RunSink {
+    void write(Entry entry) throws IOException;
+  }
+
+  private static class Entry {
+    private final byte[] key;
+    private final byte[] value;
+    private final long sequence;
+
+    private Entry(byte[] key, byte[] value, long sequence) {
+      this.key = key;
+      this.value = value;
+      this.sequence = sequence;
+    }
+
+    private long getEstimatedSize() {
+      return ENTRY_OVERHEAD + key.length + value.length;
+    }
+  }
+
+  /**
+   * Creates a sorter.
+   *
+   * @param runDirectory The directory to spill sorted runs to.
+   * @param maxMemoryBytes The estimated memory that entries and buffers may take.
+   */
+  RdsDataEntrySorter(Path runDirectory, long maxMemoryBytes) {
+    if (maxMemoryBytes <= 0) {
+      throw new IllegalArgumentException("Memory budget has to be positive, but is "
+          + maxMemoryBytes);
+    }
+    this.runDirectory = runDirectory;
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.ioBufferSize = RdsDataCanonicalizer.getIoBufferSize(maxMemoryBytes);
+    this.mergeWidth = RdsDataCanonicalizer.getMergeWidth(maxMemoryBytes);
+    this.entries = new ArrayList<>();
+    this.runs = new ArrayList<>();
+  }
+
+  /**
+   * Adds an entry.
+   *
+   * @param key The key to sort by.
+   * @param value The value of the entry.
+   * @throws IOException if spilling entries fails.
+   */
+  void add(byte[] key, byte[] value) throws IOException {
+    Entry entry = new Entry(key, value, sequence++);
+    entries.add(entry);
+    used += entry.getEstimatedSize();
+    // The spill's write buffer has to fit in the budget too.
+    if (used + ioBufferSize >= maxMemoryBytes) {
+      spill();
+    }
+  }
+
+  /**
+   * Passes all added entries in sorted order to a sink.
+   *
+   * @param sink The sink to pass the entries to.
+   * @throws IOException if spilling or merging fails, or the sink fails.
+   */
+  void drain(EntrySink sink) throws IOException {
+    if (runs.isEmpty()) {
+      Collections.sort(entries, ORDER);
+      for (Entry entry : entries) {
+        sink.accept(entry.key, entry.value);
+      }
+      entries.clear();
+      used = 0;
+    } else {
+      if (!entries.isEmpty()) {
+        spill();
+      }
+      merge(sink);
+    }
+  }
+
+  /**
+   * Gets the number of runs spilled to disk.
+   *
+   * @return the number of spilled runs.
+   */
+  long getSpills() {
+    return spills;
+  }
+
+  /**
+   * Gets the number of intermediate merges.
+   *
+   * @return the number of merges that combined runs into longer runs.
+   */
+  long getMerges() {
+    return merges;
+  }
+
+  /**
+   * Removes the remaining run files.
+   *
+   * @throws IOException if removing a run file fails.
+   */
+  @Override
+  public void close() throws IOException {
+    for (Path run : runs) {
+      Files.deleteIfExists(run);
+    }
+    runs.clear();
+    entries.clear();
+  }
+
+  private void spill() throws IOException {
+    Collections.sort(entries, ORDER);
+    Path run = Files.createTempFile(runDirectory, ".rds-data-", ".run");
+    runs.add(run);
+    try (DataOutputStream out = newRunOutput(run)) {
+      for (Entry entry : entries) {
+        writeEntry(entry, out);
+      }
+    } catch (IOException e) {
+      throw new IOException("Failed to spill sorted run to " + run, e);
+    }
+    spills++;
+    log.debug("Spilled " + entries.size() + " entries to " + run);
+    entries.clear();
+    used = 0;
+  }
+
+  private DataOutputStream newRunOutput(Path run) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run),
+        ioBufferSize));
+  }
+
+  private static void writeEntry(Entry entry, DataOutputStream out) throws IOException {
+    out.writeInt(entry.key.length);
+    out.write(entry.key);
+    out.writeLong(entry.sequence);
+    out.writeInt(entry.value.length);
+    out.write(entry.value);
+  }
+
+  private static class RunCursor {
+    private final DataInputStream in;
+    private Entry current;
+
+    private RunCursor(DataInputStream in) {
+      this.in = in;
+    }
+
+    private boolean advance() throws IOException {
+      byte[] key;
+      try {
+        key = new byte[in.readInt()];
+      } catch (EOFException e) {
+        current = null;
+        return false;
+      }
+      in.readFully(key);
+      long sequence = in.readLong();
+      byte[] value = new byte[in.readInt()];
+      in.readFully(value);
+      current = new Entry(key, value, sequence);
+      return true;
+    }
+  }
+
+  private void merge(EntrySink sink) throws IOException {
+    Deque<Path> pending = new ArrayDeque<>(runs);
+    while (pending.size() > mergeWidth) {
+      List<Path> inputs = new ArrayList<>(mergeWidth);
+      for (int i = 0; i < mergeWidth; i++) {
+        inputs.add(pending.poll());
+      }
+      Path run = Files.createTempFile(runDirectory, ".rds-data-", ".run");
+      runs.add(run);
+      try (DataOutputStream out = newRunOutput(run)) {
+        mergeRuns(inputs, entry -> writeEntry(entry, out));
+      }
+      for (Path input : inputs) {
+        Files.delete(input);
+      }
+      runs.removeAll(inputs);
+      pending.add(run);
+      merges++;
+    }
+    log.debug("Merging " + pending.size() + " runs after " + merges + " intermediate merges");
+    mergeRuns(new ArrayList<>(pending), entry -> sink.accept(entry.key, entry.value));
+  }
+
+  private void mergeRuns(List<Path> inputs, RunSink sink) throws IOException {
+    PriorityQueue<RunCursor> queue = new PriorityQueue<>(inputs.size(),
+        (left, right) -> ORDER.compare(left.current, right.current));
+    List<RunCursor> cursors = new ArrayList<>(inputs.size());
+    try {
+      for (Path run : inputs) {
+        RunCursor cursor = new RunCursor(new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(run), ioBufferSize)));
+        cursors.add(cursor);
+        if (cursor.advance()) {
+          queue.add(cursor);
+        }
+      }
+      while (!queue.isEmpty()) {
+        RunCursor cursor = queue.poll();
+        sink.write(cursor.current);
+        if (cursor.advance()) {
+          queue.add(cursor);
+        }
+      }
+    } finally {
+      for (RunCursor cursor : cursors) {
+        cursor.in.close();
+      }
+    }
+  }
+}
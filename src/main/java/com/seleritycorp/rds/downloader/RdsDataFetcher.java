@@ -25,43 +25,211 @@ import com.seleritycorp.common.base.config.Config;
 import com.seleritycorp.common.base.coreservices.CallErrorException;
 import com.seleritycorp.common.base.coreservices.RefDataClient;
 import com.seleritycorp.common.base.http.client.HttpException;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
 import com.seleritycorp.common.base.meta.MetaDataFormatter;
 
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.inject.Inject;
 
 /**
  * Fetcher for RDS data.
+ *
+ * <p>The enum types to fetch can be reconfigured between runs.
+ *
+ * <p>By default, enum types are streamed one after the other. With a parallelism other than 1,
+ * enum types are fetched concurrently, each into its own spool file, and the spool files are
+ * copied into the output in order. The fetch tasks form a scope: the first failure cancels all
+ * other tasks, and the fetch returns only after all tasks ended.
+ *
+ * <p>If the segment store is enabled, enum types are always spooled, and they get spooled into
+ * the store's segments. A later fetch (e.g.: the retry, or the first run after a restart) resumes
+ * from segments that got fetched since the last publish instead of fetching their enum types
+ * again.
+ *
+ * <p>Writers that are {@link RdsDataSegmentSink}s get spooled enum types appended directly
+ * instead of copying them through the JVM.
+ *
+ * <p>Nothing of the fetched data is held in memory. The JSON writers stream straight into their
+ * writer without a buffer of their own, and each spool file and copy has a fixed buffer of a few
+ * kilobytes, which is below {@link RdsDataMemoryBudget#UNRESERVED_BUFFER_BYTES}. So the memory of
+ * a fetch only depends on the parallelism and is not reserved from the memory budget.
  */
-public class RdsDataFetcher {
+public class RdsDataFetcher implements RdsDataReconfigurable {
+  private static final Log log = LogFactory.getLog(RdsDataFetcher.class);
+
   private final RefDataClient refDataClient;
-  private final List<String> enumTypes;
+  private volatile List<String> enumTypes;
+  private volatile int parallelism;
+  private final RdsDataSegmentStore segmentStore;
   private final String agent;
+  private final RdsDataRunReports reports;
+
+  /**
+   * Writer that counts the UTF-8 encoded bytes written for the current phase.
+   */
+  private static class CountingWriter extends FilterWriter {
+    private RdsDataRunReport.Phase phase;
+
+    private CountingWriter(Writer out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int chr) throws IOException {
+      super.write(chr);
+      count((char) chr);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      super.write(cbuf, off, len);
+      long bytes = 0;
+      for (int i = off; i < off + len; i++) {
+        bytes += getUtf8Length(cbuf[i]);
+      }
+      addBytes(bytes);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      super.write(str, off, len);
+      long bytes = 0;
+      for (int i = off; i < off + len; i++) {
+        bytes += getUtf8Length(str.charAt(i));
+      }
+      addBytes(bytes);
+    }
+
+    private void count(char chr) {
+      addBytes(getUtf8Length(chr));
+    }
+
+    private void addBytes(long bytes) {
+      if (phase != null) {
+        phase.addBytes(bytes);
+      }
+    }
+
+    private static int getUtf8Length(char chr) {
+      if (chr < 0x80) {
+        return 1;
+      } else if (chr < 0x800 || Character.isSurrogate(chr)) {
+        // Each half of a surrogate pair accounts for half of the pair's four bytes.
+        return 2;
+      }
+      return 3;
+    }
+  }
 
   /**
    * Creates a fetcher of RDS data.
    *
    * @param appConfig The application config to use.
+   * @param segmentStore keeps the fetched data of enum types.
    * @param refDataClient The CoreService client for reference data.
    * @param metaDataFormatter formats the agent for meta data.
+   * @param reports keeps the reports of runs.
    */
   @Inject
-  public RdsDataFetcher(@ApplicationConfig Config appConfig, RefDataClient refDataClient,
-      MetaDataFormatter metaDataFormatter) {
+  public RdsDataFetcher(@ApplicationConfig Config appConfig,
+      RdsDataSegmentStore segmentStore,
+      RefDataClient refDataClient, MetaDataFormatter metaDataFormatter,
+      RdsDataRunReports reports) {
     this.refDataClient = refDataClient;
+    this.reports = reports;
     this.agent = metaDataFormatter.getUserAgent();
+    this.enumTypes = parseEnumTypes(appConfig);
+    this.parallelism = appConfig.getInt("RdsDataDownloader.fetcher.parallelism", 1);
+    this.segmentStore = segmentStore;
+  }
+
+  private static List<String> parseEnumTypes(Config appConfig) {
     String enumTypesString = appConfig.get("RdsDataDownloader.fetcher.enumTypes", "");
 
-    this.enumTypes = new LinkedList<>();
+    List<String> enumTypes = new LinkedList<>();
     for (String uncleanedEnumType : enumTypesString.split(",")) {
       String cleanEnumType = uncleanedEnumType.trim();
       if (!cleanEnumType.isEmpty()) {
-        this.enumTypes.add(cleanEnumType);
+        enumTypes.add(cleanEnumType);
       }
     }
+    return Collections.unmodifiableList(enumTypes);
+  }
+
+  /**
+   * Checks the enum types of a reloaded config.
+   *
+   * <p>As a typo in a reloaded config must not silently empty the published data, configs
+   * without enum types or with malformed enum types are rejected.
+   *
+   * @param appConfig The application config to check.
+   * @throws IllegalArgumentException if the enum types are empty or malformed, or the
+   *     parallelism is negative.
+   */
+  @Override
+  public void validate(Config appConfig) {
+    List<String> newEnumTypes = parseEnumTypes(appConfig);
+    if (newEnumTypes.isEmpty()) {
+      throw new IllegalArgumentException("RdsDataDownloader.fetcher.enumTypes is empty");
+    }
+    for (String enumType : newEnumTypes) {
+      if (!enumType.matches("[A-Za-z0-9_.-]+")) {
+        throw new IllegalArgumentException("RdsDataDownloader.fetcher.enumTypes holds the "
+            + "malformed enum type '" + enumType + "'");
+      }
+    }
+    int newParallelism;
+    try {
+      newParallelism = appConfig.getInt("RdsDataDownloader.fetcher.parallelism", 1);
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("RdsDataDownloader.fetcher.parallelism is malformed",
+          e);
+    }
+    if (newParallelism < 0) {
+      throw new IllegalArgumentException("RdsDataDownloader.fetcher.parallelism is "
+          + newParallelism + ", but must not be negative");
+    }
+  }
+
+  @Override
+  public void reconfigure(Config appConfig) {
+    List<String> newEnumTypes = parseEnumTypes(appConfig);
+    if (!newEnumTypes.equals(enumTypes)) {
+      log.info("Fetching enum types " + newEnumTypes + " instead of " + enumTypes);
+      enumTypes = newEnumTypes;
+    }
+    int newParallelism = appConfig.getInt("RdsDataDownloader.fetcher.parallelism", 1);
+    if (newParallelism != parallelism) {
+      log.info("Fetching with parallelism " + newParallelism + " instead of " + parallelism);
+      parallelism = newParallelism;
+    }
+  }
+
+  /**
+   * Gets the enum types that get fetched.
+   *
+   * @return the enum types that the next fetch covers.
+   */
+  public List<String> getEnumTypes() {
+    return enumTypes;
   }
 
   /**
@@ -69,12 +237,17 @@ public class RdsDataFetcher {
    *
    * <p>If fetching fails, no re-tries are done.
    *
+   * <p>Streaming each enum type is a phase of the current run's report, whose first byte marks
+   * when the server started to respond.
+   *
    * @param  writer Writer object to write the RDS data
    * @throws HttpException for network or other IO issues occur.
    * @throws CallErrorException for server and semantics errors.
    */
   public void fetch(Writer writer) throws CallErrorException, HttpException {
-    JsonWriter jsonWriter = new JsonWriter(writer);
+    RdsDataRunReport report = reports.getCurrent();
+    CountingWriter countingWriter = new CountingWriter(writer);
+    JsonWriter jsonWriter = new JsonWriter(countingWriter);
     try {
       JsonObject meta = new JsonObject();
       meta.addProperty("format", "RdsData");
@@ -87,9 +260,24 @@ public class RdsDataFetcher {
       jsonWriter.name("agent").value(agent);
       jsonWriter.endObject();
       jsonWriter.name("data").beginObject();
-      for (String enumType : enumTypes) {
+      List<String> types = enumTypes;
+      if (segmentStore.isEnabled() || (parallelism != 1 && types.size() > 1)) {
+        fetchSpooled(types, jsonWriter, countingWriter, writer, report);
+        types = Collections.emptyList();
+      }
+      for (String enumType : types) {
         jsonWriter.name(enumType);
-        refDataClient.getIdentifiersForEnumType(enumType, jsonWriter);
+        try (RdsDataRunReport.Phase phase = report.begin("stream:" + enumType)) {
+          countingWriter.phase = phase;
+          try {
+            refDataClient.getIdentifiersForEnumType(enumType, jsonWriter);
+          } catch (CallErrorException | HttpException | RuntimeException e) {
+            phase.addError(e);
+            throw e;
+          } finally {
+            countingWriter.phase = null;
+          }
+        }
       }
       jsonWriter.endObject();
       jsonWriter.endObject();
@@ -97,4 +285,190 @@ public class RdsDataFetcher {
       throw new HttpException("Failed while writing the response ", e);
     }
   }
+
+  /**
+   * Marks the stored segments as published.
+   *
+   * <p>This has to be called once the fetched data got persisted, so the next run fetches
+   * afresh instead of resuming.
+   */
+  public void markPublished() {
+    if (!segmentStore.isEnabled()) {
+      return;
+    }
+    try {
+      segmentStore.markPublished();
+    } catch (IOException e) {
+      log.warn("Failed to mark segments in " + segmentStore.getDirectory() + " as published", e);
+    }
+  }
+
+  private void fetchSpooled(List<String> types, JsonWriter jsonWriter, Writer out, Writer sink,
+      RdsDataRunReport report) throws CallErrorException, HttpException, IOException {
+    Path[] spools = new Path[types.size()];
+    if (segmentStore.isEnabled()) {
+      for (int i = 0; i < types.size(); i++) {
+        spools[i] = getResumable(types.get(i), report);
+      }
+    }
+    int limit = (parallelism == 0) ? types.size() : Math.min(parallelism, types.size());
+    ExecutorService executor = RdsDataThreads.newExecutor("RdsDataDownloader-fetch", limit);
+    ExecutorCompletionService<Path> completionService =
+        new ExecutorCompletionService<>(executor);
+    AtomicBoolean cancelled = new AtomicBoolean();
+    Map<Future<Path>, Integer> indexes = new HashMap<>();
+    int next = 0;
+    int inFlight = 0;
+    int written = 0;
+    try {
+      while (written < types.size()) {
+        for (; next < types.size() && inFlight < limit; next++) {
+          if (spools[next] == null) {
+            String enumType = types.get(next);
+            indexes.put(completionService.submit(
+                () -> fetchToSpool(enumType, report, cancelled)), next);
+            inFlight++;
+          }
+        }
+        if (spools[written] == null) {
+          Future<Path> future = completionService.take();
+          inFlight--;
+          spools[indexes.get(future)] = getSpool(future);
+        }
+        // Writing enum types as soon as all enum types before them are written, so the output
+        // keeps the configured order.
+        while (written < types.size() && spools[written] != null) {
+          jsonWriter.name(types.get(written));
+          copyValue(spools[written], jsonWriter, out, sink);
+          if (!segmentStore.isEnabled()) {
+            Files.delete(spools[written]);
+          }
+          written++;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HttpException("Interrupted while fetching", e);
+    } finally {
+      cancelled.set(true);
+      executor.shutdownNow();
+      awaitTermination(executor);
+      if (!segmentStore.isEnabled()) {
+        for (Future<Path> future : indexes.keySet()) {
+          deleteSpool(future);
+        }
+      }
+    }
+  }
+
+  private Path getResumable(String enumType, RdsDataRunReport report) throws IOException {
+    RdsDataSegmentStore.Segment segment = segmentStore.getResumable(enumType);
+    if (segment == null) {
+      return null;
+    }
+    log.info("Resuming enum type " + enumType + " from segment " + segment.getPath());
+    try (RdsDataRunReport.Phase phase = report.begin("resume:" + enumType)) {
+      phase.addBytes(segment.getSize());
+    }
+    return segment.getPath();
+  }
+
+  private Path fetchToSpool(String enumType, RdsDataRunReport report, AtomicBoolean cancelled)
+      throws Exception {
+    if (segmentStore.isEnabled()) {
+      // Fetched enum types stay in the store, even if the fetch got cancelled meanwhile.
+      return segmentStore.write(enumType,
+          writer -> fetchInto(enumType, writer, report)).getPath();
+    }
+    Path spool = Files.createTempFile("RdsData-" + enumType + "-", ".json");
+    try {
+      try (Writer writer = Files.newBufferedWriter(spool, StandardCharsets.UTF_8)) {
+        fetchInto(enumType, writer, report);
+      }
+      if (cancelled.get()) {
+        // Nobody is going to pick up the spool file.
+        Files.deleteIfExists(spool);
+      }
+      return spool;
+    } catch (Exception e) {
+      Files.deleteIfExists(spool);
+      throw e;
+    }
+  }
+
+  private void fetchInto(String enumType, Writer writer, RdsDataRunReport report)
+      throws CallErrorException, HttpException, IOException {
+    try (RdsDataRunReport.Phase phase = report.begin("stream:" + enumType)) {
+      CountingWriter countingWriter = new CountingWriter(writer);
+      countingWriter.phase = phase;
+      JsonWriter jsonWriter = new JsonWriter(countingWriter);
+      try {
+        refDataClient.getIdentifiersForEnumType(enumType, jsonWriter);
+        jsonWriter.flush();
+      } catch (CallErrorException | HttpException | RuntimeException e) {
+        phase.addError(e);
+        throw e;
+      }
+    }
+  }
+
+  private static Path getSpool(Future<Path> future)
+      throws CallErrorException, HttpException, IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof CallErrorException) {
+        throw (CallErrorException) cause;
+      } else if (cause instanceof HttpException) {
+        throw (HttpException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new HttpException("Fetching failed", cause);
+    }
+  }
+
+  private static void copyValue(Path spool, JsonWriter jsonWriter, Writer out, Writer sink)
+      throws IOException {
+    // JsonWriter cannot stream raw values. So it writes the name and separator of an empty raw
+    // value, and the spooled value gets copied right behind.
+    jsonWriter.jsonValue("");
+    jsonWriter.flush();
+    if (sink instanceof RdsDataSegmentSink) {
+      ((RdsDataSegmentSink) sink).append(spool);
+      return;
+    }
+    char[] buffer = new char[8192];
+    try (Reader reader = Files.newBufferedReader(spool, StandardCharsets.UTF_8)) {
+      int read;
+      while ((read = reader.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+    }
+  }
+
+  private static void awaitTermination(ExecutorService executor) {
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        log.warn("Fetch tasks did not end within a minute after cancelling them");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void deleteSpool(Future<Path> future) {
+    if (future.isDone() && !future.isCancelled()) {
+      try {
+        Files.deleteIfExists(future.get());
+      } catch (ExecutionException | InterruptedException | IOException e) {
+        // Failed tasks delete their spool files themselves.
+      }
+    }
+  }
 }
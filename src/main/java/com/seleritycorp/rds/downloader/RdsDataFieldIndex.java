@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index on the values of record fields.
+ *
+ * <p>Each value of the indexed fields is a key in the index files. Its value is the newline
+ * separated list of identifiers of the records that have this value. If the index is case
+ * insensitive, values get indexed and looked up in lower case, which makes it fit for prefix
+ * lookups on names and tickers. Fields that are objects or arrays are not indexed.
+ */
+public class RdsDataFieldIndex implements RdsDataIndex {
+  private final String name;
+  private final List<String> fields;
+  private final boolean caseInsensitive;
+
+  /**
+   * Creates an index on record fields.
+   *
+   * @param name The name of the index.
+   * @param fields The fields to index.
+   * @param caseInsensitive If true, values get indexed and looked up in lower case.
+   */
+  public RdsDataFieldIndex(String name, List<String> fields, boolean caseInsensitive) {
+    this.name = name;
+    this.fields = Collections.unmodifiableList(new ArrayList<>(fields));
+    this.caseInsensitive = caseInsensitive;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the indexed fields.
+   *
+   * @return the names of the indexed fields.
+   */
+  public List<String> getFields() {
+    return fields;
+  }
+
+  @Override
+  public boolean accepts(String enumType) {
+    return !fields.isEmpty();
+  }
+
+  @Override
+  public void index(RdsDataRecord record, Sink sink) {
+    for (int i = 0; i < record.getFieldCount(); i++) {
+      RdsDataRecord.Type type = record.getType(i);
+      if (type == RdsDataRecord.Type.STRING || type == RdsDataRecord.Type.NUMBER
+          || type == RdsDataRecord.Type.BOOLEAN) {
+        String field = record.getFieldName(i);
+        if (fields.contains(field)) {
+          sink.add(field, normalize(record.getString(i)));
+        }
+      }
+    }
+  }
+
+  private String normalize(String value) {
+    return caseInsensitive ? value.toLowerCase(Locale.ROOT) : value;
+  }
+
+  /**
+   * Looks up the records having a value.
+   *
+   * @param store The index file of an enum type.
+   * @param field The indexed field to look up.
+   * @param value The value to look up.
+   * @return the identifiers of the records having the value in the field. The empty list, if
+   *     there are no such records.
+   * @throws IOException if reading the index file fails.
+   */
+  public List<String> lookup(RdsDataKeyValueStore store, String field, String value)
+      throws IOException {
+    return toIdentifiers(store.get(RdsDataKeyValueStore.toKey(field, normalize(value))));
+  }
+
+  /**
+   * Looks up the records having a value that starts with a prefix.
+   *
+   * @param store The index file of an enum type.
+   * @param field The indexed field to look up.
+   * @param prefix The prefix to look up.
+   * @param limit The maximum number of values to return.
+   * @return the identifiers of the matching records by value, in order of the values.
+   * @throws IOException if reading the index file fails.
+   */
+  public Map<String, List<String>> lookupPrefix(RdsDataKeyValueStore store, String field,
+      String prefix, int limit) throws IOException {
+    byte[] from = RdsDataKeyValueStore.toKey(field, normalize(prefix));
+    int fieldLength = field.getBytes(StandardCharsets.UTF_8).length + 1;
+    Map<String, List<String>> result = new LinkedHashMap<>();
+    store.scan(from, (key, value) -> {
+      if (result.size() >= limit || key.length < from.length
+          || RdsDataKeyValueStore.compare(Arrays.copyOf(key, from.length), from) != 0) {
+        return false;
+      }
+      result.put(new String(key, fieldLength, key.length - fieldLength, StandardCharsets.UTF_8),
+          toIdentifiers(value));
+      return true;
+    });
+    return result;
+  }
+
+  private List<String> toIdentifiers(byte[] value) {
+    if (value == null) {
+      return Collections.emptyList();
+    }
+    return Arrays.asList(new String(value, StandardCharsets.UTF_8).split("\n"));
+  }
+}
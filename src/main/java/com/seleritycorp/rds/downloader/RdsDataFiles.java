@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for files next to the persisted snapshot.
+ */
+public final class RdsDataFiles {
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private RdsDataFiles() {
+  }
+
+  /**
+   * Replaces a small file atomically.
+   *
+   * <p>The content is written to a temporary sibling first, which then gets moved to the final
+   * place in one atomic operation. So readers either see the old or the new content, but never a
+   * partially written file.
+   *
+   * @param file The file to write.
+   * @param content The content to write.
+   * @throws IOException if writing fails.
+   */
+  public static void writeAtomically(Path file, byte[] content) throws IOException {
+    writeAtomically(file, content, false);
+  }
+
+  /**
+   * Replaces a small file atomically.
+   *
+   * <p>The content is written to a temporary sibling first, which then gets moved to the final
+   * place in one atomic operation. So readers either see the old or the new content, but never a
+   * partially written file.
+   *
+   * @param file The file to write.
+   * @param content The content to write.
+   * @param force If true, the content gets forced to the storage device before the move. This
+   *     keeps the file from ending up empty after a power loss.
+   * @throws IOException if writing fails.
+   */
+  public static void writeAtomically(Path file, byte[] content, boolean force)
+      throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    if (!Files.isDirectory(parent)) {
+      Files.createDirectories(parent);
+    }
+    Path tmpFile = parent.resolve(file.getFileName() + ".tmp");
+    Files.write(tmpFile, content);
+    if (force) {
+      force(tmpFile);
+    }
+    try {
+      Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Files.deleteIfExists(tmpFile);
+      throw new IOException("Failed to move " + tmpFile + " to " + file, e);
+    }
+  }
+
+  /**
+   * Forces a file's content to the storage device.
+   *
+   * @param file The file to force.
+   * @throws IOException if forcing fails.
+   */
+  public static void force(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+  }
+
+  /**
+   * Forces a directory's entries to the storage device.
+   *
+   * <p>This makes renames within the directory durable. Not all platforms allow to open
+   * directories (e.g.: Windows), in which case an IOException is thrown.
+   *
+   * @param directory The directory to force.
+   * @throws IOException if forcing fails or is not supported by the platform.
+   */
+  public static void forceDirectory(Path directory) throws IOException {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+
+  /**
+   * Creates a fresh SHA-256 digest.
+   *
+   * @return the created digest.
+   */
+  public static MessageDigest newSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform has to support SHA-256, so this cannot happen.
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * Formats bytes as lower case hex string.
+   *
+   * @param bytes The bytes to format.
+   * @return the hex representation of the bytes.
+   */
+  public static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+}
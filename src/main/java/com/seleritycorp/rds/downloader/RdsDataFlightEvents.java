@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Emits JDK Flight Recorder events for runs and their phases.
+ *
+ * <p>Each kind of phase gets its own event type, named after the part of the phase name before
+ * the colon (e.g.: {@code com.seleritycorp.rds.Stream} for phase {@code stream:PUBLIC_COMPANY}).
+ * The part after the colon goes into the event's {@code detail} field. Runs are
+ * {@code com.seleritycorp.rds.Run} events.
+ *
+ * <p>Event types are defined at runtime through JFR's event factory, which is looked up
+ * reflectively, as the code has to run on Java 8 as well. Where JFR is not available, events are
+ * dropped. Events only cost when a recording is running.
+ */
+public final class RdsDataFlightEvents {
+  private static final Log log = LogFactory.getLog(RdsDataFlightEvents.class);
+
+  static final String PREFIX = "com.seleritycorp.rds.";
+  static final String CATEGORY = "RdsDataDownloader";
+
+  private static final List<Field> PHASE_FIELDS = Collections.unmodifiableList(Arrays.asList(
+      new Field("detail", String.class, "Detail"),
+      new Field("bytes", long.class, "Bytes"),
+      new Field("records", long.class, "Records"),
+      new Field("retries", int.class, "Retries"),
+      new Field("error", String.class, "Error")));
+  private static final List<Field> RUN_FIELDS = Collections.unmodifiableList(Arrays.asList(
+      new Field("outcome", String.class, "Outcome"),
+      new Field("message", String.class, "Message"),
+      new Field("generation", long.class, "Generation")));
+
+  private static volatile Jfr jfr = Jfr.find();
+  private static final ConcurrentMap<String, Object> factories = new ConcurrentHashMap<>();
+
+  private RdsDataFlightEvents() {
+  }
+
+  /**
+   * Field of an event type.
+   */
+  private static final class Field {
+    private final String name;
+    private final Class<?> type;
+    private final String label;
+
+    private Field(String name, Class<?> type, String label) {
+      this.name = name;
+      this.type = type;
+      this.label = label;
+    }
+  }
+
+  /**
+   * Reflective access to JFR's event factory.
+   */
+  private static final class Jfr {
+    private final Constructor<?> annotationElement;
+    private final Constructor<?> valueDescriptor;
+    private final Class<? extends Annotation> nameAnnotation;
+    private final Class<? extends Annotation> labelAnnotation;
+    private final Class<? extends Annotation> categoryAnnotation;
+    private final Method create;
+    private final Method newEvent;
+    private final Method begin;
+    private final Method set;
+    private final Method commit;
+
+    private Jfr() throws ReflectiveOperationException {
+      Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+      annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+      valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class,
+          String.class, List.class);
+      nameAnnotation = Class.forName("jdk.jfr.Name").asSubclass(Annotation.class);
+      labelAnnotation = Class.forName("jdk.jfr.Label").asSubclass(Annotation.class);
+      categoryAnnotation = Class.forName("jdk.jfr.Category").asSubclass(Annotation.class);
+      Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+      create = eventFactoryClass.getMethod("create", List.class, List.class);
+      newEvent = eventFactoryClass.getMethod("newEvent");
+      Class<?> eventClass = Class.forName("jdk.jfr.Event");
+      begin = eventClass.getMethod("begin");
+      set = eventClass.getMethod("set", int.class, Object.class);
+      commit = eventClass.getMethod("commit");
+    }
+
+    private static Jfr find() {
+      try {
+        return new Jfr();
+      } catch (ReflectiveOperationException | LinkageError e) {
+        return null;
+      }
+    }
+
+    private Object createFactory(String name, String label, List<Field> fields)
+        throws ReflectiveOperationException {
+      List<Object> annotations = new ArrayList<>();
+      annotations.add(annotationElement.newInstance(nameAnnotation, name));
+      annotations.add(annotationElement.newInstance(labelAnnotation, label));
+      annotations.add(annotationElement.newInstance(categoryAnnotation,
+          new String[] {CATEGORY}));
+      List<Object> descriptors = new ArrayList<>();
+      for (Field field : fields) {
+        descriptors.add(valueDescriptor.newInstance(field.type, field.name,
+            Collections.singletonList(annotationElement.newInstance(labelAnnotation,
+                field.label))));
+      }
+      return create.invoke(null, annotations, descriptors);
+    }
+  }
+
+  /**
+   * An event that is in progress.
+   *
+   * <p>Events of an unavailable JFR ignore all calls.
+   */
+  public static final class Event {
+    private final Object event;
+    private final List<Field> fields;
+
+    private Event(Object event, List<Field> fields) {
+      this.event = event;
+      this.fields = fields;
+    }
+
+    /**
+     * Sets a field of the event.
+     *
+     * @param name The name of the field to set.
+     * @param value The value to set. Null leaves the field unset.
+     * @return this event.
+     */
+    public Event set(String name, Object value) {
+      Jfr current = jfr;
+      if (event == null || current == null || value == null) {
+        return this;
+      }
+      for (int i = 0; i < fields.size(); i++) {
+        if (fields.get(i).name.equals(name)) {
+          try {
+            current.set.invoke(event, i, value);
+          } catch (ReflectiveOperationException | RuntimeException e) {
+            disable(e);
+          }
+          return this;
+        }
+      }
+      throw new IllegalArgumentException("Unknown event field " + name);
+    }
+
+    /**
+     * Ends the event and writes it to running recordings.
+     */
+    public void commit() {
+      Jfr current = jfr;
+      if (event == null || current == null) {
+        return;
+      }
+      try {
+        current.commit.invoke(event);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        disable(e);
+      }
+    }
+  }
+
+  /**
+   * Checks whether events get emitted.
+   *
+   * @return true, if the platform offers JFR's event factory (Java 11, and late Java 8 updates).
+   */
+  public static boolean isAvailable() {
+    return jfr != null;
+  }
+
+  /**
+   * Starts the event for a phase.
+   *
+   * @param phaseName The name of the phase (e.g.: {@code stream:PUBLIC_COMPANY}).
+   * @return the started event.
+   */
+  public static Event beginPhase(String phaseName) {
+    int colon = phaseName.indexOf(':');
+    String kind = (colon < 0) ? phaseName : phaseName.substring(0, colon);
+    Event event = begin(getEventName(kind), "RDS " + kind, PHASE_FIELDS);
+    if (colon >= 0) {
+      event.set("detail", phaseName.substring(colon + 1));
+    }
+    return event;
+  }
+
+  /**
+   * Starts the event for a run.
+   *
+   * @return the started event.
+   */
+  public static Event beginRun() {
+    return begin(PREFIX + "Run", "RDS run", RUN_FIELDS);
+  }
+
+  /**
+   * Gets the event type name for a kind of phase.
+   *
+   * @param kind The kind of phase (e.g.: {@code stream}).
+   * @return the name of the event type (e.g.: {@code com.seleritycorp.rds.Stream}).
+   */
+  static String getEventName(String kind) {
+    if (kind.isEmpty()) {
+      return PREFIX + "Phase";
+    }
+    return PREFIX + kind.substring(0, 1).toUpperCase(Locale.ROOT) + kind.substring(1);
+  }
+
+  private static Event begin(String name, String label, List<Field> fields) {
+    Jfr current = jfr;
+    if (current == null) {
+      return new Event(null, fields);
+    }
+    try {
+      Object factory = factories.get(name);
+      if (factory == null) {
+        // Racing threads may create the factory twice, which JFR tolerates.
+        factory = current.createFactory(name, label, fields);
+        Object previous = factories.putIfAbsent(name, factory);
+        factory = (previous != null) ? previous : factory;
+      }
+      Object event = current.newEvent.invoke(factory);
+      current.begin.invoke(event);
+      return new Event(event, fields);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      disable(e);
+      return new Event(null, fields);
+    }
+  }
+
+  private static void disable(Throwable e) {
+    if (jfr != null) {
+      jfr = null;
+      log.warn("Disabling flight recorder events, as emitting them failed", e);
+    }
+  }
+}
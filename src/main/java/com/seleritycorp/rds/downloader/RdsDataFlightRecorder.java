@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Continuous, bounded JDK Flight Recorder recording that gets dumped when runs go wrong.
+ *
+ * <p>If enabled, the recording keeps the most recent events (including the ones of
+ * {@link RdsDataFlightEvents}) up to a maximum age and size. Dumps are written to the dump
+ * directory, named after their time and reason, and only the most recent dumps are kept.
+ *
+ * <p>JFR is used reflectively, as the code has to run on Java 8 as well. Where JFR is not
+ * available, no recording is started.
+ */
+@Singleton
+public class RdsDataFlightRecorder {
+  private static final Log log = LogFactory.getLog(RdsDataFlightRecorder.class);
+  static final String PREFIX = "rds-";
+  static final String SUFFIX = ".jfr";
+
+  private final boolean enabled;
+  private final String settings;
+  private final long maxAgeMillis;
+  private final long maxSizeBytes;
+  private final Path dumpDirectory;
+  private final int maxDumps;
+  private Object recording;
+
+  /**
+   * Creates a flight recorder.
+   *
+   * @param appConfig The application config to use.
+   * @param appPaths The base paths to resolve the dump directory against.
+   */
+  @Inject
+  public RdsDataFlightRecorder(@ApplicationConfig Config appConfig, ApplicationPaths appPaths) {
+    this(appConfig, appPaths.getStatePath());
+  }
+
+  /**
+   * Creates a flight recorder.
+   *
+   * @param appConfig The application config to use.
+   * @param statePath The path to resolve the dump directory against.
+   */
+  RdsDataFlightRecorder(Config appConfig, Path statePath) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.flightRecorder");
+    this.enabled = config.getBoolean("enabled", false);
+    this.settings = config.get("settings", "default");
+    this.maxAgeMillis = config.getDurationMillis("maxAge", 3600, TimeUnit.SECONDS);
+    this.maxSizeBytes = config.getLong("maxSizeBytes", 64 * 1024 * 1024);
+    this.dumpDirectory = statePath.resolve(
+        config.get("dumpDirectory", "rds-recordings"));
+    this.maxDumps = config.getInt("maxDumps", 10);
+  }
+
+  /**
+   * Gets the directory that dumps are written to.
+   *
+   * @return the dump directory.
+   */
+  public Path getDumpDirectory() {
+    return dumpDirectory;
+  }
+
+  /**
+   * Checks whether the recording is running.
+   *
+   * @return true, if the recording is running.
+   */
+  public synchronized boolean isRecording() {
+    return recording != null;
+  }
+
+  /**
+   * Starts the recording, if it is enabled and not running yet.
+   *
+   * <p>Failing to start is only logged, as diagnostics must not keep the downloader from
+   * running.
+   */
+  public synchronized void start() {
+    if (!enabled || recording != null) {
+      return;
+    }
+    try {
+      Class<?> configurationClass = Class.forName("jdk.jfr.Configuration");
+      Object configuration = configurationClass.getMethod("getConfiguration", String.class)
+          .invoke(null, settings);
+      Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+      Object newRecording = recordingClass.getConstructor(configurationClass)
+          .newInstance(configuration);
+      recordingClass.getMethod("setName", String.class).invoke(newRecording,
+          "RdsDataDownloader");
+      recordingClass.getMethod("setToDisk", boolean.class).invoke(newRecording, true);
+      recordingClass.getMethod("setMaxAge", Duration.class).invoke(newRecording,
+          Duration.ofMillis(maxAgeMillis));
+      recordingClass.getMethod("setMaxSize", long.class).invoke(newRecording, maxSizeBytes);
+      recordingClass.getMethod("start").invoke(newRecording);
+      recording = newRecording;
+      log.info("Started flight recording with settings " + settings);
+    } catch (ClassNotFoundException e) {
+      log.warn("Not starting flight recording, as JFR is not available");
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.warn("Failed to start flight recording", unwrap(e));
+    }
+  }
+
+  /**
+   * Dumps the recording.
+   *
+   * <p>Failing to dump is only logged, as diagnostics must not fail runs.
+   *
+   * @param reason Why the recording gets dumped (e.g.: {@code failed}). It becomes part of the
+   *     file name.
+   * @return the dump file. Null, if the recording is not running or dumping failed.
+   */
+  public synchronized Path dump(String reason) {
+    if (recording == null) {
+      return null;
+    }
+    Path file = dumpDirectory.resolve(String.format(Locale.ROOT, "%s%013d-%s%s", PREFIX,
+        System.currentTimeMillis(), reason, SUFFIX));
+    try {
+      Files.createDirectories(dumpDirectory);
+      recording.getClass().getMethod("dump", Path.class).invoke(recording, file);
+      log.info("Dumped flight recording to " + file);
+      prune();
+      return file;
+    } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+      log.warn("Failed to dump flight recording to " + file, unwrap(e));
+      return null;
+    }
+  }
+
+  /**
+   * Stops and discards the recording.
+   */
+  public synchronized void stop() {
+    if (recording == null) {
+      return;
+    }
+    try {
+      recording.getClass().getMethod("close").invoke(recording);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.warn("Failed to stop flight recording", unwrap(e));
+    }
+    recording = null;
+  }
+
+  private void prune() throws IOException {
+    List<Path> dumps = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dumpDirectory,
+        PREFIX + "*" + SUFFIX)) {
+      for (Path dump : stream) {
+        dumps.add(dump);
+      }
+    }
+    Collections.sort(dumps);
+    for (int i = 0; i < dumps.size() - maxDumps; i++) {
+      Files.deleteIfExists(dumps.get(i));
+    }
+  }
+
+  private static Throwable unwrap(Throwable e) {
+    if (e instanceof InvocationTargetException && e.getCause() != null) {
+      return e.getCause();
+    }
+    return e;
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonObject;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+import com.seleritycorp.common.base.state.AppState;
+import com.seleritycorp.common.base.state.AppStatePushFacet;
+import com.seleritycorp.common.base.state.StateManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Tracks how old the published data of each enum type is, against freshness objectives.
+ *
+ * <p>The age of an enum type is the time since a snapshot holding its section got published.
+ * Enum types that have not been published since the tracker started count from the start. Each
+ * enum type may have its own maximum age. Enum types older than their maximum age turn the
+ * {@code RdsDataFreshness} state to {@code WARNING}, and enum types older than twice their
+ * maximum age turn it to {@code FAULTY}.
+ *
+ * <p>Besides snapshots published by this process, the manifest next to the target is checked on
+ * each check. So standbys and freshly started processes know the age of what is already
+ * published.
+ */
+@Singleton
+public class RdsDataFreshness implements RdsDataSnapshotListener, RdsDataReconfigurable {
+  private static final Log log = LogFactory.getLog(RdsDataFreshness.class);
+
+  private final boolean enabled;
+  private final long checkIntervalMillis;
+  private final AppStatePushFacet facet;
+  private final RdsDataPersister persister;
+  private final RdsDataScheduler scheduler;
+  private final RdsDataMetrics metrics;
+  private final long startMillis;
+  private volatile Objectives objectives;
+  private final Map<String, Long> publishedMillis;
+  private long generation;
+  private long manifestModifiedMillis;
+  private AppState state;
+  private String message;
+  private ScheduledExecutorService executor;
+
+  /**
+   * Freshness objectives of a config.
+   */
+  private static class Objectives {
+    private final List<String> enumTypes;
+    private final Map<String, Long> maxAgeMillis;
+
+    private Objectives(Config appConfig) {
+      Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.freshness");
+      long defaultMaxAgeSeconds = TimeUnit.MILLISECONDS.toSeconds(
+          config.getDurationMillis("maxAge", 7200, TimeUnit.SECONDS));
+      List<String> types = new ArrayList<>();
+      this.maxAgeMillis = new LinkedHashMap<>();
+      for (String enumType
+          : appConfig.get("RdsDataDownloader.fetcher.enumTypes", "").split(",")) {
+        String cleanEnumType = enumType.trim();
+        if (!cleanEnumType.isEmpty() && !maxAgeMillis.containsKey(cleanEnumType)) {
+          types.add(cleanEnumType);
+          maxAgeMillis.put(cleanEnumType, ConfigUtils.subconfig(config, cleanEnumType)
+              .getDurationMillis("maxAge", defaultMaxAgeSeconds, TimeUnit.SECONDS));
+        }
+      }
+      this.enumTypes = Collections.unmodifiableList(types);
+    }
+  }
+
+  /**
+   * Creates a freshness tracker.
+   *
+   * @param appConfig The application config to use.
+   * @param sm The application's state manager to report to.
+   * @param persister The persister whose target gets checked.
+   * @param scheduler The scheduler to report the next fetch of.
+   * @param metrics The metrics to expose ages to.
+   */
+  @Inject
+  public RdsDataFreshness(@ApplicationConfig Config appConfig, StateManager sm,
+      RdsDataPersister persister, RdsDataScheduler scheduler, RdsDataMetrics metrics) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.freshness");
+    this.enabled = config.getBoolean("enabled", true);
+    this.checkIntervalMillis = config.getDurationMillis("checkInterval", 60, TimeUnit.SECONDS);
+    this.facet = sm.createRegisteredAppStatePushFacet("RdsDataFreshness");
+    this.persister = persister;
+    this.scheduler = scheduler;
+    this.metrics = metrics;
+    this.startMillis = System.currentTimeMillis();
+    this.objectives = new Objectives(appConfig);
+    this.publishedMillis = new TreeMap<>();
+    this.generation = 0;
+    this.manifestModifiedMillis = -1;
+    this.state = null;
+    this.message = null;
+    this.executor = null;
+  }
+
+  @Override
+  public String getName() {
+    return "freshness";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Checks the freshness objectives of a reloaded config.
+   *
+   * @param appConfig The application config to check.
+   * @throws IllegalArgumentException if a maximum age is malformed or not positive.
+   */
+  @Override
+  public void validate(Config appConfig) {
+    Objectives newObjectives;
+    try {
+      newObjectives = new Objectives(appConfig);
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("RdsDataDownloader.freshness holds a malformed "
+          + "maximum age", e);
+    }
+    for (Map.Entry<String, Long> entry : newObjectives.maxAgeMillis.entrySet()) {
+      if (entry.getValue() <= 0) {
+        throw new IllegalArgumentException("The maximum age of " + entry.getKey() + " is "
+            + entry.getValue() + " milliseconds, but has to be positive");
+      }
+    }
+  }
+
+  @Override
+  public void reconfigure(Config appConfig) {
+    objectives = new Objectives(appConfig);
+  }
+
+  @Override
+  public synchronized void onSnapshot(RdsDataSnapshot snapshot) throws IOException {
+    record(snapshot);
+    check();
+  }
+
+  private void record(RdsDataSnapshot snapshot) throws IOException {
+    if (snapshot.getGeneration() < generation) {
+      return;
+    }
+    RdsDataSectionIndex index = snapshot.getIndex();
+    if (index == null) {
+      index = RdsDataSectionIndex.build(snapshot.getPath());
+    }
+    long timestamp = snapshot.getTimestamp();
+    if (timestamp <= 0) {
+      timestamp = Files.getLastModifiedTime(snapshot.getPath()).toMillis();
+    }
+    for (String enumType : index.getEnumTypes()) {
+      publishedMillis.put(enumType, timestamp);
+    }
+    generation = snapshot.getGeneration();
+  }
+
+  private void refreshFromManifest() {
+    Path target = persister.getTarget();
+    try {
+      long modified = Files.getLastModifiedTime(RdsDataManifest.getPath(target)).toMillis();
+      if (modified != manifestModifiedMillis) {
+        record(RdsDataManifest.read(target));
+        manifestModifiedMillis = modified;
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing published yet.
+    } catch (IOException e) {
+      log.warn("Failed to read manifest of " + target, e);
+    }
+  }
+
+  /**
+   * Checks the freshness of all enum types.
+   *
+   * <p>The state, and the {@code freshness.*} metrics get updated along the way.
+   *
+   * @return the JSON representation of the freshness of all enum types.
+   */
+  public synchronized JsonObject check() {
+    refreshFromManifest();
+    long now = System.currentTimeMillis();
+    Objectives current = objectives;
+    JsonObject sections = new JsonObject();
+    AppState worst = AppState.READY;
+    List<String> stale = new ArrayList<>();
+    for (String enumType : current.enumTypes) {
+      Long published = publishedMillis.get(enumType);
+      long ageMillis = now - ((published == null) ? startMillis : published);
+      long maxAgeMillis = current.maxAgeMillis.get(enumType);
+      AppState sectionState = AppState.READY;
+      if (ageMillis > 2 * maxAgeMillis) {
+        sectionState = AppState.FAULTY;
+      } else if (ageMillis > maxAgeMillis) {
+        sectionState = AppState.WARNING;
+      }
+      if (sectionState != AppState.READY) {
+        // Ages are left out, so the state only gets pushed when the set of stale types changes.
+        stale.add(enumType);
+        if (worst != AppState.FAULTY) {
+          worst = sectionState;
+        }
+      }
+      metrics.set("freshness.ageMillis." + enumType, ageMillis);
+
+      JsonObject section = new JsonObject();
+      section.addProperty("state", sectionState.name());
+      if (published != null) {
+        section.addProperty("publishedMillis", published);
+      }
+      section.addProperty("ageMillis", ageMillis);
+      section.addProperty("maxAgeMillis", maxAgeMillis);
+      sections.add(enumType, section);
+    }
+    metrics.set("freshness.staleEnumTypes", stale.size());
+    String msg = stale.isEmpty() ? null : "Stale enum types: " + String.join(", ", stale);
+    setState(worst, msg);
+
+    JsonObject json = new JsonObject();
+    json.addProperty("state", worst.name());
+    if (msg != null) {
+      json.addProperty("message", msg);
+    }
+    json.addProperty("checkedMillis", now);
+    json.addProperty("generation", generation);
+    long nextFetchMillis = scheduler.getNextSlotMillis();
+    if (nextFetchMillis >= 0) {
+      json.addProperty("nextFetchMillis", nextFetchMillis);
+    }
+    json.add("sections", sections);
+    return json;
+  }
+
+  private void setState(AppState newState, String newMessage) {
+    if (newState == state && (newMessage == null ? message == null
+        : newMessage.equals(message))) {
+      return;
+    }
+    if (newMessage == null) {
+      log.info("All enum types are fresh");
+      facet.setAppState(newState);
+    } else {
+      log.warn(newMessage);
+      facet.setAppState(newState, newMessage);
+    }
+    state = newState;
+    message = newMessage;
+  }
+
+  /**
+   * Starts checking freshness periodically.
+   */
+  @Override
+  public synchronized void start() {
+    executor = Executors.newSingleThreadScheduledExecutor(
+        RdsDataThreads.newDaemonThreadFactory("RdsDataFreshness"));
+    executor.scheduleWithFixedDelay(this::checkQuietly, 0, checkIntervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void checkQuietly() {
+    try {
+      check();
+    } catch (RuntimeException e) {
+      // Failing checks must not end the periodic checking.
+      log.warn("Failed to check freshness", e);
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+}
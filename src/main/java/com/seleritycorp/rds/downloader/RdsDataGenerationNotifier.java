@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Lets in-process consumers block until a new snapshot generation has been published.
+ *
+ * <p>This stage runs last (see {@link RdsDataPublisher}), so that woken up consumers find all
+ * other stages (e.g.: the server or the manifest) already updated to the new generation.
+ */
+@Singleton
+public class RdsDataGenerationNotifier implements RdsDataSnapshotListener {
+  private static final Log log = LogFactory.getLog(RdsDataGenerationNotifier.class);
+
+  private final RdsDataPersister persister;
+  private RdsDataSnapshot latest;
+
+  /**
+   * Creates a notifier for published generations.
+   *
+   * @param persister The persister whose manifest to pick up on start.
+   */
+  @Inject
+  public RdsDataGenerationNotifier(RdsDataPersister persister) {
+    this.persister = persister;
+    this.latest = null;
+  }
+
+  @Override
+  public String getName() {
+    return "notifier";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return true;
+  }
+
+  /**
+   * Picks up the generation published by a previous run.
+   */
+  @Override
+  public void start() {
+    Path target = persister.getTarget();
+    if (Files.isRegularFile(RdsDataManifest.getPath(target))) {
+      try {
+        update(RdsDataManifest.read(target));
+      } catch (IOException e) {
+        log.warn("Ignoring unreadable manifest for " + target, e);
+      }
+    }
+  }
+
+  @Override
+  public void onSnapshot(RdsDataSnapshot snapshot) {
+    update(snapshot);
+  }
+
+  private synchronized void update(RdsDataSnapshot snapshot) {
+    if (latest == null || snapshot.getGeneration() > latest.getGeneration()) {
+      latest = snapshot;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Gets the most recently published snapshot.
+   *
+   * @return the most recently published snapshot, or null if none has been published yet.
+   */
+  public synchronized RdsDataSnapshot getLatest() {
+    return latest;
+  }
+
+  /**
+   * Waits until a snapshot newer than a given generation has been published.
+   *
+   * @param generation The generation that the caller already knows about. Use 0 to wait for
+   *     the first snapshot.
+   * @param timeoutMillis The maximum number of milliseconds to wait.
+   * @return the most recently published snapshot if it is newer than the given generation.
+   *     Null, if no such snapshot got published within the timeout.
+   * @throws InterruptedException if the thread got interrupted while waiting.
+   */
+  public synchronized RdsDataSnapshot awaitNewerThan(long generation, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+    while (latest == null || latest.getGeneration() <= generation) {
+      long remainingMillis = (deadline - System.nanoTime()) / 1000000L;
+      if (remainingMillis <= 0) {
+        return null;
+      }
+      wait(remainingMillis);
+    }
+    return latest;
+  }
+}
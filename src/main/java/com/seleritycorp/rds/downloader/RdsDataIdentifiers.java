@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Identifies the records of enum types whose data is an array of records.
+ *
+ * <p>A record that is a JSON primitive identifies itself. A record that is a JSON object is
+ * identified by the primitive value of its identifier field. Other records have no identifier.
+ *
+ * <p>If an identifier occurs more than once within an enum type, the last of its records wins,
+ * as it would for duplicate keys of a JSON object.
+ */
+final class RdsDataIdentifiers {
+  private RdsDataIdentifiers() {
+  }
+
+  /**
+   * Gets the identifier of a record.
+   *
+   * @param record The record to identify.
+   * @param identifierField The field holding the identifier of object records.
+   * @return the identifier of the record, or null if the record does not have one.
+   */
+  static String get(JsonElement record, String identifierField) {
+    if (record.isJsonPrimitive()) {
+      return record.getAsString();
+    }
+    if (record.isJsonObject()) {
+      JsonElement identifier = record.getAsJsonObject().get(identifierField);
+      if (identifier != null && identifier.isJsonPrimitive()) {
+        return identifier.getAsString();
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+/**
+ * Secondary index that {@link RdsDataIndexer} derives from each persisted snapshot.
+ *
+ * <p>Indexes map keys made of a field name and a value to the identifiers of the records that
+ * have this value. Each index gets built separately for each enum type that it accepts, and
+ * possibly for several enum types at the same time. So implementations must not keep state
+ * between calls.
+ */
+public interface RdsDataIndex {
+  /**
+   * Receives the keys of a record.
+   */
+  interface Sink {
+    /**
+     * Adds a key for the current record.
+     *
+     * @param field The name of the indexed field.
+     * @param value The indexed value.
+     */
+    void add(String field, String value);
+  }
+
+  /**
+   * Gets the name of the index.
+   *
+   * <p>The name is part of the index files' names, so it should be short and must not contain
+   * path separators.
+   *
+   * @return the name of the index.
+   */
+  String getName();
+
+  /**
+   * Checks whether the index covers an enum type.
+   *
+   * @param enumType The enum type to check.
+   * @return true, if the index should get built for the enum type.
+   */
+  boolean accepts(String enumType);
+
+  /**
+   * Derives the keys of a record.
+   *
+   * @param record The record to index. It is only valid during this call.
+   * @param sink The sink to add the record's keys to.
+   */
+  void index(RdsDataRecord record, Sink sink);
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Builds secondary indexes for persisted snapshots.
+ *
+ * <p>Each enum type gets indexed in its own fork-join task, which streams the type's section
+ * through a {@link RdsDataReader} and feeds all indexes accepting the type. Each index of a type
+ * is written as a compact {@link RdsDataKeyValueStore} next to the snapshot (see
+ * {@link #getPath(Path, String, String)}), which records the snapshot's generation. Only once
+ * all types have been indexed, the index files are moved into place, and index files of earlier
+ * generations that have not been replaced are removed.
+ *
+ * <p>The entries of a type's indexes are sorted by key with a {@link RdsDataEntrySorter} each,
+ * which spills sorted runs next to the snapshot. The sort memory of all types is reserved once
+ * from the memory budget and split evenly among the types that get indexed at the same time, and
+ * among the indexes of each type. The identifiers of the key that is currently being written are
+ * collected on the heap, and are reserved separately as they grow.
+ *
+ * <p>The build time of each type is recorded as {@code indexer.build.<enumType>} timer, and as
+ * {@code index:<enumType>} phase of the run report.
+ */
+@Singleton
+public class RdsDataIndexer implements RdsDataSnapshotListener {
+  private static final Log log = LogFactory.getLog(RdsDataIndexer.class);
+
+  private static final int BLOCK_SIZE = 4096;
+  private static final long MIN_SORT_MEMORY = 1024 * 1024;
+
+  private final boolean enabled;
+  private final String identifierField;
+  private final int parallelism;
+  private final long maxMemoryBytes;
+  private final List<RdsDataIndex> indexes;
+  private final RdsDataMemoryBudget memoryBudget;
+  private final RdsDataMetrics metrics;
+  private final RdsDataRunReports reports;
+
+  /**
+   * Creates an indexer with the indexes configured in the application config.
+   *
+   * @param appConfig The application config to use.
+   * @param memoryBudget The budget to reserve sort memory from.
+   * @param metrics The metrics to record build times to.
+   * @param reports The reports to record each type's build as phase to.
+   */
+  @Inject
+  public RdsDataIndexer(@ApplicationConfig Config appConfig, RdsDataMemoryBudget memoryBudget,
+      RdsDataMetrics metrics, RdsDataRunReports reports) {
+    this(appConfig, getConfiguredIndexes(appConfig), memoryBudget, metrics, reports);
+  }
+
+  /**
+   * Creates an indexer.
+   *
+   * @param appConfig The application config to use.
+   * @param indexes The indexes to build.
+   * @param memoryBudget The budget to reserve sort memory from.
+   * @param metrics The metrics to record build times to.
+   * @param reports The reports to record each type's build as phase to.
+   */
+  public RdsDataIndexer(Config appConfig, List<RdsDataIndex> indexes,
+      RdsDataMemoryBudget memoryBudget, RdsDataMetrics metrics, RdsDataRunReports reports) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.indexer");
+    this.enabled = config.getBoolean("enabled", false);
+    this.identifierField = config.get("identifierField", "identifier");
+    int configuredParallelism = config.getInt("parallelism", 0);
+    this.parallelism = (configuredParallelism > 0) ? configuredParallelism
+        : Runtime.getRuntime().availableProcessors();
+    this.maxMemoryBytes = config.getLong("maxMemoryBytes", 16 * 1024 * 1024);
+    this.indexes = Collections.unmodifiableList(new ArrayList<>(indexes));
+    this.memoryBudget = memoryBudget;
+    this.metrics = metrics;
+    this.reports = reports;
+  }
+
+  private static List<RdsDataIndex> getConfiguredIndexes(Config appConfig) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.indexer");
+    return Arrays.<RdsDataIndex>asList(
+        new RdsDataFieldIndex("names", parseFields(config.get("nameFields", "name,ticker")),
+            true),
+        new RdsDataFieldIndex("references",
+            parseFields(config.get("referenceFields", "industry,country,region")), false));
+  }
+
+  private static List<String> parseFields(String fields) {
+    List<String> ret = new ArrayList<>();
+    for (String field : fields.split(",")) {
+      String cleanField = field.trim();
+      if (!cleanField.isEmpty()) {
+        ret.add(cleanField);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Gets the index file of an enum type.
+   *
+   * @param target The snapshot file.
+   * @param indexName The name of the index.
+   * @param enumType The enum type.
+   * @return the file holding the index for the enum type.
+   */
+  public static Path getPath(Path target, String indexName, String enumType) {
+    Path fileName = Paths.get(target.getFileName() + ".index." + indexName + "." + enumType);
+    Path parent = target.getParent();
+    return (parent == null) ? fileName : parent.resolve(fileName);
+  }
+
+  /**
+   * Gets the configured indexes.
+   *
+   * @return the indexes that get built.
+   */
+  public List<RdsDataIndex> getIndexes() {
+    return indexes;
+  }
+
+  @Override
+  public String getName() {
+    return "indexer";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Builds the indexes for a snapshot.
+   *
+   * @param snapshot The snapshot to index.
+   * @throws IOException if reading the snapshot or writing an index fails.
+   * @throws InterruptedException if the thread got interrupted while waiting for the tasks.
+   */
+  @Override
+  public void onSnapshot(RdsDataSnapshot snapshot) throws IOException, InterruptedException {
+    Set<String> enumTypes;
+    try (RdsDataReader reader = new RdsDataReader(snapshot.getPath(), identifierField)) {
+      enumTypes = reader.getEnumTypes();
+    }
+    RdsDataRunReport report = reports.getCurrent();
+    Map<String, ForkJoinTask<List<Path>>> tasks = new LinkedHashMap<>();
+    // Each of the types that get indexed at the same time gets an even share.
+    try (RdsDataMemoryBudget.Reservation reservation = memoryBudget.reserve(
+        "index sort memory", maxMemoryBytes, Math.min(maxMemoryBytes, MIN_SORT_MEMORY))) {
+      long typeMemory = reservation.getBytes()
+          / Math.max(1, Math.min(parallelism, enumTypes.size()));
+      boolean published = false;
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      try {
+        for (String enumType : enumTypes) {
+          tasks.put(enumType, pool.submit(() -> build(snapshot, enumType, typeMemory, report)));
+        }
+        List<Path> tmpFiles = new ArrayList<>();
+        IOException failure = null;
+        for (Map.Entry<String, ForkJoinTask<List<Path>>> entry : tasks.entrySet()) {
+          try {
+            tmpFiles.addAll(entry.getValue().get());
+          } catch (ExecutionException e) {
+            IOException exception = new IOException("Failed to index enum type "
+                + entry.getKey(), e.getCause());
+            if (failure == null) {
+              failure = exception;
+            } else {
+              failure.addSuppressed(exception);
+            }
+          }
+        }
+        if (failure != null) {
+          throw failure;
+        }
+        publish(snapshot.getPath(), tmpFiles);
+        published = true;
+      } finally {
+        pool.shutdownNow();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        if (!published) {
+          // Types that got indexed successfully still have their temporary files.
+          for (ForkJoinTask<List<Path>> task : tasks.values()) {
+            if (task.isDone() && !task.isCompletedAbnormally()) {
+              for (Path tmpFile : task.getRawResult()) {
+                Files.deleteIfExists(tmpFile);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Builds the indexes of an enum type into temporary files.
+   *
+   * @return the written temporary files.
+   */
+  private List<Path> build(RdsDataSnapshot snapshot, String enumType, long typeMemory,
+      RdsDataRunReport report) throws IOException {
+    long start = System.nanoTime();
+    List<RdsDataIndex> typeIndexes = new ArrayList<>();
+    for (RdsDataIndex index : indexes) {
+      if (index.accepts(enumType)) {
+        typeIndexes.add(index);
+      }
+    }
+    List<Path> tmpFiles = new ArrayList<>();
+    if (typeIndexes.isEmpty()) {
+      return tmpFiles;
+    }
+    Path runDirectory = snapshot.getPath().toAbsolutePath().getParent();
+    long sortMemory = Math.max(1, typeMemory / typeIndexes.size());
+    List<RdsDataEntrySorter> sorters = new ArrayList<>();
+    try (RdsDataRunReport.Phase phase = report.begin("index:" + enumType);
+        RdsDataReader reader = new RdsDataReader(snapshot.getPath(), identifierField)) {
+      for (int i = 0; i < typeIndexes.size(); i++) {
+        sorters.add(new RdsDataEntrySorter(runDirectory, sortMemory));
+      }
+      long[] records = new long[1];
+      List<byte[]> keys = new ArrayList<>();
+      reader.forEach(enumType, record -> {
+        String identifier = record.getIdentifier();
+        if (identifier != null) {
+          records[0]++;
+          byte[] value = identifier.getBytes(StandardCharsets.UTF_8);
+          for (int i = 0; i < typeIndexes.size(); i++) {
+            typeIndexes.get(i).index(record,
+                (field, fieldValue) -> keys.add(RdsDataKeyValueStore.toKey(field, fieldValue)));
+            for (byte[] key : keys) {
+              sorters.get(i).add(key, value);
+            }
+            keys.clear();
+          }
+        }
+      });
+      phase.addRecords(records[0]);
+
+      for (int i = 0; i < typeIndexes.size(); i++) {
+        Path file = getPath(snapshot.getPath(), typeIndexes.get(i).getName(), enumType);
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        tmpFiles.add(tmpFile);
+        try (RdsDataKeyValueStore.Writer writer =
+            new RdsDataKeyValueStore.Writer(tmpFile, BLOCK_SIZE);
+            IdentifierListWriter listWriter = new IdentifierListWriter(writer, enumType)) {
+          sorters.get(i).drain(listWriter);
+          listWriter.flush();
+          writer.finish(snapshot.getGeneration());
+        }
+        sorters.get(i).close();
+        phase.addBytes(Files.size(tmpFile));
+      }
+    } catch (IOException | RuntimeException e) {
+      cleanUp(tmpFiles, sorters);
+      throw e;
+    }
+    long duration = System.nanoTime() - start;
+    metrics.record("indexer.build." + enumType, duration);
+    log.info("Indexed " + enumType + " in " + TimeUnit.NANOSECONDS.toMillis(duration) + "ms");
+    return tmpFiles;
+  }
+
+  private void cleanUp(List<Path> tmpFiles, List<RdsDataEntrySorter> sorters)
+      throws IOException {
+    for (RdsDataEntrySorter sorter : sorters) {
+      sorter.close();
+    }
+    for (Path tmpFile : tmpFiles) {
+      Files.deleteIfExists(tmpFile);
+    }
+  }
+
+  /**
+   * Joins the identifiers of each run of entries with equal keys into a newline separated list.
+   */
+  private class IdentifierListWriter implements RdsDataEntrySorter.EntrySink, Closeable {
+    private final RdsDataKeyValueStore.Writer writer;
+    private final String enumType;
+    private RdsDataMemoryBudget.Reservation reservation;
+    private byte[] identifiers;
+    private int length;
+    private byte[] pendingKey;
+
+    private IdentifierListWriter(RdsDataKeyValueStore.Writer writer, String enumType) {
+      this.writer = writer;
+      this.enumType = enumType;
+      this.identifiers = new byte[0];
+      this.length = 0;
+    }
+
+    @Override
+    public void accept(byte[] key, byte[] identifier) throws IOException {
+      if (pendingKey != null && RdsDataKeyValueStore.compare(pendingKey, key) == 0) {
+        ensureCapacity(length + 1 + identifier.length);
+        identifiers[length++] = '\n';
+      } else {
+        flush();
+        ensureCapacity(identifier.length);
+        pendingKey = key;
+      }
+      System.arraycopy(identifier, 0, identifiers, length, identifier.length);
+      length += identifier.length;
+    }
+
+    private void ensureCapacity(int capacity) throws RdsDataInsufficientMemoryException {
+      if (capacity > identifiers.length) {
+        int grownCapacity = (int) Math.min(Integer.MAX_VALUE - 8,
+            Math.max(capacity, 2L * identifiers.length));
+        RdsDataMemoryBudget.Reservation grown = memoryBudget.reserve(
+            "index identifier list for " + enumType, grownCapacity, capacity);
+        identifiers = Arrays.copyOf(identifiers, (int) grown.getBytes());
+        // The old list stays reserved until it got copied.
+        close();
+        reservation = grown;
+      }
+    }
+
+    private void flush() throws IOException {
+      if (pendingKey != null) {
+        writer.add(pendingKey, identifiers, length);
+        length = 0;
+        pendingKey = null;
+      }
+    }
+
+    @Override
+    public void close() {
+      if (reservation != null) {
+        reservation.close();
+        reservation = null;
+      }
+    }
+  }
+
+  /**
+   * Moves the temporary index files into place and removes index files of enum types or
+   * indexes that are gone.
+   */
+  private void publish(Path target, List<Path> tmpFiles) throws IOException {
+    Set<String> fileNames = new HashSet<>();
+    for (Path tmpFile : tmpFiles) {
+      String tmpName = tmpFile.getFileName().toString();
+      String fileName = tmpName.substring(0, tmpName.length() - ".tmp".length());
+      Files.move(tmpFile, tmpFile.resolveSibling(fileName), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      fileNames.add(fileName);
+    }
+    Path directory = target.toAbsolutePath().getParent();
+    String glob = target.getFileName() + ".index.*";
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+      for (Path file : stream) {
+        String fileName = file.getFileName().toString();
+        if (!fileName.endsWith(".tmp") && !fileNames.contains(fileName)) {
+          Files.deleteIfExists(file);
+        }
+      }
+    } catch (IOException e) {
+      log.warn("Failed to remove stale index files from " + directory, e);
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.IOException;
+
+/**
+ * Thrown if a file system lacks the space to persist the expected amount of data.
+ */
+public class RdsDataInsufficientSpaceException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Creates an exception for insufficient disk space.
+   *
+   * @param message Description of the lacking space.
+   */
+  public RdsDataInsufficientSpaceException(String message) {
+    super(message);
+  }
+
+  /**
+   * Creates an exception for insufficient disk space.
+   *
+   * @param message Description of the lacking space.
+   * @param cause The underlying failure.
+   */
+  public RdsDataInsufficientSpaceException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Exports persisted snapshots into a key-value store for random access lookups.
+ *
+ * <p>The records of all enum types are sorted by enum type and identifier with a
+ * {@link RdsDataEntrySorter}, whose memory (including its read and write buffers) gets reserved
+ * from the memory budget, and are then bulk loaded into a {@link RdsDataKeyValueStore}. The
+ * store is published atomically next to the snapshot as {@code <target>.kv}, and records the
+ * snapshot's generation.
+ *
+ * <p>Records are identified through {@link RdsDataIdentifiers}. Records without identifier are
+ * not exported. If an identifier occurs more than once within an enum type, the last of its
+ * records is exported.
+ */
+@Singleton
+public class RdsDataKeyValueExporter implements RdsDataSnapshotListener {
+  private static final Log log = LogFactory.getLog(RdsDataKeyValueExporter.class);
+
+  private static final long MIN_SORT_MEMORY = 1024 * 1024;
+
+  private final boolean enabled;
+  private final String identifierField;
+  private final long maxMemoryBytes;
+  private final int blockSize;
+  private final RdsDataMemoryBudget memoryBudget;
+  private final RdsDataMetrics metrics;
+  private long spills;
+  private long merges;
+
+  /**
+   * Creates an exporter into key-value stores.
+   *
+   * @param appConfig The application config to use.
+   * @param memoryBudget The budget to reserve sort memory from.
+   * @param metrics The metrics to record export times to.
+   */
+  @Inject
+  public RdsDataKeyValueExporter(@ApplicationConfig Config appConfig,
+      RdsDataMemoryBudget memoryBudget, RdsDataMetrics metrics) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.keyValue");
+    this.enabled = config.getBoolean("enabled", false);
+    this.identifierField = config.get("identifierField", "identifier");
+    this.maxMemoryBytes = config.getLong("maxMemoryBytes", 32 * 1024 * 1024);
+    this.blockSize = config.getInt("blockSize", 4096);
+    this.memoryBudget = memoryBudget;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public String getName() {
+    return "keyValue";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Exports a snapshot into its key-value store.
+   *
+   * @param snapshot The snapshot to export.
+   * @throws IOException if reading the snapshot or writing the store fails.
+   */
+  @Override
+  public void onSnapshot(RdsDataSnapshot snapshot) throws IOException {
+    long start = System.nanoTime();
+    Path target = RdsDataKeyValueStore.getPath(snapshot.getPath());
+    Path tmpTarget = target.resolveSibling(target.getFileName() + ".tmp");
+    long entries;
+    spills = 0;
+    merges = 0;
+    try (RdsDataMemoryBudget.Reservation reservation = memoryBudget.reserve(
+        "key-value export sort memory", maxMemoryBytes,
+        Math.min(maxMemoryBytes, MIN_SORT_MEMORY))) {
+      entries = export(snapshot, tmpTarget, reservation.getBytes());
+      Files.move(tmpTarget, target, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmpTarget);
+      throw e;
+    }
+    long nanos = System.nanoTime() - start;
+    metrics.record("keyValue.export", nanos);
+    metrics.increment("keyValue.spills", spills);
+    metrics.increment("keyValue.merges", merges);
+    log.info("Exported " + entries + " records of generation " + snapshot.getGeneration()
+        + " to " + target + " with " + spills + " spilled runs and " + merges
+        + " intermediate merges in " + nanos / 1000000 + " ms");
+  }
+
+  private long export(RdsDataSnapshot snapshot, Path tmpTarget, long sortMemory)
+      throws IOException {
+    Path runDirectory = tmpTarget.toAbsolutePath().getParent();
+    try (RdsDataEntrySorter sorter = new RdsDataEntrySorter(runDirectory, sortMemory)) {
+      try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(
+          Files.newInputStream(snapshot.getPath()), StandardCharsets.UTF_8),
+          RdsDataMemoryBudget.UNRESERVED_BUFFER_BYTES / 2))) {
+        JsonParser parser = new JsonParser();
+        reader.beginObject();
+        while (reader.hasNext()) {
+          if (!"data".equals(reader.nextName())) {
+            reader.skipValue();
+            continue;
+          }
+          reader.beginObject();
+          while (reader.hasNext()) {
+            String enumType = reader.nextName();
+            JsonToken token = reader.peek();
+            boolean keyed = token == JsonToken.BEGIN_OBJECT;
+            if (!keyed && token != JsonToken.BEGIN_ARRAY) {
+              reader.skipValue();
+              continue;
+            }
+            if (keyed) {
+              reader.beginObject();
+            } else {
+              reader.beginArray();
+            }
+            while (reader.hasNext()) {
+              String identifier = keyed ? reader.nextName() : null;
+              JsonElement record = parser.parse(reader);
+              if (!keyed) {
+                identifier = RdsDataIdentifiers.get(record, identifierField);
+              }
+              if (identifier != null) {
+                sorter.add(RdsDataKeyValueStore.toKey(enumType, identifier),
+                    record.toString().getBytes(StandardCharsets.UTF_8));
+              }
+            }
+            if (keyed) {
+              reader.endObject();
+            } else {
+              reader.endArray();
+            }
+          }
+          reader.endObject();
+        }
+        reader.endObject();
+      } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+        throw new IOException("Malformed RDS data in " + snapshot.getPath(), e);
+      }
+
+      try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(tmpTarget,
+          blockSize)) {
+        LastEntryWriter lastEntryWriter = new LastEntryWriter(writer);
+        sorter.drain(lastEntryWriter);
+        lastEntryWriter.flush();
+        spills = sorter.getSpills();
+        merges = sorter.getMerges();
+        writer.finish(snapshot.getGeneration());
+        return writer.getEntries();
+      }
+    }
+  }
+
+  /**
+   * Adds only the last of each run of entries with equal keys to a store.
+   */
+  private static class LastEntryWriter implements RdsDataEntrySorter.EntrySink {
+    private final RdsDataKeyValueStore.Writer writer;
+    private byte[] pendingKey;
+    private byte[] pendingValue;
+
+    private LastEntryWriter(RdsDataKeyValueStore.Writer writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void accept(byte[] key, byte[] value) throws IOException {
+      // Equal keys arrive in the order their records got read, so the last record wins.
+      if (pendingKey != null && RdsDataKeyValueStore.compare(pendingKey, key) != 0) {
+        writer.add(pendingKey, pendingValue);
+      }
+      pendingKey = key;
+      pendingValue = value;
+    }
+
+    private void flush() throws IOException {
+      if (pendingKey != null) {
+        writer.add(pendingKey, pendingValue);
+        pendingKey = null;
+        pendingValue = null;
+      }
+    }
+  }
+}
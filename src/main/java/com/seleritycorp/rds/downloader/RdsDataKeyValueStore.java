@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only, file based key-value store of the records of a snapshot.
+ *
+ * <p>Keys are enum type and identifier, values are the records' JSON text. The store gets built
+ * by sorted bulk loading: entries are appended in ascending key order into blocks of a few
+ * kilobytes, followed by a sparse index holding the first key of each block, and a fixed size
+ * footer. A lookup binary searches the sparse index, which is held in memory, and reads a
+ * single block.
+ *
+ * <p>Layout:
+ *
+ * <pre>
+ * block*   : (varint keyLength, varint valueLength, key, value)*
+ * index    : (int keyLength, key, long blockOffset)*
+ * footer   : long generation, long entries, long indexOffset, int blocks, int version,
+ *            long magic
+ * </pre>
+ *
+ * <p>Keys are the UTF-8 bytes of enum type, a zero byte, and identifier, ordered as unsigned
+ * bytes.
+ *
+ * <p>Stores can either be read through positional reads, or get mapped into memory. Mapped
+ * stores on a tmpfs (see {@link RdsDataSharedMemoryPublisher}) share a single copy of the data
+ * among all processes of a host.
+ */
+public class RdsDataKeyValueStore implements Closeable {
+  static final long MAGIC = 0x5244534b56535431L;
+  static final int VERSION = 1;
+  static final int FOOTER_SIZE = 8 + 8 + 8 + 4 + 4 + 8;
+
+  private final Path file;
+  private final FileChannel channel;
+  private final MappedByteBuffer mapped;
+  private final long generation;
+  private final long entries;
+  private final byte[][] firstKeys;
+  private final long[] blockOffsets;
+
+  /**
+   * Visits the entries of a store.
+   */
+  public interface EntryVisitor {
+    /**
+     * Visits an entry.
+     *
+     * @param key The entry's key.
+     * @param value The entry's value.
+     * @return true, if visiting should continue with the next entry.
+     * @throws IOException if handling the entry fails. This aborts visiting.
+     */
+    boolean visit(byte[] key, byte[] value) throws IOException;
+  }
+
+  /**
+   * Builds a store by sorted bulk loading.
+   *
+   * <p>Usage:
+   *
+   * <pre>
+   * try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, 4096)) {
+   *   for (each entry in ascending key order) {
+   *     writer.add(key, value);
+   *   }
+   *   writer.finish(generation);
+   * }
+   * </pre>
+   */
+  public static class Writer implements Closeable {
+    private final DataOutputStream out;
+    private final DataOutputStream index;
+    private final ByteArrayOutputStream indexBytes;
+    private final int blockSize;
+    private long position;
+    private long blockStart;
+    private int blocks;
+    private long entries;
+    private byte[] lastKey;
+    private boolean finished;
+
+    /**
+     * Creates a writer.
+     *
+     * @param file The file to write the store to.
+     * @param blockSize The targeted size of blocks in bytes.
+     * @throws IOException if the file cannot be created.
+     */
+    public Writer(Path file, int blockSize) throws IOException {
+      this(Files.newOutputStream(file), blockSize);
+    }
+
+    /**
+     * Creates a writer.
+     *
+     * @param out The stream to write the store to. It gets closed by the writer.
+     * @param blockSize The targeted size of blocks in bytes.
+     */
+    public Writer(OutputStream out, int blockSize) {
+      if (blockSize <= 0) {
+        throw new IllegalArgumentException("Block size has to be positive, but is " + blockSize);
+      }
+      this.out = new DataOutputStream(new BufferedOutputStream(out,
+          RdsDataMemoryBudget.UNRESERVED_BUFFER_BYTES));
+      this.indexBytes = new ByteArrayOutputStream();
+      this.index = new DataOutputStream(indexBytes);
+      this.blockSize = blockSize;
+      this.position = 0;
+      this.blockStart = -1;
+      this.blocks = 0;
+      this.entries = 0;
+      this.lastKey = null;
+      this.finished = false;
+    }
+
+    /**
+     * Appends an entry.
+     *
+     * @param key The entry's key. It has to be larger than the keys of all previous entries.
+     * @param value The entry's value.
+     * @throws IOException if writing fails.
+     * @throws IllegalArgumentException if the key is not larger than the previous key.
+     */
+    public void add(byte[] key, byte[] value) throws IOException {
+      add(key, value, value.length);
+    }
+
+    /**
+     * Appends an entry whose value is the start of an array.
+     *
+     * @param key The entry's key. It has to be larger than the keys of all previous entries.
+     * @param value The array holding the entry's value.
+     * @param valueLength The number of bytes of the value.
+     * @throws IOException if writing fails.
+     * @throws IllegalArgumentException if the key is not larger than the previous key.
+     */
+    public void add(byte[] key, byte[] value, int valueLength) throws IOException {
+      if (lastKey != null && compare(lastKey, key) >= 0) {
+        throw new IllegalArgumentException("Keys have to be added in strictly ascending order");
+      }
+      if (blockStart < 0 || position - blockStart >= blockSize) {
+        blockStart = position;
+        blocks++;
+        index.writeInt(key.length);
+        index.write(key);
+        index.writeLong(position);
+      }
+      position += writeVarint(key.length);
+      position += writeVarint(valueLength);
+      out.write(key);
+      out.write(value, 0, valueLength);
+      position += key.length + valueLength;
+      entries++;
+      lastKey = key;
+    }
+
+    /**
+     * Gets the number of added entries.
+     *
+     * @return the number of entries added so far.
+     */
+    public long getEntries() {
+      return entries;
+    }
+
+    /**
+     * Writes index and footer.
+     *
+     * @param generation The generation of the snapshot that the store holds.
+     * @throws IOException if writing fails.
+     */
+    public void finish(long generation) throws IOException {
+      long indexOffset = position;
+      index.flush();
+      indexBytes.writeTo(out);
+      out.writeLong(generation);
+      out.writeLong(entries);
+      out.writeLong(indexOffset);
+      out.writeInt(blocks);
+      out.writeInt(VERSION);
+      out.writeLong(MAGIC);
+      out.flush();
+      finished = true;
+    }
+
+    private int writeVarint(int value) throws IOException {
+      int bytes = 1;
+      while ((value & ~0x7f) != 0) {
+        out.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+        bytes++;
+      }
+      out.write(value);
+      return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+      if (!finished) {
+        throw new IOException("Store closed before it got finished");
+      }
+    }
+  }
+
+  /**
+   * Gets the key-value store file for a snapshot file.
+   *
+   * @param target The snapshot file.
+   * @return the key-value store file holding the snapshot's records.
+   */
+  public static Path getPath(Path target) {
+    Path fileName = Paths.get(target.getFileName() + ".kv");
+    Path parent = target.getParent();
+    return (parent == null) ? fileName : parent.resolve(fileName);
+  }
+
+  /**
+   * Opens a store.
+   *
+   * @param file The store file to open.
+   * @throws IOException if the file cannot be read or is not a store.
+   */
+  public RdsDataKeyValueStore(Path file) throws IOException {
+    this(file, false);
+  }
+
+  /**
+   * Opens a store.
+   *
+   * @param file The store file to open.
+   * @param map If true, the store gets mapped read-only into memory, and lookups do not need
+   *     system calls. Lookups on mapped stores keep working after closing the store. Stores of
+   *     2GB and above are never mapped.
+   * @throws IOException if the file cannot be read or is not a store.
+   */
+  public RdsDataKeyValueStore(Path file, boolean map) throws IOException {
+    this.file = file;
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size < FOOTER_SIZE) {
+        throw new IOException("Not a key-value store, as " + file + " is too small");
+      }
+      this.mapped = (map && size <= Integer.MAX_VALUE)
+          ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+      ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+      this.generation = footer.getLong();
+      this.entries = footer.getLong();
+      long indexOffset = footer.getLong();
+      int blocks = footer.getInt();
+      int version = footer.getInt();
+      if (footer.getLong() != MAGIC) {
+        throw new IOException("Not a key-value store, as " + file + " lacks the magic number");
+      }
+      if (version != VERSION) {
+        throw new IOException("Unsupported key-value store version " + version + " in " + file);
+      }
+      long indexLength = size - FOOTER_SIZE - indexOffset;
+      if (indexOffset < 0 || indexLength < 0 || indexLength > Integer.MAX_VALUE || blocks < 0) {
+        throw new IOException("Malformed key-value store footer in " + file);
+      }
+      ByteBuffer index = read(indexOffset, (int) indexLength);
+      this.firstKeys = new byte[blocks][];
+      this.blockOffsets = new long[blocks + 1];
+      for (int i = 0; i < blocks; i++) {
+        firstKeys[i] = new byte[index.getInt()];
+        index.get(firstKeys[i]);
+        blockOffsets[i] = index.getLong();
+      }
+      blockOffsets[blocks] = indexOffset;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      if (e instanceof IOException) {
+        throw (IOException) e;
+      }
+      throw new IOException("Malformed key-value store " + file, e);
+    }
+  }
+
+  /**
+   * Gets the generation of the snapshot that the store holds.
+   *
+   * @return the snapshot's generation.
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Gets the number of entries.
+   *
+   * @return the number of records in the store.
+   */
+  public long size() {
+    return entries;
+  }
+
+  /**
+   * Looks up the record of an identifier.
+   *
+   * @param enumType The enum type of the record.
+   * @param identifier The identifier of the record.
+   * @return the record's JSON text, or null if the store does not have such a record.
+   * @throws IOException if reading fails.
+   */
+  public String getRecord(String enumType, String identifier) throws IOException {
+    byte[] value = get(toKey(enumType, identifier));
+    return (value == null) ? null : new String(value, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Looks up the value of a key.
+   *
+   * @param key The key to look up.
+   * @return the key's value, or null if the store does not have the key.
+   * @throws IOException if reading fails.
+   */
+  public byte[] get(byte[] key) throws IOException {
+    int block = findBlock(key);
+    if (block < 0) {
+      return null;
+    }
+    ByteBuffer buffer = readBlock(block);
+    try {
+      while (buffer.hasRemaining()) {
+        int keyLength = readVarint(buffer);
+        int valueLength = readVarint(buffer);
+        int result = compare(buffer, buffer.position(), keyLength, key);
+        if (result == 0) {
+          byte[] value = new byte[valueLength];
+          buffer.position(buffer.position() + keyLength);
+          buffer.get(value);
+          return value;
+        } else if (result > 0) {
+          return null;
+        }
+        buffer.position(buffer.position() + keyLength + valueLength);
+      }
+    } catch (IndexOutOfBoundsException | BufferUnderflowException
+        | IllegalArgumentException e) {
+      throw malformedBlock(block, e);
+    }
+    return null;
+  }
+
+  /**
+   * Visits entries in key order.
+   *
+   * <p>As keys are ordered, this allows prefix lookups, by starting at the prefix and stopping
+   * at the first key that does not start with it.
+   *
+   * @param from The key to start at. Visiting starts at the first key that is not smaller.
+   * @param visitor The visitor for the entries.
+   * @throws IOException if reading fails or the visitor fails.
+   */
+  public void scan(byte[] from, EntryVisitor visitor) throws IOException {
+    for (int block = Math.max(findBlock(from), 0); block < firstKeys.length; block++) {
+      ByteBuffer buffer = readBlock(block);
+      try {
+        while (buffer.hasRemaining()) {
+          int keyLength = readVarint(buffer);
+          int valueLength = readVarint(buffer);
+          if (compare(buffer, buffer.position(), keyLength, from) < 0) {
+            buffer.position(buffer.position() + keyLength + valueLength);
+          } else {
+            byte[] key = new byte[keyLength];
+            byte[] value = new byte[valueLength];
+            buffer.get(key);
+            buffer.get(value);
+            if (!visitor.visit(key, value)) {
+              return;
+            }
+          }
+        }
+      } catch (IndexOutOfBoundsException | BufferUnderflowException
+          | IllegalArgumentException e) {
+        throw malformedBlock(block, e);
+      }
+    }
+  }
+
+  /**
+   * Finds the last block whose first key is not larger than a key.
+   *
+   * @return the found block, or -1 if the key is smaller than all keys.
+   */
+  private int findBlock(byte[] key) {
+    int low = 0;
+    int high = firstKeys.length - 1;
+    int block = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (compare(firstKeys[mid], key) <= 0) {
+        block = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return block;
+  }
+
+  private ByteBuffer readBlock(int block) throws IOException {
+    return read(blockOffsets[block], (int) (blockOffsets[block + 1] - blockOffsets[block]));
+  }
+
+  private IOException malformedBlock(int block, Exception cause) {
+    return new IOException("Malformed block at offset " + blockOffsets[block] + " in " + file,
+        cause);
+  }
+
+  private static int readVarint(ByteBuffer buffer) {
+    int value = 0;
+    int shift = 0;
+    int current;
+    do {
+      current = buffer.get();
+      value |= (current & 0x7f) << shift;
+      shift += 7;
+    } while ((current & 0x80) != 0);
+    return value;
+  }
+
+  private ByteBuffer read(long offset, int length) throws IOException {
+    if (mapped != null) {
+      ByteBuffer view = mapped.duplicate();
+      view.position((int) offset);
+      view.limit((int) offset + length);
+      return view.slice();
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of " + file);
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Builds the key of a record.
+   *
+   * @param enumType The enum type of the record.
+   * @param identifier The identifier of the record.
+   * @return the key for the record.
+   */
+  public static byte[] toKey(String enumType, String identifier) {
+    byte[] enumTypeBytes = enumType.getBytes(StandardCharsets.UTF_8);
+    byte[] identifierBytes = identifier.getBytes(StandardCharsets.UTF_8);
+    byte[] key = new byte[enumTypeBytes.length + 1 + identifierBytes.length];
+    System.arraycopy(enumTypeBytes, 0, key, 0, enumTypeBytes.length);
+    System.arraycopy(identifierBytes, 0, key, enumTypeBytes.length + 1, identifierBytes.length);
+    return key;
+  }
+
+  /**
+   * Compares keys as unsigned bytes.
+   *
+   * @param left The left key.
+   * @param right The right key.
+   * @return a negative number, zero, or a positive number, if the left key is smaller, equal, or
+   *     larger than the right key.
+   */
+  public static int compare(byte[] left, byte[] right) {
+    return compare(ByteBuffer.wrap(left), 0, left.length, right);
+  }
+
+  private static int compare(ByteBuffer left, int offset, int length, byte[] right) {
+    int common = Math.min(length, right.length);
+    for (int i = 0; i < common; i++) {
+      int result = (left.get(offset + i) & 0xff) - (right[i] & 0xff);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return length - right.length;
+  }
+
+  /**
+   * Checks whether the store is mapped into memory.
+   *
+   * @return true, if lookups read from memory instead of the file.
+   */
+  public boolean isMapped() {
+    return mapped != null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
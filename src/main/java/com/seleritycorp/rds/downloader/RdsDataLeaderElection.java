@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Elects a single downloading instance among instances sharing the data directory.
+ *
+ * <p>The leader holds a lease file next to the data, which names the leader and the time the
+ * lease expires. The leader renews the lease on each heartbeat. Standbys check the lease on each
+ * heartbeat too, and take over once it expired. So if the leader dies, a standby takes over
+ * within lease duration plus heartbeat interval. Reading and updating the lease happens under
+ * an exclusive lock on a separate lock file, so two instances cannot take over at the same time.
+ *
+ * <p>To stay on the safe side of clock skew between hosts, the leader considers itself leader
+ * only until one heartbeat interval before its lease expires. Hosts should nevertheless have
+ * their clocks synchronized.
+ */
+@Singleton
+public class RdsDataLeaderElection {
+  private static final Log log = LogFactory.getLog(RdsDataLeaderElection.class);
+
+  private final boolean enabled;
+  private final Path leaseFile;
+  private final Path lockFile;
+  private final long leaseMillis;
+  private final long heartbeatMillis;
+  private final String owner;
+  private final LongSupplier clock;
+  private volatile long leaderUntil;
+
+  /**
+   * Creates a leader election.
+   *
+   * @param appConfig The application config to use.
+   * @param appPaths The base paths to place the lease in.
+   */
+  @Inject
+  public RdsDataLeaderElection(@ApplicationConfig Config appConfig, ApplicationPaths appPaths) {
+    this(appConfig, appPaths, System::currentTimeMillis);
+  }
+
+  RdsDataLeaderElection(Config appConfig, ApplicationPaths appPaths, LongSupplier clock) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.leader");
+    this.enabled = config.getBoolean("enabled", false);
+    this.leaseFile = appPaths.getDataPath().resolve(config.get("leaseFile", "rds/rds-data.lease"));
+    this.lockFile = leaseFile.resolveSibling(leaseFile.getFileName() + ".lock");
+    this.leaseMillis = config.getDurationMillis("lease", 90, TimeUnit.SECONDS);
+    this.heartbeatMillis = config.getDurationMillis("heartbeat", 30, TimeUnit.SECONDS);
+    if (enabled && (heartbeatMillis <= 0 || heartbeatMillis * 2 > leaseMillis)) {
+      throw new IllegalArgumentException("Leader heartbeat (" + heartbeatMillis + " ms) has to be "
+          + "positive and at most half the lease (" + leaseMillis + " ms)");
+    }
+    this.owner = config.get("owner", ManagementFactory.getRuntimeMXBean().getName());
+    this.clock = clock;
+    this.leaderUntil = 0;
+  }
+
+  /**
+   * Checks whether leader election is enabled.
+   *
+   * @return true, if instances elect a leader. false, if every instance downloads.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Gets the interval in which {@link #heartbeat()} should get called.
+   *
+   * @return the heartbeat interval in milliseconds.
+   */
+  public long getHeartbeatMillis() {
+    return heartbeatMillis;
+  }
+
+  /**
+   * Gets the name this instance uses in the lease.
+   *
+   * @return the name of this instance.
+   */
+  public String getOwner() {
+    return owner;
+  }
+
+  /**
+   * Checks whether this instance should download.
+   *
+   * @return true, if leader election is disabled or this instance holds the lease.
+   */
+  public boolean isLeader() {
+    return !enabled || clock.getAsLong() < leaderUntil;
+  }
+
+  /**
+   * Acquires or renews the lease if possible.
+   *
+   * @return true, if this instance is leader after the heartbeat.
+   */
+  public synchronized boolean heartbeat() {
+    boolean wasLeader = isLeader();
+    try {
+      Files.createDirectories(lockFile.toAbsolutePath().getParent());
+      try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE); FileLock lock = channel.tryLock()) {
+        if (lock == null) {
+          // Another instance is updating the lease right now. We retry on the next heartbeat.
+          return isLeader();
+        }
+        long now = clock.getAsLong();
+        JsonObject lease;
+        try {
+          lease = readLease();
+        } catch (IOException e) {
+          log.warn("Overwriting unreadable lease " + leaseFile, e);
+          lease = null;
+        }
+        if (lease == null || owner.equals(lease.get("owner").getAsString())
+            || lease.get("expires").getAsLong() <= now) {
+          JsonObject renewed = new JsonObject();
+          renewed.addProperty("owner", owner);
+          renewed.addProperty("renewed", now);
+          renewed.addProperty("expires", now + leaseMillis);
+          RdsDataFiles.writeAtomically(leaseFile,
+              renewed.toString().getBytes(StandardCharsets.UTF_8), true);
+          leaderUntil = now + leaseMillis - heartbeatMillis;
+          if (!wasLeader) {
+            log.info("Acquired lease " + leaseFile + " as " + owner);
+          }
+        } else {
+          leaderUntil = 0;
+          if (wasLeader) {
+            log.warn("Lost lease " + leaseFile + " to " + lease.get("owner").getAsString());
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // Keeping the current state is safe, as leadership ends on its own with the lease.
+      log.warn("Failed to check lease " + leaseFile, e);
+    }
+    return isLeader();
+  }
+
+  /**
+   * Gives up the lease, so that a standby can take over right away.
+   *
+   * <p>Reading, checking, and deleting the lease happen under the same lock as renewals, so a
+   * lease that a standby acquired in the meantime never gets deleted. If another instance holds
+   * the lock right now, the lease is left to expire on its own.
+   */
+  public synchronized void release() {
+    if (enabled && isLeader()) {
+      leaderUntil = 0;
+      try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE); FileLock lock = channel.tryLock()) {
+        if (lock == null) {
+          log.info("Leaving lease " + leaseFile + " to expire, as it is getting updated");
+          return;
+        }
+        JsonObject lease = readLease();
+        if (lease != null && owner.equals(lease.get("owner").getAsString())) {
+          Files.deleteIfExists(leaseFile);
+          log.info("Released lease " + leaseFile);
+        }
+      } catch (IOException | RuntimeException e) {
+        log.warn("Failed to release lease " + leaseFile, e);
+      }
+    }
+  }
+
+  /**
+   * Gets the current holder of the lease.
+   *
+   * @return the owner named in the lease, or null if there is no readable lease.
+   */
+  public String getHolder() {
+    try {
+      JsonObject lease = readLease();
+      return (lease == null) ? null : lease.get("owner").getAsString();
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private JsonObject readLease() throws IOException {
+    try {
+      String content = new String(Files.readAllBytes(leaseFile), StandardCharsets.UTF_8);
+      JsonObject lease = new JsonParser().parse(content).getAsJsonObject();
+      if (!lease.has("owner") || !lease.has("expires")) {
+        throw new IOException("Incomplete lease " + leaseFile);
+      }
+      lease.get("owner").getAsString();
+      lease.get("expires").getAsLong();
+      return lease;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (JsonParseException | IllegalStateException | UnsupportedOperationException
+        | NumberFormatException e) {
+      throw new IOException("Malformed lease " + leaseFile, e);
+    }
+  }
+}
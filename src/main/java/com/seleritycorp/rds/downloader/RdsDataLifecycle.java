@@ -30,11 +30,13 @@ import com.seleritycorp.common.base.time.TimeUtils;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.inject.Inject;
 
@@ -42,17 +44,33 @@ import javax.inject.Inject;
  * Lifecycle manager for RDS data
  *
  * <p>This class handles fetching and persisting of RDS data, and scheduling of thereof.
+ *
+ * <p>If leader election is enabled, only the leader fetches and persists. Standbys skip their
+ * runs, and upon taking over the lease, they fetch right away if the published data is stale.
+ *
+ * <p>If the config file is reloadable, changes to it get validated by all reconfigurable
+ * components and, if all of them accept it, applied between runs. A rejected config leaves all
+ * settings untouched.
+ *
+ * <p>When runs happen is up to the {@link RdsDataScheduler}, which also keeps runs from
+ * overlapping.
  */
-public class RdsDataLifecycle {
+public class RdsDataLifecycle implements RdsDataReconfigurable {
   private static final Log log = LogFactory.getLog(RdsDataLifecycle.class);
 
   private final AppStatePushFacet facet;
 
-  private final long intervalMillis;
   private final RdsDataFetcher fetcher;
   private final RdsDataPersister persister;
+  private final RdsDataPublisher publisher;
+  private final RdsDataLeaderElection election;
+  private final RdsDataRunReports reports;
+  private final RdsDataConfigReloader reloader;
+  private final RdsDataScheduler scheduler;
+  private final RdsDataFlightRecorder flightRecorder;
   private final TimeUtils timeUtils;
-  private final long retryPauseMillis;
+  private volatile long retryPauseMillis;
+  private final ReentrantLock runLock;
   private ScheduledExecutorService executorService;
 
   /**
@@ -65,72 +83,250 @@ public class RdsDataLifecycle {
    * @param appConfig The application config to use.
    * @param fetcher handler of single, plain fetches
    * @param persister persister of RDS data
+   * @param publisher runs the post-persist stages
+   * @param election decides whether this instance downloads
+   * @param reports keeps the reports of runs
+   * @param reloader picks up changes to the config file
+   * @param scheduler decides when runs happen
+   * @param flightRecorder gets dumped when runs fail
    * @param timeUtils timing for fetch re-tries.
    */
   @Inject
   public RdsDataLifecycle(StateManager sm, @ApplicationConfig Config appConfig,
-      RdsDataFetcher fetcher, RdsDataPersister persister, TimeUtils timeUtils) {
+      RdsDataFetcher fetcher, RdsDataPersister persister, RdsDataPublisher publisher,
+      RdsDataLeaderElection election, RdsDataRunReports reports, RdsDataConfigReloader reloader,
+      RdsDataScheduler scheduler, RdsDataFlightRecorder flightRecorder, TimeUtils timeUtils) {
     this.facet = sm.createRegisteredAppStatePushFacet("RdsDataDownloader");
     this.fetcher = fetcher;
     this.persister = persister;
+    this.publisher = publisher;
+    this.election = election;
+    this.reports = reports;
+    this.reloader = reloader;
+    this.scheduler = scheduler;
+    this.flightRecorder = flightRecorder;
     this.timeUtils = timeUtils;
     this.executorService = null;
-    this.retryPauseMillis = 3 * 60 * 1000;
+    this.runLock = new ReentrantLock();
 
     Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.lifecycle");
-    this.intervalMillis = config.getDurationMillis("interval", 3600, TimeUnit.SECONDS);
+    this.retryPauseMillis = config.getDurationMillis("retryPause", 180, TimeUnit.SECONDS);
   }
 
   /**
-   * Fetches RDS data and retry once if there are errors.
+   * Checks the retry settings of a reloaded config.
    *
-   * @throws IOException while obtaining the writer object
+   * <p>The scheduling settings are checked by the {@link RdsDataScheduler}.
+   *
+   * @param appConfig The application config to check.
+   * @throws IllegalArgumentException if the retry pause is malformed or negative.
    */
-  private void fetch() throws Exception {
+  @Override
+  public void validate(Config appConfig) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.lifecycle");
+    long newRetryPauseMillis;
     try {
-      fetcher.fetch(persister.getCleanWriter());
-    } catch (HttpException | CallErrorException e2) {
-      String msg2 =
-          "Fetching RDS data failed. Will rertry in " + retryPauseMillis / 1000 + " seconds";
-      log.warn(msg2, e2);
-      facet.setAppState(AppState.WARNING, msg2);
+      newRetryPauseMillis = config.getDurationMillis("retryPause", 180, TimeUnit.SECONDS);
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("RdsDataDownloader.lifecycle holds a malformed "
+          + "duration", e);
+    }
+    if (newRetryPauseMillis < 0) {
+      throw new IllegalArgumentException("RdsDataDownloader.lifecycle.retryPause is "
+          + newRetryPauseMillis + " milliseconds, but must not be negative");
+    }
+  }
 
-      // Pausing before retry.
-      timeUtils.sleepForMillis(retryPauseMillis);
+  /**
+   * Applies the retry settings of a reloaded config.
+   *
+   * @param appConfig The application config to apply.
+   */
+  @Override
+  public void reconfigure(Config appConfig) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.lifecycle");
+    retryPauseMillis = config.getDurationMillis("retryPause", 180, TimeUnit.SECONDS);
+  }
 
+  /**
+   * Applies the config file, if it changed and all reconfigurable components accept it.
+   *
+   * <p>Changes are only applied between runs. If a run is in progress, the next check picks the
+   * change up.
+   */
+  private void checkConfig() {
+    if (!runLock.tryLock()) {
+      return;
+    }
+    try {
+      Config appConfig = reloader.loadIfChanged();
+      if (appConfig == null) {
+        return;
+      }
+      // Validating with all components before applying with any, so a config is either applied
+      // as a whole or not at all.
+      RdsDataReconfigurable[] reconfigurables = { fetcher, this, scheduler, publisher };
+      for (RdsDataReconfigurable reconfigurable : reconfigurables) {
+        reconfigurable.validate(appConfig);
+      }
+      for (RdsDataReconfigurable reconfigurable : reconfigurables) {
+        reconfigurable.reconfigure(appConfig);
+      }
+      log.info("Applied reloaded config " + reloader.getFile());
+    } catch (IOException | IllegalArgumentException e) {
+      String msg = "Rejected reloaded config " + reloader.getFile() + ": " + e.getMessage();
+      log.error(msg, e);
+      facet.setAppState(AppState.WARNING, msg);
+    } finally {
+      runLock.unlock();
+    }
+  }
+
+  /**
+   * Fetches RDS data and retry once if there are errors.
+   *
+   * @param report The report of the current run.
+   * @throws IOException while obtaining the writer object
+   */
+  private void fetch(RdsDataRunReport report) throws Exception {
+    try (RdsDataRunReport.Phase phase = report.begin("fetch")) {
       try {
         fetcher.fetch(persister.getCleanWriter());
-      } catch (HttpException | CallErrorException e3) {
-        String msg3 = "Fetching RDS data failed two times in a row";
-        log.error(msg3, e3);
-        facet.setAppState(AppState.FAULTY, msg3);
-        throw e3;
+      } catch (HttpException | CallErrorException e2) {
+        String msg2 =
+            "Fetching RDS data failed. Will rertry in " + retryPauseMillis / 1000 + " seconds";
+        log.warn(msg2, e2);
+        facet.setAppState(AppState.WARNING, msg2);
+        phase.addError(e2);
+        phase.addRetry();
+
+        // Pausing before retry.
+        RdsDataRunReport.Phase pause = report.begin("retryPause");
+        try {
+          timeUtils.sleepForMillis(retryPauseMillis);
+        } finally {
+          pause.close();
+        }
+
+        try {
+          fetcher.fetch(persister.getCleanWriter());
+        } catch (HttpException | CallErrorException e3) {
+          String msg3 = "Fetching RDS data failed two times in a row";
+          log.error(msg3, e3);
+          facet.setAppState(AppState.FAULTY, msg3);
+          phase.addError(e3);
+          throw e3;
+        }
       }
     }
   }
 
   private void singleRun() {
+    if (!runLock.tryLock()) {
+      log.info("Skipping data fetch run, as the previous run is still in progress");
+      return;
+    }
+    try {
+      leaderRun();
+    } finally {
+      runLock.unlock();
+    }
+  }
+
+  private void leaderRun() {
+    if (!election.isLeader()) {
+      String msg = "Standby, as " + election.getHolder() + " holds the lease";
+      log.info(msg);
+      facet.setAppState(AppState.READY, msg);
+      return;
+    }
     log.info("Starting data fetch run");
+    RdsDataRunReport report = reports.start();
     try {
-      fetch();
-      persister.persist();
-      facet.setAppState(AppState.READY);
+      fetch(report);
+      if (!election.isLeader()) {
+        String msg = "Lost the lease while fetching, so not persisting the fetched data";
+        log.warn(msg);
+        setRunState(report, AppState.WARNING, msg);
+        return;
+      }
+      RdsDataSnapshot snapshot = persister.persist();
+      fetcher.markPublished();
+      report.setGeneration(snapshot.getGeneration());
       log.info("Finisted persisting data");
+      List<String> failures = publisher.publish(snapshot);
+      if (failures.isEmpty()) {
+        setRunState(report, AppState.READY, null);
+      } else {
+        setRunState(report, AppState.WARNING, "Persisted data, but post-persist stages failed: "
+            + String.join(", ", failures));
+      }
+    } catch (RdsDataInsufficientSpaceException e) {
+      String msg = "Not downloading data, as disk space is insufficient";
+      log.error(msg, e);
+      report.addError(e);
+      setRunState(report, AppState.FAULTY, msg + ": " + e.getMessage());
+    } catch (RdsDataInsufficientMemoryException e) {
+      String msg = "Not downloading data, as the memory budget is insufficient";
+      log.error(msg, e);
+      report.addError(e);
+      setRunState(report, AppState.FAULTY, msg + ": " + e.getMessage());
     } catch (Exception e) {
       String msg = "Downloading/Persisting data failed";
       log.error(msg, e);
-      facet.setAppState(AppState.FAULTY, msg + ": " + e.toString());
+      report.addError(e);
+      setRunState(report, AppState.FAULTY, msg + ": " + e.toString());
     } catch (OutOfMemoryError e) {
       String msg = "Running out of memory during downloading/persisting. Please grant more heap "
           + "to the JVM";
       log.error(msg, e);
-      facet.setAppState(AppState.FAULTY, msg + ": " + e.toString());
+      report.addError(e);
+      setRunState(report, AppState.FAULTY, msg + ": " + e.toString());
       throw e;
     } catch (Throwable e) {
       String msg = "Downloading/Persisting data failed";
       log.error(msg, e);
-      facet.setAppState(AppState.FAULTY, msg + ": " + e.toString());
+      report.addError(e);
+      setRunState(report, AppState.FAULTY, msg + ": " + e.toString());
       throw e;
+    } finally {
+      reports.finish();
+      if (AppState.FAULTY.name().equals(report.getOutcome())) {
+        flightRecorder.dump("failed");
+        // A run interrupted at its deadline leaves a writer behind whose channel got closed by
+        // the interrupt. Discarding it right away keeps it from failing the next run.
+        persister.discardTemporaryFiles();
+      }
+    }
+  }
+
+  private void setRunState(RdsDataRunReport report, AppState state, String msg) {
+    report.setOutcome(state.name(), msg);
+    if (msg == null) {
+      facet.setAppState(state);
+    } else {
+      facet.setAppState(state, msg);
+    }
+  }
+
+  /**
+   * Acquires or renews the lease, and fetches right away when taking over stale data.
+   */
+  private void heartbeat() {
+    boolean wasLeader = election.isLeader();
+    if (election.heartbeat() && !wasLeader && isPublishedDataStale()) {
+      log.info("Took over the lease, and published data is stale. Fetching right away");
+      scheduler.trigger();
+    }
+  }
+
+  private boolean isPublishedDataStale() {
+    Path target = persister.getTarget();
+    try {
+      return !Files.isRegularFile(target) || System.currentTimeMillis()
+          - Files.getLastModifiedTime(target).toMillis() >= scheduler.getIntervalMillis();
+    } catch (IOException e) {
+      return true;
     }
   }
 
@@ -138,33 +334,51 @@ public class RdsDataLifecycle {
    * Starts scheduling jobs to fetch and persist RDS data.
    */
   public synchronized void start() {
-    Runnable runnable = new Runnable() {
-      @Override
-      public void run() {
-        singleRun();
-      }
-    };
-
-    executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
-      private AtomicInteger count = new AtomicInteger();
+    // Leftovers of a killed process would otherwise only get overwritten by the next fetch.
+    persister.discardTemporaryFiles();
+    flightRecorder.start();
+    publisher.start();
+    if (election.isEnabled()) {
+      // Settling leadership before the first run keeps the leader from skipping it.
+      election.heartbeat();
+    }
 
-      @Override
-      public Thread newThread(Runnable runnable) {
-        Thread thread = Executors.defaultThreadFactory().newThread(runnable);
-        thread.setName("RdsDataDownloader-" + count.incrementAndGet());
-        thread.setDaemon(true);
-        return thread;
-      }
-    });
-    executorService.scheduleAtFixedRate(runnable, 0, intervalMillis, TimeUnit.MILLISECONDS);
-    log.info("Scheduled RDS data downloads every " + intervalMillis + " " + TimeUnit.MILLISECONDS);
+    // Runs execute on the scheduler's own thread. With leader election, heartbeats get their own
+    // thread, so slow slot or deadline handling cannot delay them.
+    int threads = 1 + (election.isEnabled() ? 1 : 0) + (reloader.isEnabled() ? 1 : 0);
+    executorService = Executors.newScheduledThreadPool(threads,
+        RdsDataThreads.newDaemonThreadFactory("RdsDataDownloader"));
+    scheduler.start(executorService, this::singleRun);
+    if (election.isEnabled()) {
+      long heartbeatMillis = election.getHeartbeatMillis();
+      executorService.scheduleAtFixedRate(this::heartbeat, heartbeatMillis, heartbeatMillis,
+          TimeUnit.MILLISECONDS);
+    }
+    if (reloader.isEnabled()) {
+      long checkMillis = reloader.getCheckIntervalMillis();
+      executorService.scheduleWithFixedDelay(this::checkConfig, checkMillis, checkMillis,
+          TimeUnit.MILLISECONDS);
+      log.info("Checking " + reloader.getFile() + " for changes every " + checkMillis + " "
+          + TimeUnit.MILLISECONDS);
+    }
   }
 
   /**
    * Stops scheduling further jobs to fetch and persist of RDS data.
+   *
+   * <p>A run in progress gets the scheduler's shutdown grace period to finish. The temporary
+   * files of a run that got cut short are discarded, while the stored segments are kept
+   * for the next start.
    */
   public synchronized void stop() {
+    if (scheduler.stop()) {
+      persister.discardTemporaryFiles();
+    }
     executorService.shutdown();
     executorService = null;
+    publisher.stop();
+    persister.flushPendingSyncs();
+    election.release();
+    flightRecorder.stop();
   }
 }
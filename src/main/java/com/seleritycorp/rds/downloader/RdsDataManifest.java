@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes the manifest that gets published next to each snapshot.
+ *
+ * <p>The manifest describes the snapshot's generation, size, digest, and section offsets. It is
+ * written only after the snapshot has been moved into place and all post-persist stages are done
+ * with it, so consumers that watch the manifest never see a generation before its data and
+ * companion files (e.g.: key-value stores or indexes) are available.
+ */
+public final class RdsDataManifest {
+  static final String FORMAT = "RdsDataManifest";
+  static final int VERSION = 1;
+
+  private RdsDataManifest() {
+  }
+
+  /**
+   * Gets the manifest file for a snapshot file.
+   *
+   * @param target The snapshot file.
+   * @return the manifest file describing the snapshot file.
+   */
+  public static Path getPath(Path target) {
+    Path fileName = Paths.get(target.getFileName() + ".manifest");
+    Path parent = target.getParent();
+    return (parent == null) ? fileName : parent.resolve(fileName);
+  }
+
+  /**
+   * Writes the manifest for a snapshot atomically.
+   *
+   * @param snapshot The snapshot to describe.
+   * @throws IOException if writing fails.
+   */
+  public static void write(RdsDataSnapshot snapshot) throws IOException {
+    write(snapshot, false);
+  }
+
+  /**
+   * Writes the manifest for a snapshot atomically.
+   *
+   * @param snapshot The snapshot to describe.
+   * @param force If true, the manifest gets forced to the storage device before the move.
+   * @throws IOException if writing fails.
+   */
+  public static void write(RdsDataSnapshot snapshot, boolean force) throws IOException {
+    byte[] content = toJson(snapshot).toString().getBytes(StandardCharsets.UTF_8);
+    RdsDataFiles.writeAtomically(getPath(snapshot.getPath()), content, force);
+  }
+
+  /**
+   * Reads the manifest for a snapshot file.
+   *
+   * @param target The snapshot file.
+   * @return the snapshot as described by the manifest.
+   * @throws IOException if the manifest cannot be read or is malformed.
+   */
+  public static RdsDataSnapshot read(Path target) throws IOException {
+    Path manifest = getPath(target);
+    String content = new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8);
+    try {
+      return fromJson(target, new JsonParser().parse(content).getAsJsonObject());
+    } catch (JsonParseException | IllegalStateException | NullPointerException
+        | UnsupportedOperationException e) {
+      throw new IOException("Malformed manifest " + manifest, e);
+    }
+  }
+
+  /**
+   * Serializes a snapshot description.
+   *
+   * @param snapshot The snapshot to serialize.
+   * @return the JSON representation of the snapshot.
+   */
+  public static JsonObject toJson(RdsDataSnapshot snapshot) {
+    JsonObject json = new JsonObject();
+    json.addProperty("format", FORMAT);
+    json.addProperty("version", VERSION);
+    json.addProperty("file", snapshot.getPath().getFileName().toString());
+    json.addProperty("generation", snapshot.getGeneration());
+    json.addProperty("timestamp", snapshot.getTimestamp());
+    json.addProperty("size", snapshot.getSize());
+    if (snapshot.getSha256() != null) {
+      json.addProperty("sha256", snapshot.getSha256());
+    }
+    if (snapshot.getIndex() != null) {
+      json.add("sections", toJson(snapshot.getIndex()));
+    }
+    return json;
+  }
+
+  /**
+   * Serializes the sections of a section index.
+   *
+   * @param index The index to serialize.
+   * @return the JSON representation of the index' sections.
+   */
+  public static JsonArray toJson(RdsDataSectionIndex index) {
+    JsonArray sections = new JsonArray();
+    for (String enumType : index.getEnumTypes()) {
+      RdsDataSectionIndex.Section section = index.getSection(enumType);
+      JsonObject entry = new JsonObject();
+      entry.addProperty("enumType", enumType);
+      entry.addProperty("offset", section.getOffset());
+      entry.addProperty("length", section.getLength());
+      sections.add(entry);
+    }
+    return sections;
+  }
+
+  /**
+   * Deserializes a snapshot description.
+   *
+   * @param target The snapshot file that the description is for.
+   * @param json The JSON representation of the snapshot.
+   * @return the deserialized snapshot description.
+   * @throws IOException if the JSON is not a supported manifest.
+   */
+  public static RdsDataSnapshot fromJson(Path target, JsonObject json) throws IOException {
+    JsonElement format = json.get("format");
+    if (format == null || !FORMAT.equals(format.getAsString())) {
+      throw new IOException("Not a manifest, as format is " + format);
+    }
+    int version = json.get("version").getAsInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported manifest version " + version);
+    }
+    long size = json.get("size").getAsLong();
+    JsonElement sha256 = json.get("sha256");
+    RdsDataSectionIndex index = null;
+    JsonElement sections = json.get("sections");
+    if (sections != null) {
+      Map<String, RdsDataSectionIndex.Section> map = new LinkedHashMap<>();
+      for (JsonElement element : sections.getAsJsonArray()) {
+        JsonObject entry = element.getAsJsonObject();
+        map.put(entry.get("enumType").getAsString(), new RdsDataSectionIndex.Section(
+            entry.get("offset").getAsLong(), entry.get("length").getAsLong()));
+      }
+      index = new RdsDataSectionIndex(size, map);
+    }
+    return new RdsDataSnapshot(target, size, json.get("generation").getAsLong(),
+        json.get("timestamp").getAsLong(), (sha256 == null) ? null : sha256.getAsString(), index);
+  }
+}
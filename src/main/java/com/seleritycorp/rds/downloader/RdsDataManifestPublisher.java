@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Publishes the manifest of a persisted snapshot.
+ *
+ * <p>Consumers in other processes learn about new generations by watching the manifest (see
+ * {@link RdsDataSnapshotWatcher}). So this stage runs after all stages that write files for the
+ * snapshot (e.g.: key-value stores, indexes, or compressed copies), and consumers that get woken
+ * up for a generation find these files already updated to it.
+ */
+@Singleton
+public class RdsDataManifestPublisher implements RdsDataSnapshotListener {
+  private final RdsDataPersister persister;
+
+  /**
+   * Creates a publisher of manifests.
+   *
+   * @param persister The persister that persisted the snapshots.
+   */
+  @Inject
+  public RdsDataManifestPublisher(RdsDataPersister persister) {
+    this.persister = persister;
+  }
+
+  @Override
+  public String getName() {
+    return "manifest";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return true;
+  }
+
+  /**
+   * Publishes the manifest of a snapshot.
+   *
+   * @param snapshot The snapshot to publish the manifest for.
+   * @throws IOException if writing the manifest fails.
+   */
+  @Override
+  public void onSnapshot(RdsDataSnapshot snapshot) throws IOException {
+    persister.publishManifest(snapshot);
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.Closeable;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Accounts the memory of the pipeline's buffers against a configured cap.
+ *
+ * <p>Each buffer whose size depends on the configuration or on the data gets reserved before it
+ * is allocated: the persister's write buffer, the sort memory of canonicalization, key-value
+ * export, and indexing (including their run buffers), the dictionary, the compression blocks in
+ * flight, the in-process cache's tables, and the indexer's identifier lists. If the budget does
+ * not allow for the preferred size, the reservation is shrunk down to what is left, as long as the
+ * minimum size still fits. Users then degrade gracefully, e.g.: by using a smaller buffer or
+ * spilling to disk earlier. Only if not even the minimum fits, the reservation fails upfront
+ * instead of running into an OutOfMemoryError later on. The peak of reserved memory is recorded
+ * in the metrics.
+ *
+ * <p>Not reserved are a stream's own I/O buffer of at most {@link #UNRESERVED_BUFFER_BYTES}
+ * (the number of streams open at the same time depends on the configuration, not on the data),
+ * single records while they get parsed or written, the sparse block index of a key-value store
+ * being written (one key per block), and the HTTP client's response handling. These need heap
+ * outside of the budget.
+ */
+@Singleton
+public class RdsDataMemoryBudget {
+  private static final Log log = LogFactory.getLog(RdsDataMemoryBudget.class);
+
+  /**
+   * The maximum size of a stream's own I/O buffer that does not get reserved.
+   */
+  public static final int UNRESERVED_BUFFER_BYTES = 64 * 1024;
+
+  private final long budgetBytes;
+  private final RdsDataMetrics metrics;
+  private long reservedBytes;
+
+  /**
+   * Reserved memory that is given back on close.
+   */
+  public final class Reservation implements Closeable {
+    private final String purpose;
+    private final long bytes;
+    private boolean released;
+
+    private Reservation(String purpose, long bytes) {
+      this.purpose = purpose;
+      this.bytes = bytes;
+      this.released = false;
+    }
+
+    /**
+     * Gets the reserved memory.
+     *
+     * @return the number of reserved bytes.
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Gives the reserved memory back to the budget.
+     *
+     * <p>Closing an already closed reservation has no effect.
+     */
+    @Override
+    public void close() {
+      synchronized (RdsDataMemoryBudget.this) {
+        if (!released) {
+          released = true;
+          reservedBytes -= bytes;
+          log.debug("Released " + bytes + " bytes for " + purpose);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates a memory budget.
+   *
+   * @param appConfig The application config to use.
+   * @param metrics The metrics to record peak usage to.
+   */
+  @Inject
+  public RdsDataMemoryBudget(@ApplicationConfig Config appConfig, RdsDataMetrics metrics) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.memory");
+    this.budgetBytes = config.getLong("budgetBytes", 0);
+    this.metrics = metrics;
+    this.reservedBytes = 0;
+
+    long maxHeap = Runtime.getRuntime().maxMemory();
+    if (budgetBytes > 0 && maxHeap != Long.MAX_VALUE && budgetBytes > maxHeap / 2) {
+      log.warn("Memory budget of " + budgetBytes + " bytes exceeds half of the maximum heap of "
+          + maxHeap + " bytes, which leaves little room for everything else");
+    }
+  }
+
+  /**
+   * Checks whether memory is capped.
+   *
+   * @return true, if reservations are limited by a budget. False, if reservations are only
+   *     accounted.
+   */
+  public boolean isEnabled() {
+    return budgetBytes > 0;
+  }
+
+  /**
+   * Reserves memory.
+   *
+   * @param purpose Describes what the memory is used for.
+   * @param preferredBytes The number of bytes that the user would like to get.
+   * @param minimumBytes The number of bytes that the user cannot do without.
+   * @return the reservation. It holds at least the minimum and at most the preferred bytes.
+   * @throws RdsDataInsufficientMemoryException if not even the minimum bytes are available.
+   */
+  public synchronized Reservation reserve(String purpose, long preferredBytes,
+      long minimumBytes) throws RdsDataInsufficientMemoryException {
+    if (minimumBytes < 0 || minimumBytes > preferredBytes) {
+      throw new IllegalArgumentException("Minimum " + minimumBytes
+          + " has to be between 0 and the preferred " + preferredBytes);
+    }
+    long bytes = preferredBytes;
+    if (budgetBytes > 0) {
+      long available = budgetBytes - reservedBytes;
+      if (available < minimumBytes) {
+        metrics.increment("memory.failedReservations", 1);
+        throw new RdsDataInsufficientMemoryException("Only " + available + " of "
+            + budgetBytes + " budgeted bytes available, but " + purpose + " requires "
+            + minimumBytes + " bytes");
+      }
+      if (available < preferredBytes) {
+        bytes = available;
+        metrics.increment("memory.shrunkReservations", 1);
+        log.info("Shrinking " + purpose + " from " + preferredBytes + " to " + bytes
+            + " bytes to stay within the memory budget");
+      }
+    }
+    reservedBytes += bytes;
+    metrics.updateMax("memory.peakBytes", reservedBytes);
+    log.debug("Reserved " + bytes + " bytes for " + purpose);
+    return new Reservation(purpose, bytes);
+  }
+
+  /**
+   * Gets the currently reserved memory.
+   *
+   * @return the number of currently reserved bytes.
+   */
+  public synchronized long getReservedBytes() {
+    return reservedBytes;
+  }
+}
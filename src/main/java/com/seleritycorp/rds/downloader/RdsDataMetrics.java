@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Singleton;
+
+/**
+ * Registry for the downloader's counters and timings.
+ *
+ * <p>Metrics are created on first use and live for the lifetime of the process.
+ */
+@Singleton
+public class RdsDataMetrics {
+  private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<String, Timer> timers = new ConcurrentSkipListMap<>();
+
+  /**
+   * Accumulated durations of a recurring operation.
+   */
+  public static class Timer {
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+    private long lastNanos;
+
+    private synchronized void record(long nanos) {
+      count++;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+      lastNanos = nanos;
+    }
+
+    /**
+     * Gets the number of recorded durations.
+     *
+     * @return the number of recorded durations.
+     */
+    public synchronized long getCount() {
+      return count;
+    }
+
+    /**
+     * Gets the sum of all recorded durations.
+     *
+     * @return the sum of all recorded durations in nanoseconds.
+     */
+    public synchronized long getTotalNanos() {
+      return totalNanos;
+    }
+
+    /**
+     * Gets the longest recorded duration.
+     *
+     * @return the longest recorded duration in nanoseconds.
+     */
+    public synchronized long getMaxNanos() {
+      return maxNanos;
+    }
+
+    /**
+     * Gets the most recently recorded duration.
+     *
+     * @return the most recently recorded duration in nanoseconds.
+     */
+    public synchronized long getLastNanos() {
+      return lastNanos;
+    }
+
+    private synchronized JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      json.addProperty("count", count);
+      json.addProperty("totalMillis", TimeUnit.NANOSECONDS.toMillis(totalNanos));
+      json.addProperty("maxMillis", TimeUnit.NANOSECONDS.toMillis(maxNanos));
+      json.addProperty("lastMillis", TimeUnit.NANOSECONDS.toMillis(lastNanos));
+      return json;
+    }
+  }
+
+  /**
+   * Adds to a counter.
+   *
+   * @param name The name of the counter.
+   * @param delta The amount to add.
+   */
+  public void increment(String name, long delta) {
+    counters.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(delta);
+  }
+
+  /**
+   * Raises a counter to a value, unless the counter is already larger.
+   *
+   * @param name The name of the counter.
+   * @param value The value to raise the counter to.
+   */
+  public void updateMax(String name, long value) {
+    counters.computeIfAbsent(name, key -> new AtomicLong()).accumulateAndGet(value, Math::max);
+  }
+
+  /**
+   * Sets a counter to a value.
+   *
+   * <p>This is meant for gauges (e.g.: the age of data), which may go up and down.
+   *
+   * @param name The name of the counter.
+   * @param value The value to set the counter to.
+   */
+  public void set(String name, long value) {
+    counters.computeIfAbsent(name, key -> new AtomicLong()).set(value);
+  }
+
+  /**
+   * Gets the value of a counter.
+   *
+   * @param name The name of the counter.
+   * @return the counter's value. 0, if the counter has not been used yet.
+   */
+  public long getCounter(String name) {
+    AtomicLong counter = counters.get(name);
+    return (counter == null) ? 0 : counter.get();
+  }
+
+  /**
+   * Records the duration of an operation.
+   *
+   * @param name The name of the timer.
+   * @param nanos The duration in nanoseconds.
+   */
+  public void record(String name, long nanos) {
+    getTimer(name).record(nanos);
+  }
+
+  /**
+   * Gets a timer.
+   *
+   * @param name The name of the timer.
+   * @return the timer for the name.
+   */
+  public Timer getTimer(String name) {
+    return timers.computeIfAbsent(name, key -> new Timer());
+  }
+
+  /**
+   * Serializes all metrics.
+   *
+   * @return the JSON representation of all counters and timers.
+   */
+  public JsonObject toJson() {
+    JsonObject counterJson = new JsonObject();
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      counterJson.addProperty(entry.getKey(), entry.getValue().get());
+    }
+    JsonObject timerJson = new JsonObject();
+    for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+      timerJson.add(entry.getKey(), entry.getValue().toJson());
+    }
+    JsonObject json = new JsonObject();
+    json.add("counters", counterJson);
+    json.add("timers", timerJson);
+    return json;
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output stream that gzip compresses blocks of data concurrently.
+ *
+ * <p>The written data is split into blocks of a fixed size. Each block gets compressed into its
+ * own gzip member on the given executor, and the members are written to the underlying stream
+ * in order. The concatenated members form a standard multi-member gzip file, which
+ * {@code gunzip} and {@link java.util.zip.GZIPInputStream} read as a whole.
+ *
+ * <p>At most the given number of blocks are in flight at a time. Writing blocks until the
+ * oldest block is compressed and written keeps memory bounded to about twice that number of
+ * blocks.
+ */
+public class RdsDataParallelGzipOutputStream extends OutputStream {
+  private final OutputStream out;
+  private final ExecutorService executor;
+  private final int blockSize;
+  private final int maxInFlight;
+  private final int level;
+  private final Deque<Future<byte[]>> inFlight;
+  private byte[] block;
+  private int blockLength;
+  private boolean anyBlock;
+  private long compressed;
+  private boolean closed;
+
+  /**
+   * Creates a parallel gzip stream.
+   *
+   * @param out The stream to write the compressed data to. It gets closed along with this
+   *     stream.
+   * @param executor The executor to compress blocks on.
+   * @param blockSize The number of uncompressed bytes per block.
+   * @param maxInFlight The maximum number of blocks that get compressed at a time.
+   * @param level The deflate compression level (0-9).
+   */
+  public RdsDataParallelGzipOutputStream(OutputStream out, ExecutorService executor,
+      int blockSize, int maxInFlight, int level) {
+    if (blockSize <= 0 || maxInFlight <= 0) {
+      throw new IllegalArgumentException("Block size " + blockSize + " and blocks in flight "
+          + maxInFlight + " must be positive");
+    }
+    this.out = out;
+    this.executor = executor;
+    this.blockSize = blockSize;
+    this.maxInFlight = maxInFlight;
+    this.level = level;
+    this.inFlight = new ArrayDeque<>(maxInFlight);
+    this.block = new byte[blockSize];
+    this.blockLength = 0;
+    this.anyBlock = false;
+    this.compressed = 0;
+    this.closed = false;
+  }
+
+  @Override
+  public void write(int value) throws IOException {
+    write(new byte[] {(byte) value}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    if (closed) {
+      throw new IOException("Stream is closed");
+    }
+    int position = offset;
+    int end = offset + length;
+    while (position < end) {
+      int chunk = Math.min(blockSize - blockLength, end - position);
+      System.arraycopy(bytes, position, block, blockLength, chunk);
+      blockLength += chunk;
+      position += chunk;
+      if (blockLength == blockSize) {
+        submitBlock();
+      }
+    }
+  }
+
+  /**
+   * Writes all completely compressed blocks.
+   *
+   * <p>The current, partially filled block is not submitted, as that would split the data
+   * into smaller blocks than necessary.
+   */
+  @Override
+  public void flush() throws IOException {
+    while (!inFlight.isEmpty() && inFlight.peekFirst().isDone()) {
+      writeOldest();
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      // Without any block, an empty member keeps the output a valid gzip file.
+      if (blockLength > 0 || !anyBlock) {
+        submitBlock();
+      }
+      while (!inFlight.isEmpty()) {
+        writeOldest();
+      }
+    } finally {
+      for (Future<byte[]> future : inFlight) {
+        future.cancel(true);
+      }
+      inFlight.clear();
+      out.close();
+    }
+  }
+
+  /**
+   * Gets the number of compressed bytes written.
+   *
+   * @return the number of bytes written to the underlying stream so far.
+   */
+  public long getCompressed() {
+    return compressed;
+  }
+
+  private void submitBlock() throws IOException {
+    while (inFlight.size() >= maxInFlight) {
+      writeOldest();
+    }
+    byte[] data = block;
+    int length = blockLength;
+    inFlight.addLast(executor.submit(() -> compress(data, length, level)));
+    anyBlock = true;
+    block = new byte[blockSize];
+    blockLength = 0;
+  }
+
+  private void writeOldest() throws IOException {
+    byte[] member;
+    try {
+      member = inFlight.peekFirst().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException e) {
+      throw new IOException("Compressing a block failed", e.getCause());
+    }
+    inFlight.removeFirst();
+    out.write(member);
+    compressed += member.length;
+  }
+
+  /**
+   * Compresses a block into a gzip member.
+   *
+   * @param data The data to compress.
+   * @param length The number of bytes of data to compress.
+   * @param level The deflate compression level (0-9).
+   * @return the gzip member holding the data.
+   * @throws IOException if compressing fails.
+   */
+  static byte[] compress(byte[] data, int length, int level) throws IOException {
+    ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(member, 64 * 1024) {
+      {
+        def.setLevel(level);
+      }
+    }) {
+      gzip.write(data, 0, length);
+    }
+    return member.toByteArray();
+  }
+}
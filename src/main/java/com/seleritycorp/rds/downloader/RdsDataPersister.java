@@ -17,6 +17,8 @@
 package com.seleritycorp.rds.downloader;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 
 import com.seleritycorp.common.base.config.ApplicationConfig;
 import com.seleritycorp.common.base.config.ApplicationPaths;
@@ -27,13 +29,26 @@ import com.seleritycorp.common.base.logging.LogFactory;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.inject.Inject;
 
 /**
@@ -42,24 +57,93 @@ import javax.inject.Inject;
  * <p>To avoid having other processes read half-written files, data first get written to a
  * temporary file. Once this temporary file has been fully written, the file is moved to the final
  * place in one atomic operation.
+ *
+ * <p>Each persisted snapshot gets a generation number, which increases monotonically across
+ * restarts. Once the post-persist stages are done with the snapshot, a manifest describing
+ * generation, size, digest, and section offsets is written next to it (see
+ * {@link #publishManifest(RdsDataSnapshot)}). Consumers can watch the manifest instead of polling
+ * the snapshot's modification time.
+ *
+ * <p>The configured {@link RdsDataDurability} decides whether data and directory get fsynced.
+ * The directory fsync can optionally run in the background, so it does not delay the next run.
+ * The time spent in fsyncs is recorded in the metrics.
+ *
+ * <p>On shared hosts, the write bandwidth to the temporary file can be limited, and written data
+ * can be written back incrementally, so persisting does not cause I/O latency spikes for other
+ * processes.
+ *
+ * <p>The sizes of persisted data, per enum type and in total, are kept in the state directory.
+ * Before writing, the usable space of the temporary and the target file system gets checked
+ * against the previous size plus a margin, and the temporary file can get extended to that size. So
+ * lacking disk space is detected before any data gets fetched.
+ *
+ * <p>Optionally, fetched data gets rewritten into canonical form (see
+ * {@link RdsDataCanonicalizer}) before it is indexed and moved into place.
+ *
+ * <p>The writer's buffer and the canonicalizer's sort memory are reserved from the
+ * {@link RdsDataMemoryBudget}, and shrink if the budget is tight.
  */
 public class RdsDataPersister {
   private static final Log log = LogFactory.getLog(RdsDataPersister.class);
+  private static final long WRITER_BUFFER_SIZE = 32 * 1024 * 1024;
+  private static final long MIN_WRITER_BUFFER_SIZE = 128 * 1024;
+  private static final long MIN_CANONICAL_MEMORY = 1024 * 1024;
 
   private final Path target;
   private final Path targetParent;
   private final Path tmpTarget;
   private final Path tmpTargetParent;
+  private final Path generationFile;
+  private final RdsDataDurability durability;
+  private final boolean asyncDirectorySync;
+  private final RdsDataMetrics metrics;
+  private final RdsDataRateLimiter rateLimiter;
+  private final long syncEveryBytes;
+  private final Path sizesFile;
+  private final int spaceMarginPercent;
+  private final boolean preallocate;
+  private final boolean canonical;
+  private final String canonicalIdentifierField;
+  private final long canonicalMaxMemoryBytes;
+  private final RdsDataMemoryBudget memoryBudget;
+  private final RdsDataRunReports reports;
+  private RdsDataMemoryBudget.Reservation writerReservation;
+  private ExecutorService syncExecutor;
+  private volatile Future<?> pendingDirectorySync;
   private Writer tmpTargetWriter;
+  private RdsDataThrottledOutputStream tmpTargetStream;
+
+  /**
+   * Writer to the temporary target that files can be appended to directly.
+   */
+  private static class SinkWriter extends BufferedWriter implements RdsDataSegmentSink {
+    private final RdsDataSegmentSink sink;
+
+    private SinkWriter(RdsDataThrottledOutputStream out, int size) {
+      super(new OutputStreamWriter(out, StandardCharsets.UTF_8), size);
+      this.sink = out;
+    }
+
+    @Override
+    public void append(Path file) throws IOException {
+      // Buffered chars have to reach the file before the appended bytes.
+      flush();
+      sink.append(file);
+    }
+  }
 
   /**
    * Creates a persister for RDS data.
    *
    * @param appConfig The application config to use.
    * @param appPaths The base paths to write data to.
+   * @param metrics The metrics to record fsync timings to.
+   * @param memoryBudget The budget to reserve buffers from.
+   * @param reports The reports to record the phases of persisting to.
    */
   @Inject
-  public RdsDataPersister(@ApplicationConfig Config appConfig, ApplicationPaths appPaths) {
+  public RdsDataPersister(@ApplicationConfig Config appConfig, ApplicationPaths appPaths,
+      RdsDataMetrics metrics, RdsDataMemoryBudget memoryBudget, RdsDataRunReports reports) {
     Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.persister");
 
     this.target = appPaths.getDataPath().resolve(config.get("target", "rds/rds-data.json"));
@@ -75,18 +159,72 @@ public class RdsDataPersister {
       this.tmpTarget = appPaths.getDataPath().resolve(config.get("tmpTarget"));
     }
     this.tmpTargetParent = this.tmpTarget.getParent();
+    Path statePath = appPaths.getStatePath();
+    this.generationFile = statePath.resolve(
+        config.get("generationFile", "rds-data.generation"));
+    this.durability = RdsDataDurability.valueOf(
+        config.get("durability", "NONE").toUpperCase(Locale.ROOT));
+    this.asyncDirectorySync = config.getBoolean("asyncDirectorySync", false);
+    this.metrics = metrics;
+
+    long maxWriteBytesPerSecond = config.getLong("maxWriteBytesPerSecond", 0);
+    if (maxWriteBytesPerSecond > 0) {
+      this.rateLimiter = new RdsDataRateLimiter(maxWriteBytesPerSecond,
+          config.getLong("writeBurstBytes", 4 * 1024 * 1024));
+    } else {
+      this.rateLimiter = null;
+    }
+    this.syncEveryBytes = config.getLong("syncEveryBytes", 0);
+
+    this.sizesFile = statePath.resolve(
+        config.get("sizesFile", "rds-data.sizes.json"));
+    this.spaceMarginPercent = config.getInt("spaceMarginPercent", 10);
+    this.preallocate = config.getBoolean("preallocate", false);
+
+    this.canonical = config.getBoolean("canonical", false);
+    this.canonicalIdentifierField = config.get("canonicalIdentifierField", "identifier");
+    this.canonicalMaxMemoryBytes = config.getLong("canonicalMaxMemoryBytes", 32 * 1024 * 1024);
+    this.memoryBudget = memoryBudget;
+    this.reports = reports;
+  }
+
+  /**
+   * Gets the file that fetched data gets persisted to.
+   *
+   * @return the effective target file.
+   */
+  public Path getTarget() {
+    return target;
   }
 
   /**
    * Retrieves the writer object to the temp file. Every time it's called, it
    * returns the new writer i.e it wipes out the temp file and create new one
    *
+   * <p>Before creating the writer, the usable disk space is checked against the expected size
+   * of the data.
+   *
+   * <p>The writer is a {@link RdsDataSegmentSink}, so already fetched files can be appended
+   * without copying them through the JVM.
+   *
    * @return Writer object
+   * @throws RdsDataInsufficientSpaceException if the disk space does not suffice for the expected
+   *     size of the data.
    * @throws IOException while creating the writer object
    */
   public Writer getCleanWriter() throws IOException {
     if (tmpTargetWriter != null) {
-      tmpTargetWriter.close();
+      try {
+        tmpTargetWriter.close();
+      } catch (IOException e) {
+        // The previous data gets truncated anyway. Its channel may already be closed, e.g.: when
+        // an exceeded deadline interrupted the previous run while it was writing.
+        log.warn("Ignoring failure to close previous writer for " + tmpTarget, e);
+      } finally {
+        tmpTargetWriter = null;
+        tmpTargetStream = null;
+        releaseWriterReservation();
+      }
     }
     if (!Files.isDirectory(tmpTargetParent)) {
       try {
@@ -95,48 +233,379 @@ public class RdsDataPersister {
         throw new IOException("Failed to create temporary target directory " + tmpTargetParent, e);
       }
     }
-    tmpTargetWriter = new BufferedWriter(
-            new OutputStreamWriter(
-                    Files.newOutputStream(tmpTarget),
-                    StandardCharsets.UTF_8),
-            16 * 1024 * 1024);
+    long expectedSize = getExpectedSize();
+    checkUsableSpace(expectedSize);
+    // Reserving before opening the file keeps a failed reservation from leaving a stale file.
+    writerReservation = memoryBudget.reserve("persister writer buffer", WRITER_BUFFER_SIZE,
+        MIN_WRITER_BUFFER_SIZE);
+    RdsDataThrottledOutputStream out;
+    try {
+      out = openTmpTargetStream(expectedSize);
+    } catch (IOException | RuntimeException e) {
+      // Otherwise each failed run would permanently shrink the budget.
+      releaseWriterReservation();
+      throw e;
+    }
+    // The buffer holds chars, which take two bytes each.
+    tmpTargetWriter = new SinkWriter(out, (int) (writerReservation.getBytes() / 2));
     return tmpTargetWriter;
   }
 
+  private RdsDataThrottledOutputStream openTmpTargetStream(long expectedSize) throws IOException {
+    RdsDataThrottledOutputStream out = new RdsDataThrottledOutputStream(FileChannel.open(
+        tmpTarget, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING), rateLimiter, syncEveryBytes);
+    if (rateLimiter != null || syncEveryBytes > 0 || preallocate) {
+      tmpTargetStream = out;
+      if (preallocate && expectedSize > 0) {
+        try {
+          tmpTargetStream.preallocate(expectedSize);
+        } catch (IOException e) {
+          tmpTargetStream.close();
+          tmpTargetStream = null;
+          throw new RdsDataInsufficientSpaceException("Failed to preallocate " + expectedSize
+              + " bytes for " + tmpTarget, e);
+        }
+      }
+    } else {
+      // Without limiter, syncing, and preallocation, the stream just writes through.
+      tmpTargetStream = null;
+    }
+    return out;
+  }
+
   /**
    * Persist data fetched from RDS.
    *
+   * <p>The manifest of the persisted snapshot does not get written yet. See
+   * {@link #publishManifest(RdsDataSnapshot)}.
+   *
+   * @return the persisted snapshot.
    * @throws IOException for errors while persisting.
    */
-  public void persist() throws Exception {
+  public RdsDataSnapshot persist() throws Exception {
     log.info("Persisting RDS data to " + tmpTarget);
     if (this.tmpTargetWriter == null) {
       throw new Exception(
               "Writer is not initialized - Fetch the data into the writer before calling persist!");
     }
-    this.tmpTargetWriter.flush();
-    this.tmpTargetWriter.close();
+    RdsDataRunReport report = reports.getCurrent();
+    try (RdsDataRunReport.Phase phase = report.begin("flush")) {
+      this.tmpTargetWriter.flush();
+      this.tmpTargetWriter.close();
+      releaseWriterReservation();
+      if (tmpTargetStream != null) {
+        long throttledNanos = tmpTargetStream.getThrottledNanos();
+        metrics.record("persister.throttleWait", throttledNanos);
+        log.info("Writing " + tmpTargetStream.getWritten() + " bytes got throttled for "
+            + throttledNanos / 1000000 + " ms");
+      }
+      if (Files.isRegularFile(tmpTarget)) {
+        phase.addBytes(Files.size(tmpTarget));
+      }
+    }
     if (Files.isRegularFile(tmpTarget) && Files.size(tmpTarget) == 0) {
       throw new Exception("Downloaded RDS data is empty!");
     }
-    // At this point, the Rds data has been persistent.
-    // Now moving it to the target path, atomically.
-    log.info("Moving RDS data to " + target);
+    if (canonical) {
+      try (RdsDataRunReport.Phase phase = report.begin("canonicalize")) {
+        canonicalize(phase);
+      }
+    }
+
+    // Indexing validates that the data is complete, and the digest lets consumers verify
+    // what they read.
+    MessageDigest digest = RdsDataFiles.newSha256();
+    RdsDataSectionIndex index;
+    try (RdsDataRunReport.Phase phase = report.begin("validate");
+        InputStream in = new DigestInputStream(Files.newInputStream(tmpTarget), digest)) {
+      index = RdsDataSectionIndex.build(in);
+      phase.addBytes(index.getSize());
+    } catch (IOException e) {
+      throw new IOException("Failed to index temporary target " + tmpTarget, e);
+    }
+    String sha256 = RdsDataFiles.toHex(digest.digest());
+    if (durability != RdsDataDurability.NONE) {
+      try (RdsDataRunReport.Phase phase = report.begin("fsync")) {
+        long start = System.nanoTime();
+        RdsDataFiles.force(tmpTarget);
+        metrics.record("persister.fsyncData", System.nanoTime() - start);
+        phase.addBytes(index.getSize());
+      }
+    }
+
+    RdsDataSnapshot snapshot;
+    try (RdsDataRunReport.Phase phase = report.begin("move")) {
+      long generation = nextGeneration();
+
+      // At this point, the Rds data has been persistent.
+      // Now moving it to the target path, atomically.
+      log.info("Moving RDS data to " + target);
+
+      if (!Files.isDirectory(targetParent)) {
+        try {
+          Files.createDirectories(targetParent);
+        } catch (IOException e) {
+          throw new IOException("Failed to create target directory " + targetParent, e);
+        }
+      }
 
-    if (!Files.isDirectory(targetParent)) {
       try {
-        Files.createDirectories(targetParent);
+        Files.move(tmpTarget, target, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
       } catch (IOException e) {
-        throw new IOException("Failed to create target directory " + targetParent, e);
+        throw new IOException("Failed to move temporary target " + tmpTarget
+            + " to effective target " + target);
       }
+      snapshot = new RdsDataSnapshot(target, index.getSize(), generation,
+          Files.getLastModifiedTime(target).toMillis(), sha256, index);
+      phase.addBytes(index.getSize());
     }
+    writeSizes(index);
+    return snapshot;
+  }
 
+  /**
+   * Publishes the manifest of a persisted snapshot.
+   *
+   * <p>Consumers watching the manifest take it as sign that the snapshot's generation is fully
+   * published. So this has to happen only after all post-persist stages are done with the
+   * snapshot.
+   *
+   * @param snapshot The persisted snapshot.
+   * @throws IOException if writing the manifest fails.
+   */
+  public void publishManifest(RdsDataSnapshot snapshot) throws IOException {
+    RdsDataManifest.write(snapshot, durability != RdsDataDurability.NONE);
+
+    if (durability == RdsDataDurability.DATA_AND_DIRECTORY) {
+      // The directory holds both the renamed target and the renamed manifest.
+      if (asyncDirectorySync) {
+        flushPendingSyncs();
+        pendingDirectorySync = getSyncExecutor().submit(() -> syncDirectory(targetParent));
+      } else {
+        syncDirectory(targetParent);
+      }
+    }
+  }
+
+  private void canonicalize(RdsDataRunReport.Phase phase) throws IOException {
+    Path canonicalTarget = tmpTargetParent.resolve(tmpTarget.getFileName() + ".canonical");
+    log.info("Rewriting RDS data to canonical form in " + canonicalTarget);
+    long start = System.nanoTime();
+    RdsDataCanonicalizer canonicalizer;
+    try (RdsDataMemoryBudget.Reservation reservation = memoryBudget.reserve(
+        "canonicalizer sort memory", canonicalMaxMemoryBytes,
+        Math.min(canonicalMaxMemoryBytes, MIN_CANONICAL_MEMORY))) {
+      canonicalizer = new RdsDataCanonicalizer(canonicalIdentifierField, reservation.getBytes());
+      canonicalize(canonicalizer, canonicalTarget);
+    }
+    long nanos = System.nanoTime() - start;
+    metrics.record("persister.canonicalize", nanos);
+    metrics.increment("persister.canonicalSpills", canonicalizer.getSpills());
+    metrics.increment("persister.canonicalMerges", canonicalizer.getMerges());
+    phase.addRecords(canonicalizer.getRecords());
+    phase.addBytes(Files.size(tmpTarget));
+    log.info("Canonicalized RDS data with " + canonicalizer.getSpills() + " spilled runs and "
+        + canonicalizer.getMerges() + " intermediate merges in " + nanos / 1000000 + " ms");
+  }
+
+  private void canonicalize(RdsDataCanonicalizer canonicalizer, Path canonicalTarget)
+      throws IOException {
+    OutputStream out;
+    if (rateLimiter != null || syncEveryBytes > 0) {
+      out = new RdsDataThrottledOutputStream(FileChannel.open(canonicalTarget,
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING), rateLimiter, syncEveryBytes);
+    } else {
+      out = Files.newOutputStream(canonicalTarget);
+    }
+    // Chars take two bytes each.
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8),
+        RdsDataMemoryBudget.UNRESERVED_BUFFER_BYTES / 2)) {
+      canonicalizer.canonicalize(tmpTarget, writer, tmpTargetParent);
+    } catch (IOException e) {
+      Files.deleteIfExists(canonicalTarget);
+      throw new IOException("Failed to canonicalize temporary target " + tmpTarget, e);
+    }
+    Files.move(canonicalTarget, tmpTarget, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Discards the temporary files of an unfinished run.
+   *
+   * <p>This must only be called while no run is in progress. E.g.: on start, to remove what a
+   * killed process left behind, or on stop, after the last run ended.
+   */
+  public void discardTemporaryFiles() {
+    if (tmpTargetWriter != null) {
+      try {
+        tmpTargetWriter.close();
+      } catch (IOException e) {
+        log.warn("Failed to close writer for temporary target " + tmpTarget, e);
+      }
+      tmpTargetWriter = null;
+      tmpTargetStream = null;
+      releaseWriterReservation();
+    }
+    Path canonicalTarget = tmpTargetParent.resolve(tmpTarget.getFileName() + ".canonical");
+    for (Path file : new Path[] { tmpTarget, canonicalTarget }) {
+      try {
+        if (Files.deleteIfExists(file)) {
+          log.info("Discarded temporary file " + file);
+        }
+      } catch (IOException e) {
+        log.warn("Failed to discard temporary file " + file, e);
+      }
+    }
+  }
+
+  private void releaseWriterReservation() {
+    if (writerReservation != null) {
+      writerReservation.close();
+      writerReservation = null;
+    }
+  }
+
+  /**
+   * Gets the expected size of the next data.
+   *
+   * @return the size of the previously persisted data, or 0 if it is unknown.
+   */
+  public long getExpectedSize() {
+    try {
+      String content = new String(Files.readAllBytes(sizesFile), StandardCharsets.UTF_8);
+      return new JsonParser().parse(content).getAsJsonObject().get("total").getAsLong();
+    } catch (NoSuchFileException e) {
+      // No sizes recorded yet, so we fall back to the published data below.
+    } catch (IOException | JsonParseException | IllegalStateException | NullPointerException
+        | UnsupportedOperationException e) {
+      log.warn("Ignoring unreadable sizes file " + sizesFile, e);
+    }
     try {
-      Files.move(tmpTarget, target, StandardCopyOption.ATOMIC_MOVE,
-              StandardCopyOption.REPLACE_EXISTING);
+      return Files.isRegularFile(target) ? Files.size(target) : 0;
     } catch (IOException e) {
-      throw new IOException(
-              "Failed to move temporary target " + tmpTarget + " to effective target " + target);
+      return 0;
+    }
+  }
+
+  private void writeSizes(RdsDataSectionIndex index) {
+    JsonObject sections = new JsonObject();
+    for (String enumType : index.getEnumTypes()) {
+      sections.addProperty(enumType, index.getSection(enumType).getLength());
+    }
+    JsonObject sizes = new JsonObject();
+    sizes.addProperty("total", index.getSize());
+    sizes.add("sections", sections);
+    try {
+      RdsDataFiles.writeAtomically(sizesFile, sizes.toString().getBytes(StandardCharsets.UTF_8),
+          durability != RdsDataDurability.NONE);
+    } catch (IOException e) {
+      // The sizes only help to detect lacking disk space early, so failing to record them
+      // must not fail persisting.
+      log.warn("Failed to record sizes to " + sizesFile, e);
+    }
+  }
+
+  private void checkUsableSpace(long expectedSize) throws IOException {
+    if (expectedSize <= 0) {
+      return;
+    }
+    long required = expectedSize + expectedSize / 100 * spaceMarginPercent;
+    FileStore tmpStore = Files.getFileStore(tmpTargetParent);
+    long tmpUsable = tmpStore.getUsableSpace();
+    if (Files.isRegularFile(tmpTarget)) {
+      // The stale temporary file gets truncated, so its space is available too.
+      tmpUsable += Files.size(tmpTarget);
+    }
+    checkUsableSpace(tmpTargetParent, tmpUsable, required);
+    if (Files.isDirectory(targetParent)) {
+      FileStore targetStore = Files.getFileStore(targetParent);
+      if (!targetStore.equals(tmpStore)) {
+        checkUsableSpace(targetParent, targetStore.getUsableSpace(), required);
+      }
+    }
+    log.info("Disk space suffices for expected " + expectedSize + " bytes of data");
+  }
+
+  private void checkUsableSpace(Path directory, long usable, long required)
+      throws RdsDataInsufficientSpaceException {
+    if (usable < required) {
+      throw new RdsDataInsufficientSpaceException("Only " + usable + " bytes usable in "
+          + directory + ", but " + required + " bytes are required");
+    }
+  }
+
+  private void syncDirectory(Path directory) {
+    long start = System.nanoTime();
+    try {
+      RdsDataFiles.forceDirectory(directory);
+      metrics.record("persister.fsyncDirectory", System.nanoTime() - start);
+    } catch (IOException e) {
+      metrics.increment("persister.fsyncDirectoryFailures", 1);
+      log.warn("Failed to fsync directory " + directory, e);
+    }
+  }
+
+  private synchronized ExecutorService getSyncExecutor() {
+    if (syncExecutor == null) {
+      syncExecutor = Executors.newSingleThreadExecutor(
+          RdsDataThreads.newDaemonThreadFactory("RdsDataPersister-sync"));
+    }
+    return syncExecutor;
+  }
+
+  /**
+   * Waits for a directory fsync that is still running in the background.
+   */
+  public void flushPendingSyncs() {
+    Future<?> pending = pendingDirectorySync;
+    if (pending != null) {
+      long start = System.nanoTime();
+      try {
+        pending.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        log.warn("Background directory fsync failed", e.getCause());
+      }
+      metrics.record("persister.fsyncDirectoryWait", System.nanoTime() - start);
+      pendingDirectorySync = null;
+    }
+  }
+
+  /**
+   * Allocates the next generation number.
+   *
+   * <p>The last allocated generation is kept in the state directory. As the state directory might
+   * have been wiped, the generation of the currently published manifest is taken into account as
+   * well, so generations never go backwards for consumers.
+   *
+   * @return the allocated generation.
+   * @throws IOException if the generation cannot be stored.
+   */
+  private long nextGeneration() throws IOException {
+    long last = 0;
+    try {
+      String content = new String(Files.readAllBytes(generationFile), StandardCharsets.UTF_8);
+      last = Long.parseLong(content.trim());
+    } catch (NoSuchFileException e) {
+      // No generation allocated yet, so we start from scratch.
+    } catch (IOException | NumberFormatException e) {
+      log.warn("Ignoring unreadable generation file " + generationFile, e);
+    }
+    if (Files.isRegularFile(RdsDataManifest.getPath(target))) {
+      try {
+        last = Math.max(last, RdsDataManifest.read(target).getGeneration());
+      } catch (IOException e) {
+        log.warn("Ignoring unreadable manifest for " + target, e);
+      }
     }
+    long generation = last + 1;
+    RdsDataFiles.writeAtomically(generationFile,
+        Long.toString(generation).getBytes(StandardCharsets.UTF_8),
+        durability != RdsDataDurability.NONE);
+    return generation;
   }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+
+/**
+ * Runs the post-persist stages for freshly persisted snapshots.
+ *
+ * <p>Reloaded configs get handed on to all stages that are reconfigurable.
+ */
+public class RdsDataPublisher implements RdsDataReconfigurable {
+  private static final Log log = LogFactory.getLog(RdsDataPublisher.class);
+
+  private final List<RdsDataSnapshotListener> listeners;
+  private final RdsDataRunReports reports;
+
+  /**
+   * Creates a publisher for persisted snapshots.
+   *
+   * @param cache The in-process cache to refresh.
+   * @param server The server for local readers.
+   * @param keyValue The exporter into key-value stores.
+   * @param indexer The builder of secondary indexes.
+   * @param dictionary The exporter into dictionary-encoded snapshots.
+   * @param compressor The publisher of compressed snapshots.
+   * @param replicator The replicator to further directories.
+   * @param sharedMemory The publisher to shared memory for co-located readers.
+   * @param freshness The tracker of the published data's age.
+   * @param manifest The publisher of the snapshot's manifest.
+   * @param notifier The notifier for consumers waiting on new generations.
+   * @param reports The reports to record each stage as phase to.
+   */
+  @Inject
+  public RdsDataPublisher(RdsDataSnapshotCache cache, RdsDataServer server,
+      RdsDataKeyValueExporter keyValue, RdsDataIndexer indexer,
+      RdsDataDictionaryExporter dictionary, RdsDataCompressor compressor,
+      RdsDataReplicator replicator, RdsDataSharedMemoryPublisher sharedMemory,
+      RdsDataFreshness freshness, RdsDataManifestPublisher manifest,
+      RdsDataGenerationNotifier notifier, RdsDataRunReports reports) {
+    // Consumers learn about new generations from the manifest and the notifier, so these come
+    // last, after all stages that update files or state for the snapshot.
+    this(Arrays.<RdsDataSnapshotListener>asList(cache, server, keyValue, indexer, dictionary,
+        compressor, replicator, sharedMemory, freshness, manifest, notifier), reports);
+  }
+
+  /**
+   * Creates a publisher for persisted snapshots.
+   *
+   * @param listeners The stages to run for each snapshot, in order.
+   * @param reports The reports to record each stage as phase to.
+   */
+  public RdsDataPublisher(List<RdsDataSnapshotListener> listeners, RdsDataRunReports reports) {
+    this.listeners = Collections.unmodifiableList(new ArrayList<>(listeners));
+    this.reports = reports;
+  }
+
+  /**
+   * Starts the background services of all enabled stages.
+   *
+   * <p>A stage failing to start does not keep other stages from starting.
+   */
+  public void start() {
+    for (RdsDataSnapshotListener listener : listeners) {
+      if (listener.isEnabled()) {
+        try {
+          listener.start();
+        } catch (Exception e) {
+          log.error("Failed to start post-persist stage " + listener.getName(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops the background services of all enabled stages.
+   */
+  public void stop() {
+    for (RdsDataSnapshotListener listener : listeners) {
+      if (listener.isEnabled()) {
+        listener.stop();
+      }
+    }
+  }
+
+  @Override
+  public void validate(Config appConfig) {
+    for (RdsDataSnapshotListener listener : listeners) {
+      if (listener instanceof RdsDataReconfigurable) {
+        ((RdsDataReconfigurable) listener).validate(appConfig);
+      }
+    }
+  }
+
+  @Override
+  public void reconfigure(Config appConfig) {
+    for (RdsDataSnapshotListener listener : listeners) {
+      if (listener instanceof RdsDataReconfigurable) {
+        ((RdsDataReconfigurable) listener).reconfigure(appConfig);
+      }
+    }
+  }
+
+  /**
+   * Runs all enabled post-persist stages for a snapshot.
+   *
+   * <p>A failing stage does not keep later stages from running.
+   *
+   * @param snapshot The snapshot that has just been persisted.
+   * @return descriptions of the failed stages. If all stages succeeded, the empty list.
+   */
+  public List<String> publish(RdsDataSnapshot snapshot) {
+    List<String> failures = new ArrayList<>();
+    RdsDataRunReport report = reports.getCurrent();
+    for (RdsDataSnapshotListener listener : listeners) {
+      if (listener.isEnabled()) {
+        try (RdsDataRunReport.Phase phase = report.begin("publish:" + listener.getName())) {
+          try {
+            listener.onSnapshot(snapshot);
+          } catch (Exception e) {
+            String msg = "Post-persist stage " + listener.getName() + " failed for " + snapshot;
+            log.error(msg, e);
+            failures.add(listener.getName() + ": " + e.toString());
+            phase.addError(e);
+          }
+        }
+      }
+    }
+    return failures;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket limiting the rate of an operation.
+ *
+ * <p>Tokens accumulate at a fixed rate up to the burst size. Acquiring more tokens than are
+ * available puts the bucket in debt and blocks until the debt has been paid off. So single
+ * acquisitions may exceed the burst size, and the long-term rate never exceeds the configured
+ * rate.
+ */
+public class RdsDataRateLimiter {
+  /**
+   * Blocks the calling thread.
+   */
+  interface Sleeper {
+    void sleep(long nanos) throws InterruptedException;
+  }
+
+  private final double tokensPerNano;
+  private final long burst;
+  private final LongSupplier nanoClock;
+  private final Sleeper sleeper;
+  private double tokens;
+  private long lastRefill;
+
+  /**
+   * Creates a rate limiter.
+   *
+   * @param tokensPerSecond The rate at which tokens accumulate.
+   * @param burst The maximum number of tokens that can accumulate.
+   */
+  public RdsDataRateLimiter(long tokensPerSecond, long burst) {
+    this(tokensPerSecond, burst, System::nanoTime,
+        nanos -> TimeUnit.NANOSECONDS.sleep(nanos));
+  }
+
+  RdsDataRateLimiter(long tokensPerSecond, long burst, LongSupplier nanoClock, Sleeper sleeper) {
+    if (tokensPerSecond <= 0) {
+      throw new IllegalArgumentException("Rate has to be positive, but is " + tokensPerSecond);
+    }
+    if (burst <= 0) {
+      throw new IllegalArgumentException("Burst has to be positive, but is " + burst);
+    }
+    this.tokensPerNano = tokensPerSecond / 1e9;
+    this.burst = burst;
+    this.nanoClock = nanoClock;
+    this.sleeper = sleeper;
+    this.tokens = burst;
+    this.lastRefill = nanoClock.getAsLong();
+  }
+
+  private void refill() {
+    long now = nanoClock.getAsLong();
+    tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+    lastRefill = now;
+  }
+
+  /**
+   * Takes tokens from the bucket, blocking while the bucket is in debt.
+   *
+   * @param count The number of tokens to take.
+   * @return the number of nanoseconds the caller got blocked.
+   * @throws InterruptedIOException if the thread got interrupted while blocking.
+   */
+  public synchronized long acquire(long count) throws InterruptedIOException {
+    refill();
+    tokens -= count;
+    if (tokens >= 0) {
+      return 0;
+    }
+    long waitNanos = (long) Math.ceil(-tokens / tokensPerNano);
+    try {
+      sleeper.sleep(waitNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for rate limit");
+    }
+    refill();
+    return waitNanos;
+  }
+}
@@ -0,0 +1,827 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streaming reader for published snapshots, for consumers in other processes.
+ *
+ * <p>The reader parses the snapshot format (version 2, with {@code meta} and {@code data}) with
+ * its own byte level parser, so no DOM gets built. Records are handed out per enum type either
+ * through a pull API ({@link #open(String)}) or through callbacks
+ * ({@link #forEach(Collection, RecordHandler)}). Each section hands out a single, recycled
+ * {@link RdsDataRecord}.
+ *
+ * <p>If the snapshot's manifest has section offsets, the reader seeks right to the wanted
+ * sections, and unwanted sections do not get read at all. Otherwise, unwanted sections get
+ * skipped by a byte scan that does not materialize any values. Read buffers are pooled across
+ * readers.
+ *
+ * <p>Usage:
+ *
+ * <pre>
+ * try (RdsDataReader reader = new RdsDataReader(target)) {
+ *   reader.forEach("PUBLIC_COMPANY", record -&gt; {
+ *     index.put(record.getIdentifier(), record.get("name"));
+ *   });
+ * }
+ * </pre>
+ *
+ * <p>Readers are not thread-safe.
+ */
+public class RdsDataReader implements Closeable {
+  static final String FORMAT = "RdsData";
+  static final String VERSION = "2";
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final BlockingQueue<ByteBuffer> BUFFER_POOL = new ArrayBlockingQueue<>(16);
+
+  private final Path file;
+  private final String identifierField;
+  private final FileChannel channel;
+  private final long size;
+  private final RdsDataRecord.Names names;
+  private final RdsDataRecord scratch;
+  private final Map<String, String> meta;
+  private final long dataOffset;
+  private Map<String, RdsDataSectionIndex.Section> sections;
+  private boolean sectionsFromManifest;
+
+  /**
+   * Handles records of a section.
+   */
+  public interface RecordHandler {
+    /**
+     * Handles a record.
+     *
+     * @param record The record. It is only valid during this call.
+     * @throws IOException if handling fails. This aborts reading.
+     */
+    void onRecord(RdsDataRecord record) throws IOException;
+  }
+
+  /**
+   * Pulls the records of a single section.
+   */
+  public final class Cursor implements Closeable {
+    private static final int START = 0;
+    private static final int INSIDE = 1;
+    private static final int DONE = 2;
+
+    private final Input in;
+    private final boolean ownsInput;
+    private final RdsDataRecord record;
+    private int state;
+    private boolean objectSection;
+
+    private Cursor(String enumType, Input in, boolean ownsInput) {
+      this.in = in;
+      this.ownsInput = ownsInput;
+      this.record = new RdsDataRecord(enumType, names);
+      this.state = START;
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return true, if the cursor moved to the next record. False, if the section has no
+     *     further records.
+     * @throws IOException if reading fails or the section is malformed.
+     */
+    public boolean next() throws IOException {
+      int chr;
+      if (state == DONE) {
+        return false;
+      } else if (state == START) {
+        chr = in.readSignificant();
+        if (chr != '{' && chr != '[') {
+          throw in.malformed("Expected object or array for enum type " + record.getEnumType());
+        }
+        objectSection = chr == '{';
+        state = INSIDE;
+        if (in.peekSignificant() == (objectSection ? '}' : ']')) {
+          in.read();
+          state = DONE;
+          return false;
+        }
+      } else {
+        chr = in.readSignificant();
+        if (chr == (objectSection ? '}' : ']')) {
+          state = DONE;
+          return false;
+        } else if (chr != ',') {
+          throw in.malformed("Expected ',' between records");
+        }
+      }
+
+      record.clear();
+      if (objectSection) {
+        in.expect('"');
+        int start = record.getLength();
+        readString(in, record);
+        record.setIdentifier(start, record.getLength() - start);
+        in.expect(':');
+        readRecord(in, record, false);
+      } else if (readRecord(in, record, true)) {
+        record.setIdentifierFromField(identifierField);
+      }
+      return true;
+    }
+
+    /**
+     * Gets the current record.
+     *
+     * @return the current record. It is recycled by the next call to {@link #next()}.
+     */
+    public RdsDataRecord getRecord() {
+      return record;
+    }
+
+    @Override
+    public void close() {
+      if (ownsInput) {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Bounded, buffered input from the snapshot file.
+   */
+  private static final class Input implements Closeable {
+    private final FileChannel channel;
+    private final long end;
+    private ByteBuffer buffer;
+    private byte[] bytes;
+    private long bufferOffset;
+    private int pos;
+    private int limit;
+
+    private Input(FileChannel channel, long offset, long end) {
+      this.channel = channel;
+      this.end = end;
+      this.buffer = acquireBuffer();
+      this.bytes = buffer.array();
+      this.bufferOffset = offset;
+      this.pos = 0;
+      this.limit = 0;
+    }
+
+    private long position() {
+      return bufferOffset + pos;
+    }
+
+    private boolean fill() throws IOException {
+      bufferOffset += limit;
+      pos = 0;
+      limit = 0;
+      long remaining = end - bufferOffset;
+      if (remaining <= 0) {
+        return false;
+      }
+      buffer.clear();
+      buffer.limit((int) Math.min(bytes.length, remaining));
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, bufferOffset + buffer.position()) < 0) {
+          break;
+        }
+      }
+      limit = buffer.position();
+      return limit > 0;
+    }
+
+    private int peek() throws IOException {
+      if (pos == limit && !fill()) {
+        return -1;
+      }
+      return bytes[pos] & 0xff;
+    }
+
+    private int read() throws IOException {
+      if (pos == limit && !fill()) {
+        return -1;
+      }
+      return bytes[pos++] & 0xff;
+    }
+
+    private int peekSignificant() throws IOException {
+      while (true) {
+        int chr = peek();
+        if (chr != ' ' && chr != '\n' && chr != '\r' && chr != '\t') {
+          return chr;
+        }
+        pos++;
+      }
+    }
+
+    private int readSignificant() throws IOException {
+      int chr = peekSignificant();
+      if (chr >= 0) {
+        pos++;
+      }
+      return chr;
+    }
+
+    private void expect(char expected) throws IOException {
+      int chr = readSignificant();
+      if (chr != expected) {
+        throw malformed("Expected '" + expected + "', but found "
+            + ((chr < 0) ? "end of input" : "'" + (char) chr + "'"));
+      }
+    }
+
+    private IOException malformed(String message) {
+      return new IOException("Malformed RDS data at offset " + position() + ": " + message);
+    }
+
+    @Override
+    public void close() {
+      if (buffer != null) {
+        releaseBuffer(buffer);
+        buffer = null;
+        bytes = null;
+      }
+    }
+  }
+
+  /**
+   * Opens a published snapshot for reading.
+   *
+   * <p>Records of array sections get identified by their {@code identifier} field.
+   *
+   * @param file The snapshot file to read.
+   * @throws IOException if the file cannot be read or is not a supported snapshot.
+   */
+  public RdsDataReader(Path file) throws IOException {
+    this(file, "identifier");
+  }
+
+  /**
+   * Opens a published snapshot for reading.
+   *
+   * @param file The snapshot file to read.
+   * @param identifierField For enum types whose data is an array of records, the record field
+   *     holding the identifier.
+   * @throws IOException if the file cannot be read or is not a supported snapshot.
+   */
+  public RdsDataReader(Path file, String identifierField) throws IOException {
+    this.file = file;
+    this.identifierField = identifierField;
+    this.names = new RdsDataRecord.Names();
+    this.scratch = new RdsDataRecord("", names);
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      this.size = channel.size();
+      Map<String, String> meta = null;
+      long dataOffset = -1;
+      try (Input in = new Input(channel, 0, size)) {
+        in.expect('{');
+        boolean more = in.peekSignificant() != '}';
+        while (more && (meta == null || dataOffset < 0)) {
+          in.expect('"');
+          String name = readName(in);
+          in.expect(':');
+          if ("meta".equals(name)) {
+            meta = readMeta(in);
+          } else {
+            if ("data".equals(name)) {
+              in.peekSignificant();
+              dataOffset = in.position();
+            }
+            skipValue(in);
+          }
+          more = in.readSignificant() == ',';
+        }
+      }
+      if (meta == null || !FORMAT.equals(meta.get("format"))
+          || !VERSION.equals(meta.get("version"))) {
+        throw new IOException("Unsupported RDS data format in " + file + ": " + meta);
+      }
+      this.meta = Collections.unmodifiableMap(meta);
+      this.dataOffset = dataOffset;
+      this.sections = readManifestSections();
+      this.sectionsFromManifest = sections != null;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private Map<String, RdsDataSectionIndex.Section> readManifestSections() {
+    if (!Files.isRegularFile(RdsDataManifest.getPath(file))) {
+      return null;
+    }
+    try {
+      RdsDataSnapshot snapshot = RdsDataManifest.read(file);
+      RdsDataSectionIndex index = snapshot.getIndex();
+      // A manifest of another generation would point to wrong offsets. Each section gets
+      // checked again before seeking, but a size mismatch rules out the manifest right away.
+      if (index == null || snapshot.getSize() != size) {
+        return null;
+      }
+      Map<String, RdsDataSectionIndex.Section> ret = new LinkedHashMap<>();
+      for (String enumType : index.getEnumTypes()) {
+        ret.put(enumType, index.getSection(enumType));
+      }
+      return ret;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private Map<String, String> readMeta(Input in) throws IOException {
+    scratch.clear();
+    readRecord(in, scratch, false);
+    Map<String, String> ret = new LinkedHashMap<>();
+    for (int i = 0; i < scratch.getFieldCount(); i++) {
+      ret.put(scratch.getFieldName(i), scratch.getString(i));
+    }
+    return ret;
+  }
+
+  /**
+   * Gets the snapshot's meta data.
+   *
+   * @return the snapshot's meta data. Nested values are given as JSON text.
+   */
+  public Map<String, String> getMeta() {
+    return meta;
+  }
+
+  /**
+   * Gets the enum types of the snapshot.
+   *
+   * @return the snapshot's enum types, in the order they appear in the snapshot.
+   * @throws IOException if the snapshot cannot be read or is malformed.
+   */
+  public Set<String> getEnumTypes() throws IOException {
+    if (sections == null) {
+      scan(Collections.<String>emptySet(), null);
+    }
+    return Collections.unmodifiableSet(sections.keySet());
+  }
+
+  /**
+   * Opens a cursor on the records of an enum type.
+   *
+   * @param enumType The enum type to read.
+   * @return a cursor on the enum type's records, or null if the snapshot does not have the enum
+   *     type. The cursor has to be closed after use.
+   * @throws IOException if the snapshot cannot be read or is malformed.
+   */
+  public Cursor open(String enumType) throws IOException {
+    if (sections == null) {
+      scan(Collections.<String>emptySet(), null);
+    }
+    RdsDataSectionIndex.Section section = sections.get(enumType);
+    if (section != null && sectionsFromManifest && !isSectionStart(enumType, section)) {
+      // The manifest does not match the snapshot, so we fall back to scanning.
+      scan(Collections.<String>emptySet(), null);
+      section = sections.get(enumType);
+    }
+    if (section == null) {
+      return null;
+    }
+    return new Cursor(enumType, new Input(channel, section.getOffset(),
+        section.getOffset() + section.getLength()), true);
+  }
+
+  /**
+   * Feeds the records of an enum type to a handler.
+   *
+   * @param enumType The enum type to read.
+   * @param handler The handler to feed the records to.
+   * @throws IOException if the snapshot cannot be read or is malformed, or the handler failed.
+   */
+  public void forEach(String enumType, RecordHandler handler) throws IOException {
+    forEach(Collections.singleton(enumType), handler);
+  }
+
+  /**
+   * Feeds the records of enum types to a handler.
+   *
+   * <p>Sections are read in the order they appear in the snapshot. Enum types that the snapshot
+   * does not have are ignored.
+   *
+   * @param enumTypes The enum types to read.
+   * @param handler The handler to feed the records to.
+   * @throws IOException if the snapshot cannot be read or is malformed, or the handler failed.
+   */
+  public void forEach(Collection<String> enumTypes, RecordHandler handler) throws IOException {
+    if (sections == null) {
+      // A single pass reads wanted sections and skips the others.
+      scan(enumTypes, handler);
+      return;
+    }
+    List<String> wanted = new ArrayList<>();
+    for (String enumType : sections.keySet()) {
+      if (enumTypes.contains(enumType)) {
+        wanted.add(enumType);
+      }
+    }
+    for (String enumType : wanted) {
+      try (Cursor cursor = open(enumType)) {
+        while (cursor != null && cursor.next()) {
+          handler.onRecord(cursor.getRecord());
+        }
+      }
+    }
+  }
+
+  /**
+   * Passes once over the data, reading wanted sections and recording the offsets of all.
+   */
+  private void scan(Collection<String> enumTypes, RecordHandler handler) throws IOException {
+    Map<String, RdsDataSectionIndex.Section> found = new LinkedHashMap<>();
+    if (dataOffset >= 0) {
+      try (Input in = new Input(channel, dataOffset, size)) {
+        in.expect('{');
+        boolean more = in.peekSignificant() != '}';
+        while (more) {
+          in.expect('"');
+          String enumType = readName(in);
+          in.expect(':');
+          in.peekSignificant();
+          long start = in.position();
+          if (enumTypes.contains(enumType)) {
+            Cursor cursor = new Cursor(enumType, in, false);
+            while (cursor.next()) {
+              handler.onRecord(cursor.getRecord());
+            }
+          } else {
+            skipValue(in);
+          }
+          found.put(enumType, new RdsDataSectionIndex.Section(start, in.position() - start));
+          more = in.readSignificant() == ',';
+        }
+      }
+    }
+    sections = found;
+    sectionsFromManifest = false;
+  }
+
+  /**
+   * Checks whether a section from the manifest starts right after its enum type's key.
+   */
+  private boolean isSectionStart(String enumType, RdsDataSectionIndex.Section section)
+      throws IOException {
+    byte[] key = ('"' + enumType + '"').getBytes(StandardCharsets.UTF_8);
+    int window = (int) Math.min(section.getOffset(), key.length + 64);
+    ByteBuffer buffer = ByteBuffer.allocate(window + 1);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, section.getOffset() - window + buffer.position()) < 0) {
+        return false;
+      }
+    }
+    byte[] bytes = buffer.array();
+    int first = bytes[window];
+    if (first != '{' && first != '[') {
+      return false;
+    }
+    int pos = window - 1;
+    while (pos >= 0 && Character.isWhitespace(bytes[pos])) {
+      pos--;
+    }
+    if (pos < 0 || bytes[pos] != ':') {
+      return false;
+    }
+    pos--;
+    while (pos >= 0 && Character.isWhitespace(bytes[pos])) {
+      pos--;
+    }
+    pos -= key.length - 1;
+    if (pos < 0) {
+      return false;
+    }
+    for (int i = 0; i < key.length; i++) {
+      if (bytes[pos + i] != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String readName(Input in) throws IOException {
+    scratch.clear();
+    readString(in, scratch);
+    scratch.addField(0, 0, 0, scratch.getLength(), RdsDataRecord.Type.STRING);
+    return scratch.getString(0);
+  }
+
+  /**
+   * Reads a record value into a record.
+   *
+   * @return true, if the value is a JSON object. Otherwise, the value got added as field
+   *     {@code value}, and if it is a string or number, also as identifier, if requested.
+   */
+  private static boolean readRecord(Input in, RdsDataRecord record, boolean identifyByValue)
+      throws IOException {
+    if (in.peekSignificant() != '{') {
+      int nameStart = record.getLength();
+      record.append(RdsDataRecord.VALUE_FIELD_NAME, 0, RdsDataRecord.VALUE_FIELD_NAME.length);
+      int valueStart = record.getLength();
+      RdsDataRecord.Type type = readValue(in, record);
+      int valueLength = record.getLength() - valueStart;
+      record.addField(nameStart, valueStart - nameStart, valueStart, valueLength, type);
+      if (identifyByValue && (type == RdsDataRecord.Type.STRING
+          || type == RdsDataRecord.Type.NUMBER)) {
+        record.setIdentifier(valueStart, valueLength);
+      }
+      return false;
+    }
+    in.read();
+    if (in.peekSignificant() == '}') {
+      in.read();
+      return true;
+    }
+    int chr;
+    do {
+      in.expect('"');
+      int nameStart = record.getLength();
+      readString(in, record);
+      int valueStart = record.getLength();
+      in.expect(':');
+      RdsDataRecord.Type type = readValue(in, record);
+      record.addField(nameStart, valueStart - nameStart, valueStart,
+          record.getLength() - valueStart, type);
+      chr = in.readSignificant();
+    } while (chr == ',');
+    if (chr != '}') {
+      throw in.malformed("Expected ',' or '}' in record");
+    }
+    return true;
+  }
+
+  /**
+   * Reads a field value. Strings get unescaped, all other values are kept as JSON text.
+   */
+  private static RdsDataRecord.Type readValue(Input in, RdsDataRecord record)
+      throws IOException {
+    int chr = in.readSignificant();
+    switch (chr) {
+      case '"':
+        readString(in, record);
+        return RdsDataRecord.Type.STRING;
+      case '{':
+        record.append(chr);
+        copyNested(in, record);
+        return RdsDataRecord.Type.OBJECT;
+      case '[':
+        record.append(chr);
+        copyNested(in, record);
+        return RdsDataRecord.Type.ARRAY;
+      case 't':
+      case 'f':
+        readLiteral(in, record, chr);
+        return RdsDataRecord.Type.BOOLEAN;
+      case 'n':
+        readLiteral(in, record, chr);
+        return RdsDataRecord.Type.NULL;
+      default:
+        if (chr == '-' || (chr >= '0' && chr <= '9')) {
+          readLiteral(in, record, chr);
+          return RdsDataRecord.Type.NUMBER;
+        }
+        throw in.malformed("Unexpected "
+            + ((chr < 0) ? "end of input" : "'" + (char) chr + "'"));
+    }
+  }
+
+  private static void readLiteral(Input in, RdsDataRecord record, int first)
+      throws IOException {
+    record.append(first);
+    while (true) {
+      int chr = in.peek();
+      if (chr < 0 || chr == ',' || chr == '}' || chr == ']' || chr == ' ' || chr == '\n'
+          || chr == '\r' || chr == '\t') {
+        return;
+      }
+      record.append(chr);
+      in.pos++;
+    }
+  }
+
+  /**
+   * Reads the rest of a string after its opening quote, and appends it unescaped.
+   */
+  private static void readString(Input in, RdsDataRecord record) throws IOException {
+    while (true) {
+      if (in.pos == in.limit && !in.fill()) {
+        throw in.malformed("Unterminated string");
+      }
+      byte[] bytes = in.bytes;
+      int start = in.pos;
+      int pos = start;
+      while (pos < in.limit && bytes[pos] != '"' && bytes[pos] != '\\') {
+        pos++;
+      }
+      record.append(bytes, start, pos - start);
+      in.pos = pos;
+      if (pos < in.limit) {
+        in.pos++;
+        if (bytes[pos] == '"') {
+          return;
+        }
+        readEscape(in, record);
+      }
+    }
+  }
+
+  private static void readEscape(Input in, RdsDataRecord record) throws IOException {
+    int chr = in.read();
+    switch (chr) {
+      case '"':
+      case '\\':
+      case '/':
+        record.append(chr);
+        break;
+      case 'b':
+        record.append('\b');
+        break;
+      case 'f':
+        record.append('\f');
+        break;
+      case 'n':
+        record.append('\n');
+        break;
+      case 'r':
+        record.append('\r');
+        break;
+      case 't':
+        record.append('\t');
+        break;
+      case 'u':
+        int codePoint = readHex(in);
+        if (Character.isHighSurrogate((char) codePoint)) {
+          if (in.read() != '\\' || in.read() != 'u') {
+            throw in.malformed("Unpaired surrogate");
+          }
+          codePoint = Character.toCodePoint((char) codePoint, (char) readHex(in));
+        }
+        appendUtf8(record, codePoint);
+        break;
+      default:
+        throw in.malformed("Invalid escape");
+    }
+  }
+
+  private static int readHex(Input in) throws IOException {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      int digit = Character.digit(in.read(), 16);
+      if (digit < 0) {
+        throw in.malformed("Invalid unicode escape");
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  private static void appendUtf8(RdsDataRecord record, int codePoint) {
+    if (codePoint < 0x80) {
+      record.append(codePoint);
+    } else if (codePoint < 0x800) {
+      record.append(0xc0 | (codePoint >> 6));
+      record.append(0x80 | (codePoint & 0x3f));
+    } else if (codePoint < 0x10000) {
+      record.append(0xe0 | (codePoint >> 12));
+      record.append(0x80 | ((codePoint >> 6) & 0x3f));
+      record.append(0x80 | (codePoint & 0x3f));
+    } else {
+      record.append(0xf0 | (codePoint >> 18));
+      record.append(0x80 | ((codePoint >> 12) & 0x3f));
+      record.append(0x80 | ((codePoint >> 6) & 0x3f));
+      record.append(0x80 | (codePoint & 0x3f));
+    }
+  }
+
+  /**
+   * Copies the rest of a nested object or array after its opening bracket as JSON text.
+   */
+  private static void copyNested(Input in, RdsDataRecord record) throws IOException {
+    int depth = 1;
+    boolean inString = false;
+    boolean escaped = false;
+    while (depth > 0) {
+      int chr = in.read();
+      if (chr < 0) {
+        throw in.malformed("Unterminated nested value");
+      }
+      record.append(chr);
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (chr == '\\') {
+          escaped = true;
+        } else if (chr == '"') {
+          inString = false;
+        }
+      } else if (chr == '"') {
+        inString = true;
+      } else if (chr == '{' || chr == '[') {
+        depth++;
+      } else if (chr == '}' || chr == ']') {
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * Skips a value without materializing it.
+   */
+  private static void skipValue(Input in) throws IOException {
+    int depth = 0;
+    boolean inString = false;
+    boolean escaped = false;
+    int chr = in.peekSignificant();
+    if (chr != '"' && chr != '{' && chr != '[') {
+      // A literal ends at the next delimiter.
+      while (chr >= 0 && chr != ',' && chr != '}' && chr != ']' && chr != ' ' && chr != '\n'
+          && chr != '\r' && chr != '\t') {
+        in.pos++;
+        chr = in.peek();
+      }
+      return;
+    }
+    do {
+      if (in.pos == in.limit && !in.fill()) {
+        throw in.malformed("Unterminated value");
+      }
+      byte[] bytes = in.bytes;
+      int limit = in.limit;
+      int pos = in.pos;
+      for (; pos < limit; pos++) {
+        byte current = bytes[pos];
+        if (inString) {
+          if (escaped) {
+            escaped = false;
+          } else if (current == '\\') {
+            escaped = true;
+          } else if (current == '"') {
+            inString = false;
+            if (depth == 0) {
+              break;
+            }
+          }
+        } else if (current == '"') {
+          inString = true;
+        } else if (current == '{' || current == '[') {
+          depth++;
+        } else if (current == '}' || current == ']') {
+          if (--depth == 0) {
+            break;
+          }
+        }
+      }
+      in.pos = Math.min(pos + 1, limit);
+      if (pos < limit) {
+        return;
+      }
+    } while (true);
+  }
+
+  private static ByteBuffer acquireBuffer() {
+    ByteBuffer buffer = BUFFER_POOL.poll();
+    return (buffer == null) ? ByteBuffer.allocate(BUFFER_SIZE) : buffer;
+  }
+
+  private static void releaseBuffer(ByteBuffer buffer) {
+    BUFFER_POOL.offer(buffer);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.config.Config;
+
+/**
+ * Component whose settings can be changed without a restart.
+ *
+ * <p>Reloaded configs get validated by all components before any component applies them. So a
+ * config is either applied by all components or rejected as a whole.
+ */
+public interface RdsDataReconfigurable {
+  /**
+   * Checks whether a config is acceptable.
+   *
+   * @param appConfig The application config to check.
+   * @throws IllegalArgumentException if the config is not acceptable. The message describes
+   *     the offending setting.
+   */
+  void validate(Config appConfig);
+
+  /**
+   * Applies a config that has been validated before.
+   *
+   * <p>Only called between runs.
+   *
+   * @param appConfig The application config to apply.
+   */
+  void reconfigure(Config appConfig);
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A single record of an enum type, as handed out by {@link RdsDataReader}.
+ *
+ * <p>Records get recycled. The same instance is handed out for each identifier of a section, so a
+ * record is only valid until the next record is read. Callers that need to keep values have to
+ * copy them out (e.g.: through {@link #getString(int)}).
+ *
+ * <p>The fields of records that are JSON objects are exposed as they are. Records that are not
+ * JSON objects (e.g.: plain identifiers in an array) are exposed as a single field named
+ * {@code value}. Values are kept as UTF-8 bytes and only get decoded when asked for, and field
+ * names get decoded only once per reader.
+ */
+public class RdsDataRecord {
+  static final byte[] VALUE_FIELD_NAME = "value".getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * JSON type of a field value.
+   */
+  public enum Type {
+    STRING, NUMBER, BOOLEAN, NULL, OBJECT, ARRAY
+  }
+
+  /**
+   * Cache of decoded field names, shared by the records of a reader.
+   */
+  static final class Names {
+    private static final int SLOTS = 256;
+
+    private final byte[][] keys = new byte[SLOTS][];
+    private final String[] values = new String[SLOTS];
+
+    String get(byte[] bytes, int start, int length) {
+      int hash = 0x811c9dc5;
+      for (int i = start; i < start + length; i++) {
+        hash = (hash ^ bytes[i]) * 0x01000193;
+      }
+      int slot = hash & (SLOTS - 1);
+      byte[] key = keys[slot];
+      if (key != null && key.length == length) {
+        int i = 0;
+        while (i < length && key[i] == bytes[start + i]) {
+          i++;
+        }
+        if (i == length) {
+          return values[slot];
+        }
+      }
+      String value = new String(bytes, start, length, StandardCharsets.UTF_8);
+      keys[slot] = Arrays.copyOfRange(bytes, start, start + length);
+      values[slot] = value;
+      return value;
+    }
+  }
+
+  private final String enumType;
+  private final Names names;
+  private byte[] bytes;
+  private int length;
+  private int identifierStart;
+  private int identifierLength;
+  private String identifier;
+  private int fieldCount;
+  private int[] nameStarts;
+  private int[] nameLengths;
+  private int[] valueStarts;
+  private int[] valueLengths;
+  private Type[] types;
+
+  RdsDataRecord(String enumType, Names names) {
+    this.enumType = enumType;
+    this.names = names;
+    this.bytes = new byte[4096];
+    this.nameStarts = new int[16];
+    this.nameLengths = new int[16];
+    this.valueStarts = new int[16];
+    this.valueLengths = new int[16];
+    this.types = new Type[16];
+    clear();
+  }
+
+  void clear() {
+    length = 0;
+    identifierStart = -1;
+    identifierLength = 0;
+    identifier = null;
+    fieldCount = 0;
+  }
+
+  int getLength() {
+    return length;
+  }
+
+  void append(int value) {
+    ensureCapacity(1);
+    bytes[length++] = (byte) value;
+  }
+
+  void append(byte[] source, int start, int count) {
+    ensureCapacity(count);
+    System.arraycopy(source, start, bytes, length, count);
+    length += count;
+  }
+
+  private void ensureCapacity(int additional) {
+    if (length + additional > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+    }
+  }
+
+  void setIdentifier(int start, int count) {
+    identifierStart = start;
+    identifierLength = count;
+  }
+
+  void addField(int nameStart, int nameLength, int valueStart, int valueLength, Type type) {
+    if (fieldCount == types.length) {
+      int capacity = fieldCount * 2;
+      nameStarts = Arrays.copyOf(nameStarts, capacity);
+      nameLengths = Arrays.copyOf(nameLengths, capacity);
+      valueStarts = Arrays.copyOf(valueStarts, capacity);
+      valueLengths = Arrays.copyOf(valueLengths, capacity);
+      types = Arrays.copyOf(types, capacity);
+    }
+    nameStarts[fieldCount] = nameStart;
+    nameLengths[fieldCount] = nameLength;
+    valueStarts[fieldCount] = valueStart;
+    valueLengths[fieldCount] = valueLength;
+    types[fieldCount] = type;
+    fieldCount++;
+  }
+
+  /**
+   * Takes the identifier from a field.
+   *
+   * @param name The name of the field holding the identifier.
+   */
+  void setIdentifierFromField(String name) {
+    int index = indexOf(name);
+    if (index >= 0 && (types[index] == Type.STRING || types[index] == Type.NUMBER)) {
+      setIdentifier(valueStarts[index], valueLengths[index]);
+    }
+  }
+
+  /**
+   * Gets the record's enum type.
+   *
+   * @return the enum type of the section that the record belongs to.
+   */
+  public String getEnumType() {
+    return enumType;
+  }
+
+  /**
+   * Gets the record's identifier.
+   *
+   * @return the record's identifier, or null if the record does not have one.
+   */
+  public String getIdentifier() {
+    if (identifier == null && identifierStart >= 0) {
+      identifier = new String(bytes, identifierStart, identifierLength, StandardCharsets.UTF_8);
+    }
+    return identifier;
+  }
+
+  /**
+   * Gets the number of fields.
+   *
+   * @return the number of the record's fields.
+   */
+  public int getFieldCount() {
+    return fieldCount;
+  }
+
+  /**
+   * Gets the name of a field.
+   *
+   * @param index The index of the field.
+   * @return the field's name.
+   */
+  public String getFieldName(int index) {
+    checkIndex(index);
+    return names.get(bytes, nameStarts[index], nameLengths[index]);
+  }
+
+  /**
+   * Finds a field by name.
+   *
+   * @param name The name of the field to find.
+   * @return the index of the first field of this name, or -1 if there is no such field.
+   */
+  public int indexOf(String name) {
+    for (int i = 0; i < fieldCount; i++) {
+      if (names.get(bytes, nameStarts[i], nameLengths[i]).equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Gets the JSON type of a field.
+   *
+   * @param index The index of the field.
+   * @return the JSON type of the field's value.
+   */
+  public Type getType(int index) {
+    checkIndex(index);
+    return types[index];
+  }
+
+  /**
+   * Gets a field as string.
+   *
+   * @param index The index of the field.
+   * @return the decoded string for string fields, null for null fields, and the JSON text for
+   *     all other fields.
+   */
+  public String getString(int index) {
+    checkIndex(index);
+    if (types[index] == Type.NULL) {
+      return null;
+    }
+    return new String(bytes, valueStarts[index], valueLengths[index], StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Gets a field by name as string.
+   *
+   * @param name The name of the field.
+   * @return the field as string (see {@link #getString(int)}), or null if there is no such
+   *     field.
+   */
+  public String get(String name) {
+    int index = indexOf(name);
+    return (index < 0) ? null : getString(index);
+  }
+
+  /**
+   * Gets a field as long.
+   *
+   * <p>Both number fields and string fields holding a number are supported. Integral values get
+   * parsed without allocating.
+   *
+   * @param index The index of the field.
+   * @return the field's value as long.
+   * @throws NumberFormatException if the field is not an integral number.
+   */
+  public long getLong(int index) {
+    checkIndex(index);
+    int start = valueStarts[index];
+    int end = start + valueLengths[index];
+    int pos = start;
+    boolean negative = pos < end && bytes[pos] == '-';
+    if (negative) {
+      pos++;
+    }
+    // Up to 18 digits cannot overflow, so longer values take the slow path.
+    if (pos == end || end - pos > 18) {
+      return Long.parseLong(getString(index));
+    }
+    long value = 0;
+    for (; pos < end; pos++) {
+      int digit = bytes[pos] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("Not an integral number: " + getString(index));
+      }
+      value = value * 10 + digit;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Gets a field as double.
+   *
+   * @param index The index of the field.
+   * @return the field's value as double.
+   * @throws NumberFormatException if the field is not a number.
+   */
+  public double getDouble(int index) {
+    return Double.parseDouble(getString(index));
+  }
+
+  /**
+   * Gets a field as boolean.
+   *
+   * @param index The index of the field.
+   * @return true, if the field is the JSON literal {@code true} or the string "true".
+   */
+  public boolean getBoolean(int index) {
+    checkIndex(index);
+    if (types[index] == Type.BOOLEAN) {
+      return bytes[valueStarts[index]] == 't';
+    }
+    return Boolean.parseBoolean(getString(index));
+  }
+
+  /**
+   * Checks whether a field is null.
+   *
+   * @param index The index of the field.
+   * @return true, if the field is the JSON literal {@code null}.
+   */
+  public boolean isNull(int index) {
+    checkIndex(index);
+    return types[index] == Type.NULL;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= fieldCount) {
+      throw new IndexOutOfBoundsException("Field " + index + " of " + fieldCount + " fields");
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(enumType).append('/').append(getIdentifier())
+        .append('{');
+    for (int i = 0; i < fieldCount; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(getFieldName(i)).append('=').append(getString(i));
+    }
+    return sb.append('}').toString();
+  }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable lookup table from identifiers to records of a single enum type.
+ *
+ * <p>Identifiers and records live in a single off-heap buffer. The per-entry bookkeeping and the
+ * open addressing hash table are plain int arrays, so the table consists of a handful of objects
+ * regardless of the number of entries and lookups do not allocate.
+ *
+ * <p>If the table got built with a memory budget, its buffer and arrays stay reserved until the
+ * table gets released.
+ */
+public class RdsDataRecordTable {
+  private final ByteBuffer data;
+  private final int[] slots;
+  private final int slotMask;
+  private final int[] hashes;
+  private final int[] identifierOffsets;
+  private final int[] identifierLengths;
+  private final int[] recordOffsets;
+  private final int[] recordLengths;
+  private final int[] entries;
+  private final RdsDataMemoryBudget.Reservation reservation;
+
+  private RdsDataRecordTable(ByteBuffer data, int[] hashes, int[] identifierOffsets,
+      int[] identifierLengths, int[] recordOffsets, int[] recordLengths, int count,
+      RdsDataMemoryBudget.Reservation reservation) {
+    this.data = data;
+    this.reservation = reservation;
+    this.hashes = hashes;
+    this.identifierOffsets = identifierOffsets;
+    this.identifierLengths = identifierLengths;
+    this.recordOffsets = recordOffsets;
+    this.recordLengths = recordLengths;
+
+    int slotCount = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+    this.slots = new int[slotCount];
+    this.slotMask = slotCount - 1;
+
+    // Later entries for the same identifier replace earlier ones, so we fill the slots first
+    // and derive the list of distinct entries afterwards.
+    int distinct = 0;
+    for (int entry = 0; entry < count; entry++) {
+      int slot = findSlot(entry);
+      if (slots[slot] == 0) {
+        distinct++;
+      }
+      slots[slot] = entry + 1;
+    }
+    this.entries = new int[distinct];
+    int next = 0;
+    for (int entry = 0; entry < count; entry++) {
+      if (slots[findSlot(entry)] == entry + 1) {
+        entries[next++] = entry;
+      }
+    }
+  }
+
+  private int findSlot(int entry) {
+    int hash = hashes[entry];
+    int slot = hash & slotMask;
+    while (slots[slot] != 0) {
+      int other = slots[slot] - 1;
+      if (hashes[other] == hash && identifierLengths[other] == identifierLengths[entry]
+          && identifiersEqual(other, entry)) {
+        return slot;
+      }
+      slot = (slot + 1) & slotMask;
+    }
+    return slot;
+  }
+
+  private boolean identifiersEqual(int entryA, int entryB) {
+    int offsetA = identifierOffsets[entryA];
+    int offsetB = identifierOffsets[entryB];
+    for (int i = 0; i < identifierLengths[entryA]; i++) {
+      if (data.getChar(offsetA + 2 * i) != data.getChar(offsetB + 2 * i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hash(CharSequence identifier) {
+    int hash = identifier.hashCode();
+    return hash ^ (hash >>> 16);
+  }
+
+  private int findEntry(String identifier) {
+    int hash = hash(identifier);
+    int length = identifier.length();
+    int slot = hash & slotMask;
+    int candidate;
+    while ((candidate = slots[slot]) != 0) {
+      int entry = candidate - 1;
+      if (hashes[entry] == hash && identifierLengths[entry] == length) {
+        int offset = identifierOffsets[entry];
+        int i = 0;
+        while (i < length && data.getChar(offset + 2 * i) == identifier.charAt(i)) {
+          i++;
+        }
+        if (i == length) {
+          return entry;
+        }
+      }
+      slot = (slot + 1) & slotMask;
+    }
+    return -1;
+  }
+
+  /**
+   * Gets the number of distinct identifiers in this table.
+   *
+   * @return the number of distinct identifiers.
+   */
+  public int size() {
+    return entries.length;
+  }
+
+  /**
+   * Gets the number of bytes held off-heap by this table.
+   *
+   * @return the number of off-heap bytes.
+   */
+  public int getDataSize() {
+    return data.capacity();
+  }
+
+  /**
+   * Checks whether an identifier is in this table.
+   *
+   * <p>This method does not allocate.
+   *
+   * @param identifier The identifier to look up.
+   * @return true, if the identifier is in the table.
+   */
+  public boolean contains(String identifier) {
+    return findEntry(identifier) >= 0;
+  }
+
+  /**
+   * Gets the UTF-8 encoded JSON record for an identifier.
+   *
+   * @param identifier The identifier to look up.
+   * @return a read-only buffer holding exactly the record, or null if the identifier is unknown.
+   */
+  public ByteBuffer getRecordBytes(String identifier) {
+    int entry = findEntry(identifier);
+    if (entry < 0) {
+      return null;
+    }
+    ByteBuffer view = data.asReadOnlyBuffer();
+    view.position(recordOffsets[entry]);
+    view.limit(recordOffsets[entry] + recordLengths[entry]);
+    return view.slice();
+  }
+
+  /**
+   * Gets the JSON record for an identifier.
+   *
+   * @param identifier The identifier to look up.
+   * @return the record as JSON string, or null if the identifier is unknown.
+   */
+  public String getRecord(String identifier) {
+    int entry = findEntry(identifier);
+    return (entry < 0) ? null : decodeRecord(entry);
+  }
+
+  /**
+   * Gets the identifier at a position.
+   *
+   * @param index The position of the identifier. Needs to be between 0 (inclusive) and
+   *     {@link #size()} (exclusive).
+   * @return the identifier at the given position.
+   */
+  public String getIdentifier(int index) {
+    int entry = entries[index];
+    char[] chars = new char[identifierLengths[entry]];
+    int offset = identifierOffsets[entry];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = data.getChar(offset + 2 * i);
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Gets the JSON record at a position.
+   *
+   * @param index The position of the record. Needs to be between 0 (inclusive) and
+   *     {@link #size()} (exclusive).
+   * @return the record at the given position as JSON string.
+   */
+  public String getRecord(int index) {
+    return decodeRecord(entries[index]);
+  }
+
+  /**
+   * Gets all identifiers of this table in insertion order.
+   *
+   * @return view on the identifiers of this table. Identifiers are materialized on access.
+   */
+  public List<String> getIdentifiers() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return getIdentifier(index);
+      }
+
+      @Override
+      public int size() {
+        return entries.length;
+      }
+    };
+  }
+
+  /**
+   * Gives the table's memory back to the budget it got reserved from.
+   *
+   * <p>This is meant for tables that got replaced. The table stays usable for readers that still
+   * hold it. Releasing an already released table has no effect.
+   */
+  void release() {
+    if (reservation != null) {
+      reservation.close();
+    }
+  }
+
+  private String decodeRecord(int entry) {
+    byte[] bytes = new byte[recordLengths[entry]];
+    ByteBuffer view = data.duplicate();
+    view.position(recordOffsets[entry]);
+    view.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Builder for {@link RdsDataRecordTable}.
+   *
+   * <p>Identifiers and records are written off-heap right away. The buffer starts at the expected
+   * size (if given) and grows by doubling, so the heap only ever holds the per-entry bookkeeping.
+   *
+   * <p>With a memory budget, the buffer and the bookkeeping arrays get reserved before they are
+   * allocated. While growing, the old and the new size are reserved until the copy is done.
+   * Builders that do not get built have to be discarded to give their memory back.
+   */
+  public static class Builder {
+    private static final int MAX_DATA_SIZE = Integer.MAX_VALUE - 8;
+    // Five bookkeeping ints per entry, and once built, up to four hash slots and one index into
+    // the distinct entries.
+    private static final long ENTRY_BYTES = 10 * 4;
+
+    private final String name;
+    private final RdsDataMemoryBudget memoryBudget;
+    private RdsDataMemoryBudget.Reservation reservation;
+    private ByteBuffer data;
+    private int[] hashes = new int[64];
+    private int[] identifierOffsets = new int[64];
+    private int[] identifierLengths = new int[64];
+    private int[] recordOffsets = new int[64];
+    private int[] recordLengths = new int[64];
+    private int count = 0;
+
+    /**
+     * Creates a builder for a table.
+     *
+     * @param name The name of the table (used in error messages).
+     */
+    public Builder(String name) {
+      this(name, 4096);
+    }
+
+    /**
+     * Creates a builder for a table of roughly known size.
+     *
+     * @param name The name of the table (used in error messages).
+     * @param expectedBytes The expected number of bytes of identifiers and records (e.g.: the
+     *     length of the enum type's section in the snapshot). The off-heap buffer starts at this
+     *     size, which avoids copying while growing.
+     */
+    public Builder(String name, long expectedBytes) {
+      this.name = name;
+      this.memoryBudget = null;
+      this.data = ByteBuffer.allocateDirect(getInitialCapacity(expectedBytes));
+    }
+
+    /**
+     * Creates a builder for a table of roughly known size, whose memory is reserved.
+     *
+     * @param name The name of the table (used in error messages and reservations).
+     * @param expectedBytes The expected number of bytes of identifiers and records.
+     * @param memoryBudget The budget to reserve the buffer and bookkeeping arrays from.
+     * @throws RdsDataInsufficientMemoryException if the budget does not cover the initial
+     *     buffer.
+     */
+    public Builder(String name, long expectedBytes, RdsDataMemoryBudget memoryBudget)
+        throws RdsDataInsufficientMemoryException {
+      this.name = name;
+      this.memoryBudget = memoryBudget;
+      int capacity = getInitialCapacity(expectedBytes);
+      this.reservation = reserve(capacity + ENTRY_BYTES * hashes.length);
+      this.data = ByteBuffer.allocateDirect(capacity);
+    }
+
+    private static int getInitialCapacity(long expectedBytes) {
+      return (int) Math.max(16, Math.min(expectedBytes, MAX_DATA_SIZE));
+    }
+
+    private RdsDataMemoryBudget.Reservation reserve(long bytes)
+        throws RdsDataInsufficientMemoryException {
+      return (memoryBudget == null) ? null
+          : memoryBudget.reserve("cache table " + name, bytes, bytes);
+    }
+
+    private void replaceReservation(RdsDataMemoryBudget.Reservation replacement) {
+      if (reservation != null) {
+        reservation.close();
+      }
+      reservation = replacement;
+    }
+
+    /**
+     * Adds an entry to the table.
+     *
+     * <p>If an identifier is added more than once, the last record wins.
+     *
+     * @param identifier The identifier of the entry.
+     * @param record The UTF-8 encoded JSON record of the entry.
+     * @return this builder.
+     * @throws IOException if the table outgrows the supported size.
+     */
+    public Builder add(String identifier, byte[] record) throws IOException {
+      if (count == hashes.length) {
+        int capacity = count * 2;
+        RdsDataMemoryBudget.Reservation grown = reserve(data.capacity() + ENTRY_BYTES * capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        identifierOffsets = Arrays.copyOf(identifierOffsets, capacity);
+        identifierLengths = Arrays.copyOf(identifierLengths, capacity);
+        recordOffsets = Arrays.copyOf(recordOffsets, capacity);
+        recordLengths = Arrays.copyOf(recordLengths, capacity);
+        replaceReservation(grown);
+      }
+      ensureDataCapacity(2L * identifier.length() + record.length);
+
+      hashes[count] = hash(identifier);
+      identifierOffsets[count] = data.position();
+      identifierLengths[count] = identifier.length();
+      for (int i = 0; i < identifier.length(); i++) {
+        data.putChar(identifier.charAt(i));
+      }
+      recordOffsets[count] = data.position();
+      recordLengths[count] = record.length;
+      data.put(record);
+      count++;
+      return this;
+    }
+
+    private void ensureDataCapacity(long additional) throws IOException {
+      long required = data.position() + additional;
+      if (required > MAX_DATA_SIZE) {
+        throw new IOException("Data for " + name + " exceeds the supported table size of "
+            + MAX_DATA_SIZE + " bytes");
+      }
+      if (required > data.capacity()) {
+        long capacity = Math.max(required, Math.min(2L * data.capacity(), MAX_DATA_SIZE));
+        RdsDataMemoryBudget.Reservation grownReservation =
+            reserve(capacity + ENTRY_BYTES * hashes.length);
+        ByteBuffer grown = ByteBuffer.allocateDirect((int) capacity);
+        data.flip();
+        grown.put(data);
+        data = grown;
+        replaceReservation(grownReservation);
+      }
+    }
+
+    /**
+     * Builds the table.
+     *
+     * <p>The builder must not be used afterwards.
+     *
+     * @return the built table.
+     */
+    public RdsDataRecordTable build() {
+      RdsDataMemoryBudget.Reservation tableReservation = reservation;
+      reservation = null;
+      ByteBuffer buffer = data;
+      buffer.flip();
+      data = null;
+      return new RdsDataRecordTable(buffer, hashes, identifierOffsets, identifierLengths,
+          recordOffsets, recordLengths, count, tableReservation);
+    }
+
+    /**
+     * Gives the reserved memory back, if the table is not going to get built.
+     *
+     * <p>The builder must not be used afterwards. Discarding a builder without memory budget
+     * has no effect.
+     */
+    public void discard() {
+      replaceReservation(null);
+      data = null;
+    }
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Replicates persisted snapshots to further directories.
+ *
+ * <p>If a target directory is on the same file system as the snapshot, the snapshot gets hard
+ * linked. Otherwise, the full snapshot is copied from the local file, as patching a replica in
+ * place would break atomic swaps and a mounted directory offers no way to move data without
+ * writing it. Each replica gets swapped in atomically, followed by the snapshot's manifest, so
+ * consumers watching a replica see the same generations.
+ *
+ * <p>Copies and manifests get fsynced as configured by the persister's {@link RdsDataDurability}.
+ *
+ * <p>Targets, hard linking, and durability can be reconfigured between runs.
+ */
+@Singleton
+public class RdsDataReplicator implements RdsDataSnapshotListener, RdsDataReconfigurable {
+  private static final Log log = LogFactory.getLog(RdsDataReplicator.class);
+
+  private final ApplicationPaths appPaths;
+  private final RdsDataMetrics metrics;
+  private volatile List<Path> targets;
+  private volatile boolean hardLinks;
+  private volatile RdsDataDurability durability;
+
+  /**
+   * Creates a replicator for persisted snapshots.
+   *
+   * @param appConfig The application config to use.
+   * @param appPaths The base paths to resolve target directories against.
+   * @param metrics The metrics to record replication time and bytes to.
+   */
+  @Inject
+  public RdsDataReplicator(@ApplicationConfig Config appConfig, ApplicationPaths appPaths,
+      RdsDataMetrics metrics) {
+    this.appPaths = appPaths;
+    this.metrics = metrics;
+    apply(appConfig);
+  }
+
+  private void apply(Config appConfig) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.replicator");
+    this.targets = parseTargets(config);
+    this.hardLinks = config.getBoolean("hardLinks", true);
+    this.durability = parseDurability(appConfig);
+  }
+
+  private RdsDataDurability parseDurability(Config appConfig) {
+    Config persisterConfig = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.persister");
+    return RdsDataDurability.valueOf(
+        persisterConfig.get("durability", "NONE").toUpperCase(Locale.ROOT));
+  }
+
+  private List<Path> parseTargets(Config config) {
+    List<Path> targets = new ArrayList<>();
+    for (String target : config.get("targets", "").split(",")) {
+      String cleanTarget = target.trim();
+      if (!cleanTarget.isEmpty()) {
+        targets.add(appPaths.getDataPath().resolve(cleanTarget));
+      }
+    }
+    return Collections.unmodifiableList(targets);
+  }
+
+  /**
+   * Checks the replicator settings of a reloaded config.
+   *
+   * @param appConfig The application config to check.
+   * @throws IllegalArgumentException if a target is not a valid path, or the durability is
+   *     unknown.
+   */
+  @Override
+  public void validate(Config appConfig) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.replicator");
+    parseDurability(appConfig);
+    try {
+      parseTargets(config);
+    } catch (InvalidPathException e) {
+      throw new IllegalArgumentException("RdsDataDownloader.replicator.targets holds an invalid "
+          + "path", e);
+    }
+  }
+
+  @Override
+  public void reconfigure(Config appConfig) {
+    List<Path> oldTargets = targets;
+    apply(appConfig);
+    if (!oldTargets.equals(targets)) {
+      log.info("Replicating to " + targets + " instead of " + oldTargets);
+    }
+  }
+
+  @Override
+  public String getName() {
+    return "replicator";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return !targets.isEmpty();
+  }
+
+  /**
+   * Replicates a snapshot to all target directories.
+   *
+   * <p>A failing target does not keep other targets from getting replicated to.
+   *
+   * @param snapshot The snapshot to replicate.
+   * @throws IOException if replicating to at least one target failed.
+   */
+  @Override
+  public void onSnapshot(RdsDataSnapshot snapshot) throws IOException {
+    long start = System.nanoTime();
+    RdsDataDurability currentDurability = durability;
+    List<String> failures = new ArrayList<>();
+    for (Path target : targets) {
+      try {
+        if (!replicateByHardLink(snapshot.getPath(), target)) {
+          replicateByCopy(snapshot.getPath(), target, currentDurability);
+        }
+        writeManifest(snapshot, target, currentDurability);
+        if (currentDurability == RdsDataDurability.DATA_AND_DIRECTORY) {
+          RdsDataFiles.forceDirectory(target);
+        }
+      } catch (IOException e) {
+        log.error("Failed to replicate " + snapshot + " to " + target, e);
+        metrics.increment("replicator.failures", 1);
+        failures.add(target + " (" + e.getMessage() + ")");
+      }
+    }
+    metrics.record("replicator.replicate", System.nanoTime() - start);
+    if (!failures.isEmpty()) {
+      throw new IOException("Failed to replicate to " + String.join(", ", failures));
+    }
+  }
+
+  private boolean replicateByHardLink(Path source, Path targetDirectory) throws IOException {
+    if (!hardLinks) {
+      return false;
+    }
+    Files.createDirectories(targetDirectory);
+    if (!Files.getFileStore(source).equals(Files.getFileStore(targetDirectory))) {
+      return false;
+    }
+    Path replica = targetDirectory.resolve(source.getFileName());
+    Path tmpReplica = getTmpReplica(replica);
+    Files.deleteIfExists(tmpReplica);
+    try {
+      Files.createLink(tmpReplica, source);
+    } catch (IOException | UnsupportedOperationException e) {
+      log.debug("Hard linking " + source + " to " + tmpReplica + " failed. Copying instead");
+      return false;
+    }
+    swap(tmpReplica, replica);
+    metrics.increment("replicator.hardLinks", 1);
+    return true;
+  }
+
+  private void replicateByCopy(Path source, Path targetDirectory,
+      RdsDataDurability currentDurability) throws IOException {
+    Files.createDirectories(targetDirectory);
+    Path replica = targetDirectory.resolve(source.getFileName());
+    Path tmpReplica = getTmpReplica(replica);
+    long written;
+    try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+        FileChannel tmpChannel = FileChannel.open(tmpReplica, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      written = sourceChannel.size();
+      transfer(sourceChannel, 0, written, tmpChannel);
+      if (currentDurability != RdsDataDurability.NONE) {
+        tmpChannel.force(true);
+      }
+    }
+    swap(tmpReplica, replica);
+
+    metrics.increment("replicator.bytesWritten", written);
+    log.info("Replicated " + source + " to " + replica + " writing " + written + " bytes");
+  }
+
+  private void writeManifest(RdsDataSnapshot snapshot, Path targetDirectory,
+      RdsDataDurability currentDurability) throws IOException {
+    // The source's manifest gets published only after all stages are done, so it still describes
+    // the previous generation at this point.
+    Path manifest = RdsDataManifest.getPath(snapshot.getPath());
+    RdsDataFiles.writeAtomically(targetDirectory.resolve(manifest.getFileName()),
+        RdsDataManifest.toJson(snapshot).toString().getBytes(StandardCharsets.UTF_8),
+        currentDurability != RdsDataDurability.NONE);
+  }
+
+  private void transfer(FileChannel from, long offset, long length, FileChannel to)
+      throws IOException {
+    long position = offset;
+    long remaining = length;
+    while (remaining > 0) {
+      long transferred = from.transferTo(position, remaining, to);
+      if (transferred <= 0) {
+        throw new IOException("Failed to transfer " + remaining + " bytes at offset " + position);
+      }
+      position += transferred;
+      remaining -= transferred;
+    }
+  }
+
+  private void swap(Path tmpReplica, Path replica) throws IOException {
+    try {
+      Files.move(tmpReplica, replica, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Files.deleteIfExists(tmpReplica);
+      throw new IOException("Failed to move " + tmpReplica + " to " + replica, e);
+    }
+  }
+
+  private Path getTmpReplica(Path replica) {
+    return replica.resolveSibling("." + replica.getFileName() + ".replica.tmp");
+  }
+}
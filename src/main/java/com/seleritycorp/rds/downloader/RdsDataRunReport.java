@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeline of a single data fetch run.
+ *
+ * <p>A run consists of phases (e.g.: streaming an enum type, validating, moving, or a
+ * post-persist stage), each with its start, duration, byte and record counts, retries, and
+ * errors. Phases are ended by closing them, so they can be used in try-with-resources blocks.
+ *
+ * <p>Runs and phases are also emitted as flight recorder events (see
+ * {@link RdsDataFlightEvents}).
+ */
+public class RdsDataRunReport {
+  static final String FORMAT = "RdsDataRunReport";
+  static final int VERSION = 1;
+
+  private final long startMillis;
+  private final long startNanos;
+  private final List<Phase> phases;
+  private long endNanos;
+  private String outcome;
+  private String message;
+  private long generation;
+  private final RdsDataFlightEvents.Event event;
+
+  /**
+   * A single phase of a run.
+   */
+  public final class Phase implements Closeable {
+    private final String name;
+    private final long phaseStartNanos;
+    private long phaseEndNanos;
+    private long firstByteNanos;
+    private long bytes;
+    private long records;
+    private int retries;
+    private final List<String> errors;
+    private final RdsDataFlightEvents.Event event;
+
+    private Phase(String name) {
+      this.name = name;
+      this.phaseStartNanos = System.nanoTime();
+      this.phaseEndNanos = -1;
+      this.firstByteNanos = -1;
+      this.errors = new ArrayList<>();
+      this.event = RdsDataFlightEvents.beginPhase(name);
+    }
+
+    /**
+     * Adds to the phase's byte count.
+     *
+     * <p>The first call with a positive count marks the phase's first byte.
+     *
+     * @param count The number of bytes to add.
+     */
+    public void addBytes(long count) {
+      synchronized (RdsDataRunReport.this) {
+        if (firstByteNanos < 0 && count > 0) {
+          firstByteNanos = System.nanoTime();
+        }
+        bytes += count;
+      }
+    }
+
+    /**
+     * Adds to the phase's record count.
+     *
+     * @param count The number of records to add.
+     */
+    public void addRecords(long count) {
+      synchronized (RdsDataRunReport.this) {
+        records += count;
+      }
+    }
+
+    /**
+     * Counts a retry within the phase.
+     */
+    public void addRetry() {
+      synchronized (RdsDataRunReport.this) {
+        retries++;
+      }
+    }
+
+    /**
+     * Records an error within the phase.
+     *
+     * @param error The error that occurred.
+     */
+    public void addError(Throwable error) {
+      synchronized (RdsDataRunReport.this) {
+        String description = error.toString();
+        if (!errors.contains(description)) {
+          errors.add(description);
+        }
+      }
+    }
+
+    /**
+     * Gets the phase's byte count.
+     *
+     * @return the number of bytes of the phase.
+     */
+    public long getBytes() {
+      synchronized (RdsDataRunReport.this) {
+        return bytes;
+      }
+    }
+
+    /**
+     * Ends the phase.
+     *
+     * <p>Ending an already ended phase has no effect.
+     */
+    @Override
+    public void close() {
+      synchronized (RdsDataRunReport.this) {
+        if (phaseEndNanos < 0) {
+          phaseEndNanos = System.nanoTime();
+          event.set("bytes", bytes).set("records", records).set("retries", retries)
+              .set("error", errors.isEmpty() ? null : errors.get(0))
+              .commit();
+        }
+      }
+    }
+
+    private JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      json.addProperty("name", name);
+      json.addProperty("startMillis", toMillis(phaseStartNanos - startNanos));
+      long end = (phaseEndNanos < 0) ? System.nanoTime() : phaseEndNanos;
+      json.addProperty("durationMillis", toMillis(end - phaseStartNanos));
+      if (firstByteNanos >= 0) {
+        json.addProperty("firstByteMillis", toMillis(firstByteNanos - phaseStartNanos));
+      }
+      json.addProperty("bytes", bytes);
+      json.addProperty("records", records);
+      json.addProperty("retries", retries);
+      JsonArray errorJson = new JsonArray();
+      for (String error : errors) {
+        errorJson.add(new JsonPrimitive(error));
+      }
+      json.add("errors", errorJson);
+      return json;
+    }
+  }
+
+  /**
+   * Creates a report for a run that starts now.
+   */
+  public RdsDataRunReport() {
+    this.startMillis = System.currentTimeMillis();
+    this.startNanos = System.nanoTime();
+    this.phases = new ArrayList<>();
+    this.endNanos = -1;
+    this.outcome = null;
+    this.message = null;
+    this.generation = 0;
+    this.event = RdsDataFlightEvents.beginRun();
+  }
+
+  /**
+   * Starts a phase.
+   *
+   * @param name The name of the phase.
+   * @return the started phase.
+   */
+  public synchronized Phase begin(String name) {
+    Phase phase = new Phase(name);
+    phases.add(phase);
+    return phase;
+  }
+
+  /**
+   * Records an error that ended the run.
+   *
+   * <p>As phases run one after the other, the error gets attributed to the most recently started
+   * phase.
+   *
+   * @param error The error that ended the run.
+   */
+  public synchronized void addError(Throwable error) {
+    if (!phases.isEmpty()) {
+      phases.get(phases.size() - 1).addError(error);
+    }
+  }
+
+  /**
+   * Sets how the run ended.
+   *
+   * @param outcome The app state that the run ended in (e.g.: {@code READY}).
+   * @param message Describes the outcome. Null, if there is nothing to describe.
+   */
+  public synchronized void setOutcome(String outcome, String message) {
+    this.outcome = outcome;
+    this.message = message;
+  }
+
+  /**
+   * Sets the generation that the run published.
+   *
+   * @param generation The published generation.
+   */
+  public synchronized void setGeneration(long generation) {
+    this.generation = generation;
+  }
+
+  /**
+   * Ends the run.
+   */
+  public synchronized void end() {
+    if (endNanos < 0) {
+      endNanos = System.nanoTime();
+      event.set("outcome", outcome).set("message", message).set("generation", generation)
+          .commit();
+    }
+  }
+
+  /**
+   * Gets how the run ended.
+   *
+   * @return the app state that the run ended in (e.g.: {@code READY}). Null, if it is not set.
+   */
+  public synchronized String getOutcome() {
+    return outcome;
+  }
+
+  /**
+   * Gets the wall clock time the run started at.
+   *
+   * @return the run's start in milliseconds since the epoch.
+   */
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  /**
+   * Serializes the report.
+   *
+   * @return the JSON representation of the report.
+   */
+  public synchronized JsonObject toJson() {
+    JsonObject json = new JsonObject();
+    json.addProperty("format", FORMAT);
+    json.addProperty("version", VERSION);
+    json.addProperty("startMillis", startMillis);
+    long end = (endNanos < 0) ? System.nanoTime() : endNanos;
+    json.addProperty("durationMillis", toMillis(end - startNanos));
+    if (outcome != null) {
+      json.addProperty("outcome", outcome);
+    }
+    if (message != null) {
+      json.addProperty("message", message);
+    }
+    if (generation > 0) {
+      json.addProperty("generation", generation);
+    }
+    JsonArray phaseJson = new JsonArray();
+    for (Phase phase : phases) {
+      phaseJson.add(phase.toJson());
+    }
+    json.add("phases", phaseJson);
+    return json;
+  }
+
+  private static long toMillis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+}
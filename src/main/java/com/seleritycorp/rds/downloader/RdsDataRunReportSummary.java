@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summarizes the durations of recent runs from their run reports.
+ *
+ * <p>For the runs as a whole and for each phase, the number of occurrences, the 50th, 90th,
+ * and 99th percentile and the maximum of the duration, the average bytes, and the total retries
+ * and errors get printed.
+ *
+ * <p>Usage: {@code java -cp RdsDataDownloader.jar
+ * com.seleritycorp.rds.downloader.RdsDataRunReportSummary <reportDirectory> [<runs>]}
+ */
+public class RdsDataRunReportSummary {
+  private static final String RUN = "(run)";
+
+  private static class Stats {
+    private final List<Long> durations = new ArrayList<>();
+    private long bytes;
+    private long retries;
+    private long errors;
+  }
+
+  /**
+   * Prints the summary of recent runs.
+   *
+   * @param args The report directory, and optionally the number of recent runs to summarize.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2 || "--help".equals(args[0])) {
+      System.err.println("Usage: java -cp RdsDataDownloader.jar "
+          + RdsDataRunReportSummary.class.getName() + " <reportDirectory> [<runs>]");
+      System.exit(1);
+    }
+    Path directory = Paths.get(args[0]);
+    int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+    summarize(RdsDataRunReports.readRecent(directory, runs), System.out);
+  }
+
+  /**
+   * Prints the summary of runs.
+   *
+   * @param reports The JSON representations of the runs' reports.
+   * @param out The stream to print the summary to.
+   */
+  public static void summarize(List<JsonObject> reports, PrintStream out) {
+    Map<String, Stats> stats = new TreeMap<>();
+    Map<String, Integer> outcomes = new TreeMap<>();
+    for (JsonObject report : reports) {
+      Stats runStats = stats.computeIfAbsent(RUN, key -> new Stats());
+      runStats.durations.add(getLong(report, "durationMillis"));
+      JsonElement outcome = report.get("outcome");
+      outcomes.merge((outcome == null) ? "UNKNOWN" : outcome.getAsString(), 1, Integer::sum);
+      JsonElement phases = report.get("phases");
+      if (phases != null) {
+        for (JsonElement element : phases.getAsJsonArray()) {
+          JsonObject phase = element.getAsJsonObject();
+          Stats phaseStats = stats.computeIfAbsent(phase.get("name").getAsString(),
+              key -> new Stats());
+          phaseStats.durations.add(getLong(phase, "durationMillis"));
+          phaseStats.bytes += getLong(phase, "bytes");
+          phaseStats.retries += getLong(phase, "retries");
+          JsonElement errors = phase.get("errors");
+          phaseStats.errors += (errors == null) ? 0 : errors.getAsJsonArray().size();
+        }
+      }
+    }
+
+    out.println("Runs: " + reports.size() + " " + outcomes);
+    out.println(String.format(Locale.ROOT, "%-32s %6s %9s %9s %9s %9s %12s %7s %6s", "phase",
+        "count", "p50 ms", "p90 ms", "p99 ms", "max ms", "avg bytes", "retries", "errors"));
+    for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+      Stats entryStats = entry.getValue();
+      List<Long> durations = entryStats.durations;
+      Collections.sort(durations);
+      out.println(String.format(Locale.ROOT, "%-32s %6d %9d %9d %9d %9d %12d %7d %6d",
+          entry.getKey(), durations.size(), percentile(durations, 50),
+          percentile(durations, 90), percentile(durations, 99),
+          durations.get(durations.size() - 1), entryStats.bytes / durations.size(),
+          entryStats.retries, entryStats.errors));
+    }
+  }
+
+  /**
+   * Computes a nearest-rank percentile.
+   *
+   * @param sorted The values to compute the percentile of, in ascending order. Has to be
+   *     non-empty.
+   * @param percentile The percentile to compute, between 1 and 100.
+   * @return the smallest value that is at least as large as the given percentage of values.
+   */
+  static long percentile(List<Long> sorted, int percentile) {
+    int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+    return sorted.get(Math.max(rank, 1) - 1);
+  }
+
+  private static long getLong(JsonObject json, String name) {
+    JsonElement element = json.get(name);
+    return (element == null) ? 0 : element.getAsLong();
+  }
+}
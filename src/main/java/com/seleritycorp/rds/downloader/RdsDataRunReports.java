@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Keeps a rolling history of run reports in the state directory.
+ *
+ * <p>Each finished run's {@link RdsDataRunReport} is written to its own file, named after the
+ * run's start, so the file names sort chronologically. Only the most recent reports are kept.
+ * {@link RdsDataRunReportSummary} summarizes the kept reports.
+ */
+@Singleton
+public class RdsDataRunReports {
+  private static final Log log = LogFactory.getLog(RdsDataRunReports.class);
+  static final String PREFIX = "run-";
+  static final String SUFFIX = ".json";
+
+  private final Path directory;
+  private final int history;
+  private RdsDataRunReport current;
+
+  /**
+   * Creates a history of run reports.
+   *
+   * @param appConfig The application config to use.
+   * @param appPaths The base paths to resolve the report directory against.
+   */
+  @Inject
+  public RdsDataRunReports(@ApplicationConfig Config appConfig, ApplicationPaths appPaths) {
+    this(ConfigUtils.subconfig(appConfig, "RdsDataDownloader.reports"), appPaths.getStatePath());
+  }
+
+  private RdsDataRunReports(Config config, Path statePath) {
+    this(statePath.resolve(config.get("directory", "reports")), config.getInt("history", 200));
+  }
+
+  /**
+   * Creates a history of run reports.
+   *
+   * @param directory The directory to keep the reports in.
+   * @param history The number of reports to keep.
+   */
+  RdsDataRunReports(Path directory, int history) {
+    this.directory = directory;
+    this.history = history;
+    this.current = null;
+  }
+
+  /**
+   * Gets the directory holding the reports.
+   *
+   * @return the report directory.
+   */
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Starts the report for a new run.
+   *
+   * @return the report of the new run.
+   */
+  public synchronized RdsDataRunReport start() {
+    current = new RdsDataRunReport();
+    return current;
+  }
+
+  /**
+   * Gets the report of the current run.
+   *
+   * @return the report of the current run. If no run is in progress, a fresh report that does
+   *     not get written.
+   */
+  public synchronized RdsDataRunReport getCurrent() {
+    return (current != null) ? current : new RdsDataRunReport();
+  }
+
+  /**
+   * Ends the current run and writes its report.
+   *
+   * <p>Failing to write the report is only logged, as reports must not fail runs.
+   */
+  public synchronized void finish() {
+    if (current == null) {
+      return;
+    }
+    RdsDataRunReport report = current;
+    current = null;
+    report.end();
+    Path file = directory.resolve(String.format(Locale.ROOT, "%s%013d%s", PREFIX,
+        report.getStartMillis(), SUFFIX));
+    try {
+      RdsDataFiles.writeAtomically(file,
+          report.toJson().toString().getBytes(StandardCharsets.UTF_8));
+      prune();
+    } catch (IOException e) {
+      log.warn("Failed to write run report " + file, e);
+    }
+  }
+
+  private void prune() throws IOException {
+    List<Path> reports = list(directory);
+    for (int i = 0; i < reports.size() - history; i++) {
+      Files.deleteIfExists(reports.get(i));
+    }
+  }
+
+  /**
+   * Lists the report files of a directory.
+   *
+   * @param directory The directory holding the reports.
+   * @return the report files, oldest first.
+   * @throws IOException if the directory cannot be listed.
+   */
+  static List<Path> list(Path directory) throws IOException {
+    List<Path> reports = new ArrayList<>();
+    if (Files.isDirectory(directory)) {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+          PREFIX + "*" + SUFFIX)) {
+        for (Path report : stream) {
+          reports.add(report);
+        }
+      }
+    }
+    Collections.sort(reports);
+    return reports;
+  }
+
+  /**
+   * Reads the most recent reports of a directory.
+   *
+   * <p>Unreadable reports are skipped.
+   *
+   * @param directory The directory holding the reports.
+   * @param count The maximum number of reports to read.
+   * @return the read reports, oldest first.
+   * @throws IOException if the directory cannot be listed.
+   */
+  public static List<JsonObject> readRecent(Path directory, int count) throws IOException {
+    List<Path> files = list(directory);
+    List<JsonObject> reports = new ArrayList<>();
+    for (Path file : files.subList(Math.max(0, files.size() - count), files.size())) {
+      try {
+        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        reports.add(new JsonParser().parse(content).getAsJsonObject());
+      } catch (IOException | JsonParseException | IllegalStateException e) {
+        log.warn("Skipping unreadable run report " + file, e);
+      }
+    }
+    return reports;
+  }
+}
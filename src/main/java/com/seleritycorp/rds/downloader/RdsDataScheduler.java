@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Schedules download runs in slots, without ever running them concurrently.
+ *
+ * <p>Slots are either every interval starting right away, or aligned to the wall clock (e.g.:
+ * at :05 each hour, for an interval of one hour and a slot offset of 5 minutes). Runs are
+ * executed on a dedicated thread. A slot that comes up while a run is still in progress is
+ * handled by the overlap policy:
+ *
+ * <ul>
+ * <li>{@code SKIP} drops the slot.</li>
+ * <li>{@code COALESCE} runs once right after the current run, no matter how many slots came up
+ * in the meantime.</li>
+ * <li>{@code QUEUE} runs once for each slot right after the current run, up to a limit of
+ * queued runs.</li>
+ * </ul>
+ *
+ * <p>Slots that do not get their own run are counted as {@code scheduler.missedSlots}, runs
+ * taking longer than the interval as {@code scheduler.overruns}. If a run deadline is set, runs
+ * exceeding it get interrupted and are counted as {@code scheduler.deadlinesExceeded}. Blocking
+ * calls that do not react to interrupts end only at their own timeouts.
+ *
+ * <p>Upon stopping, a run in progress gets a grace period to finish before it gets interrupted.
+ */
+@Singleton
+public class RdsDataScheduler implements RdsDataReconfigurable {
+  private static final Log log = LogFactory.getLog(RdsDataScheduler.class);
+  private static final long INTERRUPTED_RUN_WAIT_MILLIS = 5000;
+
+  /**
+   * Handling of slots that come up while a run is in progress.
+   */
+  public enum OverlapPolicy {
+    SKIP, COALESCE, QUEUE
+  }
+
+  private final RdsDataMetrics metrics;
+  private final RdsDataFlightRecorder flightRecorder;
+  private volatile long intervalMillis;
+  private volatile boolean aligned;
+  private volatile long slotOffsetMillis;
+  private volatile long runDeadlineMillis;
+  private volatile OverlapPolicy overlapPolicy;
+  private volatile int maxQueuedRuns;
+  private volatile long shutdownGraceMillis;
+
+  private ScheduledExecutorService timer;
+  private ExecutorService runner;
+  private Runnable run;
+  private ScheduledFuture<?> slotFuture;
+  private long nextSlotMillis;
+  private boolean running;
+  private int pendingRuns;
+  private long runId;
+  private Thread runThread;
+
+  /**
+   * Creates a scheduler for download runs.
+   *
+   * <p>The scheduler is initially stopped. You have to call
+   * {@link #start(ScheduledExecutorService, Runnable)} to start it.
+   *
+   * @param appConfig The application config to use.
+   * @param metrics The metrics to count missed slots, overruns, and exceeded deadlines to.
+   * @param flightRecorder gets dumped when runs exceed their deadline.
+   */
+  @Inject
+  public RdsDataScheduler(@ApplicationConfig Config appConfig, RdsDataMetrics metrics,
+      RdsDataFlightRecorder flightRecorder) {
+    this.metrics = metrics;
+    this.flightRecorder = flightRecorder;
+    this.timer = null;
+    this.runner = null;
+    this.slotFuture = null;
+    this.running = false;
+    this.pendingRuns = 0;
+    this.runId = 0;
+    this.runThread = null;
+    apply(appConfig);
+  }
+
+  private void apply(Config appConfig) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.lifecycle");
+    this.intervalMillis = config.getDurationMillis("interval", 3600, TimeUnit.SECONDS);
+    this.aligned = config.getBoolean("aligned", false);
+    this.slotOffsetMillis = config.getDurationMillis("slotOffset", 0, TimeUnit.SECONDS);
+    this.runDeadlineMillis = config.getDurationMillis("runDeadline", 0, TimeUnit.SECONDS);
+    this.overlapPolicy = OverlapPolicy.valueOf(
+        config.get("overlapPolicy", "SKIP").trim().toUpperCase(Locale.ROOT));
+    this.maxQueuedRuns = config.getInt("maxQueuedRuns", 3);
+    this.shutdownGraceMillis = config.getDurationMillis("shutdownGrace", 20, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Checks the scheduling settings of a reloaded config.
+   *
+   * @param appConfig The application config to check.
+   * @throws IllegalArgumentException if a setting is malformed, the interval is not positive,
+   *     the slot offset, the run deadline, or the shutdown grace period are negative, or less
+   *     than one run may be queued.
+   */
+  @Override
+  public void validate(Config appConfig) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.lifecycle");
+    long newIntervalMillis;
+    long newSlotOffsetMillis;
+    long newRunDeadlineMillis;
+    long newShutdownGraceMillis;
+    int newMaxQueuedRuns;
+    try {
+      newIntervalMillis = config.getDurationMillis("interval", 3600, TimeUnit.SECONDS);
+      newSlotOffsetMillis = config.getDurationMillis("slotOffset", 0, TimeUnit.SECONDS);
+      newRunDeadlineMillis = config.getDurationMillis("runDeadline", 0, TimeUnit.SECONDS);
+      newShutdownGraceMillis = config.getDurationMillis("shutdownGrace", 20, TimeUnit.SECONDS);
+      newMaxQueuedRuns = config.getInt("maxQueuedRuns", 3);
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("RdsDataDownloader.lifecycle holds a malformed "
+          + "setting", e);
+    }
+    try {
+      OverlapPolicy.valueOf(config.get("overlapPolicy", "SKIP").trim().toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("RdsDataDownloader.lifecycle.overlapPolicy has to be "
+          + "one of SKIP, COALESCE, or QUEUE", e);
+    }
+    if (newIntervalMillis <= 0) {
+      throw new IllegalArgumentException("RdsDataDownloader.lifecycle.interval is "
+          + newIntervalMillis + " milliseconds, but has to be positive");
+    }
+    if (newSlotOffsetMillis < 0) {
+      throw new IllegalArgumentException("RdsDataDownloader.lifecycle.slotOffset is "
+          + newSlotOffsetMillis + " milliseconds, but must not be negative");
+    }
+    if (newRunDeadlineMillis < 0) {
+      throw new IllegalArgumentException("RdsDataDownloader.lifecycle.runDeadline is "
+          + newRunDeadlineMillis + " milliseconds, but must not be negative");
+    }
+    if (newShutdownGraceMillis < 0) {
+      throw new IllegalArgumentException("RdsDataDownloader.lifecycle.shutdownGrace is "
+          + newShutdownGraceMillis + " milliseconds, but must not be negative");
+    }
+    if (newMaxQueuedRuns < 1) {
+      throw new IllegalArgumentException("RdsDataDownloader.lifecycle.maxQueuedRuns is "
+          + newMaxQueuedRuns + ", but has to be at least 1");
+    }
+  }
+
+  /**
+   * Applies the scheduling settings of a reloaded config.
+   *
+   * <p>If the slots changed, the next slot is one new interval from now, or the next aligned
+   * slot.
+   *
+   * @param appConfig The application config to apply.
+   */
+  @Override
+  public synchronized void reconfigure(Config appConfig) {
+    long oldIntervalMillis = intervalMillis;
+    boolean oldAligned = aligned;
+    long oldSlotOffsetMillis = slotOffsetMillis;
+    apply(appConfig);
+    if (oldIntervalMillis != intervalMillis || oldAligned != aligned
+        || oldSlotOffsetMillis != slotOffsetMillis) {
+      if (slotFuture != null) {
+        slotFuture.cancel(false);
+        long now = System.currentTimeMillis();
+        nextSlotMillis = aligned ? getSlotAtOrAfter(now + 1, intervalMillis, slotOffsetMillis)
+            : now + intervalMillis;
+        scheduleSlot();
+      }
+      log.info("Rescheduled RDS data downloads " + describeSlots());
+    }
+  }
+
+  /**
+   * Gets the first aligned slot that is not before a given time.
+   *
+   * @param millis The time in milliseconds since the epoch.
+   * @param intervalMillis The interval between slots.
+   * @param slotOffsetMillis The offset of the slots from multiples of the interval since the
+   *     epoch.
+   * @return the first slot in milliseconds since the epoch that is not before the given time.
+   */
+  public static long getSlotAtOrAfter(long millis, long intervalMillis, long slotOffsetMillis) {
+    long sinceSlot = Math.floorMod(millis - slotOffsetMillis, intervalMillis);
+    return (sinceSlot == 0) ? millis : millis - sinceSlot + intervalMillis;
+  }
+
+  /**
+   * Gets the interval between slots.
+   *
+   * @return the interval between slots in milliseconds.
+   */
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * Gets the next slot.
+   *
+   * @return the next slot in milliseconds since the epoch, or -1 if the scheduler is stopped.
+   */
+  public synchronized long getNextSlotMillis() {
+    return (timer == null) ? -1 : nextSlotMillis;
+  }
+
+  /**
+   * Gets the overlap policy.
+   *
+   * @return the handling of slots that come up while a run is in progress.
+   */
+  public OverlapPolicy getOverlapPolicy() {
+    return overlapPolicy;
+  }
+
+  /**
+   * Starts scheduling runs.
+   *
+   * @param timer The executor to time slots and deadlines on.
+   * @param run The run to execute in each slot.
+   */
+  public synchronized void start(ScheduledExecutorService timer, Runnable run) {
+    this.timer = timer;
+    this.run = run;
+    this.runner = Executors.newSingleThreadExecutor(
+        RdsDataThreads.newDaemonThreadFactory("RdsDataDownloader-run"));
+    long now = System.currentTimeMillis();
+    nextSlotMillis = aligned ? getSlotAtOrAfter(now, intervalMillis, slotOffsetMillis) : now;
+    scheduleSlot();
+    log.info("Scheduled RDS data downloads " + describeSlots());
+  }
+
+  private String describeSlots() {
+    String ret = "every " + intervalMillis + " " + TimeUnit.MILLISECONDS;
+    if (aligned) {
+      ret += " at an offset of " + slotOffsetMillis + " " + TimeUnit.MILLISECONDS;
+    }
+    return ret + " with overlap policy " + overlapPolicy;
+  }
+
+  private void scheduleSlot() {
+    long delay = Math.max(0, nextSlotMillis - System.currentTimeMillis());
+    slotFuture = timer.schedule(this::onSlot, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void onSlot() {
+    if (timer == null) {
+      return;
+    }
+    requestRun();
+    long now = System.currentTimeMillis();
+    long next = nextSlotMillis + intervalMillis;
+    if (next <= now) {
+      // The timer could not keep up (e.g.: the host got suspended), so slots passed unnoticed.
+      long skipped = (now - next) / intervalMillis + 1;
+      log.warn("Missed " + skipped + " slots, as the timer fell behind");
+      metrics.increment("scheduler.missedSlots", skipped);
+      next += skipped * intervalMillis;
+    }
+    nextSlotMillis = next;
+    scheduleSlot();
+  }
+
+  /**
+   * Requests a run outside of the slots.
+   *
+   * <p>The request is handled like a slot, so if a run is in progress, the overlap policy
+   * applies.
+   */
+  public synchronized void trigger() {
+    if (runner != null) {
+      requestRun();
+    }
+  }
+
+  private void requestRun() {
+    if (!running) {
+      startRun();
+      return;
+    }
+    boolean deferred = false;
+    switch (overlapPolicy) {
+      case COALESCE:
+        deferred = pendingRuns == 0;
+        break;
+      case QUEUE:
+        deferred = pendingRuns < maxQueuedRuns;
+        break;
+      default:
+        break;
+    }
+    if (deferred) {
+      pendingRuns++;
+      log.info("Deferring run, as the previous run is still in progress");
+    } else {
+      log.warn("Missing a slot, as the previous run is still in progress");
+      metrics.increment("scheduler.missedSlots", 1);
+    }
+  }
+
+  private void startRun() {
+    running = true;
+    long id = ++runId;
+    runner.execute(() -> execute(id));
+    if (runDeadlineMillis > 0) {
+      long deadlineMillis = runDeadlineMillis;
+      timer.schedule(() -> checkDeadline(id, deadlineMillis), deadlineMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void execute(long id) {
+    synchronized (this) {
+      runThread = Thread.currentThread();
+    }
+    long start = System.nanoTime();
+    try {
+      run.run();
+    } finally {
+      long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      synchronized (this) {
+        running = false;
+        runThread = null;
+        if (durationMillis > intervalMillis) {
+          log.warn("Run took " + durationMillis + " " + TimeUnit.MILLISECONDS
+              + ", which overruns the interval");
+          metrics.increment("scheduler.overruns", 1);
+        }
+        if (pendingRuns > 0 && runner != null) {
+          pendingRuns--;
+          startRun();
+        }
+      }
+      // Clearing a deadline's interrupt that came in after the run ended, so it does not hit
+      // the next run.
+      Thread.interrupted();
+    }
+  }
+
+  private void checkDeadline(long id, long deadlineMillis) {
+    synchronized (this) {
+      if (!running || runId != id || runThread == null) {
+        return;
+      }
+      log.error("Interrupting run, as it exceeded its deadline of " + deadlineMillis + " "
+          + TimeUnit.MILLISECONDS);
+      metrics.increment("scheduler.deadlinesExceeded", 1);
+    }
+    // Dumping before interrupting, so the recording shows what the run got stuck in. Dumping
+    // happens outside the lock, as it may take a while.
+    flightRecorder.dump("deadline");
+    synchronized (this) {
+      if (running && runId == id && runThread != null) {
+        runThread.interrupt();
+      }
+    }
+  }
+
+  /**
+   * Stops scheduling runs.
+   *
+   * <p>Deferred runs are dropped. A run in progress gets the shutdown grace period to finish.
+   * If it does not, it gets interrupted and waited for a few more seconds.
+   *
+   * @return true, if no run is in progress anymore. false, if the run in progress did not end
+   *     despite the interrupt.
+   */
+  public boolean stop() {
+    ExecutorService stoppedRunner;
+    synchronized (this) {
+      if (slotFuture != null) {
+        slotFuture.cancel(false);
+        slotFuture = null;
+      }
+      stoppedRunner = runner;
+      runner = null;
+      timer = null;
+      pendingRuns = 0;
+    }
+    if (stoppedRunner == null) {
+      return true;
+    }
+    // Waiting without holding the lock, as the ending run needs it.
+    stoppedRunner.shutdown();
+    try {
+      if (stoppedRunner.awaitTermination(shutdownGraceMillis, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+      log.warn("Interrupting run, as it did not finish within the shutdown grace period of "
+          + shutdownGraceMillis + " " + TimeUnit.MILLISECONDS);
+      stoppedRunner.shutdownNow();
+      if (stoppedRunner.awaitTermination(INTERRUPTED_RUN_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    log.error("Run did not end, despite being interrupted");
+    return false;
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Byte offsets of the per enum type sections within a persisted snapshot.
+ *
+ * <p>The index is built by a plain byte scan of the snapshot, so no JSON values get
+ * materialized.
+ */
+public class RdsDataSectionIndex {
+  private final long size;
+  private final Map<String, Section> sections;
+
+  /**
+   * Location of the value of a single enum type within a snapshot.
+   */
+  public static class Section {
+    private final long offset;
+    private final long length;
+
+    /**
+     * Creates a section location.
+     *
+     * @param offset The offset of the first byte of the section's value.
+     * @param length The number of bytes of the section's value.
+     */
+    public Section(long offset, long length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    /**
+     * Gets the offset of the section's value.
+     *
+     * @return the offset of the first byte of the section's value.
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * Gets the length of the section's value.
+     *
+     * @return the number of bytes of the section's value.
+     */
+    public long getLength() {
+      return length;
+    }
+  }
+
+  /**
+   * Creates an index of sections.
+   *
+   * @param size The size of the indexed snapshot in bytes.
+   * @param sections The sections by enum type.
+   */
+  public RdsDataSectionIndex(long size, Map<String, Section> sections) {
+    this.size = size;
+    this.sections = Collections.unmodifiableMap(new LinkedHashMap<>(sections));
+  }
+
+  /**
+   * Gets the size of the indexed snapshot.
+   *
+   * @return the size of the indexed snapshot in bytes.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the indexed enum types.
+   *
+   * @return the indexed enum types in the order they appear in the snapshot.
+   */
+  public Set<String> getEnumTypes() {
+    return sections.keySet();
+  }
+
+  /**
+   * Gets the section of an enum type.
+   *
+   * @param enumType The enum type to get the section for.
+   * @return the section of the enum type, or null if the enum type is not in the snapshot.
+   */
+  public Section getSection(String enumType) {
+    return sections.get(enumType);
+  }
+
+  /**
+   * Builds the section index for a snapshot file.
+   *
+   * @param file The snapshot to index.
+   * @return the index of the snapshot's sections.
+   * @throws IOException if the file cannot be read or is not a well-formed snapshot.
+   */
+  public static RdsDataSectionIndex build(Path file) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      return build(in);
+    } catch (IOException e) {
+      throw new IOException("Failed to index sections of " + file, e);
+    }
+  }
+
+  /**
+   * Builds the section index for a snapshot.
+   *
+   * @param in The stream to read the snapshot from.
+   * @return the index of the snapshot's sections.
+   * @throws IOException if the stream cannot be read or is not a well-formed snapshot.
+   */
+  public static RdsDataSectionIndex build(InputStream in) throws IOException {
+    Map<String, Section> sections = new LinkedHashMap<>();
+    long pos = -1;
+    int depth = 0;
+    boolean inString = false;
+    boolean escaped = false;
+    boolean afterColon = false;
+    boolean inData = false;
+    ByteArrayOutputStream key = null;
+    String lastKey = null;
+    String section = null;
+    long sectionStart = -1;
+    long lastSignificant = -1;
+
+    byte[] buffer = new byte[64 * 1024];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      for (int i = 0; i < count; i++) {
+        pos++;
+        byte current = buffer[i];
+        if (inString) {
+          if (escaped) {
+            escaped = false;
+          } else if (current == '\\') {
+            escaped = true;
+          } else if (current == '"') {
+            inString = false;
+            if (key != null) {
+              lastKey = decodeKey(key);
+              key = null;
+            }
+            if (inData && depth == 2) {
+              lastSignificant = pos;
+            }
+            continue;
+          }
+          if (key != null) {
+            key.write(current);
+          }
+          continue;
+        }
+
+        switch (current) {
+          case ' ':
+          case '\t':
+          case '\n':
+          case '\r':
+            continue;
+          case '"':
+            inString = true;
+            if ((depth == 1 || (inData && depth == 2)) && !afterColon) {
+              key = new ByteArrayOutputStream();
+            }
+            break;
+          case ':':
+            if (depth == 1 || (inData && depth == 2)) {
+              afterColon = true;
+              if (inData && depth == 2) {
+                section = lastKey;
+                sectionStart = -1;
+                continue;
+              }
+            }
+            break;
+          case ',':
+            if (depth == 1 || (inData && depth == 2)) {
+              afterColon = false;
+              if (inData && depth == 2) {
+                addSection(sections, section, sectionStart, lastSignificant);
+                section = null;
+                continue;
+              }
+            }
+            break;
+          case '{':
+          case '[':
+            depth++;
+            if (depth == 2 && current == '{' && "data".equals(lastKey) && afterColon) {
+              inData = true;
+              afterColon = false;
+              lastKey = null;
+              continue;
+            }
+            if (depth == 1) {
+              afterColon = false;
+            }
+            break;
+          case '}':
+          case ']':
+            depth--;
+            if (depth < 0) {
+              throw new IOException("Unbalanced closing bracket at offset " + pos);
+            }
+            if (inData && depth == 1) {
+              addSection(sections, section, sectionStart, lastSignificant);
+              section = null;
+              inData = false;
+              afterColon = false;
+              continue;
+            }
+            break;
+          default:
+            break;
+        }
+
+        // current is a significant byte on the level of the section values. Opening brackets
+        // have already increased the depth at this point.
+        if (inData && (depth == 2 || (depth == 3 && (current == '{' || current == '[')))) {
+          if (section != null && sectionStart < 0) {
+            sectionStart = pos;
+          }
+          lastSignificant = pos;
+        }
+      }
+    }
+    if (depth != 0 || inString) {
+      throw new IOException("Snapshot ended prematurely at offset " + pos);
+    }
+    return new RdsDataSectionIndex(pos + 1, sections);
+  }
+
+  private static void addSection(Map<String, Section> sections, String name, long start,
+      long lastSignificant) throws IOException {
+    if (name != null) {
+      if (start < 0) {
+        throw new IOException("Missing value for enum type " + name);
+      }
+      sections.put(name, new Section(start, lastSignificant + 1 - start));
+    }
+  }
+
+  private static String decodeKey(ByteArrayOutputStream key) throws IOException {
+    String raw = new String(key.toByteArray(), StandardCharsets.UTF_8);
+    if (raw.indexOf('\\') < 0) {
+      return raw;
+    }
+    try {
+      return new JsonParser().parse("\"" + raw + "\"").getAsString();
+    } catch (JsonParseException e) {
+      throw new IOException("Malformed key " + raw, e);
+    }
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Target that files can be appended to without copying them through the JVM.
+ */
+public interface RdsDataSegmentSink {
+  /**
+   * Appends a file's content right behind what has been written so far.
+   *
+   * @param file The file to append.
+   * @throws IOException if reading or appending fails.
+   */
+  void append(Path file) throws IOException;
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Durable store of the most recently fetched data of each enum type.
+ *
+ * <p>Each enum type's data is kept as a segment file ({@code <enumType>.json}) along with a
+ * meta file ({@code <enumType>.json.meta}) holding its size, SHA-256 digest, and fetch time.
+ * Segments get written to a temporary file first and are moved into place atomically, and the
+ * meta file follows. A segment whose meta file does not match its size or digest is considered
+ * missing.
+ *
+ * <p>Segments fetched after the last publish belong to an unfinished run and can be resumed
+ * from, as long as they are not too old.
+ */
+@Singleton
+public class RdsDataSegmentStore {
+  private static final Log log = LogFactory.getLog(RdsDataSegmentStore.class);
+
+  private final boolean enabled;
+  private final Path directory;
+  private final long maxResumeAgeMillis;
+  private final boolean force;
+
+  /**
+   * Content to write into a segment.
+   */
+  public interface Content {
+    /**
+     * Writes the content.
+     *
+     * @param writer The writer to write the content to.
+     * @throws Exception if producing or writing the content fails.
+     */
+    void writeTo(Writer writer) throws Exception;
+  }
+
+  /**
+   * Stored data of an enum type.
+   */
+  public static class Segment {
+    private final String enumType;
+    private final Path path;
+    private final long size;
+    private final String sha256;
+    private final long fetchedMillis;
+
+    /**
+     * Creates a segment description.
+     *
+     * @param enumType The enum type whose data the segment holds.
+     * @param path The segment file.
+     * @param size The size of the segment in bytes.
+     * @param sha256 The hex encoded SHA-256 digest of the segment.
+     * @param fetchedMillis The epoch millis at which the segment got fetched.
+     */
+    public Segment(String enumType, Path path, long size, String sha256, long fetchedMillis) {
+      this.enumType = enumType;
+      this.path = path;
+      this.size = size;
+      this.sha256 = sha256;
+      this.fetchedMillis = fetchedMillis;
+    }
+
+    /**
+     * Gets the enum type whose data the segment holds.
+     *
+     * @return the enum type whose data the segment holds.
+     */
+    public String getEnumType() {
+      return enumType;
+    }
+
+    /**
+     * Gets the segment file.
+     *
+     * @return the segment file.
+     */
+    public Path getPath() {
+      return path;
+    }
+
+    /**
+     * Gets the size of the segment.
+     *
+     * @return the size of the segment in bytes.
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * Gets the SHA-256 digest of the segment.
+     *
+     * @return the hex encoded SHA-256 digest of the segment.
+     */
+    public String getSha256() {
+      return sha256;
+    }
+
+    /**
+     * Gets when the segment got fetched.
+     *
+     * @return the epoch millis at which the segment got fetched.
+     */
+    public long getFetchedMillis() {
+      return fetchedMillis;
+    }
+  }
+
+  /**
+   * Creates a segment store.
+   *
+   * @param appConfig The application config to use.
+   * @param appPaths The base paths to keep segments in.
+   */
+  @Inject
+  public RdsDataSegmentStore(@ApplicationConfig Config appConfig, ApplicationPaths appPaths) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.segments");
+    this.enabled = config.getBoolean("enabled", false);
+    this.directory = appPaths.getStatePath().resolve(config.get("directory", "rds-segments"));
+    // By default, only segments from a run that broke off recently are resumed from. Segments
+    // as old as a full fetch interval would be about as stale as the data they'd replace.
+    long intervalMillis = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.lifecycle")
+        .getDurationMillis("interval", 3600, TimeUnit.SECONDS);
+    long defaultMaxResumeAgeSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(
+        intervalMillis / 10));
+    this.maxResumeAgeMillis = config.getDurationMillis("maxResumeAge",
+        defaultMaxResumeAgeSeconds, TimeUnit.SECONDS);
+    this.force = config.getBoolean("force", true);
+  }
+
+  /**
+   * Checks whether fetched data should be kept in the store.
+   *
+   * @return true, if fetched data should be kept in the store.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Gets the directory holding the segments.
+   *
+   * @return the directory holding the segments.
+   */
+  public Path getDirectory() {
+    return directory;
+  }
+
+  private Path getPath(String enumType) {
+    return directory.resolve(enumType + ".json");
+  }
+
+  private Path getMetaPath(String enumType) {
+    return directory.resolve(enumType + ".json.meta");
+  }
+
+  private Path getPublishedPath() {
+    return directory.resolve("published");
+  }
+
+  /**
+   * Gets the segment of an enum type.
+   *
+   * <p>The segment's digest gets recomputed and compared against its meta file, so a segment
+   * that got corrupted on disk is not reused.
+   *
+   * @param enumType The enum type to get the segment for.
+   * @return the segment of the enum type, or null if there is none or it is inconsistent.
+   * @throws IOException if reading the segment or its meta file fails.
+   */
+  public Segment get(String enumType) throws IOException {
+    Path path = getPath(enumType);
+    Path metaPath = getMetaPath(enumType);
+    JsonObject meta;
+    long actualSize;
+    try {
+      meta = new JsonParser().parse(new String(Files.readAllBytes(metaPath),
+          StandardCharsets.UTF_8)).getAsJsonObject();
+      actualSize = Files.size(path);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (JsonParseException | IllegalStateException e) {
+      log.warn("Ignoring segment " + path + ", as its meta file is malformed", e);
+      return null;
+    }
+    try {
+      Segment segment = new Segment(enumType, path, meta.get("size").getAsLong(),
+          meta.get("sha256").getAsString(), meta.get("fetchedMillis").getAsLong());
+      if (segment.getSize() != actualSize) {
+        log.warn("Ignoring segment " + path + ", as it has " + actualSize + " bytes instead of "
+            + segment.getSize());
+        return null;
+      }
+      String actualSha256 = computeSha256(path);
+      if (actualSha256 == null) {
+        return null;
+      }
+      if (!actualSha256.equals(segment.getSha256())) {
+        log.warn("Ignoring segment " + path + ", as its SHA-256 is " + actualSha256
+            + " instead of " + segment.getSha256());
+        return null;
+      }
+      return segment;
+    } catch (NullPointerException | IllegalStateException | UnsupportedOperationException e) {
+      log.warn("Ignoring segment " + path + ", as its meta file is incomplete", e);
+      return null;
+    }
+  }
+
+  private String computeSha256(Path path) throws IOException {
+    MessageDigest digest = RdsDataFiles.newSha256();
+    byte[] buffer = new byte[8192];
+    try (InputStream in = new DigestInputStream(Files.newInputStream(path), digest)) {
+      while (in.read(buffer) != -1) {
+        // Only reading for the digest.
+      }
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    return RdsDataFiles.toHex(digest.digest());
+  }
+
+  /**
+   * Gets the segment of an enum type, if an unfinished run can resume from it.
+   *
+   * @param enumType The enum type to get the segment for.
+   * @return the segment of the enum type, if it got fetched after the last publish and is not
+   *     too old. Otherwise, null.
+   * @throws IOException if reading the store fails.
+   */
+  public Segment getResumable(String enumType) throws IOException {
+    Segment segment = get(enumType);
+    if (segment == null || segment.getFetchedMillis() <= getPublishedMillis()) {
+      return null;
+    }
+    long ageMillis = System.currentTimeMillis() - segment.getFetchedMillis();
+    if (ageMillis >= maxResumeAgeMillis) {
+      log.info("Not resuming from segment " + segment.getPath() + ", as it is " + ageMillis
+          + " " + TimeUnit.MILLISECONDS + " old");
+      return null;
+    }
+    return segment;
+  }
+
+  /**
+   * Writes the segment of an enum type.
+   *
+   * <p>If writing fails, the previous segment of the enum type stays in place.
+   *
+   * @param enumType The enum type to write the segment for.
+   * @param content The content of the segment.
+   * @return the written segment.
+   * @throws Exception if producing or writing the content fails.
+   */
+  public Segment write(String enumType, Content content) throws Exception {
+    Files.createDirectories(directory);
+    Path path = getPath(enumType);
+    Path tmpPath = directory.resolve(path.getFileName() + ".tmp");
+    MessageDigest digest = RdsDataFiles.newSha256();
+    try {
+      try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+          new DigestOutputStream(Files.newOutputStream(tmpPath), digest),
+          StandardCharsets.UTF_8))) {
+        content.writeTo(writer);
+      }
+      if (force) {
+        RdsDataFiles.force(tmpPath);
+      }
+    } catch (Exception e) {
+      Files.deleteIfExists(tmpPath);
+      throw e;
+    }
+    Segment segment = new Segment(enumType, path, Files.size(tmpPath),
+        RdsDataFiles.toHex(digest.digest()), System.currentTimeMillis());
+    Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+
+    JsonObject meta = new JsonObject();
+    meta.addProperty("enumType", enumType);
+    meta.addProperty("size", segment.getSize());
+    meta.addProperty("sha256", segment.getSha256());
+    meta.addProperty("fetchedMillis", segment.getFetchedMillis());
+    RdsDataFiles.writeAtomically(getMetaPath(enumType),
+        meta.toString().getBytes(StandardCharsets.UTF_8), force);
+    return segment;
+  }
+
+  /**
+   * Marks all segments as published.
+   *
+   * <p>Afterwards, no segment is resumable until new segments get written.
+   *
+   * @throws IOException if the mark cannot be written.
+   */
+  public void markPublished() throws IOException {
+    RdsDataFiles.writeAtomically(getPublishedPath(),
+        Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8), force);
+  }
+
+  /**
+   * Gets when segments got last marked as published.
+   *
+   * @return the epoch millis of the last publish, or 0 if it is unknown.
+   * @throws IOException if reading the mark fails.
+   */
+  public long getPublishedMillis() throws IOException {
+    try {
+      return Long.parseLong(new String(Files.readAllBytes(getPublishedPath()),
+          StandardCharsets.UTF_8).trim());
+    } catch (NoSuchFileException e) {
+      return 0;
+    } catch (NumberFormatException e) {
+      log.warn("Ignoring malformed publish mark " + getPublishedPath(), e);
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonObject;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Embedded HTTP server that serves the most recently persisted snapshot to local readers.
+ *
+ * <p>Besides the full snapshot, single enum type sections can be fetched. Responses carry an
+ * ETag for cheap conditional polling and honor single byte ranges. If a gzipped copy of the
+ * snapshot exists next to it, it is passed through to clients accepting gzip.
+ *
+ * <p>Consumers can block on new generations by long-polling the generation endpoint, which
+ * answers as soon as a generation newer than the one passed in has been published. Waiting
+ * requests are handed off to a separate, bounded pool, so they never hold up other endpoints.
+ *
+ * <p>The health endpoint reports the freshness of each enum type. It answers with 503 if the
+ * freshness is {@code FAULTY}, so plain HTTP checks can alert on it.
+ */
+@Singleton
+public class RdsDataServer implements RdsDataSnapshotListener {
+  private static final Log log = LogFactory.getLog(RdsDataServer.class);
+
+  static final String SNAPSHOT_PATH = "/rds-data.json";
+  static final String SECTIONS_PATH = "/sections";
+  static final String MANIFEST_PATH = "/manifest";
+  static final String GENERATION_PATH = "/generation";
+  static final String METRICS_PATH = "/metrics";
+  static final String HEALTH_PATH = "/health";
+
+  private final boolean enabled;
+  private final String address;
+  private final int port;
+  private final int threads;
+  private final long maxLongPollMillis;
+  private final int maxLongPolls;
+  private final RdsDataPersister persister;
+  private final RdsDataGenerationNotifier notifier;
+  private final RdsDataMetrics metrics;
+  private final RdsDataFreshness freshness;
+  private volatile Served served;
+  private HttpServer server;
+  private ExecutorService executor;
+  private ExecutorService longPollExecutor;
+
+  /**
+   * Snapshot as it is currently served.
+   */
+  private static class Served {
+    private final RdsDataSnapshot snapshot;
+    private final Path path;
+    private final Path gzipPath;
+    private final long size;
+    private final long lastModified;
+    private final Object fileKey;
+    private final String etag;
+    private final RdsDataSectionIndex index;
+
+    private Served(RdsDataSnapshot snapshot, BasicFileAttributes attributes,
+        RdsDataSectionIndex index) {
+      this.snapshot = snapshot;
+      this.path = snapshot.getPath();
+      this.gzipPath = Paths.get(path.toString() + ".gz");
+      this.size = index.getSize();
+      this.lastModified = attributes.lastModifiedTime().toMillis();
+      this.fileKey = attributes.fileKey();
+      this.etag = Long.toHexString(snapshot.getGeneration()) + "-" + Long.toHexString(size) + "-"
+          + Long.toHexString(lastModified);
+      this.index = index;
+    }
+
+    /**
+     * Checks whether file attributes describe the served file.
+     *
+     * <p>The file key (e.g.: device and inode) tells replacements apart even if they have the
+     * same size. On platforms without file keys, size and modification time have to do.
+     *
+     * @param attributes The attributes to check.
+     * @return true, if the attributes describe the served file.
+     */
+    private boolean isServedFile(BasicFileAttributes attributes) {
+      return attributes.size() == size
+          && attributes.lastModifiedTime().toMillis() == lastModified
+          && (fileKey == null || fileKey.equals(attributes.fileKey()));
+    }
+  }
+
+  /**
+   * Creates a server for persisted snapshots.
+   *
+   * @param appConfig The application config to use.
+   * @param persister The persister whose target gets served.
+   * @param notifier The notifier to long-poll for new generations.
+   * @param metrics The metrics to expose.
+   * @param freshness The freshness tracker to expose.
+   */
+  @Inject
+  public RdsDataServer(@ApplicationConfig Config appConfig, RdsDataPersister persister,
+      RdsDataGenerationNotifier notifier, RdsDataMetrics metrics, RdsDataFreshness freshness) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.server");
+    this.enabled = config.getBoolean("enabled", false);
+    this.address = config.get("address", "127.0.0.1");
+    this.port = config.getInt("port", 8280);
+    this.threads = config.getInt("threads", 4);
+    this.maxLongPollMillis = config.getDurationMillis("maxLongPoll", 60, TimeUnit.SECONDS);
+    this.maxLongPolls = config.getInt("maxLongPolls", 64);
+    this.persister = persister;
+    this.notifier = notifier;
+    this.metrics = metrics;
+    this.freshness = freshness;
+    this.served = null;
+  }
+
+  @Override
+  public String getName() {
+    return "server";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void onSnapshot(RdsDataSnapshot snapshot) throws IOException {
+    serve(snapshot);
+  }
+
+  private void serve(RdsDataSnapshot snapshot) throws IOException {
+    Path path = snapshot.getPath();
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    RdsDataSectionIndex index = snapshot.getIndex();
+    if (index == null || index.getSize() != attributes.size()) {
+      index = RdsDataSectionIndex.build(path);
+    }
+    served = new Served(snapshot, attributes, index);
+  }
+
+  /**
+   * Starts serving.
+   *
+   * <p>If a snapshot from a previous run is available, it is served right away.
+   *
+   * @throws IOException if the server cannot be started.
+   */
+  @Override
+  public synchronized void start() throws IOException {
+    Path target = persister.getTarget();
+    if (Files.isRegularFile(target)) {
+      try {
+        RdsDataSnapshot snapshot = new RdsDataSnapshot(target, Files.size(target));
+        if (Files.isRegularFile(RdsDataManifest.getPath(target))) {
+          snapshot = RdsDataManifest.read(target);
+        }
+        serve(snapshot);
+      } catch (IOException e) {
+        log.warn("Not serving existing snapshot " + target, e);
+      }
+    }
+
+    executor = Executors.newFixedThreadPool(threads,
+        RdsDataThreads.newDaemonThreadFactory("RdsDataServer"));
+    // Without a queue, long-polls beyond the maximum get rejected right away instead of waiting
+    // for a thread.
+    longPollExecutor = new ThreadPoolExecutor(0, Math.max(1, maxLongPolls), 60, TimeUnit.SECONDS,
+        new SynchronousQueue<>(), RdsDataThreads.newDaemonThreadFactory("RdsDataServer-longPoll"));
+    server = HttpServer.create(new InetSocketAddress(address, port), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+    log.info("Serving RDS data on " + server.getAddress());
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (server != null) {
+      server.stop(0);
+      server = null;
+      executor.shutdown();
+      executor = null;
+      longPollExecutor.shutdownNow();
+      longPollExecutor = null;
+    }
+  }
+
+  /**
+   * Gets the port the server is listening on.
+   *
+   * @return the port the server is listening on, or -1 if the server is not running.
+   */
+  public synchronized int getPort() {
+    return (server == null) ? -1 : server.getAddress().getPort();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    boolean handedOff = false;
+    try {
+      String method = exchange.getRequestMethod();
+      if (!"GET".equals(method) && !"HEAD".equals(method)) {
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        sendText(exchange, 405, "Method not allowed");
+        return;
+      }
+      String path = exchange.getRequestURI().getPath();
+      Served current = served;
+      if (GENERATION_PATH.equals(path)) {
+        handedOff = handleGeneration(exchange);
+      } else if (METRICS_PATH.equals(path)) {
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        send(exchange, 200, "application/json",
+            metrics.toJson().toString().getBytes(StandardCharsets.UTF_8));
+      } else if (HEALTH_PATH.equals(path)) {
+        handleHealth(exchange);
+      } else if (current == null) {
+        sendText(exchange, 503, "No snapshot available yet");
+      } else if (SNAPSHOT_PATH.equals(path) || "/".equals(path)) {
+        handleSnapshot(exchange, current);
+      } else if (MANIFEST_PATH.equals(path)) {
+        exchange.getResponseHeaders().set("ETag", "\"" + current.etag + "\"");
+        send(exchange, 200, "application/json", RdsDataManifest.toJson(current.snapshot)
+            .toString().getBytes(StandardCharsets.UTF_8));
+      } else if (SECTIONS_PATH.equals(path)) {
+        handleSectionList(exchange, current);
+      } else if (path.startsWith(SECTIONS_PATH + "/")) {
+        handleSection(exchange, current, path.substring(SECTIONS_PATH.length() + 1));
+      } else {
+        sendText(exchange, 404, "Not found");
+      }
+    } catch (IOException | RuntimeException e) {
+      log.warn("Failed to serve " + exchange.getRequestURI(), e);
+      throw e;
+    } finally {
+      if (!handedOff) {
+        exchange.close();
+      }
+    }
+  }
+
+  private void handleHealth(HttpExchange exchange) throws IOException {
+    if (!freshness.isEnabled()) {
+      sendText(exchange, 404, "Not found");
+      return;
+    }
+    JsonObject health = freshness.check();
+    boolean faulty = "FAULTY".equals(health.get("state").getAsString());
+    exchange.getResponseHeaders().set("Cache-Control", "no-store");
+    send(exchange, faulty ? 503 : 200, "application/json",
+        health.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void handleSnapshot(HttpExchange exchange, Served current) throws IOException {
+    Headers requestHeaders = exchange.getRequestHeaders();
+    Headers responseHeaders = exchange.getResponseHeaders();
+    responseHeaders.set("Vary", "Accept-Encoding");
+    if (requestHeaders.getFirst("Range") == null && acceptsGzip(requestHeaders)) {
+      try (FileChannel channel = FileChannel.open(current.gzipPath, StandardOpenOption.READ)) {
+        if (Files.getLastModifiedTime(current.gzipPath).toMillis()
+            >= Files.getLastModifiedTime(current.path).toMillis()) {
+          responseHeaders.set("Content-Encoding", "gzip");
+          sendChannel(exchange, current, "\"" + current.etag + "-gzip\"", channel, 0,
+              channel.size(), "application/json");
+          return;
+        }
+      } catch (NoSuchFileException e) {
+        // No gzipped copy, so we fall back to the plain snapshot.
+      }
+    }
+    try (FileChannel channel = openSnapshot(exchange, current)) {
+      if (channel != null) {
+        sendChannel(exchange, current, "\"" + current.etag + "\"", channel, 0, current.size,
+            "application/json");
+      }
+    }
+  }
+
+  /**
+   * Answers once a generation newer than the {@code after} parameter has been published.
+   *
+   * <p>The response is the manifest of the newer generation. If no newer generation gets
+   * published within the {@code timeoutMillis} parameter (capped by the configured maximum), the
+   * response is 204.
+   *
+   * <p>Waiting happens on the long-poll pool, so the server's threads stay available. If the
+   * configured number of long-polls is already waiting, the response is 503.
+   *
+   * @return true, if the exchange has been handed off to the long-poll pool, which then answers
+   *     and closes it. False, if the exchange has already been answered.
+   */
+  private boolean handleGeneration(HttpExchange exchange) throws IOException {
+    long after;
+    long timeoutMillis;
+    try {
+      after = Long.parseLong(getQueryParameter(exchange, "after", "0"));
+      timeoutMillis = Math.min(Long.parseLong(
+          getQueryParameter(exchange, "timeoutMillis", Long.toString(maxLongPollMillis))),
+          maxLongPollMillis);
+    } catch (NumberFormatException e) {
+      sendText(exchange, 400, "Malformed parameter: " + e.getMessage());
+      return false;
+    }
+    ExecutorService pool;
+    synchronized (this) {
+      pool = longPollExecutor;
+    }
+    try {
+      if (pool != null) {
+        pool.execute(() -> awaitGeneration(exchange, after, timeoutMillis));
+        return true;
+      }
+    } catch (RejectedExecutionException e) {
+      // All long-poll threads are busy (or the server is stopping). Fall through to 503.
+    }
+    metrics.increment("server.longPollsRejected", 1);
+    exchange.getResponseHeaders().set("Retry-After", "1");
+    sendText(exchange, 503, "Too many waiting requests");
+    return false;
+  }
+
+  private void awaitGeneration(HttpExchange exchange, long after, long timeoutMillis) {
+    try {
+      respondGeneration(exchange, after, timeoutMillis);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Failed to serve " + exchange.getRequestURI(), e);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void respondGeneration(HttpExchange exchange, long after, long timeoutMillis)
+      throws IOException {
+    RdsDataSnapshot snapshot;
+    try {
+      snapshot = notifier.awaitNewerThan(after, timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      sendText(exchange, 503, "Server is shutting down");
+      return;
+    }
+    exchange.getResponseHeaders().set("Cache-Control", "no-store");
+    if (snapshot == null) {
+      exchange.sendResponseHeaders(204, -1);
+    } else {
+      send(exchange, 200, "application/json",
+          RdsDataManifest.toJson(snapshot).toString().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private String getQueryParameter(HttpExchange exchange, String name, String defaultValue) {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        int equals = parameter.indexOf('=');
+        if (equals > 0 && name.equals(parameter.substring(0, equals))) {
+          return parameter.substring(equals + 1);
+        }
+      }
+    }
+    return defaultValue;
+  }
+
+  private void handleSectionList(HttpExchange exchange, Served current) throws IOException {
+    JsonObject body = new JsonObject();
+    body.add("sections", RdsDataManifest.toJson(current.index));
+    exchange.getResponseHeaders().set("ETag", "\"" + current.etag + "\"");
+    send(exchange, 200, "application/json", body.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void handleSection(HttpExchange exchange, Served current, String enumType)
+      throws IOException {
+    RdsDataSectionIndex.Section section = current.index.getSection(enumType);
+    if (section == null) {
+      sendText(exchange, 404, "Unknown enum type " + enumType);
+      return;
+    }
+    try (FileChannel channel = openSnapshot(exchange, current)) {
+      if (channel != null) {
+        sendChannel(exchange, current, "\"" + current.etag + "-" + enumType + "\"", channel,
+            section.getOffset(), section.getLength(), "application/json");
+      }
+    }
+  }
+
+  /**
+   * Opens the served snapshot.
+   *
+   * <p>As the target gets replaced atomically, an opened channel always refers to a complete
+   * snapshot. But it may be a newer one than the served state describes, in which case the client
+   * is asked to retry. The check runs after opening: if the path still refers to the served file
+   * then, it did so when opening too, as replacements only ever move newer files into place.
+   *
+   * @return the opened channel, or null if the request has already been answered.
+   */
+  private FileChannel openSnapshot(HttpExchange exchange, Served current) throws IOException {
+    FileChannel channel = FileChannel.open(current.path, StandardOpenOption.READ);
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(current.path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    if (!current.isServedFile(attributes)) {
+      channel.close();
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      sendText(exchange, 503, "Snapshot is getting replaced");
+      return null;
+    }
+    return channel;
+  }
+
+  private boolean acceptsGzip(Headers requestHeaders) {
+    String acceptEncoding = requestHeaders.getFirst("Accept-Encoding");
+    if (acceptEncoding != null) {
+      for (String coding : acceptEncoding.split(",")) {
+        String[] parts = coding.trim().split(";");
+        if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+          return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+        }
+      }
+    }
+    return false;
+  }
+
+  private void sendChannel(HttpExchange exchange, Served current, String etag,
+      FileChannel channel, long offset, long length, String contentType) throws IOException {
+    Headers requestHeaders = exchange.getRequestHeaders();
+    Headers responseHeaders = exchange.getResponseHeaders();
+    responseHeaders.set("ETag", etag);
+    responseHeaders.set("Accept-Ranges", "bytes");
+    responseHeaders.set("Content-Type", contentType);
+
+    String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+    if (ifNoneMatch != null && matchesEtag(ifNoneMatch, etag)) {
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+
+    int status = 200;
+    long start = 0;
+    long count = length;
+    String range = requestHeaders.getFirst("Range");
+    if (range != null) {
+      long[] parsed = parseRange(range, length);
+      if (parsed == null) {
+        // Multiple or malformed ranges. Serving the full content is always valid.
+      } else if (parsed.length == 0) {
+        responseHeaders.set("Content-Range", "bytes */" + length);
+        sendText(exchange, 416, "Range not satisfiable");
+        return;
+      } else {
+        status = 206;
+        start = parsed[0];
+        count = parsed[1] - parsed[0] + 1;
+        responseHeaders.set("Content-Range",
+            "bytes " + parsed[0] + "-" + parsed[1] + "/" + length);
+      }
+    }
+
+    if ("HEAD".equals(exchange.getRequestMethod()) || count == 0) {
+      responseHeaders.set("Content-Length", Long.toString(count));
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, count);
+    // The JDK server only exposes the response as a stream, so this is a plain buffered copy from
+    // the file to the socket, not a zero-copy transfer.
+    try (OutputStream body = exchange.getResponseBody()) {
+      WritableByteChannel target = Channels.newChannel(body);
+      long position = offset + start;
+      long remaining = count;
+      while (remaining > 0) {
+        long transferred = channel.transferTo(position, remaining, target);
+        if (transferred <= 0) {
+          throw new IOException("Snapshot " + current.path + " ended prematurely");
+        }
+        position += transferred;
+        remaining -= transferred;
+      }
+    }
+  }
+
+  private boolean matchesEtag(String ifNoneMatch, String etag) {
+    for (String candidate : ifNoneMatch.split(",")) {
+      String trimmed = candidate.trim();
+      if (trimmed.startsWith("W/")) {
+        trimmed = trimmed.substring(2);
+      }
+      if ("*".equals(trimmed) || etag.equals(trimmed)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses a byte range header.
+   *
+   * @param range The value of the Range header.
+   * @param length The length of the representation.
+   * @return null for multiple or malformed ranges, the empty array for unsatisfiable ranges,
+   *     and first and last (inclusive) position otherwise.
+   */
+  static long[] parseRange(String range, long length) {
+    String spec = range.trim();
+    if (!spec.startsWith("bytes=") || spec.indexOf(',') >= 0) {
+      return null;
+    }
+    spec = spec.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      long start;
+      long end;
+      if (first.isEmpty()) {
+        if (last.isEmpty()) {
+          return null;
+        }
+        long suffix = Long.parseLong(last);
+        if (suffix == 0) {
+          return new long[0];
+        }
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(first);
+        end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+        if (end < start && !last.isEmpty() && Long.parseLong(last) < start) {
+          return null;
+        }
+      }
+      if (start >= length) {
+        return new long[0];
+      }
+      return new long[] {start, end};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private void sendText(HttpExchange exchange, int status, String text) throws IOException {
+    send(exchange, status, "text/plain; charset=utf-8",
+        (text + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void send(HttpExchange exchange, int status, String contentType, byte[] body)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      exchange.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
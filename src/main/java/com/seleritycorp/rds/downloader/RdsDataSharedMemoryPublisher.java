@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.CONTROL_SIZE;
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.DATA_SIZE_OFFSET;
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.FLAGS_OFFSET;
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.FLAG_KEY_VALUE;
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.GENERATION_OFFSET;
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.KEY_VALUE_SIZE_OFFSET;
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.MAGIC;
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.MAGIC_OFFSET;
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.SEQUENCE_OFFSET;
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.TIMESTAMP_OFFSET;
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.VERSION;
+import static com.seleritycorp.rds.downloader.RdsDataSharedMemoryReader.VERSION_OFFSET;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Publishes persisted snapshots to shared memory for co-located readers.
+ *
+ * <p>Each generation's snapshot and, if it has been exported, its key-value store get copied to
+ * a directory that should be on a tmpfs (e.g.: {@code /dev/shm}), and are then announced in the
+ * directory's control file. Readers map these files read-only through
+ * {@link RdsDataSharedMemoryReader}, so all processes of a host share a single copy of the data
+ * in memory, and switch to new generations without locks.
+ *
+ * <p>The files of the current and the previous generation are kept, older ones get removed.
+ *
+ * <p>This stage has to run after the key-value export, so that it finds the generation's store.
+ */
+@Singleton
+public class RdsDataSharedMemoryPublisher implements RdsDataSnapshotListener {
+  private static final Log log = LogFactory.getLog(RdsDataSharedMemoryPublisher.class);
+
+  private final boolean enabled;
+  private final Path directory;
+  private final RdsDataMetrics metrics;
+  private MappedByteBuffer control;
+  private long previousGeneration;
+
+  /**
+   * Creates a publisher to shared memory.
+   *
+   * @param appConfig The application config to use.
+   * @param appPaths The base paths to resolve the directory against.
+   * @param metrics The metrics to record publication times to.
+   */
+  @Inject
+  public RdsDataSharedMemoryPublisher(@ApplicationConfig Config appConfig,
+      ApplicationPaths appPaths, RdsDataMetrics metrics) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.sharedMemory");
+    this.enabled = config.getBoolean("enabled", false);
+    this.directory = appPaths.getDataPath().resolve(
+        config.get("directory", "/dev/shm/rds-data-downloader"));
+    this.metrics = metrics;
+    this.control = null;
+    this.previousGeneration = 0;
+  }
+
+  @Override
+  public String getName() {
+    return "sharedMemory";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Gets the published snapshot file for a snapshot.
+   *
+   * @param snapshot The persisted snapshot.
+   * @return the path that readers have to pass to {@link RdsDataSharedMemoryReader}.
+   */
+  public Path getTarget(RdsDataSnapshot snapshot) {
+    return directory.resolve(snapshot.getPath().getFileName());
+  }
+
+  /**
+   * Publishes a snapshot to shared memory.
+   *
+   * @param snapshot The snapshot to publish.
+   * @throws IOException if copying the files or updating the control file fails.
+   */
+  @Override
+  public synchronized void onSnapshot(RdsDataSnapshot snapshot) throws IOException {
+    long start = System.nanoTime();
+    long generation = snapshot.getGeneration();
+    Path target = getTarget(snapshot);
+    Files.createDirectories(directory);
+
+    long dataSize = copy(snapshot.getPath(),
+        RdsDataSharedMemoryReader.getDataPath(target, generation));
+    long keyValueSize = -1;
+    Path keyValueSource = RdsDataKeyValueStore.getPath(snapshot.getPath());
+    if (Files.isRegularFile(keyValueSource)) {
+      long keyValueGeneration;
+      try (RdsDataKeyValueStore store = new RdsDataKeyValueStore(keyValueSource)) {
+        keyValueGeneration = store.getGeneration();
+      }
+      if (keyValueGeneration == generation) {
+        keyValueSize = copy(keyValueSource,
+            RdsDataSharedMemoryReader.getKeyValuePath(target, generation));
+      } else {
+        log.warn("Not publishing " + keyValueSource + " to shared memory, as it holds generation "
+            + keyValueGeneration + " instead of " + generation);
+      }
+    }
+
+    announce(target, generation, dataSize, keyValueSize);
+    removeOldGenerations(target, generation);
+    previousGeneration = generation;
+    metrics.record("sharedMemory.publish", System.nanoTime() - start);
+  }
+
+  private long copy(Path source, Path destination) throws IOException {
+    Path tmpDestination = destination.resolveSibling(destination.getFileName() + ".tmp");
+    try {
+      Files.copy(source, tmpDestination, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(tmpDestination, destination, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Files.deleteIfExists(tmpDestination);
+      throw new IOException("Failed to copy " + source + " to " + destination, e);
+    }
+    return Files.size(destination);
+  }
+
+  /**
+   * Updates the control file's header to a new generation under the seqlock.
+   */
+  private void announce(Path target, long generation, long dataSize, long keyValueSize)
+      throws IOException {
+    MappedByteBuffer buffer = getControl(target);
+    long sequence = buffer.getLong(SEQUENCE_OFFSET);
+    // An odd sequence is left over from a publisher that died while updating the header.
+    sequence += (sequence & 1) + 1;
+    buffer.putLong(SEQUENCE_OFFSET, sequence);
+    // Readers must not see header updates before the odd sequence, nor the even sequence before
+    // the header updates.
+    RdsDataSharedMemoryReader.storeFence();
+    buffer.putLong(GENERATION_OFFSET, generation);
+    buffer.putLong(TIMESTAMP_OFFSET, System.currentTimeMillis());
+    buffer.putLong(DATA_SIZE_OFFSET, dataSize);
+    buffer.putInt(FLAGS_OFFSET, (keyValueSize >= 0) ? FLAG_KEY_VALUE : 0);
+    buffer.putLong(KEY_VALUE_SIZE_OFFSET, keyValueSize);
+    RdsDataSharedMemoryReader.storeFence();
+    buffer.putLong(SEQUENCE_OFFSET, sequence + 1);
+  }
+
+  private MappedByteBuffer getControl(Path target) throws IOException {
+    if (control == null) {
+      Path controlPath = RdsDataSharedMemoryReader.getControlPath(target);
+      if (!isControlFile(controlPath)) {
+        // Readers may map the control file at any time, so it has to appear fully initialized.
+        ByteBuffer header = ByteBuffer.allocate(CONTROL_SIZE);
+        header.putLong(MAGIC_OFFSET, MAGIC);
+        header.putInt(VERSION_OFFSET, VERSION);
+        RdsDataFiles.writeAtomically(controlPath, header.array());
+      }
+      try (FileChannel channel = FileChannel.open(controlPath, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        control = channel.map(FileChannel.MapMode.READ_WRITE, 0, CONTROL_SIZE);
+      }
+    }
+    return control;
+  }
+
+  private boolean isControlFile(Path controlPath) throws IOException {
+    if (!Files.isRegularFile(controlPath) || Files.size(controlPath) != CONTROL_SIZE) {
+      return false;
+    }
+    ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(controlPath));
+    return header.getLong(MAGIC_OFFSET) == MAGIC && header.getInt(VERSION_OFFSET) == VERSION;
+  }
+
+  private void removeOldGenerations(Path target, long generation) {
+    String prefix = target.getFileName() + ".";
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*")) {
+      for (Path file : stream) {
+        String suffix = file.getFileName().toString().substring(prefix.length());
+        if (suffix.startsWith("kv.")) {
+          suffix = suffix.substring(3);
+        }
+        long fileGeneration;
+        try {
+          fileGeneration = Long.parseLong(suffix);
+        } catch (NumberFormatException e) {
+          // Not a generation's file (e.g.: the control file).
+          continue;
+        }
+        if (fileGeneration != generation && fileGeneration != previousGeneration) {
+          Files.deleteIfExists(file);
+        }
+      }
+    } catch (IOException e) {
+      log.warn("Failed to remove old generations from " + directory, e);
+    }
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lets co-located consumers read snapshots published to shared memory without copies.
+ *
+ * <p>{@link RdsDataSharedMemoryPublisher} publishes each generation as read-only files on a
+ * tmpfs (e.g.: {@code /dev/shm}), and describes the current generation in a one-page control
+ * file. The control file starts with a versioned header that is guarded by a seqlock: the
+ * publisher makes the sequence odd before updating the header and even again afterwards, so
+ * readers retry until they read the same even sequence before and after the header.
+ *
+ * <p>Readers map the published files read-only. Switching to a new generation only takes a read
+ * of the header and, once per generation, a mapping of the new files, so readers never block the
+ * publisher or each other. Mappings of older generations stay valid for consumers that still
+ * hold them, even after the publisher removed their files.
+ *
+ * <p>Usage:
+ *
+ * <pre>
+ * try (RdsDataSharedMemoryReader reader = new RdsDataSharedMemoryReader(target)) {
+ *   RdsDataSharedMemoryReader.Snapshot snapshot = reader.acquire();
+ *   if (snapshot != null) {
+ *     byte[] record = snapshot.getKeyValueStore().getRecord("PUBLIC_COMPANY", "foo");
+ *   }
+ * }
+ * </pre>
+ */
+public class RdsDataSharedMemoryReader implements Closeable {
+  static final long MAGIC = 0x5244534853484d31L;
+  static final int VERSION = 1;
+  static final int CONTROL_SIZE = 4096;
+  static final int FLAG_KEY_VALUE = 1;
+
+  static final int MAGIC_OFFSET = 0;
+  static final int VERSION_OFFSET = 8;
+  static final int FLAGS_OFFSET = 12;
+  static final int SEQUENCE_OFFSET = 16;
+  static final int GENERATION_OFFSET = 24;
+  static final int TIMESTAMP_OFFSET = 32;
+  static final int DATA_SIZE_OFFSET = 40;
+  static final int KEY_VALUE_SIZE_OFFSET = 48;
+
+  private static final int MAX_LOAD_ATTEMPTS = 10;
+
+  // Plain accesses to the mapped header have to be ordered by explicit fences. Java 9+ offers
+  // them through VarHandle, Java 8 only through sun.misc.Unsafe. Both get looked up reflectively,
+  // so the code builds on Java 8 without referencing internal API.
+  private static final MethodHandle LOAD_FENCE = findFence("loadFence");
+  private static final MethodHandle STORE_FENCE = findFence("storeFence");
+
+  private final Path target;
+  private volatile MappedByteBuffer control;
+  private volatile Snapshot current;
+
+  /**
+   * A generation published to shared memory.
+   */
+  public static class Snapshot {
+    private final long generation;
+    private final long timestamp;
+    private final ByteBuffer data;
+    private final RdsDataKeyValueStore keyValueStore;
+
+    private Snapshot(long generation, long timestamp, ByteBuffer data,
+        RdsDataKeyValueStore keyValueStore) {
+      this.generation = generation;
+      this.timestamp = timestamp;
+      this.data = data;
+      this.keyValueStore = keyValueStore;
+    }
+
+    /**
+     * Gets the snapshot's generation.
+     *
+     * @return the snapshot's generation.
+     */
+    public long getGeneration() {
+      return generation;
+    }
+
+    /**
+     * Gets the time the snapshot got published.
+     *
+     * @return the publication time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * Gets the snapshot's data.
+     *
+     * @return a read-only view on the mapped snapshot file. Each call returns an independent
+     *     view, so callers may move its position freely.
+     */
+    public ByteBuffer getData() {
+      return data.duplicate();
+    }
+
+    /**
+     * Gets the snapshot's key-value store.
+     *
+     * @return the mapped key-value store of the snapshot, or null if the generation has been
+     *     published without one.
+     */
+    public RdsDataKeyValueStore getKeyValueStore() {
+      return keyValueStore;
+    }
+  }
+
+  /**
+   * Creates a reader for snapshots published to shared memory.
+   *
+   * @param target The published snapshot file without generation suffix. E.g.:
+   *     {@code /dev/shm/rds-data-downloader/rds-data.json}. It need not have been published yet.
+   */
+  public RdsDataSharedMemoryReader(Path target) {
+    this.target = target;
+    this.control = null;
+    this.current = null;
+  }
+
+  /**
+   * Gets the control file for a published snapshot file.
+   *
+   * @param target The published snapshot file without generation suffix.
+   * @return the control file describing the current generation.
+   */
+  public static Path getControlPath(Path target) {
+    return resolveSibling(target, ".control");
+  }
+
+  static Path getDataPath(Path target, long generation) {
+    return resolveSibling(target, "." + generation);
+  }
+
+  static Path getKeyValuePath(Path target, long generation) {
+    return resolveSibling(target, ".kv." + generation);
+  }
+
+  private static Path resolveSibling(Path target, String suffix) {
+    Path fileName = Paths.get(target.getFileName() + suffix);
+    Path parent = target.getParent();
+    return (parent == null) ? fileName : parent.resolve(fileName);
+  }
+
+  private static MethodHandle findFence(String name) {
+    MethodType type = MethodType.methodType(void.class);
+    try {
+      Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+      return MethodHandles.publicLookup().findStatic(varHandle, name, type);
+    } catch (ReflectiveOperationException e) {
+      // Java 8, so we fall back to Unsafe.
+    }
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      return MethodHandles.lookup().findVirtual(unsafeClass, name, type)
+          .bindTo(field.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      throw new IllegalStateException("No " + name + " available, which the shared memory "
+          + "seqlock requires", e);
+    }
+  }
+
+  /**
+   * Keeps loads before the fence from being reordered with loads after it.
+   */
+  static void loadFence() {
+    try {
+      LOAD_FENCE.invokeExact();
+    } catch (Throwable e) {
+      throw new IllegalStateException("Failed to issue load fence", e);
+    }
+  }
+
+  /**
+   * Keeps stores before the fence from being reordered with stores after it.
+   */
+  static void storeFence() {
+    try {
+      STORE_FENCE.invokeExact();
+    } catch (Throwable e) {
+      throw new IllegalStateException("Failed to issue store fence", e);
+    }
+  }
+
+  /**
+   * Gets the currently published generation.
+   *
+   * <p>This does not take locks and does not map any files, so it is cheap enough to get called
+   * before each access.
+   *
+   * @return the currently published generation, or 0 if none has been published yet.
+   * @throws IOException if the control file is not a supported control file.
+   */
+  public long getGeneration() throws IOException {
+    long[] header = readHeader();
+    return (header == null) ? 0 : header[0];
+  }
+
+  /**
+   * Gets the currently published generation.
+   *
+   * <p>As long as the generation does not change, this returns the same object without taking
+   * locks. Otherwise, the new generation's files get mapped.
+   *
+   * @return the currently published generation, or null if none has been published yet.
+   * @throws IOException if the published files cannot be mapped or do not match the header.
+   */
+  public Snapshot acquire() throws IOException {
+    Snapshot snapshot = current;
+    long generation = getGeneration();
+    if (snapshot != null && snapshot.getGeneration() == generation) {
+      return snapshot;
+    }
+    return load();
+  }
+
+  private synchronized Snapshot load() throws IOException {
+    for (int attempt = 1; true; attempt++) {
+      long[] header = readHeader();
+      if (header == null) {
+        return null;
+      }
+      Snapshot snapshot = current;
+      if (snapshot != null && snapshot.getGeneration() == header[0]) {
+        return snapshot;
+      }
+      try {
+        snapshot = map(header);
+      } catch (NoSuchFileException e) {
+        // The publisher moved on by more than one generation since we read the header. So we
+        // retry with a fresh header.
+        if (attempt >= MAX_LOAD_ATTEMPTS) {
+          throw e;
+        }
+        continue;
+      }
+      Snapshot previous = current;
+      current = snapshot;
+      if (previous != null && previous.getKeyValueStore() != null) {
+        // The previous store is mapped, so consumers still holding it can keep using it.
+        previous.getKeyValueStore().close();
+      }
+      return snapshot;
+    }
+  }
+
+  private Snapshot map(long[] header) throws IOException {
+    long generation = header[0];
+    ByteBuffer data;
+    Path dataPath = getDataPath(target, generation);
+    try (FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size != header[2]) {
+        throw new IOException("Size of " + dataPath + " is " + size + " instead of "
+            + header[2]);
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException(dataPath + " is too large to map");
+      }
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).asReadOnlyBuffer();
+    }
+    RdsDataKeyValueStore keyValueStore = null;
+    if (header[3] >= 0) {
+      Path keyValuePath = getKeyValuePath(target, generation);
+      keyValueStore = new RdsDataKeyValueStore(keyValuePath, true);
+      if (!keyValueStore.isMapped() || keyValueStore.getGeneration() != generation) {
+        keyValueStore.close();
+        throw new IOException(keyValuePath + " is not a mappable store of generation "
+            + generation);
+      }
+    }
+    return new Snapshot(generation, header[1], data, keyValueStore);
+  }
+
+  /**
+   * Reads the control file's header consistently.
+   *
+   * @return generation, timestamp, data size, and key-value store size (-1, if there is no
+   *     key-value store). Null, if nothing has been published yet.
+   * @throws IOException if the control file is not a supported control file.
+   */
+  private long[] readHeader() throws IOException {
+    MappedByteBuffer buffer = getControl();
+    if (buffer == null) {
+      return null;
+    }
+    while (true) {
+      long before = buffer.getLong(SEQUENCE_OFFSET);
+      loadFence();
+      if ((before & 1) == 0) {
+        long generation = buffer.getLong(GENERATION_OFFSET);
+        long timestamp = buffer.getLong(TIMESTAMP_OFFSET);
+        long dataSize = buffer.getLong(DATA_SIZE_OFFSET);
+        int flags = buffer.getInt(FLAGS_OFFSET);
+        long keyValueSize = buffer.getLong(KEY_VALUE_SIZE_OFFSET);
+        loadFence();
+        if (buffer.getLong(SEQUENCE_OFFSET) == before) {
+          if (before == 0) {
+            return null;
+          }
+          return new long[] {generation, timestamp, dataSize,
+              ((flags & FLAG_KEY_VALUE) != 0) ? keyValueSize : -1};
+        }
+      }
+      Thread.yield();
+    }
+  }
+
+  private MappedByteBuffer getControl() throws IOException {
+    MappedByteBuffer buffer = control;
+    return (buffer != null) ? buffer : mapControl();
+  }
+
+  private synchronized MappedByteBuffer mapControl() throws IOException {
+    if (control == null) {
+      Path controlPath = getControlPath(target);
+      try (FileChannel channel = FileChannel.open(controlPath, StandardOpenOption.READ)) {
+        if (channel.size() < CONTROL_SIZE) {
+          throw new IOException("Not a control file, as " + controlPath + " is too small");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, CONTROL_SIZE);
+        if (buffer.getLong(MAGIC_OFFSET) != MAGIC) {
+          throw new IOException("Not a control file, as " + controlPath
+              + " lacks the magic number");
+        }
+        int version = buffer.getInt(VERSION_OFFSET);
+        if (version != VERSION) {
+          throw new IOException("Unsupported control file version " + version + " in "
+              + controlPath);
+        }
+        control = buffer;
+      } catch (NoSuchFileException e) {
+        return null;
+      }
+    }
+    return control;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    Snapshot snapshot = current;
+    current = null;
+    if (snapshot != null && snapshot.getKeyValueStore() != null) {
+      snapshot.getKeyValueStore().close();
+    }
+  }
+}
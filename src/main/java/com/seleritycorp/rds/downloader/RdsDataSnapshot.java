@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.nio.file.Path;
+
+/**
+ * A persisted snapshot of RDS data.
+ */
+public class RdsDataSnapshot {
+  private final Path path;
+  private final long size;
+  private final long generation;
+  private final long timestamp;
+  private final String sha256;
+  private final RdsDataSectionIndex index;
+
+  /**
+   * Creates a description of a persisted snapshot without generation information.
+   *
+   * @param path The file holding the snapshot.
+   * @param size The size of the snapshot in bytes.
+   */
+  public RdsDataSnapshot(Path path, long size) {
+    this(path, size, 0, 0, null, null);
+  }
+
+  /**
+   * Creates a description of a persisted snapshot.
+   *
+   * @param path The file holding the snapshot.
+   * @param size The size of the snapshot in bytes.
+   * @param generation The generation of the snapshot. Generations increase with each published
+   *     snapshot. 0 for unknown generations.
+   * @param timestamp The epoch millis at which the snapshot got published. 0 if unknown.
+   * @param sha256 The hex encoded SHA-256 digest of the snapshot. Null if unknown.
+   * @param index The offsets of the snapshot's sections. Null if unknown.
+   */
+  public RdsDataSnapshot(Path path, long size, long generation, long timestamp, String sha256,
+      RdsDataSectionIndex index) {
+    this.path = path;
+    this.size = size;
+    this.generation = generation;
+    this.timestamp = timestamp;
+    this.sha256 = sha256;
+    this.index = index;
+  }
+
+  /**
+   * Gets the file holding the snapshot.
+   *
+   * @return the file holding the snapshot.
+   */
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * Gets the size of the snapshot.
+   *
+   * @return the size of the snapshot in bytes.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the generation of the snapshot.
+   *
+   * @return the generation of the snapshot, or 0 if it is unknown.
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Gets the time the snapshot got published.
+   *
+   * @return the epoch millis at which the snapshot got published, or 0 if it is unknown.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Gets the digest of the snapshot.
+   *
+   * @return the hex encoded SHA-256 digest of the snapshot, or null if it is unknown.
+   */
+  public String getSha256() {
+    return sha256;
+  }
+
+  /**
+   * Gets the offsets of the snapshot's sections.
+   *
+   * @return the index of the snapshot's sections, or null if it is unknown.
+   */
+  public RdsDataSectionIndex getIndex() {
+    return index;
+  }
+
+  @Override
+  public String toString() {
+    return "RdsDataSnapshot[path=" + path + ", size=" + size + ", generation=" + generation
+        + "]";
+  }
+}
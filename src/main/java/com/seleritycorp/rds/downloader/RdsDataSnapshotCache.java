@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import com.seleritycorp.common.base.config.ApplicationConfig;
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.config.ConfigUtils;
+import com.seleritycorp.common.base.logging.Log;
+import com.seleritycorp.common.base.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * In-process cache of the most recently persisted RDS data.
+ *
+ * <p>Each enum type is held in a {@link RdsDataRecordTable}. Refreshing builds a complete new set
+ * of tables and swaps them in with a single volatile write, so readers never block and always
+ * see a consistent snapshot.
+ *
+ * <p>The tables' memory is reserved from the memory budget. While refreshing, the new tables are
+ * reserved on top of the current ones, which get released once they have been swapped out. If
+ * the budget does not cover the new tables, the refresh fails and the current tables stay in
+ * place.
+ */
+@Singleton
+public class RdsDataSnapshotCache implements RdsDataSnapshotListener {
+  private static final Log log = LogFactory.getLog(RdsDataSnapshotCache.class);
+
+  private final boolean enabled;
+  private final String identifierField;
+  private final RdsDataMemoryBudget memoryBudget;
+  private volatile Map<String, RdsDataRecordTable> tables;
+
+  /**
+   * Creates an in-process cache of RDS data.
+   *
+   * @param appConfig The application config to use.
+   * @param memoryBudget The budget to reserve the tables' memory from.
+   */
+  @Inject
+  public RdsDataSnapshotCache(@ApplicationConfig Config appConfig,
+      RdsDataMemoryBudget memoryBudget) {
+    Config config = ConfigUtils.subconfig(appConfig, "RdsDataDownloader.cache");
+    this.enabled = config.getBoolean("enabled", false);
+    this.identifierField = config.get("identifierField", "identifier");
+    this.memoryBudget = memoryBudget;
+    this.tables = Collections.emptyMap();
+  }
+
+  @Override
+  public String getName() {
+    return "cache";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void onSnapshot(RdsDataSnapshot snapshot) throws IOException {
+    refresh(snapshot.getPath(), snapshot.getIndex());
+  }
+
+  /**
+   * Replaces the cached data by the data of a persisted snapshot.
+   *
+   * <p>If reading the snapshot fails, the previously cached data stays in place.
+   *
+   * @param path The file holding the snapshot.
+   * @throws IOException if the snapshot cannot be read, or the memory budget does not cover
+   *     its tables.
+   */
+  public void refresh(Path path) throws IOException {
+    refresh(path, null);
+  }
+
+  private void refresh(Path path, RdsDataSectionIndex index) throws IOException {
+    long start = System.nanoTime();
+    Map<String, RdsDataRecordTable> newTables = new LinkedHashMap<>();
+    try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(
+        Files.newInputStream(path), StandardCharsets.UTF_8),
+        RdsDataMemoryBudget.UNRESERVED_BUFFER_BYTES / 2))) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if ("data".equals(reader.nextName())) {
+          reader.beginObject();
+          while (reader.hasNext()) {
+            String enumType = reader.nextName();
+            RdsDataSectionIndex.Section section =
+                (index == null) ? null : index.getSection(enumType);
+            long expectedBytes = (section == null) ? 4096 : section.getLength();
+            newTables.put(enumType, readTable(enumType, expectedBytes, reader));
+          }
+          reader.endObject();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+      release(newTables);
+      // Gson signals malformed input through unchecked exceptions.
+      throw new IOException("Malformed RDS data in " + path, e);
+    } catch (IOException | RuntimeException e) {
+      release(newTables);
+      throw e;
+    }
+    Map<String, RdsDataRecordTable> oldTables = tables;
+    tables = Collections.unmodifiableMap(newTables);
+    release(oldTables);
+
+    long identifiers = 0;
+    long bytes = 0;
+    for (RdsDataRecordTable table : newTables.values()) {
+      identifiers += table.size();
+      bytes += table.getDataSize();
+    }
+    log.info("Refreshed cache with " + identifiers + " identifiers in " + newTables.size()
+        + " enum types (" + bytes + " bytes off-heap) in "
+        + (System.nanoTime() - start) / 1000000 + " ms");
+  }
+
+  private static void release(Map<String, RdsDataRecordTable> tables) {
+    for (RdsDataRecordTable table : tables.values()) {
+      table.release();
+    }
+  }
+
+  private RdsDataRecordTable readTable(String enumType, long expectedBytes, JsonReader reader)
+      throws IOException {
+    RdsDataRecordTable.Builder builder = new RdsDataRecordTable.Builder(enumType, expectedBytes,
+        memoryBudget);
+    try {
+      return readTable(enumType, builder, reader);
+    } catch (IOException | RuntimeException e) {
+      builder.discard();
+      throw e;
+    }
+  }
+
+  private RdsDataRecordTable readTable(String enumType, RdsDataRecordTable.Builder builder,
+      JsonReader reader) throws IOException {
+    JsonParser parser = new JsonParser();
+    JsonToken token = reader.peek();
+    if (token == JsonToken.BEGIN_OBJECT) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String identifier = reader.nextName();
+        builder.add(identifier, encode(parser.parse(reader)));
+      }
+      reader.endObject();
+    } else if (token == JsonToken.BEGIN_ARRAY) {
+      long skipped = 0;
+      reader.beginArray();
+      while (reader.hasNext()) {
+        JsonElement record = parser.parse(reader);
+        String identifier = RdsDataIdentifiers.get(record, identifierField);
+        if (identifier != null) {
+          builder.add(identifier, encode(record));
+        } else {
+          skipped++;
+        }
+      }
+      reader.endArray();
+      if (skipped > 0) {
+        log.warn("Skipped " + skipped + " records of " + enumType + " without identifier field '"
+            + identifierField + "'");
+      }
+    } else {
+      reader.skipValue();
+    }
+    return builder.build();
+  }
+
+  private byte[] encode(JsonElement record) {
+    return record.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Gets the enum types of the cached data.
+   *
+   * @return the cached enum types.
+   */
+  public Set<String> getEnumTypes() {
+    return tables.keySet();
+  }
+
+  /**
+   * Gets the table of an enum type.
+   *
+   * <p>Tables are immutable, so callers that need several consistent lookups should fetch the
+   * table once and run the lookups against it.
+   *
+   * @param enumType The enum type to get the table for.
+   * @return the table for the enum type, or null if the enum type is not cached.
+   */
+  public RdsDataRecordTable getTable(String enumType) {
+    return tables.get(enumType);
+  }
+
+  /**
+   * Checks whether an identifier is cached for an enum type.
+   *
+   * @param enumType The enum type to look up the identifier in.
+   * @param identifier The identifier to look up.
+   * @return true, if the identifier is cached for the enum type.
+   */
+  public boolean contains(String enumType, String identifier) {
+    RdsDataRecordTable table = tables.get(enumType);
+    return table != null && table.contains(identifier);
+  }
+
+  /**
+   * Gets the JSON record of an identifier.
+   *
+   * @param enumType The enum type to look up the identifier in.
+   * @param identifier The identifier to look up.
+   * @return the record as JSON string, or null if the identifier is not cached.
+   */
+  public String getRecord(String enumType, String identifier) {
+    RdsDataRecordTable table = tables.get(enumType);
+    return (table == null) ? null : table.getRecord(identifier);
+  }
+
+  /**
+   * Gets the UTF-8 encoded JSON record of an identifier without copying it on heap.
+   *
+   * @param enumType The enum type to look up the identifier in.
+   * @param identifier The identifier to look up.
+   * @return a read-only buffer holding the record, or null if the identifier is not cached.
+   */
+  public ByteBuffer getRecordBytes(String enumType, String identifier) {
+    RdsDataRecordTable table = tables.get(enumType);
+    return (table == null) ? null : table.getRecordBytes(identifier);
+  }
+
+  /**
+   * Gets the identifiers of an enum type.
+   *
+   * @param enumType The enum type to get the identifiers for.
+   * @return the identifiers of the enum type. If the enum type is not cached, the empty list.
+   */
+  public List<String> getIdentifiers(String enumType) {
+    RdsDataRecordTable table = tables.get(enumType);
+    return (table == null) ? Collections.<String>emptyList() : table.getIdentifiers();
+  }
+}
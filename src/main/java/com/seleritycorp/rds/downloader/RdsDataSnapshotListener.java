@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+/**
+ * Stage that gets run after a snapshot of RDS data has been persisted.
+ */
+public interface RdsDataSnapshotListener {
+  /**
+   * Gets the name of the stage for logging and reporting.
+   *
+   * @return the name of the stage.
+   */
+  String getName();
+
+  /**
+   * Checks whether the stage is configured to run at all.
+   *
+   * @return true, if the stage should get notified about new snapshots.
+   */
+  boolean isEnabled();
+
+  /**
+   * Handles a freshly persisted snapshot.
+   *
+   * @param snapshot The snapshot that has just been persisted.
+   * @throws Exception if handling the snapshot fails.
+   */
+  void onSnapshot(RdsDataSnapshot snapshot) throws Exception;
+
+  /**
+   * Starts the stage's background services.
+   *
+   * <p>Only called for enabled stages.
+   *
+   * @throws Exception if starting fails.
+   */
+  default void start() throws Exception {
+  }
+
+  /**
+   * Stops the stage's background services.
+   *
+   * <p>Only called for enabled stages.
+   */
+  default void stop() {
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets consumers in other processes block until a new snapshot generation has been published.
+ *
+ * <p>The watcher uses the platform's file system notifications on the manifest that gets
+ * published next to the snapshot. So consumers learn about new generations right away, without
+ * having to poll the snapshot's modification time.
+ *
+ * <p>Usage:
+ *
+ * <pre>
+ * try (RdsDataSnapshotWatcher watcher = new RdsDataSnapshotWatcher(target)) {
+ *   long generation = 0;
+ *   while (running) {
+ *     RdsDataSnapshot snapshot = watcher.awaitNewerThan(generation, 1, TimeUnit.MINUTES);
+ *     if (snapshot != null) {
+ *       reload(snapshot);
+ *       generation = snapshot.getGeneration();
+ *     }
+ *   }
+ * }
+ * </pre>
+ */
+public class RdsDataSnapshotWatcher implements Closeable {
+  private final Path target;
+  private final Path manifest;
+  private final WatchService watchService;
+
+  /**
+   * Creates a watcher for a snapshot file.
+   *
+   * @param target The snapshot file to watch. Its directory has to exist.
+   * @throws IOException if the snapshot's directory cannot be watched.
+   */
+  public RdsDataSnapshotWatcher(Path target) throws IOException {
+    this.target = target.toAbsolutePath();
+    this.manifest = RdsDataManifest.getPath(this.target);
+    this.watchService = this.target.getFileSystem().newWatchService();
+    try {
+      // Registering before the first read of the manifest makes sure that we do not miss
+      // generations published in between.
+      this.target.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+    } catch (IOException e) {
+      watchService.close();
+      throw new IOException("Failed to watch " + this.target.getParent(), e);
+    }
+  }
+
+  /**
+   * Gets the currently published snapshot.
+   *
+   * @return the snapshot as described by the currently published manifest, or null if no
+   *     manifest has been published yet.
+   * @throws IOException if the manifest cannot be read.
+   */
+  public RdsDataSnapshot getCurrent() throws IOException {
+    if (!Files.isRegularFile(manifest)) {
+      return null;
+    }
+    return RdsDataManifest.read(target);
+  }
+
+  /**
+   * Waits until a snapshot newer than a given generation has been published.
+   *
+   * @param generation The generation that the caller already knows about. Use 0 to wait for
+   *     the first snapshot.
+   * @param timeout The maximum time to wait.
+   * @param unit The unit of the timeout.
+   * @return the currently published snapshot if it is newer than the given generation. Null,
+   *     if no such snapshot got published within the timeout.
+   * @throws IOException if the manifest cannot be read or watching fails.
+   * @throws InterruptedException if the thread got interrupted while waiting.
+   */
+  public RdsDataSnapshot awaitNewerThan(long generation, long timeout, TimeUnit unit)
+      throws IOException, InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    boolean check = true;
+    while (true) {
+      if (check) {
+        RdsDataSnapshot current = getCurrent();
+        if (current != null && current.getGeneration() > generation) {
+          return current;
+        }
+      }
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return null;
+      }
+      WatchKey key = watchService.poll(remaining, TimeUnit.NANOSECONDS);
+      check = false;
+      if (key != null) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == OVERFLOW || manifest.getFileName().equals(event.context())) {
+            check = true;
+          }
+        }
+        if (!key.reset()) {
+          throw new IOException("Directory " + target.getParent() + " is no longer watchable");
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers for the threads of concurrent tasks.
+ */
+public final class RdsDataThreads {
+  private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR =
+      findNewVirtualThreadPerTaskExecutor();
+
+  private RdsDataThreads() {
+  }
+
+  private static Method findNewVirtualThreadPerTaskExecutor() {
+    try {
+      // Looked up reflectively, as the code has to run on Java 8 as well.
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Checks whether the platform offers virtual threads.
+   *
+   * @return true, if the platform offers virtual threads (Java 21 and later).
+   */
+  public static boolean isVirtualAvailable() {
+    return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /**
+   * Creates an executor for blocking tasks.
+   *
+   * <p>Where available, each task runs on its own virtual thread, so blocked tasks do not cost a
+   * platform thread each. Otherwise, tasks run on a fixed pool of daemon platform threads.
+   * Callers bound the number of concurrent tasks themselves in both cases.
+   *
+   * @param name The prefix of the platform threads' names.
+   * @param threads The number of platform threads, if virtual threads are not available.
+   * @return the created executor.
+   */
+  public static ExecutorService newExecutor(String name, int threads) {
+    if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+      try {
+        return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        // Falling back to platform threads below.
+      }
+    }
+    return Executors.newFixedThreadPool(threads, newDaemonThreadFactory(name));
+  }
+
+  /**
+   * Creates a factory for numbered daemon platform threads.
+   *
+   * @param name The prefix of the threads' names.
+   * @return the created factory.
+   */
+  public static ThreadFactory newDaemonThreadFactory(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+      thread.setName(name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
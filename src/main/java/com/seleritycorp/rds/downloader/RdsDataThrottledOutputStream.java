@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Output stream to a file that limits the write bandwidth and writes back data as it goes.
+ *
+ * <p>Writes are split into chunks, and each chunk has to pass the rate limiter before it gets
+ * written. Optionally, the written data gets forced to the storage device every given number of
+ * bytes. This spreads the write-back of dirty pages over the whole write instead of having the
+ * operating system write back hundreds of megabytes at once.
+ *
+ * <p>The file can be extended to its expected size before writing. Space that did not get used
+ * is truncated upon closing the stream.
+ *
+ * <p>Whole files can be appended by {@link #append(Path)}, which hands the copying to the
+ * operating system instead of passing the bytes through the JVM.
+ */
+public class RdsDataThrottledOutputStream extends OutputStream implements RdsDataSegmentSink {
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private final FileChannel channel;
+  private final RdsDataRateLimiter limiter;
+  private final long syncEveryBytes;
+  private long written;
+  private long unsynced;
+  private long throttledNanos;
+  private boolean preallocated;
+
+  /**
+   * Creates a throttled stream.
+   *
+   * @param channel The channel to write to. It gets closed along with the stream.
+   * @param limiter The limiter for written bytes. Null for no limit.
+   * @param syncEveryBytes Force written data to the storage device whenever this many bytes
+   *     have been written since the last force. 0 to not force.
+   */
+  public RdsDataThrottledOutputStream(FileChannel channel, RdsDataRateLimiter limiter,
+      long syncEveryBytes) {
+    this.channel = channel;
+    this.limiter = limiter;
+    this.syncEveryBytes = syncEveryBytes;
+  }
+
+  @Override
+  public void write(int value) throws IOException {
+    write(new byte[] {(byte) value}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    int position = offset;
+    int end = offset + length;
+    while (position < end) {
+      int chunk = Math.min(CHUNK_SIZE, end - position);
+      if (limiter != null) {
+        throttledNanos += limiter.acquire(chunk);
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(bytes, position, chunk);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      position += chunk;
+      account(chunk);
+    }
+  }
+
+  @Override
+  public void append(Path file) throws IOException {
+    try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = source.size();
+      long position = 0;
+      while (position < size) {
+        // Without limiter, larger chunks save system calls.
+        long chunk = Math.min((limiter != null) ? CHUNK_SIZE : size, size - position);
+        if (limiter != null) {
+          throttledNanos += limiter.acquire((int) chunk);
+        }
+        long transferred = source.transferTo(position, chunk, channel);
+        if (transferred <= 0) {
+          throw new IOException("Failed to append " + file + " at position " + position
+              + " of " + size);
+        }
+        position += transferred;
+        account(transferred);
+      }
+    }
+  }
+
+  private void account(long bytes) throws IOException {
+    written += bytes;
+    unsynced += bytes;
+    if (syncEveryBytes > 0 && unsynced >= syncEveryBytes) {
+      channel.force(false);
+      unsynced = 0;
+    }
+  }
+
+  /**
+   * Extends the file to a given size.
+   *
+   * <p>This has to be called before writing. Only the file's last byte gets written, so the
+   * extension costs no write bandwidth. Java offers no portable {@code posix_fallocate}, so on
+   * file systems with sparse files, no blocks get reserved by this. Callers that need to know
+   * whether the data will fit have to check the usable space themselves.
+   *
+   * @param size The size to extend the file to.
+   * @throws IOException if the file cannot be extended.
+   */
+  public void preallocate(long size) throws IOException {
+    if (size > 0) {
+      ByteBuffer zero = ByteBuffer.allocate(1);
+      while (zero.hasRemaining()) {
+        channel.write(zero, size - 1);
+      }
+    }
+    preallocated = true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (preallocated && channel.isOpen()) {
+        channel.truncate(written);
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Gets the number of written bytes.
+   *
+   * @return the number of bytes written to the stream so far.
+   */
+  public long getWritten() {
+    return written;
+  }
+
+  /**
+   * Gets the time spent waiting for the rate limiter.
+   *
+   * @return the nanoseconds writes got blocked by the rate limiter so far.
+   */
+  public long getThrottledNanos() {
+    return throttledNanos;
+  }
+}
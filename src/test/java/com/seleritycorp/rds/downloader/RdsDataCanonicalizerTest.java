@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+
+public class RdsDataCanonicalizerTest extends FileTestCase {
+  Path tmpDir;
+
+  @Before
+  public void setUp() throws IOException {
+    tmpDir = createTempDirectory();
+  }
+
+  @Test
+  public void testSortsArraySections() throws Exception {
+    String canonical = canonicalize("{\"data\":{\"foo\":[{\"identifier\":\"c\"},"
+        + "{\"identifier\":\"a\"},\"b\",{\"other\":1}]}}", 1024 * 1024);
+
+    assertThat(canonical).isEqualTo("{\"data\":{\"foo\":[{\"other\":1},{\"identifier\":\"a\"},"
+        + "\"b\",{\"identifier\":\"c\"}]}}");
+  }
+
+  @Test
+  public void testSortsObjectSections() throws Exception {
+    String canonical = canonicalize("{\"data\":{\"foo\":{\"c\":1,\"a\":[2,{\"y\":1,\"x\":2}],"
+        + "\"b\":null}}}", 1024 * 1024);
+
+    assertThat(canonical).isEqualTo("{\"data\":{\"foo\":{\"a\":[2,{\"x\":2,\"y\":1}],"
+        + "\"b\":null,\"c\":1}}}");
+  }
+
+  @Test
+  public void testKeepsSectionOrder() throws Exception {
+    String canonical = canonicalize("{\"meta\":{\"version\":2},\"data\":{\"foo\":[],"
+        + "\"bar\":{},\"baz\":42}}", 1024 * 1024);
+
+    assertThat(canonical).isEqualTo("{\"meta\":{\"version\":2},\"data\":{\"foo\":[],"
+        + "\"bar\":{},\"baz\":42}}");
+  }
+
+  @Test
+  public void testOrderIndependent() throws Exception {
+    List<String> records = createRecords(200);
+    String ordered = canonicalize(toSnapshot(records), 1024 * 1024);
+    Collections.shuffle(records, new Random(1));
+    String shuffled = canonicalize(toSnapshot(records), 1024 * 1024);
+
+    assertThat(shuffled).isEqualTo(ordered);
+  }
+
+  @Test
+  public void testSpillsWithinMemoryBudget() throws Exception {
+    List<String> records = createRecords(1000);
+    Collections.shuffle(records, new Random(2));
+    String inMemory = canonicalize(toSnapshot(records), 1024 * 1024);
+
+    RdsDataCanonicalizer canonicalizer = new RdsDataCanonicalizer("identifier", 4096);
+    String spilled = canonicalize(canonicalizer, toSnapshot(records));
+
+    assertThat(spilled).isEqualTo(inMemory);
+    assertThat(canonicalizer.getSpills()).isGreaterThan(10);
+    try (Stream<Path> files = Files.list(tmpDir)) {
+      assertThat(files.filter(file -> file.toString().endsWith(".run")).count()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testMergesInPasses() throws Exception {
+    List<String> records = createRecords(3000);
+    Collections.shuffle(records, new Random(3));
+    String inMemory = canonicalize(toSnapshot(records), 1024 * 1024);
+
+    RdsDataCanonicalizer canonicalizer = new RdsDataCanonicalizer("identifier", 4096);
+    String merged = canonicalize(canonicalizer, toSnapshot(records));
+
+    assertThat(merged).isEqualTo(inMemory);
+    // 4096 bytes only cover buffers for merging three runs at once.
+    assertThat(canonicalizer.getSpills()).isGreaterThan(3 * 3);
+    assertThat(canonicalizer.getMerges()).isGreaterThan(3);
+    try (Stream<Path> files = Files.list(tmpDir)) {
+      assertThat(files.filter(file -> file.toString().endsWith(".run")).count()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testResultIsIndexable() throws Exception {
+    String canonical = canonicalize("{\"data\":{\"foo\":[\"b\",\"a\"],\"bar\":{\"c\":1}}}",
+        1024 * 1024);
+    Path file = tmpDir.resolve("canonical.json");
+    Files.write(file, canonical.getBytes(StandardCharsets.UTF_8));
+
+    RdsDataSectionIndex index = RdsDataSectionIndex.build(file);
+
+    assertThat(index.getEnumTypes()).containsExactly("foo", "bar");
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    try {
+      canonicalize("{\"data\":{\"foo\":[", 1024 * 1024);
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      // Expected, as the data ends prematurely.
+    }
+  }
+
+  private List<String> createRecords(int count) {
+    List<String> records = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      records.add("{\"value\":" + (i * 7 % 13) + ",\"identifier\":\"id" + i + "\"}");
+    }
+    return records;
+  }
+
+  private String toSnapshot(List<String> records) {
+    return "{\"data\":{\"foo\":[" + String.join(",", records) + "]}}";
+  }
+
+  private String canonicalize(String content, long maxMemoryBytes) throws IOException {
+    return canonicalize(new RdsDataCanonicalizer("identifier", maxMemoryBytes), content);
+  }
+
+  private String canonicalize(RdsDataCanonicalizer canonicalizer, String content)
+      throws IOException {
+    Path source = tmpDir.resolve("source.json");
+    Files.write(source, content.getBytes(StandardCharsets.UTF_8));
+    StringWriter writer = new StringWriter();
+    canonicalizer.canonicalize(source, writer, tmpDir);
+    return writer.toString();
+  }
+}
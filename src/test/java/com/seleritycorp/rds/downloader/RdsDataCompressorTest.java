@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataCompressorTest extends FileTestCase {
+  SettableConfig config;
+  RdsDataMetrics metrics;
+  Path directory;
+  Path snapshotFile;
+
+  @Before
+  public void setUp() throws IOException {
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.compressor.enabled", "true");
+    metrics = new RdsDataMetrics();
+    directory = createTempDirectory();
+    snapshotFile = directory.resolve("rds-data.json");
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    config = new SettableConfig();
+    RdsDataCompressor compressor = createRdsDataCompressor();
+
+    assertThat(compressor.getName()).isEqualTo("compressor");
+    assertThat(compressor.isEnabled()).isFalse();
+  }
+
+  @Test
+  public void testGetPath() {
+    assertThat(RdsDataCompressor.getPath(Paths.get("foo", "bar.json")))
+        .isEqualTo(Paths.get("foo", "bar.json.gz"));
+    assertThat(RdsDataCompressor.getPath(Paths.get("bar.json")))
+        .isEqualTo(Paths.get("bar.json.gz"));
+  }
+
+  @Test
+  public void testCompress() throws Exception {
+    StringBuilder sb = new StringBuilder("{\"data\":{\"FOO\":[");
+    for (int i = 0; i < 20000; i++) {
+      sb.append((i == 0) ? "" : ",").append("{\"identifier\":\"foo").append(i).append("\"}");
+    }
+    sb.append("]}}");
+    byte[] content = sb.toString().getBytes(StandardCharsets.UTF_8);
+    Files.write(snapshotFile, content);
+    config.set("RdsDataDownloader.compressor.threads", "3");
+    config.set("RdsDataDownloader.compressor.blockSizeBytes", "65536");
+
+    createRdsDataCompressor().onSnapshot(snapshot(1));
+
+    Path compressed = directory.resolve("rds-data.json.gz");
+    assertThat(RdsDataParallelGzipOutputStreamTest.gunzip(Files.readAllBytes(compressed)))
+        .isEqualTo(content);
+    assertThat(Files.size(compressed)).isLessThan(content.length / 4);
+    assertThat(directory.resolve("rds-data.json.gz.tmp")).doesNotExist();
+    assertThat(metrics.getTimer("compressor.compress").getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testMissingSnapshotKeepsPreviousCopy() throws Exception {
+    Files.write(snapshotFile, "{\"data\":{}}".getBytes(StandardCharsets.UTF_8));
+    RdsDataCompressor compressor = createRdsDataCompressor();
+    compressor.onSnapshot(snapshot(1));
+    RdsDataSnapshot snapshot = snapshot(2);
+    Files.delete(snapshotFile);
+
+    try {
+      compressor.onSnapshot(snapshot);
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      // Expected
+    }
+
+    assertThat(RdsDataParallelGzipOutputStreamTest.gunzip(Files.readAllBytes(
+        directory.resolve("rds-data.json.gz")))).isEqualTo(
+        "{\"data\":{}}".getBytes(StandardCharsets.UTF_8));
+    assertThat(directory.resolve("rds-data.json.gz.tmp")).doesNotExist();
+  }
+
+  @Test
+  public void testInsufficientMemory() throws Exception {
+    Files.write(snapshotFile, "{\"data\":{}}".getBytes(StandardCharsets.UTF_8));
+    config.set("RdsDataDownloader.memory.budgetBytes", "1000");
+
+    try {
+      createRdsDataCompressor().onSnapshot(snapshot(1));
+      failBecauseExceptionWasNotThrown(RdsDataInsufficientMemoryException.class);
+    } catch (RdsDataInsufficientMemoryException e) {
+      assertThat(e.getMessage()).contains("compression");
+    }
+    assertThat(directory.resolve("rds-data.json.gz")).doesNotExist();
+  }
+
+  @Test
+  public void testInvalidLevel() {
+    config.set("RdsDataDownloader.compressor.level", "10");
+    try {
+      createRdsDataCompressor();
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("level");
+    }
+  }
+
+  private RdsDataSnapshot snapshot(long generation) throws IOException {
+    return new RdsDataSnapshot(snapshotFile, Files.size(snapshotFile), generation, 0, null,
+        null);
+  }
+
+  private RdsDataCompressor createRdsDataCompressor() {
+    return new RdsDataCompressor(config, new RdsDataMemoryBudget(config, metrics), metrics);
+  }
+}
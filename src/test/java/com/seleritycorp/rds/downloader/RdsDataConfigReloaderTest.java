@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.config.Config;
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataConfigReloaderTest extends FileTestCase {
+  SettableConfig config;
+  Path configFile;
+
+  @Before
+  public void setUp() throws IOException {
+    configFile = createTempFile();
+    write("RdsDataDownloader.fetcher.enumTypes=Foo\n");
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.reload.file", configFile.toString());
+  }
+
+  @Test
+  public void testDisabledWithoutFile() throws Exception {
+    config = new SettableConfig();
+    RdsDataConfigReloader reloader = createRdsDataConfigReloader();
+
+    assertThat(reloader.isEnabled()).isFalse();
+    assertThat(reloader.getFile()).isNull();
+    assertThat(reloader.loadIfChanged()).isNull();
+  }
+
+  @Test
+  public void testDisabledByConfig() throws Exception {
+    config.set("RdsDataDownloader.reload.enabled", "false");
+    RdsDataConfigReloader reloader = createRdsDataConfigReloader();
+
+    assertThat(reloader.isEnabled()).isFalse();
+  }
+
+  @Test
+  public void testUnchanged() throws Exception {
+    RdsDataConfigReloader reloader = createRdsDataConfigReloader();
+
+    assertThat(reloader.isEnabled()).isTrue();
+    assertThat(reloader.getCheckIntervalMillis()).isEqualTo(10000);
+    assertThat(reloader.loadIfChanged()).isNull();
+  }
+
+  @Test
+  public void testChangedOnce() throws Exception {
+    RdsDataConfigReloader reloader = createRdsDataConfigReloader();
+    write("RdsDataDownloader.fetcher.enumTypes = Foo, Bar \n");
+
+    Config reloaded = reloader.loadIfChanged();
+
+    assertThat(reloaded.get("RdsDataDownloader.fetcher.enumTypes")).isEqualTo("Foo, Bar");
+    assertThat(reloaded.get("RdsDataDownloader.lifecycle.interval")).isNull();
+    assertThat(reloader.loadIfChanged()).isNull();
+  }
+
+  @Test
+  public void testMalformed() throws Exception {
+    RdsDataConfigReloader reloader = createRdsDataConfigReloader();
+    write("foo=\\uZZZZ\n");
+
+    try {
+      reloader.loadIfChanged();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Malformed");
+    }
+
+    // The malformed content got handed out, so it does not get reported again.
+    assertThat(reloader.loadIfChanged()).isNull();
+  }
+
+  private void write(String content) throws IOException {
+    Files.write(configFile, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private RdsDataConfigReloader createRdsDataConfigReloader() {
+    return new RdsDataConfigReloader(config);
+  }
+}
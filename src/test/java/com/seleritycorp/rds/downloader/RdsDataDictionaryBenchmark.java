@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the size reduction and the encode and decode cost of dictionary-encoded snapshots.
+ *
+ * <p>The sizes of the JSON snapshot and its dictionary-encoded form get printed during setup.
+ * Decoding is compared against streaming the JSON snapshot through {@link RdsDataReader}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class RdsDataDictionaryBenchmark {
+  @Param({"10000"})
+  public int recordsPerEnumType;
+
+  @Param({"8"})
+  public int enumTypes;
+
+  @Param({"65536"})
+  public int maxEntries;
+
+  private Path directory;
+  private Path snapshotFile;
+  private Path encodedFile;
+
+  /**
+   * Writes a synthetic snapshot and its dictionary-encoded form.
+   *
+   * @throws IOException if writing fails.
+   */
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("rds-data-benchmark");
+    snapshotFile = directory.resolve("rds-data.json");
+    encodedFile = RdsDataDictionarySnapshot.getPath(snapshotFile);
+    try (Writer writer = Files.newBufferedWriter(snapshotFile, StandardCharsets.UTF_8)) {
+      writer.write("{\"meta\":{\"format\":\"RdsData\",\"version\":2,\"agent\":\"benchmark\"},");
+      writer.write("\"data\":{");
+      for (int type = 0; type < enumTypes; type++) {
+        String enumType = "ENUM_TYPE_" + type;
+        writer.write((type == 0 ? "" : ",") + "\"" + enumType + "\":{");
+        for (int i = 0; i < recordsPerEnumType; i++) {
+          writer.write((i == 0 ? "" : ",") + "\"" + enumType + "-" + i + "\":{"
+              + "\"name\":\"Record " + i + " of " + enumType + "\","
+              + "\"rank\":" + i + ","
+              + "\"country\":\"COUNTRY_" + (i % 50) + "\","
+              + "\"industry\":\"INDUSTRY_" + (i % 300) + "\","
+              + "\"region\":\"REGION_" + (i % 7) + "\","
+              + "\"active\":" + (i % 2 == 0) + "}");
+        }
+        writer.write("}");
+      }
+      writer.write("}}");
+    }
+    try (OutputStream out = Files.newOutputStream(encodedFile)) {
+      encode(out);
+    }
+    long jsonSize = Files.size(snapshotFile);
+    long encodedSize = Files.size(encodedFile);
+    System.out.println("JSON snapshot: " + jsonSize + " bytes, dictionary-encoded: "
+        + encodedSize + " bytes (" + (100 * encodedSize / jsonSize) + "%)");
+  }
+
+  /**
+   * Removes the synthetic files.
+   *
+   * @throws IOException if removing fails.
+   */
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(encodedFile);
+    Files.deleteIfExists(snapshotFile);
+    Files.deleteIfExists(directory);
+  }
+
+  /**
+   * Encodes the snapshot, discarding the output.
+   *
+   * @return the number of dictionary entries.
+   * @throws IOException if encoding fails.
+   */
+  @Benchmark
+  public long encode() throws IOException {
+    return encode(new OutputStream() {
+      @Override
+      public void write(int value) {
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) {
+      }
+    });
+  }
+
+  /**
+   * Decodes the dictionary-encoded snapshot.
+   *
+   * @return a checksum over the read values.
+   * @throws IOException if decoding fails.
+   */
+  @Benchmark
+  public long decode() throws IOException {
+    long[] checksum = new long[1];
+    try (RdsDataDictionarySnapshot snapshot = new RdsDataDictionarySnapshot(encodedFile)) {
+      snapshot.forEach(record -> checksum[0] += checksum(record));
+    }
+    return checksum[0];
+  }
+
+  /**
+   * Streams the JSON snapshot as baseline for decoding.
+   *
+   * @return a checksum over the read values.
+   * @throws IOException if reading fails.
+   */
+  @Benchmark
+  public long readJson() throws IOException {
+    long[] checksum = new long[1];
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      reader.forEach(reader.getEnumTypes(), record -> checksum[0] += checksum(record));
+    }
+    return checksum[0];
+  }
+
+  private long checksum(RdsDataRecord record) {
+    return record.getIdentifier().length() + record.get("country").length()
+        + record.getLong(record.indexOf("rank"));
+  }
+
+  private long encode(OutputStream out) throws IOException {
+    try (RdsDataDictionarySnapshot.Writer writer = new RdsDataDictionarySnapshot.Writer(out, 1,
+        maxEntries, 64 * 1024 * 1024);
+        RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      for (String enumType : reader.getEnumTypes()) {
+        writer.startSection(enumType);
+        reader.forEach(enumType, writer::add);
+      }
+      writer.finish();
+      return writer.getDictionarySize();
+    }
+  }
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args Ignored.
+   * @throws RunnerException if running fails.
+   */
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(RdsDataDictionaryBenchmark.class.getSimpleName())
+        .addProfiler("gc")
+        .build()).run();
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataDictionaryExporterTest extends FileTestCase {
+  static final String META = "{\"format\":\"RdsData\",\"version\":2}";
+
+  SettableConfig config;
+  RdsDataMetrics metrics;
+  Path directory;
+  Path snapshotFile;
+
+  @Before
+  public void setUp() throws IOException {
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.dictionary.enabled", "true");
+    metrics = new RdsDataMetrics();
+    directory = createTempDirectory();
+    snapshotFile = directory.resolve("rds-data.json");
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    config = new SettableConfig();
+    RdsDataDictionaryExporter exporter = createRdsDataDictionaryExporter();
+
+    assertThat(exporter.getName()).isEqualTo("dictionary");
+    assertThat(exporter.isEnabled()).isFalse();
+  }
+
+  @Test
+  public void testExport() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":{\"foo1\":{\"country\":\"US\"},\"foo2\":{\"country\":\"US\"}},"
+        + "\"BAR\":[{\"identifier\":\"bar1\",\"country\":\"US\"}]}}");
+
+    createRdsDataDictionaryExporter().onSnapshot(snapshot(3));
+
+    List<String> records = new ArrayList<>();
+    try (RdsDataDictionarySnapshot snapshot = new RdsDataDictionarySnapshot(
+        RdsDataDictionarySnapshot.getPath(snapshotFile))) {
+      assertThat(snapshot.getGeneration()).isEqualTo(3);
+      snapshot.forEach(record -> records.add(record.getEnumType() + "/"
+          + record.getIdentifier() + "/" + record.get("country")));
+    }
+    assertThat(records).containsExactly("FOO/foo1/US", "FOO/foo2/US", "BAR/bar1/US");
+    assertThat(metrics.getTimer("dictionary.encode").getCount()).isEqualTo(1);
+    assertThat(metrics.getCounter("dictionary.maxEntries")).isPositive();
+    assertThat(directory.resolve("rds-data.json.dict.tmp")).doesNotExist();
+  }
+
+  @Test
+  public void testMalformedKeepsPreviousExport() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{\"FOO\":{\"foo1\":1}}}");
+    RdsDataDictionaryExporter exporter = createRdsDataDictionaryExporter();
+    exporter.onSnapshot(snapshot(1));
+
+    write("{\"meta\":" + META + ",\"data\":{\"FOO\":{\"foo1\":}}}");
+    try {
+      exporter.onSnapshot(snapshot(2));
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      // Expected
+    }
+
+    try (RdsDataDictionarySnapshot snapshot = new RdsDataDictionarySnapshot(
+        RdsDataDictionarySnapshot.getPath(snapshotFile))) {
+      assertThat(snapshot.getGeneration()).isEqualTo(1);
+    }
+    assertThat(directory.resolve("rds-data.json.dict.tmp")).doesNotExist();
+  }
+
+  @Test
+  public void testInsufficientMemory() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{\"FOO\":{\"foo1\":1}}}");
+    config.set("RdsDataDownloader.memory.budgetBytes", "1000");
+
+    try {
+      createRdsDataDictionaryExporter().onSnapshot(snapshot(1));
+      failBecauseExceptionWasNotThrown(RdsDataInsufficientMemoryException.class);
+    } catch (RdsDataInsufficientMemoryException e) {
+      assertThat(e.getMessage()).contains("dictionary");
+    }
+    assertThat(RdsDataDictionarySnapshot.getPath(snapshotFile)).doesNotExist();
+  }
+
+  private RdsDataSnapshot snapshot(long generation) throws IOException {
+    return new RdsDataSnapshot(snapshotFile, Files.size(snapshotFile), generation, 0, null,
+        null);
+  }
+
+  private void write(String content) throws IOException {
+    Files.write(snapshotFile, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private RdsDataDictionaryExporter createRdsDataDictionaryExporter() {
+    return new RdsDataDictionaryExporter(config, new RdsDataMemoryBudget(config, metrics),
+        metrics);
+  }
+}
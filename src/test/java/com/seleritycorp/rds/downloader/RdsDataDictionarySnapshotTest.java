@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+
+public class RdsDataDictionarySnapshotTest extends FileTestCase {
+  static final String META = "{\"format\":\"RdsData\",\"version\":2}";
+
+  Path snapshotFile;
+  Path file;
+
+  @Before
+  public void setUp() throws IOException {
+    Path directory = createTempDirectory();
+    snapshotFile = directory.resolve("rds-data.json");
+    file = RdsDataDictionarySnapshot.getPath(snapshotFile);
+  }
+
+  @Test
+  public void testGetPath() {
+    assertThat(file).isEqualTo(snapshotFile.resolveSibling("rds-data.json.dict"));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":{\"foo1\":{\"name\":\"F\\u00fc\",\"rank\":1,\"active\":true,\"parent\":null,"
+        + "\"tags\":[\"a\",{\"b\":2}]},\"foo2\":{\"name\":\"Bar\",\"rank\":2}},"
+        + "\"BAR\":[{\"identifier\":\"bar1\",\"name\":\"Bar\"},\"plain\",{\"name\":\"x\"}]}}");
+
+    encode(7, 100, 1024 * 1024);
+
+    List<String> records = decode(7);
+    assertThat(records).containsExactly(
+        "FOO/foo1 name=F\u00fc rank=1 active=true parent=null tags=[\"a\",{\"b\":2}]",
+        "FOO/foo2 name=Bar rank=2",
+        "BAR/bar1 identifier=bar1 name=Bar",
+        "BAR/plain value=plain",
+        "BAR/null name=x");
+  }
+
+  @Test
+  public void testTypesSurviveRoundTrip() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":{\"foo1\":{\"s\":\"1\",\"n\":1,\"b\":false,\"z\":null,\"o\":{},\"a\":[]}}}}");
+    encode(1, 100, 1024 * 1024);
+
+    List<RdsDataRecord.Type> types = new ArrayList<>();
+    try (RdsDataDictionarySnapshot snapshot = new RdsDataDictionarySnapshot(file)) {
+      snapshot.forEach(record -> {
+        for (int i = 0; i < record.getFieldCount(); i++) {
+          types.add(record.getType(i));
+        }
+        assertThat(record.getLong(record.indexOf("n"))).isEqualTo(1);
+        assertThat(record.isNull(record.indexOf("z"))).isTrue();
+      });
+    }
+    assertThat(types).containsExactly(RdsDataRecord.Type.STRING, RdsDataRecord.Type.NUMBER,
+        RdsDataRecord.Type.BOOLEAN, RdsDataRecord.Type.NULL, RdsDataRecord.Type.OBJECT,
+        RdsDataRecord.Type.ARRAY);
+  }
+
+  @Test
+  public void testRepeatedStringsGetReferenced() throws Exception {
+    StringBuilder sb = new StringBuilder("{\"meta\":" + META + ",\"data\":{");
+    for (String enumType : Arrays.asList("FOO", "BAR")) {
+      sb.append("FOO".equals(enumType) ? "" : ",").append("\"").append(enumType)
+          .append("\":{");
+      for (int i = 0; i < 1000; i++) {
+        sb.append(i == 0 ? "" : ",").append("\"id").append(i).append("\":{")
+            .append("\"country\":\"C").append(i % 10).append("\",")
+            .append("\"description\":\"Unique description ").append(i).append("\"}");
+      }
+      sb.append("}");
+    }
+    sb.append("}}");
+    write(sb.toString());
+
+    RdsDataDictionarySnapshot.Writer writer = encode(1, 1000, 1024 * 1024);
+
+    // Identifiers and descriptions are detected as high cardinality early. So the dictionary
+    // holds field names, countries, and only the first few identifiers and descriptions.
+    assertThat(writer.getRecords()).isEqualTo(2000);
+    assertThat(writer.getDictionarySize()).isLessThan(1000);
+    assertThat(writer.getReferences()).isGreaterThan(4000);
+    assertThat(Files.size(file)).isLessThan(Files.size(snapshotFile));
+    assertThat(decode(1)).hasSize(2000).contains("BAR/id999 country=C9 "
+        + "description=Unique description 999");
+  }
+
+  @Test
+  public void testBoundedDictionary() throws Exception {
+    StringBuilder sb = new StringBuilder("{\"meta\":" + META + ",\"data\":{\"FOO\":{");
+    for (int i = 0; i < 100; i++) {
+      sb.append(i == 0 ? "" : ",").append("\"id").append(i).append("\":{\"v\":\"x")
+          .append(i % 50).append("\"}");
+    }
+    sb.append("}}}");
+    write(sb.toString());
+
+    RdsDataDictionarySnapshot.Writer writer = encode(1, 5, 1024 * 1024);
+
+    assertThat(writer.getDictionarySize()).isEqualTo(5);
+    List<String> records = decode(1);
+    assertThat(records).hasSize(100);
+    assertThat(records.get(99)).isEqualTo("FOO/id99 v=x49");
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{\"FOO\":{\"foo1\":{\"name\":\"Foo\"}}}}");
+    encode(1, 100, 1024 * 1024);
+    byte[] bytes = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+
+    try (RdsDataDictionarySnapshot snapshot = new RdsDataDictionarySnapshot(file)) {
+      snapshot.forEach(record -> {
+      });
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Unexpected end");
+    }
+  }
+
+  @Test
+  public void testNotADictionarySnapshot() throws Exception {
+    Files.write(file, "{\"meta\":{},\"data\":{}}".getBytes(StandardCharsets.UTF_8));
+
+    try {
+      new RdsDataDictionarySnapshot(file).close();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("magic number");
+    }
+  }
+
+  @Test
+  public void testUnfinished() throws Exception {
+    try {
+      new RdsDataDictionarySnapshot.Writer(file, 1, 100, 1024).close();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("finished");
+    }
+  }
+
+  private RdsDataDictionarySnapshot.Writer encode(long generation, int maxEntries,
+      long maxBytes) throws IOException {
+    try (RdsDataDictionarySnapshot.Writer writer = new RdsDataDictionarySnapshot.Writer(file,
+        generation, maxEntries, maxBytes);
+        RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      for (String enumType : reader.getEnumTypes()) {
+        writer.startSection(enumType);
+        reader.forEach(enumType, writer::add);
+      }
+      writer.finish();
+      return writer;
+    }
+  }
+
+  private List<String> decode(long generation) throws IOException {
+    List<String> records = new ArrayList<>();
+    try (RdsDataDictionarySnapshot snapshot = new RdsDataDictionarySnapshot(file)) {
+      assertThat(snapshot.getGeneration()).isEqualTo(generation);
+      snapshot.forEach(record -> {
+        StringBuilder sb = new StringBuilder(record.getEnumType()).append('/')
+            .append(record.getIdentifier());
+        for (int i = 0; i < record.getFieldCount(); i++) {
+          sb.append(' ').append(record.getFieldName(i)).append('=')
+              .append(record.getString(i));
+        }
+        records.add(sb.toString());
+      });
+      try {
+        snapshot.forEach(record -> {
+        });
+        failBecauseExceptionWasNotThrown(IllegalStateException.class);
+      } catch (IllegalStateException e) {
+        // Expected
+      }
+    }
+    return records;
+  }
+
+  private void write(String content) throws IOException {
+    Files.write(snapshotFile, content.getBytes(StandardCharsets.UTF_8));
+  }
+}
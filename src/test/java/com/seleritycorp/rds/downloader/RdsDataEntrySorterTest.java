@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+
+public class RdsDataEntrySorterTest extends FileTestCase {
+  Path tmpDir;
+
+  @Before
+  public void setUp() throws IOException {
+    tmpDir = createTempDirectory();
+  }
+
+  @Test
+  public void testSortsInMemory() throws Exception {
+    List<String> sorted;
+    try (RdsDataEntrySorter sorter = new RdsDataEntrySorter(tmpDir, 1024 * 1024)) {
+      add(sorter, "c", "1");
+      add(sorter, "a", "2");
+      add(sorter, "b", "3");
+      add(sorter, "a", "4");
+
+      sorted = drain(sorter);
+
+      assertThat(sorter.getSpills()).isEqualTo(0);
+    }
+
+    assertThat(sorted).containsExactly("a=2", "a=4", "b=3", "c=1");
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    try (RdsDataEntrySorter sorter = new RdsDataEntrySorter(tmpDir, 1024 * 1024)) {
+      assertThat(drain(sorter)).isEmpty();
+    }
+  }
+
+  @Test
+  public void testMergesInPasses() throws Exception {
+    List<Integer> keys = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      keys.add(i % 1000);
+    }
+    Collections.shuffle(keys, new Random(3));
+
+    List<String> sorted;
+    List<String> expected = new ArrayList<>();
+    // 4096 bytes only cover buffers for merging three runs at once.
+    try (RdsDataEntrySorter sorter = new RdsDataEntrySorter(tmpDir, 4096)) {
+      for (int i = 0; i < keys.size(); i++) {
+        add(sorter, String.format("%04d", keys.get(i)), Integer.toString(i));
+        expected.add(String.format("%04d", keys.get(i)) + "=" + i);
+      }
+
+      sorted = drain(sorter);
+
+      assertThat(sorter.getSpills()).isGreaterThan(3 * 3);
+      assertThat(sorter.getMerges()).isGreaterThan(3);
+    }
+
+    // Entries with equal keys keep the order they got added in.
+    Collections.sort(expected, (left, right) -> {
+      int result = left.substring(0, 4).compareTo(right.substring(0, 4));
+      return (result != 0) ? result : Integer.compare(Integer.parseInt(left.substring(5)),
+          Integer.parseInt(right.substring(5)));
+    });
+    assertThat(sorted).isEqualTo(expected);
+    assertNoRuns();
+  }
+
+  @Test
+  public void testCloseRemovesRuns() throws Exception {
+    try (RdsDataEntrySorter sorter = new RdsDataEntrySorter(tmpDir, 2048)) {
+      for (int i = 0; i < 500; i++) {
+        add(sorter, Integer.toString(i), "value");
+      }
+      assertThat(sorter.getSpills()).isGreaterThan(0);
+    }
+
+    assertNoRuns();
+  }
+
+  @Test
+  public void testNonPositiveMemory() throws Exception {
+    try {
+      new RdsDataEntrySorter(tmpDir, 0);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("positive");
+    }
+  }
+
+  private void add(RdsDataEntrySorter sorter, String key, String value) throws IOException {
+    sorter.add(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private List<String> drain(RdsDataEntrySorter sorter) throws IOException {
+    List<String> ret = new ArrayList<>();
+    sorter.drain((key, value) -> ret.add(new String(key, StandardCharsets.UTF_8) + "="
+        + new String(value, StandardCharsets.UTF_8)));
+    return ret;
+  }
+
+  private void assertNoRuns() throws IOException {
+    try (Stream<Path> files = Files.list(tmpDir)) {
+      assertThat(files.filter(file -> file.toString().endsWith(".run")).count()).isEqualTo(0);
+    }
+  }
+}
@@ -17,12 +17,23 @@
 package com.seleritycorp.rds.downloader;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
 import static org.easymock.EasyMock.*;
 
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import com.google.gson.*;
 import com.google.gson.stream.JsonWriter;
@@ -32,6 +43,7 @@ import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.seleritycorp.common.base.config.ApplicationPaths;
 import com.seleritycorp.common.base.coreservices.CallErrorException;
 import com.seleritycorp.common.base.coreservices.RefDataClient;
 import com.seleritycorp.common.base.http.client.HttpException;
@@ -40,6 +52,8 @@ import com.seleritycorp.common.base.test.SettableConfig;
 
 public class RdsDataFetcherTest extends EasyMockSupport {
   SettableConfig config;
+  ApplicationPaths paths;
+  Path stateDir;
   RefDataClient refDataClient;
   MetaDataFormatter metaDataFormatter;
   Writer writer;
@@ -47,6 +61,9 @@ public class RdsDataFetcherTest extends EasyMockSupport {
   @Before
   public void setUp() throws IOException {
     config = new SettableConfig();
+    stateDir = Files.createTempDirectory("state");
+    paths = createMock(ApplicationPaths.class);
+    expect(paths.getStatePath()).andReturn(stateDir).anyTimes();
     refDataClient = createMock(RefDataClient.class);
     metaDataFormatter = createMock(MetaDataFormatter.class);
     this.writer = new StringWriter();
@@ -219,7 +236,228 @@ public class RdsDataFetcherTest extends EasyMockSupport {
 
   private RdsDataFetcher createRdsDataFetcher(String enumTypes) {
     config.set("RdsDataDownloader.fetcher.enumTypes", enumTypes);
-    return new RdsDataFetcher(config, refDataClient, metaDataFormatter);
+    return new RdsDataFetcher(config, new RdsDataSegmentStore(config, paths), refDataClient,
+        metaDataFormatter, new RdsDataRunReports(Paths.get("reports"), 1));
+  }
+
+  @Test
+  public void testFetchConcurrently() throws Exception {
+    expectSlowValue("foo", 400, 42);
+    expectSlowValue("bar", 0, 43);
+    expectSlowValue("baz", 300, 44);
+
+    replayAll();
+
+    config.set("RdsDataDownloader.fetcher.parallelism", "0");
+    RdsDataFetcher fetcher = createRdsDataFetcher("foo,bar,baz");
+    long start = System.nanoTime();
+    fetcher.fetch(writer);
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    verifyAll();
+
+    JsonObject fetchedData = new JsonParser().parse(writer.toString()).getAsJsonObject();
+    verifyMeta(fetchedData);
+
+    JsonObject data = getData(fetchedData);
+    List<String> keys = new ArrayList<>();
+    for (Map.Entry<String, JsonElement> entry : data.entrySet()) {
+      keys.add(entry.getKey());
+    }
+    assertThat(keys).containsExactly("foo", "bar", "baz");
+    assertThat(data.get("foo").getAsJsonArray().get(0).getAsInt()).isEqualTo(42);
+    assertThat(data.get("bar").getAsJsonArray().get(0).getAsInt()).isEqualTo(43);
+    assertThat(data.get("baz").getAsJsonArray().get(0).getAsInt()).isEqualTo(44);
+    // Sequential fetching would take at least 700 milliseconds.
+    assertThat(millis).isLessThan(650);
+  }
+
+  @Test
+  public void testFetchConcurrentlyBounded() throws Exception {
+    expectSlowValue("foo", 200, 42);
+    expectSlowValue("bar", 200, 43);
+    expectSlowValue("baz", 200, 44);
+
+    replayAll();
+
+    config.set("RdsDataDownloader.fetcher.parallelism", "2");
+    RdsDataFetcher fetcher = createRdsDataFetcher("foo,bar,baz");
+    long start = System.nanoTime();
+    fetcher.fetch(writer);
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    verifyAll();
+
+    JsonObject data = getData(new JsonParser().parse(writer.toString()));
+    assertThat(data.entrySet()).hasSize(3);
+    // Two rounds of fetching, instead of one for unbounded, and three for sequential fetching.
+    assertThat(millis).isBetween(400L, 580L);
+  }
+
+  @Test
+  public void testFetchConcurrentlyFailureCancelsSiblings() throws Exception {
+    CountDownLatch interrupted = new CountDownLatch(1);
+    refDataClient.getIdentifiersForEnumType(eq("rdsQux"), anyObject(JsonWriter.class));
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      @Override
+      public Object answer() throws Throwable {
+        JsonWriter jsonWriter = (JsonWriter) EasyMock.getCurrentArguments()[1];
+        jsonWriter.beginArray();
+        try {
+          Thread.sleep(10000);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+          throw new HttpException("interrupted", e);
+        }
+        jsonWriter.endArray();
+        return null;
+      }
+    });
+    refDataClient.getIdentifiersForEnumType(eq("bar"), anyObject(JsonWriter.class));
+    expectLastCall().andThrow(new CallErrorException("quuux"));
+
+    replayAll();
+
+    config.set("RdsDataDownloader.fetcher.parallelism", "0");
+    RdsDataFetcher fetcher = createRdsDataFetcher("rdsQux,bar");
+    try {
+      fetcher.fetch(writer);
+      failBecauseExceptionWasNotThrown(CallErrorException.class);
+    } catch (CallErrorException e) {
+      assertThat(e.getMessage()).contains("quuux");
+    }
+
+    verifyAll();
+
+    assertThat(interrupted.await(0, TimeUnit.SECONDS)).isTrue();
+    Path tmpDir = Paths.get(System.getProperty("java.io.tmpdir"));
+    try (DirectoryStream<Path> spools = Files.newDirectoryStream(tmpDir, "RdsData-rdsQux-*")) {
+      assertThat(spools.iterator().hasNext()).isFalse();
+    }
+  }
+
+  @Test
+  public void testReconfigureParallelism() {
+    replayAll();
+
+    RdsDataFetcher fetcher = createRdsDataFetcher("foo");
+    SettableConfig newConfig = new SettableConfig();
+    newConfig.set("RdsDataDownloader.fetcher.enumTypes", "foo");
+    newConfig.set("RdsDataDownloader.fetcher.parallelism", "-1");
+    try {
+      fetcher.validate(newConfig);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("parallelism");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testFetchResumesFromSegments() throws Exception {
+    expectSlowValue("foo", 0, 42);
+    refDataClient.getIdentifiersForEnumType(eq("bar"), anyObject(JsonWriter.class));
+    expectLastCall().andThrow(new HttpException("quuux"));
+    expectSlowValue("bar", 0, 43);
+
+    replayAll();
+
+    config.set("RdsDataDownloader.segments.enabled", "true");
+    RdsDataFetcher fetcher = createRdsDataFetcher("foo,bar");
+    try {
+      fetcher.fetch(new StringWriter());
+      failBecauseExceptionWasNotThrown(HttpException.class);
+    } catch (HttpException e) {
+      assertThat(e.getMessage()).contains("quuux");
+    }
+    Path segments = stateDir.resolve("rds-segments");
+    assertThat(segments.resolve("foo.json")).hasContent("[42]");
+    assertThat(segments.resolve("bar.json")).doesNotExist();
+    assertThat(segments.resolve("bar.json.tmp")).doesNotExist();
+
+    fetcher.fetch(writer);
+
+    verifyAll();
+
+    JsonObject data = getData(new JsonParser().parse(writer.toString()));
+    assertThat(data.get("foo").getAsJsonArray().get(0).getAsInt()).isEqualTo(42);
+    assertThat(data.get("bar").getAsJsonArray().get(0).getAsInt()).isEqualTo(43);
+    assertThat(segments.resolve("bar.json")).hasContent("[43]");
+
+    fetcher.markPublished();
+
+    RdsDataSegmentStore store = new RdsDataSegmentStore(config, paths);
+    assertThat(store.get("foo").getSize()).isEqualTo(4);
+    assertThat(store.getResumable("foo")).isNull();
+    assertThat(store.getResumable("bar")).isNull();
+  }
+
+  @Test
+  public void testFetchIgnoresOldSegments() throws Exception {
+    expectSlowValue("foo", 0, 42);
+    expectSlowValue("bar", 0, 43);
+
+    replayAll();
+
+    config.set("RdsDataDownloader.segments.enabled", "true");
+    config.set("RdsDataDownloader.segments.maxResumeAge", "0");
+    new RdsDataSegmentStore(config, paths).write("foo", writer -> writer.write("[41]"));
+    RdsDataFetcher fetcher = createRdsDataFetcher("foo,bar");
+    fetcher.fetch(writer);
+
+    verifyAll();
+
+    JsonObject data = getData(new JsonParser().parse(writer.toString()));
+    assertThat(data.get("foo").getAsJsonArray().get(0).getAsInt()).isEqualTo(42);
+  }
+
+  @Test
+  public void testFetchAppendsToSink() throws Exception {
+    expectSlowValue("foo", 0, 42);
+    expectSlowValue("bar", 0, 43);
+
+    replayAll();
+
+    List<Path> appended = new ArrayList<>();
+    SinkWriter sink = new SinkWriter(appended);
+    config.set("RdsDataDownloader.fetcher.parallelism", "2");
+    RdsDataFetcher fetcher = createRdsDataFetcher("foo,bar");
+    fetcher.fetch(sink);
+
+    verifyAll();
+
+    assertThat(appended).hasSize(2);
+    JsonObject data = getData(new JsonParser().parse(sink.toString()));
+    assertThat(data.get("foo").getAsJsonArray().get(0).getAsInt()).isEqualTo(42);
+    assertThat(data.get("bar").getAsJsonArray().get(0).getAsInt()).isEqualTo(43);
+  }
+
+  private static class SinkWriter extends StringWriter implements RdsDataSegmentSink {
+    private final List<Path> appended;
+
+    private SinkWriter(List<Path> appended) {
+      this.appended = appended;
+    }
+
+    @Override
+    public void append(Path file) throws IOException {
+      appended.add(file);
+      write(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+  }
+
+  private void expectSlowValue(String enumType, long millis, int value) throws Exception {
+    refDataClient.getIdentifiersForEnumType(eq(enumType), anyObject(JsonWriter.class));
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      @Override
+      public Object answer() throws Throwable {
+        Thread.sleep(millis);
+        JsonWriter jsonWriter = (JsonWriter) EasyMock.getCurrentArguments()[1];
+        jsonWriter.beginArray().value(value).endArray();
+        return null;
+      }
+    });
   }
 
   private void verifyMeta(JsonElement fetchedData) {
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+
+public class RdsDataFieldIndexTest extends FileTestCase {
+  Path file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = createTempDirectory().resolve("index");
+  }
+
+  @Test
+  public void testIndex() {
+    RdsDataFieldIndex index = new RdsDataFieldIndex("foo", Arrays.asList("name", "rank", "flag"),
+        true);
+    RdsDataRecord record = new RdsDataRecord("FOO", new RdsDataRecord.Names());
+    addField(record, "name", "Foo \u00c4", RdsDataRecord.Type.STRING);
+    addField(record, "rank", "42", RdsDataRecord.Type.NUMBER);
+    addField(record, "flag", "null", RdsDataRecord.Type.NULL);
+    addField(record, "other", "bar", RdsDataRecord.Type.STRING);
+
+    List<String> keys = new ArrayList<>();
+    index.index(record, (field, value) -> keys.add(field + "=" + value));
+
+    assertThat(index.getName()).isEqualTo("foo");
+    assertThat(index.accepts("FOO")).isTrue();
+    assertThat(keys).containsExactly("name=foo \u00e4", "rank=42");
+  }
+
+  @Test
+  public void testAcceptsNothingWithoutFields() {
+    RdsDataFieldIndex index = new RdsDataFieldIndex("foo", Collections.emptyList(), false);
+
+    assertThat(index.accepts("FOO")).isFalse();
+  }
+
+  @Test
+  public void testLookup() throws Exception {
+    try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, 64)) {
+      writer.add(RdsDataKeyValueStore.toKey("name", "bar"), bytes("b1"));
+      writer.add(RdsDataKeyValueStore.toKey("name", "foo"), bytes("f1\nf2"));
+      writer.add(RdsDataKeyValueStore.toKey("name", "foobar"), bytes("f3"));
+      writer.add(RdsDataKeyValueStore.toKey("name", "fop"), bytes("f4"));
+      writer.add(RdsDataKeyValueStore.toKey("ticker", "foo"), bytes("t1"));
+      writer.finish(1);
+    }
+    RdsDataFieldIndex index = new RdsDataFieldIndex("names", Arrays.asList("name"), true);
+
+    try (RdsDataKeyValueStore store = new RdsDataKeyValueStore(file)) {
+      assertThat(index.lookup(store, "name", "FOO")).containsExactly("f1", "f2");
+      assertThat(index.lookup(store, "name", "baz")).isEmpty();
+
+      Map<String, List<String>> matches = index.lookupPrefix(store, "name", "Foo", 10);
+      assertThat(matches.keySet()).containsExactly("foo", "foobar");
+      assertThat(matches.get("foobar")).containsExactly("f3");
+
+      assertThat(index.lookupPrefix(store, "name", "f", 2).keySet())
+          .containsExactly("foo", "foobar");
+      assertThat(index.lookupPrefix(store, "name", "x", 10)).isEmpty();
+    }
+  }
+
+  private void addField(RdsDataRecord record, String name, String value,
+      RdsDataRecord.Type type) {
+    byte[] nameBytes = bytes(name);
+    byte[] valueBytes = bytes(value);
+    int nameStart = record.getLength();
+    record.append(nameBytes, 0, nameBytes.length);
+    int valueStart = record.getLength();
+    record.append(valueBytes, 0, valueBytes.length);
+    record.addField(nameStart, nameBytes.length, valueStart, valueBytes.length, type);
+  }
+
+  private byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+
+public class RdsDataFilesTest extends FileTestCase {
+  @Test
+  public void testWriteAtomicallyCreatesParents() throws IOException {
+    Path file = createTempDirectory().resolve("foo").resolve("bar");
+
+    RdsDataFiles.writeAtomically(file, "baz".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(file).hasContent("baz");
+    assertThat(file.resolveSibling("bar.tmp")).doesNotExist();
+  }
+
+  @Test
+  public void testWriteAtomicallyReplaces() throws IOException {
+    Path file = createTempDirectory().resolve("foo");
+
+    RdsDataFiles.writeAtomically(file, "bar".getBytes(StandardCharsets.UTF_8));
+    RdsDataFiles.writeAtomically(file, "baz".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(file).hasContent("baz");
+  }
+
+  @Test
+  public void testToHex() {
+    assertThat(RdsDataFiles.toHex(new byte[] {0, 1, 15, 16, -1})).isEqualTo("00010f10ff");
+  }
+
+  @Test
+  public void testSha256() {
+    byte[] digest = RdsDataFiles.newSha256().digest("abc".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(RdsDataFiles.toHex(digest)).isEqualTo(
+        "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class RdsDataFlightEventsTest {
+  @Test
+  public void testGetEventName() {
+    assertThat(RdsDataFlightEvents.getEventName("stream")).isEqualTo("com.seleritycorp.rds.Stream");
+    assertThat(RdsDataFlightEvents.getEventName("retryPause"))
+        .isEqualTo("com.seleritycorp.rds.RetryPause");
+    assertThat(RdsDataFlightEvents.getEventName("")).isEqualTo("com.seleritycorp.rds.Phase");
+  }
+
+  @Test
+  public void testEventsWithoutRecording() {
+    RdsDataFlightEvents.beginPhase("stream:FOO").set("bytes", 42L).set("error", null).commit();
+    RdsDataFlightEvents.beginPhase("validate").set("records", 7L).commit();
+    RdsDataFlightEvents.beginRun().set("outcome", "READY").set("generation", 3L).commit();
+  }
+
+  @Test
+  public void testUnknownField() {
+    Assume.assumeTrue(RdsDataFlightEvents.isAvailable());
+    try {
+      RdsDataFlightEvents.beginPhase("move").set("quux", 1L);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("quux");
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataFlightRecorderTest extends FileTestCase {
+  SettableConfig config;
+  Path stateDir;
+  RdsDataFlightRecorder flightRecorder;
+
+  @Before
+  public void setUp() throws IOException {
+    config = new SettableConfig();
+    stateDir = createTempDirectory();
+    flightRecorder = null;
+  }
+
+  @After
+  public void tearDown() {
+    if (flightRecorder != null) {
+      flightRecorder.stop();
+    }
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    flightRecorder = createRdsDataFlightRecorder();
+    flightRecorder.start();
+
+    assertThat(flightRecorder.isRecording()).isFalse();
+    assertThat(flightRecorder.dump("failed")).isNull();
+    assertThat(flightRecorder.getDumpDirectory()).isEqualTo(stateDir.resolve("rds-recordings"));
+  }
+
+  @Test
+  public void testDump() throws Exception {
+    Assume.assumeTrue(RdsDataFlightEvents.isAvailable());
+    config.set("RdsDataDownloader.flightRecorder.enabled", "true");
+    flightRecorder = createRdsDataFlightRecorder();
+    flightRecorder.start();
+
+    assertThat(flightRecorder.isRecording()).isTrue();
+
+    RdsDataRunReport report = new RdsDataRunReport();
+    try (RdsDataRunReport.Phase phase = report.begin("stream:FOO")) {
+      phase.addBytes(42);
+    }
+    report.setOutcome("FAULTY", "quux");
+    report.end();
+    Path dump = flightRecorder.dump("failed");
+
+    assertThat(dump.getParent()).isEqualTo(stateDir.resolve("rds-recordings"));
+    assertThat(dump.getFileName().toString()).startsWith("rds-").endsWith("-failed.jfr");
+    Map<String, Map<String, Object>> events = readEvents(dump);
+    assertThat(events.get("com.seleritycorp.rds.Stream").get("detail")).isEqualTo("FOO");
+    assertThat(events.get("com.seleritycorp.rds.Stream").get("bytes")).isEqualTo(42L);
+    assertThat(events.get("com.seleritycorp.rds.Run").get("outcome")).isEqualTo("FAULTY");
+    assertThat(events.get("com.seleritycorp.rds.Run").get("message")).isEqualTo("quux");
+  }
+
+  @Test
+  public void testDumpPrunes() throws Exception {
+    Assume.assumeTrue(RdsDataFlightEvents.isAvailable());
+    config.set("RdsDataDownloader.flightRecorder.enabled", "true");
+    config.set("RdsDataDownloader.flightRecorder.maxDumps", "2");
+    flightRecorder = createRdsDataFlightRecorder();
+    flightRecorder.start();
+
+    flightRecorder.dump("a");
+    Thread.sleep(2);
+    flightRecorder.dump("b");
+    Thread.sleep(2);
+    Path last = flightRecorder.dump("c");
+
+    List<Path> dumps = listDumps(flightRecorder.getDumpDirectory());
+    assertThat(dumps).hasSize(2);
+    assertThat(dumps.get(1)).isEqualTo(last);
+  }
+
+  @Test
+  public void testStop() throws Exception {
+    Assume.assumeTrue(RdsDataFlightEvents.isAvailable());
+    config.set("RdsDataDownloader.flightRecorder.enabled", "true");
+    flightRecorder = createRdsDataFlightRecorder();
+    flightRecorder.start();
+    flightRecorder.stop();
+
+    assertThat(flightRecorder.isRecording()).isFalse();
+    assertThat(flightRecorder.dump("failed")).isNull();
+  }
+
+  static List<Path> listDumps(Path directory) throws IOException {
+    List<Path> dumps = new ArrayList<>();
+    if (Files.isDirectory(directory)) {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.jfr")) {
+        for (Path dump : stream) {
+          dumps.add(dump);
+        }
+      }
+    }
+    Collections.sort(dumps);
+    return dumps;
+  }
+
+  /**
+   * Reads the last event of each of our event types from a dump.
+   *
+   * <p>JFR's consumer API is used reflectively, as the code has to compile for Java 8.
+   */
+  static Map<String, Map<String, Object>> readEvents(Path dump) throws Exception {
+    Class<?> recordingFile = Class.forName("jdk.jfr.consumer.RecordingFile");
+    List<?> recorded = (List<?>) recordingFile.getMethod("readAllEvents", Path.class)
+        .invoke(null, dump);
+    Map<String, Map<String, Object>> events = new LinkedHashMap<>();
+    for (Object event : recorded) {
+      Method getEventType = event.getClass().getMethod("getEventType");
+      Object type = getEventType.invoke(event);
+      String name = (String) type.getClass().getMethod("getName").invoke(type);
+      if (!name.startsWith(RdsDataFlightEvents.PREFIX)) {
+        continue;
+      }
+      Map<String, Object> values = new LinkedHashMap<>();
+      for (Object field : (List<?>) type.getClass().getMethod("getFields").invoke(type)) {
+        String fieldName = (String) field.getClass().getMethod("getName").invoke(field);
+        values.put(fieldName, event.getClass().getMethod("getValue", String.class)
+            .invoke(event, fieldName));
+      }
+      events.put(name, values);
+    }
+    return events;
+  }
+
+  private RdsDataFlightRecorder createRdsDataFlightRecorder() {
+    return new RdsDataFlightRecorder(config, stateDir);
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.state.AppState;
+import com.seleritycorp.common.base.state.AppStatePushFacet;
+import com.seleritycorp.common.base.state.StateManager;
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataFreshnessTest extends FileTestCase {
+  static final String JSON = "{\"meta\":{\"version\":2},\"data\":{\"FOO\":{\"foo1\":1},"
+      + "\"BAR\":[\"bar1\",\"bar2\"]}}";
+
+  SettableConfig config;
+  ApplicationPaths paths;
+  StateManager sm;
+  AppStatePushFacet facet;
+  RdsDataMetrics metrics;
+  Path target;
+
+  @Before
+  public void setUp() throws IOException {
+    Path tmpDir = createTempDirectory();
+    paths = createMock(ApplicationPaths.class);
+    expect(paths.getDataPath()).andReturn(tmpDir).anyTimes();
+    expect(paths.getStatePath()).andReturn(tmpDir.resolve("state")).anyTimes();
+    sm = createMock(StateManager.class);
+    facet = createMock(AppStatePushFacet.class);
+    expect(sm.createRegisteredAppStatePushFacet("RdsDataFreshness")).andReturn(facet);
+    metrics = new RdsDataMetrics();
+
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.fetcher.enumTypes", "FOO,BAR");
+
+    target = tmpDir.resolve("rds").resolve("rds-data.json");
+    Files.createDirectories(target.getParent());
+    Files.write(target, JSON.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testNothingPublishedYet() {
+    facet.setAppState(AppState.READY);
+    expectLastCall().once();
+
+    replayAll();
+
+    RdsDataFreshness freshness = createRdsDataFreshness();
+    JsonObject health = freshness.check();
+
+    verifyAll();
+
+    assertThat(health.get("state").getAsString()).isEqualTo("READY");
+    assertThat(health.get("generation").getAsLong()).isEqualTo(0);
+    assertThat(health.has("nextFetchMillis")).isFalse();
+    JsonObject foo = health.getAsJsonObject("sections").getAsJsonObject("FOO");
+    assertThat(foo.has("publishedMillis")).isFalse();
+    assertThat(foo.get("ageMillis").getAsLong()).isBetween(0L, 5000L);
+  }
+
+  @Test
+  public void testOnSnapshot() throws Exception {
+    facet.setAppState(AppState.READY);
+    expectLastCall().once();
+
+    replayAll();
+
+    RdsDataFreshness freshness = createRdsDataFreshness();
+    long timestamp = System.currentTimeMillis() - 1000;
+    freshness.onSnapshot(new RdsDataSnapshot(target, JSON.length(), 3, timestamp, null, null));
+    JsonObject health = freshness.check();
+
+    verifyAll();
+
+    assertThat(health.get("generation").getAsLong()).isEqualTo(3);
+    JsonObject bar = health.getAsJsonObject("sections").getAsJsonObject("BAR");
+    assertThat(bar.get("publishedMillis").getAsLong()).isEqualTo(timestamp);
+    assertThat(bar.get("ageMillis").getAsLong()).isBetween(1000L, 6000L);
+    assertThat(metrics.getCounter("freshness.ageMillis.BAR")).isBetween(1000L, 6000L);
+  }
+
+  @Test
+  public void testStaleFromManifest() throws Exception {
+    facet.setAppState(eq(AppState.WARNING), anyObject(String.class));
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.freshness.maxAge", "1");
+    config.set("RdsDataDownloader.freshness.maxAgeUnit", "MINUTES");
+    config.set("RdsDataDownloader.freshness.BAR.maxAge", "1");
+    config.set("RdsDataDownloader.freshness.BAR.maxAgeUnit", "HOURS");
+    RdsDataManifest.write(new RdsDataSnapshot(target, JSON.length(), 5,
+        System.currentTimeMillis() - 90000, null, null));
+    RdsDataFreshness freshness = createRdsDataFreshness();
+    JsonObject health = freshness.check();
+    freshness.check();
+
+    verifyAll();
+
+    assertThat(health.get("state").getAsString()).isEqualTo("WARNING");
+    assertThat(health.get("message").getAsString()).isEqualTo("Stale enum types: FOO");
+    JsonObject sections = health.getAsJsonObject("sections");
+    assertThat(sections.getAsJsonObject("FOO").get("state").getAsString())
+        .isEqualTo("WARNING");
+    assertThat(sections.getAsJsonObject("BAR").get("state").getAsString()).isEqualTo("READY");
+    assertThat(metrics.getCounter("freshness.staleEnumTypes")).isEqualTo(1);
+  }
+
+  @Test
+  public void testRecovery() throws Exception {
+    facet.setAppState(eq(AppState.FAULTY), anyObject(String.class));
+    expectLastCall().once();
+    facet.setAppState(AppState.READY);
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.freshness.maxAge", "1");
+    config.set("RdsDataDownloader.freshness.maxAgeUnit", "MINUTES");
+    RdsDataManifest.write(new RdsDataSnapshot(target, JSON.length(), 5,
+        System.currentTimeMillis() - 180000, null, null));
+    RdsDataFreshness freshness = createRdsDataFreshness();
+    assertThat(freshness.check().get("state").getAsString()).isEqualTo("FAULTY");
+    freshness.onSnapshot(new RdsDataSnapshot(target, JSON.length(), 6,
+        System.currentTimeMillis(), null, null));
+
+    verifyAll();
+  }
+
+  @Test
+  public void testIgnoresOlderGenerations() throws Exception {
+    facet.setAppState(AppState.READY);
+    expectLastCall().once();
+
+    replayAll();
+
+    RdsDataFreshness freshness = createRdsDataFreshness();
+    long timestamp = System.currentTimeMillis();
+    freshness.onSnapshot(new RdsDataSnapshot(target, JSON.length(), 3, timestamp, null, null));
+    freshness.onSnapshot(new RdsDataSnapshot(target, JSON.length(), 2, timestamp - 5000, null,
+        null));
+    JsonObject health = freshness.check();
+
+    verifyAll();
+
+    assertThat(health.get("generation").getAsLong()).isEqualTo(3);
+    assertThat(health.getAsJsonObject("sections").getAsJsonObject("FOO")
+        .get("publishedMillis").getAsLong()).isEqualTo(timestamp);
+  }
+
+  @Test
+  public void testReconfigure() {
+    facet.setAppState(AppState.READY);
+    expectLastCall().once();
+
+    replayAll();
+
+    RdsDataFreshness freshness = createRdsDataFreshness();
+    SettableConfig newConfig = new SettableConfig();
+    newConfig.set("RdsDataDownloader.fetcher.enumTypes", "BAZ");
+    newConfig.set("RdsDataDownloader.freshness.maxAge", "5");
+    newConfig.set("RdsDataDownloader.freshness.maxAgeUnit", "MINUTES");
+    freshness.validate(newConfig);
+    freshness.reconfigure(newConfig);
+    JsonObject sections = freshness.check().getAsJsonObject("sections");
+
+    verifyAll();
+
+    assertThat(sections.has("FOO")).isFalse();
+    assertThat(sections.getAsJsonObject("BAZ").get("maxAgeMillis").getAsLong())
+        .isEqualTo(300000);
+  }
+
+  @Test
+  public void testValidateRejectsNonPositiveMaxAge() {
+    replayAll();
+
+    RdsDataFreshness freshness = createRdsDataFreshness();
+    SettableConfig newConfig = new SettableConfig();
+    newConfig.set("RdsDataDownloader.fetcher.enumTypes", "FOO");
+    newConfig.set("RdsDataDownloader.freshness.FOO.maxAge", "0");
+    try {
+      freshness.validate(newConfig);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("FOO");
+    }
+
+    verifyAll();
+  }
+
+  private RdsDataFreshness createRdsDataFreshness() {
+    RdsDataPersister persister = new RdsDataPersister(config, paths, metrics,
+        new RdsDataMemoryBudget(config, metrics), new RdsDataRunReports(Paths.get("reports"), 1));
+    RdsDataScheduler scheduler = new RdsDataScheduler(config, metrics,
+        new RdsDataFlightRecorder(config, Paths.get("state")));
+    return new RdsDataFreshness(config, sm, persister, scheduler, metrics);
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.expect;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataGenerationNotifierTest extends FileTestCase {
+  ApplicationPaths paths;
+  Path target;
+
+  @Before
+  public void setUp() throws IOException {
+    Path tmpDir = createTempDirectory();
+    paths = createMock(ApplicationPaths.class);
+    expect(paths.getDataPath()).andReturn(tmpDir);
+    expect(paths.getStatePath()).andReturn(tmpDir.resolve("state"));
+
+    target = tmpDir.resolve("rds").resolve("rds-data.json");
+  }
+
+  @Test
+  public void testNoSnapshot() throws Exception {
+    replayAll();
+
+    RdsDataGenerationNotifier notifier = createRdsDataGenerationNotifier();
+    notifier.start();
+
+    verifyAll();
+
+    assertThat(notifier.getLatest()).isNull();
+    assertThat(notifier.awaitNewerThan(0, 10)).isNull();
+  }
+
+  @Test
+  public void testStartPicksUpManifest() throws Exception {
+    Files.createDirectories(target.getParent());
+    Files.write(target, "{}".getBytes(StandardCharsets.UTF_8));
+    RdsDataManifest.write(snapshot(7));
+    replayAll();
+
+    RdsDataGenerationNotifier notifier = createRdsDataGenerationNotifier();
+    notifier.start();
+
+    verifyAll();
+
+    assertThat(notifier.getLatest().getGeneration()).isEqualTo(7);
+    assertThat(notifier.awaitNewerThan(6, 0).getGeneration()).isEqualTo(7);
+  }
+
+  @Test
+  public void testAwaitAlreadyPublished() throws Exception {
+    replayAll();
+
+    RdsDataGenerationNotifier notifier = createRdsDataGenerationNotifier();
+    notifier.onSnapshot(snapshot(1));
+    notifier.onSnapshot(snapshot(2));
+
+    verifyAll();
+
+    assertThat(notifier.awaitNewerThan(0, 0).getGeneration()).isEqualTo(2);
+    assertThat(notifier.awaitNewerThan(1, 0).getGeneration()).isEqualTo(2);
+    assertThat(notifier.awaitNewerThan(2, 10)).isNull();
+  }
+
+  @Test
+  public void testIgnoresOlderGenerations() throws Exception {
+    replayAll();
+
+    RdsDataGenerationNotifier notifier = createRdsDataGenerationNotifier();
+    notifier.onSnapshot(snapshot(2));
+    notifier.onSnapshot(snapshot(1));
+
+    verifyAll();
+
+    assertThat(notifier.getLatest().getGeneration()).isEqualTo(2);
+  }
+
+  @Test
+  public void testAwaitWakesUp() throws Exception {
+    replayAll();
+
+    RdsDataGenerationNotifier notifier = createRdsDataGenerationNotifier();
+    notifier.onSnapshot(snapshot(1));
+    Thread publisher = new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      notifier.onSnapshot(snapshot(2));
+    });
+    publisher.start();
+    RdsDataSnapshot snapshot = notifier.awaitNewerThan(1, 10000);
+    publisher.join();
+
+    verifyAll();
+
+    assertThat(snapshot.getGeneration()).isEqualTo(2);
+  }
+
+  private RdsDataSnapshot snapshot(long generation) {
+    return new RdsDataSnapshot(target, 2, generation, 1000, null, null);
+  }
+
+  private RdsDataGenerationNotifier createRdsDataGenerationNotifier() {
+    SettableConfig config = new SettableConfig();
+    RdsDataMetrics metrics = new RdsDataMetrics();
+    RdsDataRunReports reports = new RdsDataRunReports(Paths.get("reports"), 1);
+    return new RdsDataGenerationNotifier(new RdsDataPersister(config, paths, metrics,
+        new RdsDataMemoryBudget(config, metrics), reports));
+  }
+}
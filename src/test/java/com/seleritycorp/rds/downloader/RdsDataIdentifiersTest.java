@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+public class RdsDataIdentifiersTest {
+  @Test
+  public void testPrimitive() {
+    assertThat(RdsDataIdentifiers.get(parse("\"foo\""), "identifier")).isEqualTo("foo");
+    assertThat(RdsDataIdentifiers.get(parse("42"), "identifier")).isEqualTo("42");
+  }
+
+  @Test
+  public void testObject() {
+    assertThat(RdsDataIdentifiers.get(parse("{\"identifier\":\"foo\",\"id\":\"bar\"}"),
+        "identifier")).isEqualTo("foo");
+    assertThat(RdsDataIdentifiers.get(parse("{\"identifier\":\"foo\",\"id\":\"bar\"}"), "id"))
+        .isEqualTo("bar");
+  }
+
+  @Test
+  public void testNoIdentifier() {
+    assertThat(RdsDataIdentifiers.get(parse("{\"id\":\"bar\"}"), "identifier")).isNull();
+    assertThat(RdsDataIdentifiers.get(parse("{\"identifier\":{\"x\":1}}"), "identifier"))
+        .isNull();
+    assertThat(RdsDataIdentifiers.get(parse("[\"foo\"]"), "identifier")).isNull();
+    assertThat(RdsDataIdentifiers.get(parse("null"), "identifier")).isNull();
+  }
+
+  private JsonElement parse(String json) {
+    return new JsonParser().parse(json);
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import com.google.gson.JsonElement;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataIndexerTest extends FileTestCase {
+  static final String META = "{\"format\":\"RdsData\",\"version\":2}";
+
+  SettableConfig config;
+  RdsDataMetrics metrics;
+  RdsDataRunReports reports;
+  Path directory;
+  Path snapshotFile;
+
+  @Before
+  public void setUp() throws IOException {
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.indexer.enabled", "true");
+    config.set("RdsDataDownloader.indexer.parallelism", "2");
+    metrics = new RdsDataMetrics();
+    reports = new RdsDataRunReports(createTempDirectory(), 10);
+    directory = createTempDirectory();
+    snapshotFile = directory.resolve("rds-data.json");
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    config = new SettableConfig();
+    RdsDataIndexer indexer = createRdsDataIndexer();
+
+    assertThat(indexer.getName()).isEqualTo("indexer");
+    assertThat(indexer.isEnabled()).isFalse();
+    assertThat(indexer.getIndexes()).hasSize(2);
+    assertThat(((RdsDataFieldIndex) indexer.getIndexes().get(0)).getFields())
+        .containsExactly("name", "ticker");
+    assertThat(((RdsDataFieldIndex) indexer.getIndexes().get(1)).getFields())
+        .containsExactly("industry", "country", "region");
+  }
+
+  @Test
+  public void testIndex() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"COMPANY\":[{\"identifier\":\"c1\",\"name\":\"Foo Inc\",\"ticker\":\"FOO\","
+        + "\"industry\":\"i1\",\"country\":\"US\"},"
+        + "{\"identifier\":\"c2\",\"name\":\"Foobar Ltd\",\"ticker\":\"FBR\","
+        + "\"industry\":\"i1\",\"country\":\"GB\"},"
+        + "{\"name\":\"No identifier\"}],"
+        + "\"INDUSTRY\":{\"i1\":{\"name\":\"Widgets\",\"region\":{\"nested\":true}}}}}");
+    reports.start();
+
+    createRdsDataIndexer().onSnapshot(snapshot(5));
+
+    RdsDataFieldIndex names = new RdsDataFieldIndex("names", Arrays.asList("name"), true);
+    RdsDataFieldIndex references = new RdsDataFieldIndex("references",
+        Arrays.asList("industry"), false);
+    try (RdsDataKeyValueStore store = openIndex("names", "COMPANY")) {
+      assertThat(store.getGeneration()).isEqualTo(5);
+      assertThat(store.size()).isEqualTo(4);
+      assertThat(names.lookup(store, "ticker", "foo")).containsExactly("c1");
+      assertThat(names.lookup(store, "name", "FOO INC")).containsExactly("c1");
+      assertThat(names.lookup(store, "name", "no identifier")).isEmpty();
+      assertThat(names.lookupPrefix(store, "name", "Foo", 10).keySet())
+          .containsExactly("foo inc", "foobar ltd");
+      assertThat(names.lookupPrefix(store, "name", "foob", 10).get("foobar ltd"))
+          .containsExactly("c2");
+    }
+    try (RdsDataKeyValueStore store = openIndex("references", "COMPANY")) {
+      assertThat(references.lookup(store, "industry", "i1")).containsExactly("c1", "c2");
+      assertThat(references.lookup(store, "country", "GB")).containsExactly("c2");
+    }
+    try (RdsDataKeyValueStore store = openIndex("names", "INDUSTRY")) {
+      assertThat(names.lookup(store, "name", "widgets")).containsExactly("i1");
+    }
+    try (RdsDataKeyValueStore store = openIndex("references", "INDUSTRY")) {
+      // Object fields are not indexed.
+      assertThat(store.size()).isEqualTo(0);
+    }
+
+    assertThat(metrics.getTimer("indexer.build.COMPANY").getCount()).isEqualTo(1);
+    assertThat(metrics.getTimer("indexer.build.INDUSTRY").getCount()).isEqualTo(1);
+    List<String> phases = new ArrayList<>();
+    for (JsonElement phase : reports.getCurrent().toJson().getAsJsonArray("phases")) {
+      phases.add(phase.getAsJsonObject().get("name").getAsString());
+    }
+    assertThat(phases).containsOnly("index:COMPANY", "index:INDUSTRY");
+    assertThat(listTmpFiles()).isEmpty();
+  }
+
+  @Test
+  public void testIndexSpills() throws Exception {
+    StringBuilder sb = new StringBuilder("{\"meta\":" + META + ",\"data\":{\"COMPANY\":[");
+    int count = 2000;
+    for (int i = 0; i < count; i++) {
+      sb.append(i == 0 ? "" : ",").append("{\"identifier\":\"c").append(i)
+          .append("\",\"name\":\"Company ").append(count - i).append("\",\"country\":\"")
+          .append((i % 3 == 0) ? "US" : "GB").append("\"}");
+    }
+    sb.append("]}}");
+    write(sb.toString());
+    config.set("RdsDataDownloader.indexer.maxMemoryBytes", "8192");
+    // Leaves room for the identifier lists of each value.
+    config.set("RdsDataDownloader.memory.budgetBytes", "65536");
+    RdsDataMemoryBudget memoryBudget = new RdsDataMemoryBudget(config, metrics);
+
+    new RdsDataIndexer(config, memoryBudget, metrics, reports).onSnapshot(snapshot(1));
+
+    RdsDataFieldIndex names = new RdsDataFieldIndex("names", Arrays.asList("name"), true);
+    RdsDataFieldIndex references = new RdsDataFieldIndex("references",
+        Arrays.asList("country"), false);
+    try (RdsDataKeyValueStore store = openIndex("names", "COMPANY")) {
+      assertThat(store.size()).isEqualTo(count);
+      for (int i = 0; i < count; i++) {
+        assertThat(names.lookup(store, "name", "company " + (count - i)))
+            .containsExactly("c" + i);
+      }
+    }
+    try (RdsDataKeyValueStore store = openIndex("references", "COMPANY")) {
+      List<String> expected = new ArrayList<>();
+      for (int i = 0; i < count; i += 3) {
+        expected.add("c" + i);
+      }
+      // Identifiers keep the order of their records.
+      assertThat(references.lookup(store, "country", "US")).isEqualTo(expected);
+    }
+    assertThat(memoryBudget.getReservedBytes()).isEqualTo(0);
+    assertThat(metrics.getCounter("memory.peakBytes")).isGreaterThan(8192);
+    try (Stream<Path> files = Files.list(directory)) {
+      assertThat(files.filter(file -> file.toString().endsWith(".run")).count()).isEqualTo(0);
+    }
+    assertThat(listTmpFiles()).isEmpty();
+  }
+
+  @Test
+  public void testInsufficientMemory() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":[{\"identifier\":\"foo1\",\"name\":\"Foo\"}]}}");
+    config.set("RdsDataDownloader.memory.budgetBytes", "1024");
+
+    try {
+      createRdsDataIndexer().onSnapshot(snapshot(1));
+      failBecauseExceptionWasNotThrown(RdsDataInsufficientMemoryException.class);
+    } catch (RdsDataInsufficientMemoryException e) {
+      assertThat(e.getMessage()).contains("index sort memory");
+    }
+
+    assertThat(RdsDataIndexer.getPath(snapshotFile, "names", "FOO")).doesNotExist();
+  }
+
+  @Test
+  public void testCustomIndex() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":{\"foo1\":{\"rank\":1},\"foo2\":{\"rank\":2}},"
+        + "\"BAR\":{\"bar1\":{\"rank\":1}}}}");
+    RdsDataIndex index = new RdsDataIndex() {
+      @Override
+      public String getName() {
+        return "odd";
+      }
+
+      @Override
+      public boolean accepts(String enumType) {
+        return "FOO".equals(enumType);
+      }
+
+      @Override
+      public void index(RdsDataRecord record, Sink sink) {
+        sink.add("odd", Boolean.toString(record.getLong(record.indexOf("rank")) % 2 == 1));
+      }
+    };
+
+    new RdsDataIndexer(config, Arrays.asList(index), new RdsDataMemoryBudget(config, metrics),
+        metrics, reports).onSnapshot(snapshot(1));
+
+    try (RdsDataKeyValueStore store = openIndex("odd", "FOO")) {
+      assertThat(store.size()).isEqualTo(2);
+      assertThat(store.getRecord("odd", "true")).isEqualTo("foo1");
+      assertThat(store.getRecord("odd", "false")).isEqualTo("foo2");
+    }
+    assertThat(RdsDataIndexer.getPath(snapshotFile, "odd", "BAR")).doesNotExist();
+  }
+
+  @Test
+  public void testRemovesStaleIndexFiles() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":[{\"identifier\":\"foo1\",\"name\":\"Foo\"}],"
+        + "\"BAR\":[{\"identifier\":\"bar1\",\"name\":\"Bar\"}]}}");
+    RdsDataIndexer indexer = createRdsDataIndexer();
+    indexer.onSnapshot(snapshot(1));
+    assertThat(RdsDataIndexer.getPath(snapshotFile, "names", "BAR")).exists();
+
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":[{\"identifier\":\"foo1\",\"name\":\"Foo\"}]}}");
+    indexer.onSnapshot(snapshot(2));
+
+    assertThat(RdsDataIndexer.getPath(snapshotFile, "names", "BAR")).doesNotExist();
+    try (RdsDataKeyValueStore store = openIndex("names", "FOO")) {
+      assertThat(store.getGeneration()).isEqualTo(2);
+    }
+  }
+
+  @Test
+  public void testFailureKeepsPreviousIndexes() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":[{\"identifier\":\"foo1\",\"name\":\"Foo\"}],"
+        + "\"BAR\":[{\"identifier\":\"bar1\",\"name\":\"Bar\"}]}}");
+    RdsDataIndexer indexer = createRdsDataIndexer();
+    indexer.onSnapshot(snapshot(1));
+
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":[{\"identifier\":\"foo1\",\"name\":\"Foo\"}],"
+        + "\"BAR\":[{\"identifier\":\"bar1\",\"name\":}]}}");
+    try {
+      indexer.onSnapshot(snapshot(2));
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("BAR");
+    }
+
+    try (RdsDataKeyValueStore store = openIndex("names", "FOO")) {
+      assertThat(store.getGeneration()).isEqualTo(1);
+    }
+    try (RdsDataKeyValueStore store = openIndex("names", "BAR")) {
+      assertThat(store.getGeneration()).isEqualTo(1);
+    }
+    assertThat(listTmpFiles()).isEmpty();
+  }
+
+  @Test
+  public void testGetPath() {
+    assertThat(RdsDataIndexer.getPath(snapshotFile, "names", "FOO"))
+        .isEqualTo(directory.resolve("rds-data.json.index.names.FOO"));
+  }
+
+  private List<Path> listTmpFiles() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.toString().endsWith(".tmp"))
+          .collect(Collectors.toList());
+    }
+  }
+
+  private RdsDataKeyValueStore openIndex(String indexName, String enumType) throws IOException {
+    return new RdsDataKeyValueStore(RdsDataIndexer.getPath(snapshotFile, indexName, enumType));
+  }
+
+  private RdsDataSnapshot snapshot(long generation) throws IOException {
+    return new RdsDataSnapshot(snapshotFile, Files.size(snapshotFile), generation, 0, null,
+        null);
+  }
+
+  private void write(String content) throws IOException {
+    Files.write(snapshotFile, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private RdsDataIndexer createRdsDataIndexer() {
+    return new RdsDataIndexer(config, new RdsDataMemoryBudget(config, metrics), metrics,
+        reports);
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataKeyValueExporterTest extends FileTestCase {
+  SettableConfig config;
+  RdsDataMetrics metrics;
+  Path directory;
+  Path snapshotFile;
+
+  @Before
+  public void setUp() throws IOException {
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.keyValue.enabled", "true");
+    config.set("RdsDataDownloader.keyValue.blockSize", "64");
+    metrics = new RdsDataMetrics();
+    directory = createTempDirectory();
+    snapshotFile = directory.resolve("rds-data.json");
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    config = new SettableConfig();
+    RdsDataKeyValueExporter exporter = createRdsDataKeyValueExporter();
+
+    assertThat(exporter.getName()).isEqualTo("keyValue");
+    assertThat(exporter.isEnabled()).isFalse();
+  }
+
+  @Test
+  public void testExport() throws Exception {
+    write("{\"meta\":{\"version\":2},\"data\":{"
+        + "\"FOO\":{\"foo2\":{\"name\":\"Foo 2\"},\"foo1\":{\"name\":\"Foo 1\"}},"
+        + "\"BAR\":[{\"identifier\":\"bar1\",\"rank\":1},{\"rank\":2},\"bar3\"],"
+        + "\"BAZ\":42}}");
+
+    RdsDataKeyValueExporter exporter = createRdsDataKeyValueExporter();
+    exporter.onSnapshot(snapshot(7));
+
+    try (RdsDataKeyValueStore store = openStore()) {
+      assertThat(store.getGeneration()).isEqualTo(7);
+      assertThat(store.size()).isEqualTo(4);
+      assertThat(store.getRecord("FOO", "foo1")).isEqualTo("{\"name\":\"Foo 1\"}");
+      assertThat(store.getRecord("FOO", "foo2")).isEqualTo("{\"name\":\"Foo 2\"}");
+      assertThat(store.getRecord("BAR", "bar1")).isEqualTo("{\"identifier\":\"bar1\",\"rank\":1}");
+      assertThat(store.getRecord("BAR", "bar3")).isEqualTo("\"bar3\"");
+      assertThat(store.getRecord("BAR", "foo1")).isNull();
+      assertThat(store.getRecord("BAZ", "42")).isNull();
+    }
+    assertThat(metrics.getTimer("keyValue.export").getCount()).isEqualTo(1);
+    assertThat(metrics.getCounter("keyValue.spills")).isEqualTo(0);
+    assertThat(directory.resolve("rds-data.json.kv.tmp")).doesNotExist();
+  }
+
+  @Test
+  public void testExportSpills() throws Exception {
+    StringBuilder sb = new StringBuilder("{\"meta\":{\"version\":2},\"data\":{\"FOO\":{");
+    int count = 500;
+    for (int i = 0; i < count; i++) {
+      // Descending order, so sorting is needed.
+      sb.append(i == 0 ? "" : ",").append("\"foo").append(1000 - i).append("\":").append(i);
+    }
+    sb.append("}}}");
+    write(sb.toString());
+    config.set("RdsDataDownloader.keyValue.maxMemoryBytes", "2000");
+
+    RdsDataKeyValueExporter exporter = createRdsDataKeyValueExporter();
+    exporter.onSnapshot(snapshot(1));
+
+    try (RdsDataKeyValueStore store = openStore()) {
+      assertThat(store.size()).isEqualTo(count);
+      for (int i = 0; i < count; i++) {
+        assertThat(store.getRecord("FOO", "foo" + (1000 - i))).isEqualTo(Integer.toString(i));
+      }
+    }
+    assertThat(metrics.getCounter("keyValue.spills")).isGreaterThan(1);
+    try (Stream<Path> files = Files.list(directory)) {
+      assertThat(files.filter(file -> file.toString().endsWith(".run")).count()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testDuplicateIdentifiers() throws Exception {
+    write("{\"meta\":{\"version\":2},\"data\":{"
+        + "\"FOO\":[{\"identifier\":\"foo1\",\"v\":1},{\"identifier\":\"foo1\",\"v\":3},"
+        + "{\"identifier\":\"foo1\",\"v\":2}]}}");
+
+    createRdsDataKeyValueExporter().onSnapshot(snapshot(1));
+
+    try (RdsDataKeyValueStore store = openStore()) {
+      assertThat(store.size()).isEqualTo(1);
+      // Like the cache, the last record wins.
+      assertThat(store.getRecord("FOO", "foo1")).isEqualTo("{\"identifier\":\"foo1\",\"v\":2}");
+    }
+  }
+
+  @Test
+  public void testDuplicateIdentifiersAcrossRuns() throws Exception {
+    StringBuilder sb = new StringBuilder("{\"meta\":{\"version\":2},\"data\":{\"FOO\":[");
+    int count = 600;
+    for (int i = 0; i < count; i++) {
+      sb.append(i == 0 ? "" : ",").append("{\"identifier\":\"foo").append(i % 100)
+          .append("\",\"v\":").append(count - i).append("}");
+    }
+    sb.append("]}}");
+    write(sb.toString());
+    // Only covers buffers for merging three runs at once, so runs get merged in passes.
+    config.set("RdsDataDownloader.keyValue.maxMemoryBytes", "4096");
+
+    createRdsDataKeyValueExporter().onSnapshot(snapshot(1));
+
+    try (RdsDataKeyValueStore store = openStore()) {
+      assertThat(store.size()).isEqualTo(100);
+      for (int i = 0; i < 100; i++) {
+        assertThat(store.getRecord("FOO", "foo" + i)).isEqualTo("{\"identifier\":\"foo" + i
+            + "\",\"v\":" + (100 - i) + "}");
+      }
+    }
+    assertThat(metrics.getCounter("keyValue.spills")).isGreaterThan(3);
+    assertThat(metrics.getCounter("keyValue.merges")).isGreaterThan(0);
+    try (Stream<Path> files = Files.list(directory)) {
+      assertThat(files.filter(file -> file.toString().endsWith(".run")).count()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testReplacesPreviousStore() throws Exception {
+    write("{\"meta\":{\"version\":2},\"data\":{\"FOO\":{\"foo1\":1}}}");
+    RdsDataKeyValueExporter exporter = createRdsDataKeyValueExporter();
+    exporter.onSnapshot(snapshot(1));
+
+    write("{\"meta\":{\"version\":2},\"data\":{\"FOO\":{\"foo2\":2}}}");
+    exporter.onSnapshot(snapshot(2));
+
+    try (RdsDataKeyValueStore store = openStore()) {
+      assertThat(store.getGeneration()).isEqualTo(2);
+      assertThat(store.getRecord("FOO", "foo1")).isNull();
+      assertThat(store.getRecord("FOO", "foo2")).isEqualTo("2");
+    }
+  }
+
+  @Test
+  public void testTruncatedKeepsPreviousStore() throws Exception {
+    write("{\"meta\":{\"version\":2},\"data\":{\"FOO\":{\"foo1\":1}}}");
+    RdsDataKeyValueExporter exporter = createRdsDataKeyValueExporter();
+    exporter.onSnapshot(snapshot(1));
+
+    write("{\"meta\":{\"version\":2},\"data\":{\"FOO\":{\"foo2\":");
+    try {
+      exporter.onSnapshot(snapshot(2));
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      // Expected
+    }
+
+    try (RdsDataKeyValueStore store = openStore()) {
+      assertThat(store.getGeneration()).isEqualTo(1);
+    }
+    assertThat(directory.resolve("rds-data.json.kv.tmp")).doesNotExist();
+  }
+
+  private RdsDataSnapshot snapshot(long generation) throws IOException {
+    return new RdsDataSnapshot(snapshotFile, Files.size(snapshotFile), generation, 0, null,
+        null);
+  }
+
+  private RdsDataKeyValueStore openStore() throws IOException {
+    return new RdsDataKeyValueStore(RdsDataKeyValueStore.getPath(snapshotFile));
+  }
+
+  private void write(String content) throws IOException {
+    Files.write(snapshotFile, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private RdsDataKeyValueExporter createRdsDataKeyValueExporter() {
+    return new RdsDataKeyValueExporter(config, new RdsDataMemoryBudget(config, metrics),
+        metrics);
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the read latency of {@link RdsDataKeyValueStore} lookups.
+ *
+ * <p>Run through {@link #main(String[])}. The sample mode reports latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class RdsDataKeyValueStoreBenchmark {
+  @Param({"1000000"})
+  public int records;
+
+  @Param({"4096"})
+  public int blockSize;
+
+  private Path directory;
+  private Path file;
+  private RdsDataKeyValueStore store;
+  private String[] identifiers;
+  private int next;
+
+  /**
+   * Bulk loads a synthetic store.
+   *
+   * @throws IOException if writing fails.
+   */
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("rds-data-benchmark");
+    file = directory.resolve("rds-data.json.kv");
+    identifiers = new String[records];
+    try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, blockSize)) {
+      for (int i = 0; i < records; i++) {
+        identifiers[i] = String.format("ID%09d", i);
+        writer.add(RdsDataKeyValueStore.toKey("PUBLIC_COMPANY", identifiers[i]),
+            ("{\"identifier\":\"" + identifiers[i] + "\",\"name\":\"Company " + i
+                + "\",\"country\":\"US\"}").getBytes(StandardCharsets.UTF_8));
+      }
+      writer.finish(1);
+    }
+    // Shuffling, so lookups do not benefit from hitting the same block repeatedly.
+    Random random = new Random(42);
+    for (int i = records - 1; i > 0; i--) {
+      int other = random.nextInt(i + 1);
+      String swap = identifiers[i];
+      identifiers[i] = identifiers[other];
+      identifiers[other] = swap;
+    }
+    store = new RdsDataKeyValueStore(file);
+  }
+
+  /**
+   * Removes the synthetic store.
+   *
+   * @throws IOException if removing fails.
+   */
+  @TearDown
+  public void tearDown() throws IOException {
+    store.close();
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(directory);
+  }
+
+  /**
+   * Looks up an existing identifier.
+   *
+   * @return the found record.
+   * @throws IOException if reading fails.
+   */
+  @Benchmark
+  public String lookupHit() throws IOException {
+    next = (next + 1) % records;
+    return store.getRecord("PUBLIC_COMPANY", identifiers[next]);
+  }
+
+  /**
+   * Looks up an identifier that the store does not have.
+   *
+   * @return null.
+   * @throws IOException if reading fails.
+   */
+  @Benchmark
+  public String lookupMiss() throws IOException {
+    next = (next + 1) % records;
+    return store.getRecord("PUBLIC_COMPANY", identifiers[next] + "-");
+  }
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args Ignored.
+   * @throws RunnerException if running fails.
+   */
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(RdsDataKeyValueStoreBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+
+public class RdsDataKeyValueStoreTest extends FileTestCase {
+  Path file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = createTempDirectory().resolve("rds-data.json.kv");
+  }
+
+  @Test
+  public void testGetPath() {
+    Path target = file.resolveSibling("rds-data.json");
+
+    assertThat(RdsDataKeyValueStore.getPath(target)).isEqualTo(file);
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, 64)) {
+      writer.finish(3);
+    }
+
+    try (RdsDataKeyValueStore store = new RdsDataKeyValueStore(file)) {
+      assertThat(store.getGeneration()).isEqualTo(3);
+      assertThat(store.size()).isEqualTo(0);
+      assertThat(store.getRecord("FOO", "foo1")).isNull();
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    int count = 5000;
+    try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, 256)) {
+      for (int i = 0; i < count; i++) {
+        writer.add(RdsDataKeyValueStore.toKey("FOO", String.format("foo%05d", i)),
+            bytes("{\"rank\":" + i + "}"));
+      }
+      writer.finish(42);
+    }
+
+    try (RdsDataKeyValueStore store = new RdsDataKeyValueStore(file)) {
+      assertThat(store.isMapped()).isFalse();
+      assertThat(store.getGeneration()).isEqualTo(42);
+      assertThat(store.size()).isEqualTo(count);
+      for (int i = 0; i < count; i++) {
+        assertThat(store.getRecord("FOO", String.format("foo%05d", i)))
+            .isEqualTo("{\"rank\":" + i + "}");
+      }
+      assertThat(store.getRecord("FOO", "foo")).isNull();
+      assertThat(store.getRecord("FOO", "foo00000a")).isNull();
+      assertThat(store.getRecord("FOO", "zzz")).isNull();
+      assertThat(store.getRecord("BAR", "foo00001")).isNull();
+      assertThat(store.getRecord("FOO1", "foo00001")).isNull();
+    }
+  }
+
+  @Test
+  public void testAddValuePrefix() throws Exception {
+    try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, 64)) {
+      writer.add(RdsDataKeyValueStore.toKey("FOO", "foo1"), bytes("\"bar\"-unused"), 5);
+      writer.add(RdsDataKeyValueStore.toKey("FOO", "foo2"), bytes("42"), 2);
+      writer.finish(1);
+    }
+
+    try (RdsDataKeyValueStore store = new RdsDataKeyValueStore(file)) {
+      assertThat(store.getRecord("FOO", "foo1")).isEqualTo("\"bar\"");
+      assertThat(store.getRecord("FOO", "foo2")).isEqualTo("42");
+    }
+  }
+
+  @Test
+  public void testMapped() throws Exception {
+    int count = 1000;
+    try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, 128)) {
+      for (int i = 0; i < count; i++) {
+        writer.add(RdsDataKeyValueStore.toKey("FOO", String.format("foo%05d", i)),
+            bytes(Integer.toString(i)));
+      }
+      writer.finish(7);
+    }
+
+    RdsDataKeyValueStore store = new RdsDataKeyValueStore(file, true);
+    assertThat(store.isMapped()).isTrue();
+    assertThat(store.getGeneration()).isEqualTo(7);
+    store.close();
+
+    // Mapped stores keep working after closing.
+    for (int i = 0; i < count; i++) {
+      assertThat(store.getRecord("FOO", String.format("foo%05d", i)))
+          .isEqualTo(Integer.toString(i));
+    }
+    assertThat(store.getRecord("FOO", "foo")).isNull();
+    assertThat(store.getRecord("FOO", "zzz")).isNull();
+  }
+
+  @Test
+  public void testScan() throws Exception {
+    try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, 64)) {
+      for (int i = 0; i < 100; i++) {
+        writer.add(RdsDataKeyValueStore.toKey("FOO", String.format("foo%03d", i)),
+            bytes(Integer.toString(i)));
+      }
+      writer.finish(1);
+    }
+
+    try (RdsDataKeyValueStore store = new RdsDataKeyValueStore(file)) {
+      List<String> values = new ArrayList<>();
+      store.scan(RdsDataKeyValueStore.toKey("FOO", "foo05"), (key, value) -> {
+        values.add(new String(value, StandardCharsets.UTF_8));
+        return values.size() < 15;
+      });
+      assertThat(values).hasSize(15);
+      assertThat(values.get(0)).isEqualTo("50");
+      assertThat(values.get(14)).isEqualTo("64");
+
+      values.clear();
+      store.scan(RdsDataKeyValueStore.toKey("FOO", "foo0975"), (key, value) -> {
+        values.add(new String(value, StandardCharsets.UTF_8));
+        return true;
+      });
+      assertThat(values).containsExactly("98", "99");
+
+      values.clear();
+      store.scan(bytes(""), (key, value) -> values.add(new String(value,
+          StandardCharsets.UTF_8)));
+      assertThat(values).hasSize(100);
+    }
+  }
+
+  @Test
+  public void testLongValuesAndUnicode() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      sb.append("\u00e4\u20ac");
+    }
+    try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, 64)) {
+      writer.add(RdsDataKeyValueStore.toKey("FOO", "a"), bytes(sb.toString()));
+      writer.add(RdsDataKeyValueStore.toKey("FOO", "\u00e4"), bytes("umlaut"));
+      writer.finish(1);
+    }
+
+    try (RdsDataKeyValueStore store = new RdsDataKeyValueStore(file)) {
+      assertThat(store.getRecord("FOO", "a")).isEqualTo(sb.toString());
+      assertThat(store.getRecord("FOO", "\u00e4")).isEqualTo("umlaut");
+    }
+  }
+
+  @Test
+  public void testUnsortedKeys() throws Exception {
+    try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, 64)) {
+      writer.add(RdsDataKeyValueStore.toKey("FOO", "b"), bytes("1"));
+      try {
+        writer.add(RdsDataKeyValueStore.toKey("FOO", "a"), bytes("2"));
+        failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+      } catch (IllegalArgumentException e) {
+        assertThat(e.getMessage()).contains("ascending");
+      }
+      writer.finish(1);
+    }
+  }
+
+  @Test
+  public void testUnfinished() throws Exception {
+    try {
+      new RdsDataKeyValueStore.Writer(file, 64).close();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("finished");
+    }
+  }
+
+  @Test
+  public void testNotAStore() throws Exception {
+    Files.write(file, bytes("{\"meta\":{},\"data\":{},\"padding\":\"0123456789abcdef\"}"));
+
+    try {
+      new RdsDataKeyValueStore(file).close();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("magic");
+    }
+  }
+
+  @Test
+  public void testCompare() {
+    assertThat(RdsDataKeyValueStore.compare(bytes("a"), bytes("b"))).isNegative();
+    assertThat(RdsDataKeyValueStore.compare(bytes("b"), bytes("a"))).isPositive();
+    assertThat(RdsDataKeyValueStore.compare(bytes("a"), bytes("ab"))).isNegative();
+    assertThat(RdsDataKeyValueStore.compare(bytes("ab"), bytes("ab"))).isZero();
+    // Unsigned comparison puts non-ASCII characters last.
+    assertThat(RdsDataKeyValueStore.compare(bytes("\u00e4"), bytes("z"))).isPositive();
+  }
+
+  private byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.expect;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataLeaderElectionTest extends FileTestCase {
+  SettableConfig config;
+  ApplicationPaths paths;
+  Path leaseFile;
+  long now;
+
+  @Before
+  public void setUp() throws IOException {
+    Path tmpDir = createTempDirectory();
+    paths = createMock(ApplicationPaths.class);
+    expect(paths.getDataPath()).andReturn(tmpDir).anyTimes();
+
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.leader.enabled", "true");
+    config.set("RdsDataDownloader.leader.lease", "90");
+    config.set("RdsDataDownloader.leader.heartbeat", "30");
+
+    leaseFile = tmpDir.resolve("rds").resolve("rds-data.lease");
+    now = 1000000;
+  }
+
+  @Test
+  public void testDisabled() {
+    config.set("RdsDataDownloader.leader.enabled", "false");
+    replayAll();
+
+    RdsDataLeaderElection election = createRdsDataLeaderElection("foo");
+
+    verifyAll();
+
+    assertThat(election.isEnabled()).isFalse();
+    assertThat(election.isLeader()).isTrue();
+  }
+
+  @Test
+  public void testAcquire() {
+    replayAll();
+
+    RdsDataLeaderElection election = createRdsDataLeaderElection("foo");
+
+    assertThat(election.isLeader()).isFalse();
+    assertThat(election.heartbeat()).isTrue();
+
+    verifyAll();
+
+    assertThat(election.isLeader()).isTrue();
+    assertThat(election.getHolder()).isEqualTo("foo");
+    assertThat(leaseFile).hasContent(
+        "{\"owner\":\"foo\",\"renewed\":1000000,\"expires\":1090000}");
+  }
+
+  @Test
+  public void testStandby() {
+    replayAll();
+
+    RdsDataLeaderElection foo = createRdsDataLeaderElection("foo");
+    RdsDataLeaderElection bar = createRdsDataLeaderElection("bar");
+
+    assertThat(foo.heartbeat()).isTrue();
+    assertThat(bar.heartbeat()).isFalse();
+
+    verifyAll();
+
+    assertThat(foo.isLeader()).isTrue();
+    assertThat(bar.isLeader()).isFalse();
+    assertThat(bar.getHolder()).isEqualTo("foo");
+  }
+
+  @Test
+  public void testRenew() {
+    replayAll();
+
+    RdsDataLeaderElection foo = createRdsDataLeaderElection("foo");
+    RdsDataLeaderElection bar = createRdsDataLeaderElection("bar");
+
+    foo.heartbeat();
+    for (int i = 0; i < 10; i++) {
+      now += 30000;
+      assertThat(foo.heartbeat()).isTrue();
+      assertThat(bar.heartbeat()).isFalse();
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testLeaderStepsDownBeforeExpiry() {
+    replayAll();
+
+    RdsDataLeaderElection foo = createRdsDataLeaderElection("foo");
+
+    foo.heartbeat();
+    now += 59999;
+    assertThat(foo.isLeader()).isTrue();
+    now += 1;
+
+    verifyAll();
+
+    assertThat(foo.isLeader()).isFalse();
+  }
+
+  @Test
+  public void testTakeOverAfterExpiry() {
+    replayAll();
+
+    RdsDataLeaderElection foo = createRdsDataLeaderElection("foo");
+    RdsDataLeaderElection bar = createRdsDataLeaderElection("bar");
+
+    foo.heartbeat();
+    now += 89999;
+    assertThat(bar.heartbeat()).isFalse();
+    now += 1;
+    assertThat(bar.heartbeat()).isTrue();
+    assertThat(foo.heartbeat()).isFalse();
+
+    verifyAll();
+
+    assertThat(bar.getHolder()).isEqualTo("bar");
+  }
+
+  @Test
+  public void testRelease() {
+    replayAll();
+
+    RdsDataLeaderElection foo = createRdsDataLeaderElection("foo");
+    RdsDataLeaderElection bar = createRdsDataLeaderElection("bar");
+
+    foo.heartbeat();
+    foo.release();
+
+    assertThat(foo.isLeader()).isFalse();
+    assertThat(leaseFile).doesNotExist();
+    assertThat(bar.heartbeat()).isTrue();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testReleaseStandbyKeepsLease() {
+    replayAll();
+
+    RdsDataLeaderElection foo = createRdsDataLeaderElection("foo");
+    RdsDataLeaderElection bar = createRdsDataLeaderElection("bar");
+
+    foo.heartbeat();
+    bar.heartbeat();
+    bar.release();
+
+    verifyAll();
+
+    assertThat(bar.getHolder()).isEqualTo("foo");
+  }
+
+  @Test
+  public void testReleaseWhileLockedKeepsLease() throws IOException {
+    replayAll();
+
+    RdsDataLeaderElection foo = createRdsDataLeaderElection("foo");
+
+    foo.heartbeat();
+    Path lockFile = leaseFile.resolveSibling("rds-data.lease.lock");
+    try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE);
+        FileLock lock = channel.lock()) {
+      assertThat(lock.isValid()).isTrue();
+      foo.release();
+    }
+
+    verifyAll();
+
+    assertThat(foo.isLeader()).isFalse();
+    assertThat(foo.getHolder()).isEqualTo("foo");
+  }
+
+  @Test
+  public void testMalformedLeaseGetsTakenOver() throws IOException {
+    Files.createDirectories(leaseFile.getParent());
+    Files.write(leaseFile, "{\"owner\":".getBytes(StandardCharsets.UTF_8));
+    replayAll();
+
+    RdsDataLeaderElection foo = createRdsDataLeaderElection("foo");
+
+    assertThat(foo.heartbeat()).isTrue();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testHeartbeatTooLong() {
+    config.set("RdsDataDownloader.leader.heartbeat", "50");
+    replayAll();
+
+    try {
+      createRdsDataLeaderElection("foo");
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageContaining("heartbeat");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testHeartbeatTooLongWhileDisabled() {
+    config.set("RdsDataDownloader.leader.enabled", "false");
+    config.set("RdsDataDownloader.leader.heartbeat", "50");
+    replayAll();
+
+    RdsDataLeaderElection election = createRdsDataLeaderElection("foo");
+
+    verifyAll();
+
+    assertThat(election.isEnabled()).isFalse();
+    assertThat(election.isLeader()).isTrue();
+  }
+
+  private RdsDataLeaderElection createRdsDataLeaderElection(String owner) {
+    config.set("RdsDataDownloader.leader.owner", owner);
+    return new RdsDataLeaderElection(config, paths, () -> now);
+  }
+}
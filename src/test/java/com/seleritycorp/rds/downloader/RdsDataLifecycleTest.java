@@ -18,6 +18,7 @@ package com.seleritycorp.rds.downloader;
 
 import com.google.gson.JsonObject;
 import com.google.inject.Injector;
+import com.seleritycorp.common.base.config.Config;
 import com.seleritycorp.common.base.coreservices.CallErrorException;
 import com.seleritycorp.common.base.inject.InjectorFactory;
 import com.seleritycorp.common.base.state.AppState;
@@ -32,6 +33,10 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
 
 import static org.easymock.EasyMock.*;
 
@@ -39,10 +44,15 @@ public class RdsDataLifecycleTest extends InjectingTestCase {
   TimeUtilsSettableClock timeUtils;
   RdsDataFetcher fetcher;
   RdsDataPersister persister;
+  RdsDataPublisher publisher;
+  RdsDataLeaderElection election;
+  boolean leader;
+  RdsDataSnapshot snapshot;
   StateManager sm;
   SettableConfig config;
   AppStatePushFacet facet;
   Writer writer;
+  RdsDataRunReports reports;
 
   @Before
   public void setup() throws IOException {
@@ -50,10 +60,31 @@ public class RdsDataLifecycleTest extends InjectingTestCase {
     timeUtils = injector.getInstance(TimeUtilsSettableClock.class);
     fetcher = createMock(RdsDataFetcher.class);
     persister = createMock(RdsDataPersister.class);
+    publisher = createMock(RdsDataPublisher.class);
+    election = createMock(RdsDataLeaderElection.class);
+    leader = true;
+    snapshot = new RdsDataSnapshot(Paths.get("rds-data.json"), 42);
     writer = createMock(Writer.class);
+    reports = new RdsDataRunReports(Files.createTempDirectory("reports"), 10);
     facet = createMock(AppStatePushFacet.class);
     sm = createMock(StateManager.class);
     expect(persister.getCleanWriter()).andReturn(writer).anyTimes();
+    expect(publisher.publish(snapshot)).andReturn(Collections.<String>emptyList()).anyTimes();
+    publisher.start();
+    expectLastCall().anyTimes();
+    publisher.stop();
+    expectLastCall().anyTimes();
+    persister.flushPendingSyncs();
+    expectLastCall().anyTimes();
+    persister.discardTemporaryFiles();
+    expectLastCall().anyTimes();
+    fetcher.markPublished();
+    expectLastCall().anyTimes();
+    expect(election.isEnabled()).andReturn(false).anyTimes();
+    expect(election.isLeader()).andAnswer(() -> leader).anyTimes();
+    expect(election.getHolder()).andReturn("other").anyTimes();
+    election.release();
+    expectLastCall().anyTimes();
     expect(sm.createRegisteredAppStatePushFacet("RdsDataDownloader")).andReturn(facet);
     config = new SettableConfig();
     config.set("RdsDataDownloader.lifecycle.interval", "200");
@@ -64,8 +95,7 @@ public class RdsDataLifecycleTest extends InjectingTestCase {
   public void testInitialRun() throws Exception {
     fetcher.fetch(writer);
     expectLastCall().once();
-    persister.persist();
-    expectLastCall().once();
+    expect(persister.persist()).andReturn(snapshot).once();
     facet.setAppState(AppState.READY);
     expectLastCall().once();
 
@@ -83,12 +113,37 @@ public class RdsDataLifecycleTest extends InjectingTestCase {
     verifyAll();
   }
 
+  @Test
+  public void testStopLetsRunFinish() throws Exception {
+    fetcher.fetch(writer);
+    expectLastCall().andAnswer(() -> {
+      Thread.sleep(300);
+      return null;
+    }).once();
+    expect(persister.persist()).andReturn(snapshot).once();
+    facet.setAppState(AppState.READY);
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.lifecycle.interval", "100000");
+    config.set("RdsDataDownloader.lifecycle.shutdownGrace", "5");
+    RdsDataLifecycle lifecycle = createRdsDataLifecycle();
+
+    lifecycle.start();
+
+    timeUtils.wallClockSleepForMillis(100);
+
+    lifecycle.stop();
+
+    verifyAll();
+  }
+
   @Test
   public void testPlainScheduling() throws Exception {
     fetcher.fetch(writer);
     expectLastCall().times(4, 7);
-    persister.persist();
-    expectLastCall().times(4, 7);
+    expect(persister.persist()).andReturn(snapshot).times(4, 7);
     facet.setAppState(AppState.READY);
     expectLastCall().times(4, 7);
 
@@ -113,8 +168,7 @@ public class RdsDataLifecycleTest extends InjectingTestCase {
     expectLastCall().andThrow(thrownE);
     fetcher.fetch(writer);
     expectLastCall().once();
-    persister.persist();
-    expectLastCall().once();
+    expect(persister.persist()).andReturn(snapshot).once();
     facet.setAppState(eq(AppState.WARNING), anyString());
     facet.setAppState(AppState.READY);
     expectLastCall().once();
@@ -185,7 +239,7 @@ public class RdsDataLifecycleTest extends InjectingTestCase {
     facet.setAppState(AppState.READY);
     facet.setAppState(eq(AppState.FAULTY), anyString());
 
-    persister.persist();
+    expect(persister.persist()).andReturn(snapshot);
 
     replayAll();
 
@@ -217,7 +271,7 @@ public class RdsDataLifecycleTest extends InjectingTestCase {
     facet.setAppState(AppState.READY);
     facet.setAppState(eq(AppState.FAULTY), anyString());
 
-    persister.persist();
+    expect(persister.persist()).andReturn(snapshot);
 
     replayAll();
 
@@ -235,13 +289,11 @@ public class RdsDataLifecycleTest extends InjectingTestCase {
   @Test
   public void testFetchRetry() throws Exception {
     fetcher.fetch(writer);
-    persister.persist();
-    expectLastCall().andThrow(new Exception());
+    expect(persister.persist()).andThrow(new Exception());
     facet.setAppState(eq(AppState.FAULTY), anyString());
     fetcher.fetch(writer);
     expectLastCall().atLeastOnce();
-    persister.persist();
-    expectLastCall().atLeastOnce();
+    expect(persister.persist()).andReturn(snapshot).atLeastOnce();
     facet.setAppState(AppState.READY);
     expectLastCall().atLeastOnce();
 
@@ -255,7 +307,198 @@ public class RdsDataLifecycleTest extends InjectingTestCase {
     verifyAll();
   }
 
+  @Test
+  public void testPublishFailureSetsWarning() throws Exception {
+    RdsDataSnapshot otherSnapshot = new RdsDataSnapshot(Paths.get("other.json"), 4711);
+    fetcher.fetch(writer);
+    expectLastCall().once();
+    expect(persister.persist()).andReturn(otherSnapshot).once();
+    expect(publisher.publish(otherSnapshot)).andReturn(Collections.singletonList("cache: foo"));
+    facet.setAppState(eq(AppState.WARNING), contains("cache: foo"));
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.lifecycle.interval", "100000");
+    RdsDataLifecycle lifecycle = createRdsDataLifecycle();
+
+    lifecycle.start();
+
+    timeUtils.wallClockSleepForMillis(300);
+
+    lifecycle.stop();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testInsufficientSpace() throws Exception {
+    reset(persister);
+    expect(persister.getCleanWriter())
+        .andThrow(new RdsDataInsufficientSpaceException("catch me")).once();
+    persister.flushPendingSyncs();
+    expectLastCall().anyTimes();
+    facet.setAppState(eq(AppState.FAULTY), contains("catch me"));
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.lifecycle.interval", "100000");
+    RdsDataLifecycle lifecycle = createRdsDataLifecycle();
+
+    lifecycle.start();
+
+    timeUtils.wallClockSleepForMillis(300);
+
+    lifecycle.stop();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testInsufficientMemory() throws Exception {
+    reset(persister);
+    expect(persister.getCleanWriter())
+        .andThrow(new RdsDataInsufficientMemoryException("catch me")).once();
+    persister.flushPendingSyncs();
+    expectLastCall().anyTimes();
+    facet.setAppState(eq(AppState.FAULTY), contains("memory budget is insufficient"));
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.lifecycle.interval", "100000");
+    RdsDataLifecycle lifecycle = createRdsDataLifecycle();
+
+    lifecycle.start();
+
+    timeUtils.wallClockSleepForMillis(300);
+
+    lifecycle.stop();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testStandbySkipsRun() throws Exception {
+    leader = false;
+    facet.setAppState(eq(AppState.READY), contains("Standby, as other holds"));
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.lifecycle.interval", "100000");
+    RdsDataLifecycle lifecycle = createRdsDataLifecycle();
+
+    lifecycle.start();
+
+    timeUtils.wallClockSleepForMillis(300);
+
+    lifecycle.stop();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testLosingLeaseSkipsPersist() throws Exception {
+    fetcher.fetch(writer);
+    expectLastCall().andAnswer(() -> {
+      leader = false;
+      return null;
+    }).once();
+    facet.setAppState(eq(AppState.WARNING), contains("Lost the lease"));
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.lifecycle.interval", "100000");
+    RdsDataLifecycle lifecycle = createRdsDataLifecycle();
+
+    lifecycle.start();
+
+    timeUtils.wallClockSleepForMillis(300);
+
+    lifecycle.stop();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testReloadAppliesValidConfig() throws Exception {
+    Path configFile = Files.createTempFile("rds-data", ".properties");
+    Files.write(configFile, "RdsDataDownloader.fetcher.enumTypes=Foo\n".getBytes("UTF-8"));
+    fetcher.fetch(writer);
+    expectLastCall().once();
+    expect(persister.persist()).andReturn(snapshot).once();
+    facet.setAppState(AppState.READY);
+    expectLastCall().once();
+    fetcher.validate(anyObject(Config.class));
+    expectLastCall().once();
+    publisher.validate(anyObject(Config.class));
+    expectLastCall().once();
+    fetcher.reconfigure(anyObject(Config.class));
+    expectLastCall().once();
+    publisher.reconfigure(anyObject(Config.class));
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.lifecycle.interval", "100000");
+    config.set("RdsDataDownloader.reload.file", configFile.toString());
+    config.set("RdsDataDownloader.reload.checkInterval", "50");
+    config.set("RdsDataDownloader.reload.checkIntervalUnit", "MILLISECONDS");
+    RdsDataLifecycle lifecycle = createRdsDataLifecycle();
+
+    lifecycle.start();
+
+    timeUtils.wallClockSleepForMillis(150);
+    Files.write(configFile, "RdsDataDownloader.fetcher.enumTypes=Foo,Bar\n".getBytes("UTF-8"));
+    timeUtils.wallClockSleepForMillis(300);
+
+    lifecycle.stop();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testReloadRejectsInvalidConfig() throws Exception {
+    Path configFile = Files.createTempFile("rds-data", ".properties");
+    Files.write(configFile, "RdsDataDownloader.fetcher.enumTypes=Foo\n".getBytes("UTF-8"));
+    fetcher.fetch(writer);
+    expectLastCall().once();
+    expect(persister.persist()).andReturn(snapshot).once();
+    facet.setAppState(AppState.READY);
+    expectLastCall().once();
+    fetcher.validate(anyObject(Config.class));
+    expectLastCall().once();
+    facet.setAppState(eq(AppState.WARNING), contains("Rejected reloaded config"));
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.lifecycle.interval", "100000");
+    config.set("RdsDataDownloader.reload.file", configFile.toString());
+    config.set("RdsDataDownloader.reload.checkInterval", "50");
+    config.set("RdsDataDownloader.reload.checkIntervalUnit", "MILLISECONDS");
+    RdsDataLifecycle lifecycle = createRdsDataLifecycle();
+
+    lifecycle.start();
+
+    timeUtils.wallClockSleepForMillis(150);
+    Files.write(configFile, ("RdsDataDownloader.fetcher.enumTypes=Foo\n"
+        + "RdsDataDownloader.lifecycle.interval=0\n").getBytes("UTF-8"));
+    timeUtils.wallClockSleepForMillis(300);
+
+    lifecycle.stop();
+
+    verifyAll();
+  }
+
   private RdsDataLifecycle createRdsDataLifecycle() {
-    return new RdsDataLifecycle(sm, config, fetcher, persister, timeUtils);
+    RdsDataFlightRecorder flightRecorder = new RdsDataFlightRecorder(config, Paths.get("state"));
+    return new RdsDataLifecycle(sm, config, fetcher, persister, publisher, election, reports,
+        new RdsDataConfigReloader(config),
+        new RdsDataScheduler(config, new RdsDataMetrics(), flightRecorder), flightRecorder,
+        timeUtils);
   }
 }
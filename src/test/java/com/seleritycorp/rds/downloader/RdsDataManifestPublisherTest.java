@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.expect;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataManifestPublisherTest extends FileTestCase {
+  ApplicationPaths paths;
+  Path target;
+
+  @Before
+  public void setUp() throws IOException {
+    Path tmpDir = createTempDirectory();
+    paths = createMock(ApplicationPaths.class);
+    expect(paths.getDataPath()).andReturn(tmpDir);
+    expect(paths.getStatePath()).andReturn(tmpDir.resolve("state"));
+
+    target = tmpDir.resolve("rds").resolve("rds-data.json");
+  }
+
+  @Test
+  public void testPublishesManifest() throws Exception {
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{\"data\":{\"foo\":42}}");
+    RdsDataSnapshot snapshot = persister.persist();
+
+    assertThat(RdsDataManifest.getPath(target)).doesNotExist();
+
+    RdsDataManifestPublisher publisher = new RdsDataManifestPublisher(persister);
+    publisher.onSnapshot(snapshot);
+
+    verifyAll();
+
+    assertThat(publisher.getName()).isEqualTo("manifest");
+    assertThat(publisher.isEnabled()).isTrue();
+    RdsDataSnapshot manifest = RdsDataManifest.read(target);
+    assertThat(manifest.getGeneration()).isEqualTo(snapshot.getGeneration());
+    assertThat(manifest.getSha256()).isEqualTo(snapshot.getSha256());
+    assertThat(manifest.getIndex().getEnumTypes()).containsExactly("foo");
+  }
+
+  private RdsDataPersister createRdsDataPersister() {
+    SettableConfig config = new SettableConfig();
+    RdsDataMetrics metrics = new RdsDataMetrics();
+    RdsDataRunReports reports = new RdsDataRunReports(Paths.get("reports"), 1);
+    return new RdsDataPersister(config, paths, metrics, new RdsDataMemoryBudget(config, metrics),
+        reports);
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+
+public class RdsDataManifestTest extends FileTestCase {
+  Path target;
+
+  @Before
+  public void setUp() throws IOException {
+    target = createTempDirectory().resolve("rds-data.json");
+  }
+
+  @Test
+  public void testGetPath() {
+    assertThat(RdsDataManifest.getPath(Paths.get("foo", "rds-data.json")))
+        .isEqualTo(Paths.get("foo", "rds-data.json.manifest"));
+  }
+
+  @Test
+  public void testGetPathNoParent() {
+    assertThat(RdsDataManifest.getPath(Paths.get("rds-data.json")))
+        .isEqualTo(Paths.get("rds-data.json.manifest"));
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Map<String, RdsDataSectionIndex.Section> sections = new LinkedHashMap<>();
+    sections.put("FOO", new RdsDataSectionIndex.Section(10, 5));
+    sections.put("BAR", new RdsDataSectionIndex.Section(20, 7));
+    RdsDataSectionIndex index = new RdsDataSectionIndex(30, sections);
+
+    RdsDataManifest.write(new RdsDataSnapshot(target, 30, 42, 1000, "abc", index));
+    RdsDataSnapshot snapshot = RdsDataManifest.read(target);
+
+    assertThat(snapshot.getPath()).isEqualTo(target);
+    assertThat(snapshot.getSize()).isEqualTo(30);
+    assertThat(snapshot.getGeneration()).isEqualTo(42);
+    assertThat(snapshot.getTimestamp()).isEqualTo(1000);
+    assertThat(snapshot.getSha256()).isEqualTo("abc");
+    assertThat(snapshot.getIndex().getEnumTypes()).containsExactly("FOO", "BAR");
+    assertThat(snapshot.getIndex().getSection("BAR").getOffset()).isEqualTo(20);
+    assertThat(snapshot.getIndex().getSection("BAR").getLength()).isEqualTo(7);
+  }
+
+  @Test
+  public void testRoundTripWithoutOptionals() throws IOException {
+    RdsDataManifest.write(new RdsDataSnapshot(target, 30, 42, 1000, null, null));
+    RdsDataSnapshot snapshot = RdsDataManifest.read(target);
+
+    assertThat(snapshot.getGeneration()).isEqualTo(42);
+    assertThat(snapshot.getSha256()).isNull();
+    assertThat(snapshot.getIndex()).isNull();
+  }
+
+  @Test
+  public void testReadMalformed() throws IOException {
+    Files.write(RdsDataManifest.getPath(target), "{\"format\":".getBytes(StandardCharsets.UTF_8));
+
+    try {
+      RdsDataManifest.read(target);
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e).hasMessageContaining("Malformed");
+    }
+  }
+
+  @Test
+  public void testReadWrongFormat() throws IOException {
+    Files.write(RdsDataManifest.getPath(target),
+        "{\"format\":\"foo\"}".getBytes(StandardCharsets.UTF_8));
+
+    try {
+      RdsDataManifest.read(target);
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e).hasMessageContaining("foo");
+    }
+  }
+
+  @Test
+  public void testReadWrongVersion() throws IOException {
+    Files.write(RdsDataManifest.getPath(target),
+        "{\"format\":\"RdsDataManifest\",\"version\":2}".getBytes(StandardCharsets.UTF_8));
+
+    try {
+      RdsDataManifest.read(target);
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e).hasMessageContaining("version 2");
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataMemoryBudgetTest {
+  SettableConfig config;
+  RdsDataMetrics metrics;
+
+  @Before
+  public void setUp() {
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.memory.budgetBytes", "1000");
+    metrics = new RdsDataMetrics();
+  }
+
+  @Test
+  public void testUnlimitedByDefault() throws Exception {
+    config = new SettableConfig();
+    RdsDataMemoryBudget budget = createRdsDataMemoryBudget();
+
+    RdsDataMemoryBudget.Reservation reservation = budget.reserve("foo", 1L << 40, 1);
+
+    assertThat(budget.isEnabled()).isFalse();
+    assertThat(reservation.getBytes()).isEqualTo(1L << 40);
+    assertThat(metrics.getCounter("memory.peakBytes")).isEqualTo(1L << 40);
+  }
+
+  @Test
+  public void testReservePreferred() throws Exception {
+    RdsDataMemoryBudget budget = createRdsDataMemoryBudget();
+
+    RdsDataMemoryBudget.Reservation reservation = budget.reserve("foo", 600, 100);
+
+    assertThat(budget.isEnabled()).isTrue();
+    assertThat(reservation.getBytes()).isEqualTo(600);
+    assertThat(budget.getReservedBytes()).isEqualTo(600);
+    assertThat(metrics.getCounter("memory.shrunkReservations")).isEqualTo(0);
+  }
+
+  @Test
+  public void testReserveShrinks() throws Exception {
+    RdsDataMemoryBudget budget = createRdsDataMemoryBudget();
+    budget.reserve("foo", 600, 100);
+
+    RdsDataMemoryBudget.Reservation reservation = budget.reserve("bar", 600, 100);
+
+    assertThat(reservation.getBytes()).isEqualTo(400);
+    assertThat(budget.getReservedBytes()).isEqualTo(1000);
+    assertThat(metrics.getCounter("memory.shrunkReservations")).isEqualTo(1);
+    assertThat(metrics.getCounter("memory.peakBytes")).isEqualTo(1000);
+  }
+
+  @Test
+  public void testReserveInsufficient() throws Exception {
+    RdsDataMemoryBudget budget = createRdsDataMemoryBudget();
+    budget.reserve("foo", 950, 100);
+
+    try {
+      budget.reserve("bar", 600, 100);
+      failBecauseExceptionWasNotThrown(RdsDataInsufficientMemoryException.class);
+    } catch (RdsDataInsufficientMemoryException e) {
+      assertThat(e).hasMessageContaining("bar");
+    }
+
+    assertThat(budget.getReservedBytes()).isEqualTo(950);
+    assertThat(metrics.getCounter("memory.failedReservations")).isEqualTo(1);
+  }
+
+  @Test
+  public void testCloseReleases() throws Exception {
+    RdsDataMemoryBudget budget = createRdsDataMemoryBudget();
+    RdsDataMemoryBudget.Reservation reservation = budget.reserve("foo", 600, 100);
+
+    reservation.close();
+    reservation.close();
+
+    assertThat(budget.getReservedBytes()).isEqualTo(0);
+    assertThat(budget.reserve("bar", 1000, 1000).getBytes()).isEqualTo(1000);
+    assertThat(metrics.getCounter("memory.peakBytes")).isEqualTo(1000);
+  }
+
+  @Test
+  public void testReserveMinimumAbovePreferred() throws Exception {
+    RdsDataMemoryBudget budget = createRdsDataMemoryBudget();
+
+    try {
+      budget.reserve("foo", 100, 200);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageContaining("200");
+    }
+  }
+
+  private RdsDataMemoryBudget createRdsDataMemoryBudget() {
+    return new RdsDataMemoryBudget(config, metrics);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class RdsDataMetricsTest {
+  @Test
+  public void testCounterUnused() {
+    assertThat(new RdsDataMetrics().getCounter("foo")).isEqualTo(0);
+  }
+
+  @Test
+  public void testCounter() {
+    RdsDataMetrics metrics = new RdsDataMetrics();
+    metrics.increment("foo", 2);
+    metrics.increment("foo", 3);
+
+    assertThat(metrics.getCounter("foo")).isEqualTo(5);
+  }
+
+  @Test
+  public void testUpdateMax() {
+    RdsDataMetrics metrics = new RdsDataMetrics();
+    metrics.updateMax("foo", 3);
+    metrics.updateMax("foo", 7);
+    metrics.updateMax("foo", 5);
+
+    assertThat(metrics.getCounter("foo")).isEqualTo(7);
+  }
+
+  @Test
+  public void testTimer() {
+    RdsDataMetrics metrics = new RdsDataMetrics();
+    metrics.record("foo", 3000000);
+    metrics.record("foo", 7000000);
+    metrics.record("foo", 2000000);
+
+    RdsDataMetrics.Timer timer = metrics.getTimer("foo");
+    assertThat(timer.getCount()).isEqualTo(3);
+    assertThat(timer.getTotalNanos()).isEqualTo(12000000);
+    assertThat(timer.getMaxNanos()).isEqualTo(7000000);
+    assertThat(timer.getLastNanos()).isEqualTo(2000000);
+  }
+
+  @Test
+  public void testToJson() {
+    RdsDataMetrics metrics = new RdsDataMetrics();
+    metrics.increment("foo", 2);
+    metrics.increment("bar", 1);
+    metrics.record("baz", 3000000);
+
+    assertThat(metrics.toJson().toString()).isEqualTo("{\"counters\":{\"bar\":1,\"foo\":2},"
+        + "\"timers\":{\"baz\":{\"count\":1,\"totalMillis\":3,\"maxMillis\":3,"
+        + "\"lastMillis\":3}}}");
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RdsDataParallelGzipOutputStreamTest {
+  ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    byte[] data = createData(1000000);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (RdsDataParallelGzipOutputStream out = new RdsDataParallelGzipOutputStream(bytes,
+        executor, 65536, 8, 6)) {
+      out.write(data, 0, 1000);
+      out.write(data[1000]);
+      out.write(data, 1001, data.length - 1001);
+      out.close();
+
+      assertThat(out.getCompressed()).isEqualTo(bytes.size());
+    }
+
+    assertThat(gunzip(bytes.toByteArray())).isEqualTo(data);
+    assertThat(bytes.size()).isLessThan(data.length / 2);
+    // 16 blocks, each with its own member.
+    assertThat(countMembers(bytes.toByteArray())).isEqualTo(16);
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new RdsDataParallelGzipOutputStream(bytes, executor, 1024, 2, 6).close();
+
+    assertThat(gunzip(bytes.toByteArray())).isEmpty();
+  }
+
+  @Test
+  public void testExactBlocks() throws Exception {
+    byte[] data = createData(4096);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (RdsDataParallelGzipOutputStream out = new RdsDataParallelGzipOutputStream(bytes,
+        executor, 1024, 2, 1)) {
+      out.write(data);
+    }
+
+    assertThat(gunzip(bytes.toByteArray())).isEqualTo(data);
+    assertThat(countMembers(bytes.toByteArray())).isEqualTo(4);
+  }
+
+  @Test
+  public void testBoundsBlocksInFlight() throws Exception {
+    AtomicInteger submitted = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService blocking = Executors.newFixedThreadPool(4);
+    ExecutorService counting = new java.util.concurrent.AbstractExecutorService() {
+      @Override
+      public void execute(Runnable command) {
+        submitted.incrementAndGet();
+        blocking.execute(() -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          command.run();
+        });
+      }
+
+      @Override
+      public void shutdown() {
+        blocking.shutdown();
+      }
+
+      @Override
+      public java.util.List<Runnable> shutdownNow() {
+        return blocking.shutdownNow();
+      }
+
+      @Override
+      public boolean isShutdown() {
+        return blocking.isShutdown();
+      }
+
+      @Override
+      public boolean isTerminated() {
+        return blocking.isTerminated();
+      }
+
+      @Override
+      public boolean awaitTermination(long timeout, TimeUnit unit)
+          throws InterruptedException {
+        return blocking.awaitTermination(timeout, unit);
+      }
+    };
+    byte[] data = createData(10 * 1024);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    RdsDataParallelGzipOutputStream out = new RdsDataParallelGzipOutputStream(bytes, counting,
+        1024, 3, 6);
+    Thread writer = new Thread(() -> {
+      try {
+        out.write(data);
+        out.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    writer.start();
+
+    Thread.sleep(200);
+    // Three blocks in flight, and the writer waiting for the oldest before submitting more.
+    assertThat(submitted.get()).isEqualTo(3);
+    assertThat(bytes.size()).isEqualTo(0);
+
+    release.countDown();
+    writer.join(10000);
+    blocking.shutdownNow();
+
+    assertThat(submitted.get()).isEqualTo(10);
+    assertThat(gunzip(bytes.toByteArray())).isEqualTo(data);
+  }
+
+  @Test
+  public void testWriteAfterClose() throws Exception {
+    RdsDataParallelGzipOutputStream out = new RdsDataParallelGzipOutputStream(
+        new ByteArrayOutputStream(), executor, 1024, 2, 6);
+    out.close();
+    try {
+      out.write(42);
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("closed");
+    }
+  }
+
+  private byte[] createData(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) ("RdsData".charAt(i % 7) + (i / 1000) % 3);
+    }
+    return data;
+  }
+
+  static byte[] gunzip(byte[] compressed) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        bytes.write(buffer, 0, read);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private int countMembers(byte[] compressed) throws IOException {
+    // Each member starts with the gzip magic, deflate method, and no flags. Compressed data of
+    // our test data is unlikely to contain this sequence, and we only compare counts.
+    int members = 0;
+    for (int i = 0; i + 3 < compressed.length; i++) {
+      if ((compressed[i] & 0xff) == 0x1f && (compressed[i + 1] & 0xff) == 0x8b
+          && compressed[i + 2] == 8 && compressed[i + 3] == 0) {
+        members++;
+      }
+    }
+    return members;
+  }
+}
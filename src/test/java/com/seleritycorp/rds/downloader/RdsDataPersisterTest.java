@@ -23,6 +23,7 @@ import static org.easymock.EasyMock.expect;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
@@ -33,19 +34,23 @@ import com.google.gson.stream.JsonWriter;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.seleritycorp.common.base.config.ApplicationPaths;
-import com.seleritycorp.common.base.config.Config;
 import com.seleritycorp.common.base.test.FileTestCase;
 import com.seleritycorp.common.base.test.SettableConfig;
 
 public class RdsDataPersisterTest extends FileTestCase {
   ApplicationPaths paths;
-  Config config;
+  SettableConfig config;
+  RdsDataMetrics metrics;
+  RdsDataRunReports reports;
   Path defaultTarget;
   Path defaultTmpTarget;
+  Path defaultGenerationFile;
 
   Path tmpDir;
+  RdsDataMemoryBudget memoryBudget;
 
   @Before
   public void setUp() throws IOException {
@@ -53,11 +58,15 @@ public class RdsDataPersisterTest extends FileTestCase {
 
     paths = createMock(ApplicationPaths.class);
     expect(paths.getDataPath()).andReturn(tmpDir);
+    expect(paths.getStatePath()).andReturn(tmpDir.resolve("state"));
 
     config = new SettableConfig();
+    metrics = new RdsDataMetrics();
+    reports = new RdsDataRunReports(tmpDir.resolve("state").resolve("reports"), 10);
 
     defaultTarget = tmpDir.resolve("rds").resolve("rds-data.json");
     defaultTmpTarget = tmpDir.resolve("rds").resolve("rds-data.json.tmp");
+    defaultGenerationFile = tmpDir.resolve("state").resolve("rds-data.generation");
   }
 
   @Test
@@ -80,13 +89,165 @@ public class RdsDataPersisterTest extends FileTestCase {
     Writer writer = persister.getCleanWriter();
     JsonWriter jsonWriter = new JsonWriter(writer);
     new Gson().toJson(rdsData, jsonWriter);
-    persister.persist();
+    RdsDataSnapshot snapshot = persister.persist();
 
     verifyAll();
 
     assertThat(defaultTarget)
         .hasContent("{\"meta\":{\"version\":2},\"data\":{\"foo\":42,\"bar\":\"baz\"}}");
     assertThat(defaultTmpTarget).doesNotExist();
+    assertThat(snapshot.getPath()).isEqualTo(defaultTarget);
+    assertThat(snapshot.getSize()).isEqualTo(Files.size(defaultTarget));
+    assertThat(snapshot.getGeneration()).isEqualTo(1);
+    assertThat(snapshot.getSha256()).hasSize(64);
+    assertThat(snapshot.getIndex().getEnumTypes()).containsExactly("foo", "bar");
+    assertThat(defaultGenerationFile).hasContent("1");
+    assertThat(RdsDataManifest.getPath(defaultTarget)).doesNotExist();
+  }
+
+  @Test
+  public void testPublishManifest() throws Exception {
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{\"data\":{\"foo\":42}}");
+    RdsDataSnapshot snapshot = persister.persist();
+    persister.publishManifest(snapshot);
+
+    verifyAll();
+
+    RdsDataSnapshot manifest = RdsDataManifest.read(defaultTarget);
+    assertThat(manifest.getGeneration()).isEqualTo(1);
+    assertThat(manifest.getSize()).isEqualTo(snapshot.getSize());
+    assertThat(manifest.getSha256()).isEqualTo(snapshot.getSha256());
+    assertThat(manifest.getTimestamp()).isEqualTo(snapshot.getTimestamp());
+  }
+
+  @Test
+  public void testDiscardTemporaryFiles() throws Exception {
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    Writer writer = persister.getCleanWriter();
+    writer.write("{\"meta\":");
+    Path canonicalTmpTarget = tmpDir.resolve("rds").resolve("rds-data.json.tmp.canonical");
+    Files.write(canonicalTmpTarget, new byte[] { 'x' });
+
+    persister.discardTemporaryFiles();
+
+    verifyAll();
+
+    assertThat(defaultTmpTarget).doesNotExist();
+    assertThat(canonicalTmpTarget).doesNotExist();
+    assertThat(defaultTarget).doesNotExist();
+  }
+
+  @Test
+  public void testDiscardTemporaryFilesWithoutRun() throws Exception {
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.discardTemporaryFiles();
+
+    verifyAll();
+
+    assertThat(defaultTmpTarget).doesNotExist();
+  }
+
+  @Test
+  public void testCleanWriterAfterInterruptedWrite() throws Exception {
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    Writer writer = persister.getCleanWriter();
+    Thread.currentThread().interrupt();
+    try {
+      writer.write("{\"data\":{}}");
+      writer.flush();
+      failBecauseExceptionWasNotThrown(ClosedByInterruptException.class);
+    } catch (ClosedByInterruptException e) {
+      // The interrupt closed the writer's channel.
+    } finally {
+      Thread.interrupted();
+    }
+    persister.getCleanWriter().write("{\"data\":{\"foo\":1}}");
+    persister.persist();
+
+    verifyAll();
+
+    assertThat(defaultTarget).hasContent("{\"data\":{\"foo\":1}}");
+  }
+
+  @Test
+  public void testPersistGenerationsIncrease() throws Exception {
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{\"data\":{}}");
+    RdsDataSnapshot snapshot1 = persister.persist();
+    persister.publishManifest(snapshot1);
+    persister.getCleanWriter().write("{\"data\":{\"foo\":1}}");
+    RdsDataSnapshot snapshot2 = persister.persist();
+    persister.publishManifest(snapshot2);
+
+    verifyAll();
+
+    assertThat(snapshot1.getGeneration()).isEqualTo(1);
+    assertThat(snapshot2.getGeneration()).isEqualTo(2);
+    assertThat(snapshot1.getSha256()).isNotEqualTo(snapshot2.getSha256());
+    assertThat(RdsDataManifest.read(defaultTarget).getGeneration()).isEqualTo(2);
+    assertThat(defaultGenerationFile).hasContent("2");
+  }
+
+  @Test
+  public void testPersistGenerationResumesFromState() throws Exception {
+    Files.createDirectories(defaultGenerationFile.getParent());
+    Files.write(defaultGenerationFile, "41".getBytes(StandardCharsets.UTF_8));
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{}");
+    RdsDataSnapshot snapshot = persister.persist();
+
+    verifyAll();
+
+    assertThat(snapshot.getGeneration()).isEqualTo(42);
+  }
+
+  @Test
+  public void testPersistGenerationResumesFromManifest() throws Exception {
+    Files.createDirectories(defaultTarget.getParent());
+    Files.write(defaultTarget, "{}".getBytes(StandardCharsets.UTF_8));
+    RdsDataManifest.write(new RdsDataSnapshot(defaultTarget, 2, 7, 0, null, null));
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{}");
+    RdsDataSnapshot snapshot = persister.persist();
+
+    verifyAll();
+
+    assertThat(snapshot.getGeneration()).isEqualTo(8);
+  }
+
+  @Test
+  public void testPersistTruncatedData() throws Exception {
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{\"data\":{\"foo\":[1,");
+    try {
+      persister.persist();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e).hasMessageContaining(defaultTmpTarget.toString());
+    }
+
+    verifyAll();
+
+    assertThat(defaultTarget).doesNotExist();
   }
 
   @Test
@@ -223,7 +384,365 @@ public class RdsDataPersisterTest extends FileTestCase {
     verifyAll();
   }
 
+  @Test
+  public void testPersistDurabilityDefault() throws Exception {
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{}");
+    persister.publishManifest(persister.persist());
+
+    verifyAll();
+
+    assertThat(metrics.getTimer("persister.fsyncData").getCount()).isEqualTo(0);
+    assertThat(metrics.getTimer("persister.fsyncDirectory").getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testPersistDurabilityDataAndDirectory() throws Exception {
+    config.set("RdsDataDownloader.persister.durability", "DATA_AND_DIRECTORY");
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{}");
+    persister.publishManifest(persister.persist());
+
+    verifyAll();
+
+    assertThat(defaultTarget).hasContent("{}");
+    assertThat(metrics.getTimer("persister.fsyncData").getCount()).isEqualTo(1);
+    assertThat(metrics.getTimer("persister.fsyncDirectory").getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPersistDurabilityData() throws Exception {
+    config.set("RdsDataDownloader.persister.durability", "data");
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{}");
+    persister.publishManifest(persister.persist());
+
+    verifyAll();
+
+    assertThat(defaultTarget).hasContent("{}");
+    assertThat(metrics.getTimer("persister.fsyncData").getCount()).isEqualTo(1);
+    assertThat(metrics.getTimer("persister.fsyncDirectory").getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testPersistDurabilityNone() throws Exception {
+    config.set("RdsDataDownloader.persister.durability", "NONE");
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{}");
+    persister.publishManifest(persister.persist());
+
+    verifyAll();
+
+    assertThat(defaultTarget).hasContent("{}");
+    assertThat(metrics.getTimer("persister.fsyncData").getCount()).isEqualTo(0);
+    assertThat(metrics.getTimer("persister.fsyncDirectory").getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testPersistDurabilityInvalid() throws Exception {
+    config.set("RdsDataDownloader.persister.durability", "foo");
+
+    replayAll();
+
+    try {
+      createRdsDataPersister();
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageContaining("FOO");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testPersistAsyncDirectorySync() throws Exception {
+    config.set("RdsDataDownloader.persister.durability", "DATA_AND_DIRECTORY");
+    config.set("RdsDataDownloader.persister.asyncDirectorySync", "true");
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{}");
+    persister.publishManifest(persister.persist());
+    persister.getCleanWriter().write("{\"data\":{}}");
+    persister.publishManifest(persister.persist());
+    persister.flushPendingSyncs();
+
+    verifyAll();
+
+    assertThat(defaultTarget).hasContent("{\"data\":{}}");
+    assertThat(metrics.getTimer("persister.fsyncData").getCount()).isEqualTo(2);
+    assertThat(metrics.getTimer("persister.fsyncDirectory").getCount()).isEqualTo(2);
+    assertThat(metrics.getTimer("persister.fsyncDirectoryWait").getCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testPersistThrottled() throws Exception {
+    config.set("RdsDataDownloader.persister.maxWriteBytesPerSecond", "1000000");
+    config.set("RdsDataDownloader.persister.writeBurstBytes", "1000");
+    config.set("RdsDataDownloader.persister.syncEveryBytes", "10");
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    Writer writer = persister.getCleanWriter();
+    writer.write("{\"data\":{\"foo\":\"");
+    for (int i = 0; i < 10000; i++) {
+      writer.write('x');
+    }
+    writer.write("\"}}");
+    RdsDataSnapshot snapshot = persister.persist();
+
+    verifyAll();
+
+    assertThat(snapshot.getSize()).isEqualTo(10019);
+    assertThat(snapshot.getIndex().getSection("foo").getLength()).isEqualTo(10002);
+    assertThat(metrics.getTimer("persister.throttleWait").getCount()).isEqualTo(1);
+    assertThat(metrics.getTimer("persister.throttleWait").getTotalNanos()).isGreaterThan(0);
+  }
+
+  @Test
+  public void testAppendSegment() throws Exception {
+    Path segment = tmpDir.resolve("segment.json");
+    Files.write(segment, "[42]".getBytes(StandardCharsets.UTF_8));
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    Writer writer = persister.getCleanWriter();
+    writer.write("{\"data\":{\"foo\":");
+    ((RdsDataSegmentSink) writer).append(segment);
+    writer.write("}}");
+    RdsDataSnapshot snapshot = persister.persist();
+
+    verifyAll();
+
+    assertThat(defaultTarget).hasContent("{\"data\":{\"foo\":[42]}}");
+    assertThat(snapshot.getIndex().getSection("foo").getLength()).isEqualTo(4);
+  }
+
+  @Test
+  public void testAppendSegmentPreallocatedAndThrottled() throws Exception {
+    config.set("RdsDataDownloader.persister.preallocate", "true");
+    config.set("RdsDataDownloader.persister.maxWriteBytesPerSecond", "1000000");
+    config.set("RdsDataDownloader.persister.writeBurstBytes", "1000");
+    writeSizes(100000);
+    Path segment = tmpDir.resolve("segment.json");
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < 10000; i++) {
+      sb.append('x');
+    }
+    sb.append('"');
+    Files.write(segment, sb.toString().getBytes(StandardCharsets.UTF_8));
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    Writer writer = persister.getCleanWriter();
+    writer.write("{\"data\":{\"foo\":");
+    ((RdsDataSegmentSink) writer).append(segment);
+    writer.write("}}");
+    RdsDataSnapshot snapshot = persister.persist();
+
+    verifyAll();
+
+    assertThat(snapshot.getSize()).isEqualTo(10019);
+    assertThat(Files.size(defaultTarget)).isEqualTo(10019);
+    assertThat(snapshot.getIndex().getSection("foo").getLength()).isEqualTo(10002);
+    assertThat(metrics.getTimer("persister.throttleWait").getTotalNanos()).isGreaterThan(0);
+  }
+
+  @Test
+  public void testPersistRecordsSizes() throws Exception {
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    assertThat(persister.getExpectedSize()).isEqualTo(0);
+    persister.getCleanWriter().write("{\"data\":{\"foo\":[1,2],\"bar\":{}}}");
+    persister.persist();
+
+    verifyAll();
+
+    assertThat(tmpDir.resolve("state").resolve("rds-data.sizes.json"))
+        .hasContent("{\"total\":31,\"sections\":{\"foo\":5,\"bar\":2}}");
+    assertThat(persister.getExpectedSize()).isEqualTo(31);
+  }
+
+  @Test
+  public void testExpectedSizeFallsBackToTarget() throws Exception {
+    Files.createDirectories(defaultTarget.getParent());
+    Files.write(defaultTarget, "foo".getBytes(StandardCharsets.UTF_8));
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+
+    verifyAll();
+
+    assertThat(persister.getExpectedSize()).isEqualTo(3);
+  }
+
+  @Test
+  public void testGetCleanWriterInsufficientSpace() throws Exception {
+    writeSizes(Long.MAX_VALUE / 200);
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    try {
+      persister.getCleanWriter();
+      failBecauseExceptionWasNotThrown(RdsDataInsufficientSpaceException.class);
+    } catch (RdsDataInsufficientSpaceException e) {
+      assertThat(e).hasMessageContaining(defaultTmpTarget.getParent().toString());
+    }
+
+    verifyAll();
+
+    assertThat(defaultTmpTarget).doesNotExist();
+  }
+
+  @Test
+  public void testPreallocate() throws Exception {
+    config.set("RdsDataDownloader.persister.preallocate", "true");
+    writeSizes(100000);
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    Writer writer = persister.getCleanWriter();
+
+    assertThat(Files.size(defaultTmpTarget)).isEqualTo(100000);
+
+    writer.write("{\"data\":{}}");
+    persister.persist();
+
+    verifyAll();
+
+    assertThat(defaultTarget).hasContent("{\"data\":{}}");
+  }
+
+  @Test
+  public void testCanonical() throws Exception {
+    config.set("RdsDataDownloader.persister.canonical", "true");
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{\"meta\":{\"version\":2,\"format\":\"RdsData\"},"
+        + "\"data\":{\"foo\":[{\"identifier\":\"b\",\"x\":1},{\"x\":2,\"identifier\":\"a\"}],"
+        + "\"bar\":{\"d\":{\"z\":1,\"y\":2},\"c\":3}}}");
+    RdsDataSnapshot snapshot = persister.persist();
+
+    verifyAll();
+
+    assertThat(defaultTarget).hasContent("{\"meta\":{\"format\":\"RdsData\",\"version\":2},"
+        + "\"data\":{\"foo\":[{\"identifier\":\"a\",\"x\":2},{\"identifier\":\"b\",\"x\":1}],"
+        + "\"bar\":{\"c\":3,\"d\":{\"y\":2,\"z\":1}}}}");
+    assertThat(snapshot.getIndex().getEnumTypes()).containsExactly("foo", "bar");
+    assertThat(defaultTmpTarget).doesNotExist();
+    assertThat(metrics.getTimer("persister.canonicalize").getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testMemoryBudgetShrinksBuffers() throws Exception {
+    config.set("RdsDataDownloader.memory.budgetBytes", "2000000");
+    config.set("RdsDataDownloader.persister.canonical", "true");
+    config.set("RdsDataDownloader.persister.canonicalMaxMemoryBytes", "4000000");
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    persister.getCleanWriter().write("{\"data\":{\"foo\":[\"b\",\"a\"]}}");
+    persister.persist();
+
+    verifyAll();
+
+    assertThat(defaultTarget).hasContent("{\"data\":{\"foo\":[\"a\",\"b\"]}}");
+    assertThat(metrics.getCounter("memory.shrunkReservations")).isEqualTo(2);
+    assertThat(metrics.getCounter("memory.peakBytes")).isEqualTo(2000000);
+  }
+
+  @Test
+  public void testMemoryBudgetInsufficient() throws Exception {
+    config.set("RdsDataDownloader.memory.budgetBytes", "1000");
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    try {
+      persister.getCleanWriter();
+      failBecauseExceptionWasNotThrown(RdsDataInsufficientMemoryException.class);
+    } catch (RdsDataInsufficientMemoryException e) {
+      assertThat(e).hasMessageContaining("1000");
+    }
+
+    verifyAll();
+
+    assertThat(defaultTmpTarget).doesNotExist();
+  }
+
+  @Test
+  public void testFailedOpenReleasesMemory() throws Exception {
+    Files.createDirectories(defaultTmpTarget);
+
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    for (int i = 0; i < 2; i++) {
+      try {
+        persister.getCleanWriter();
+        failBecauseExceptionWasNotThrown(IOException.class);
+      } catch (IOException e) {
+        // Expected
+      }
+      assertThat(memoryBudget.getReservedBytes()).isEqualTo(0);
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testReportsPhases() throws Exception {
+    config.set("RdsDataDownloader.persister.durability", "DATA");
+    replayAll();
+
+    RdsDataPersister persister = createRdsDataPersister();
+    reports.start();
+    persister.getCleanWriter().write("{\"data\":{\"foo\":[1,2]}}");
+    persister.persist();
+    reports.finish();
+
+    verifyAll();
+
+    JsonObject report = RdsDataRunReports.readRecent(reports.getDirectory(), 1).get(0);
+    JsonArray phases = report.get("phases").getAsJsonArray();
+    assertThat(phases.size()).isEqualTo(4);
+    String[] names = {"flush", "validate", "fsync", "move"};
+    for (int i = 0; i < names.length; i++) {
+      assertThat(phases.get(i).getAsJsonObject().get("name").getAsString()).isEqualTo(names[i]);
+    }
+    assertThat(phases.get(1).getAsJsonObject().get("bytes").getAsLong()).isEqualTo(22);
+  }
+
+  private void writeSizes(long total) throws IOException {
+    Path sizesFile = tmpDir.resolve("state").resolve("rds-data.sizes.json");
+    Files.createDirectories(sizesFile.getParent());
+    Files.write(sizesFile, ("{\"total\":" + total + "}").getBytes(StandardCharsets.UTF_8));
+  }
+
   private RdsDataPersister createRdsDataPersister() {
-    return new RdsDataPersister(config, paths);
+    memoryBudget = new RdsDataMemoryBudget(config, metrics);
+    return new RdsDataPersister(config, paths, metrics, memoryBudget, reports);
   }
 }
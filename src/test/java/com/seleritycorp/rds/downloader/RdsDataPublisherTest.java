@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.easymock.EasyMockSupport;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RdsDataPublisherTest extends EasyMockSupport {
+  RdsDataSnapshotListener listenerFoo;
+  RdsDataSnapshotListener listenerBar;
+  RdsDataSnapshot snapshot;
+  RdsDataRunReports reports;
+
+  @Before
+  public void setUp() {
+    listenerFoo = createMock(RdsDataSnapshotListener.class);
+    listenerBar = createMock(RdsDataSnapshotListener.class);
+    snapshot = new RdsDataSnapshot(Paths.get("rds-data.json"), 42);
+    reports = new RdsDataRunReports(Paths.get("reports"), 10);
+    expect(listenerFoo.getName()).andReturn("foo").anyTimes();
+    expect(listenerBar.getName()).andReturn("bar").anyTimes();
+  }
+
+  @Test
+  public void testPublishOk() throws Exception {
+    expect(listenerFoo.isEnabled()).andReturn(true);
+    listenerFoo.onSnapshot(snapshot);
+    expect(listenerBar.isEnabled()).andReturn(true);
+    listenerBar.onSnapshot(snapshot);
+
+    replayAll();
+
+    List<String> failures = createRdsDataPublisher().publish(snapshot);
+
+    verifyAll();
+
+    assertThat(failures).isEmpty();
+  }
+
+  @Test
+  public void testPublishSkipsDisabled() throws Exception {
+    expect(listenerFoo.isEnabled()).andReturn(false);
+    expect(listenerBar.isEnabled()).andReturn(true);
+    listenerBar.onSnapshot(snapshot);
+
+    replayAll();
+
+    List<String> failures = createRdsDataPublisher().publish(snapshot);
+
+    verifyAll();
+
+    assertThat(failures).isEmpty();
+  }
+
+  @Test
+  public void testPublishFailureContinues() throws Exception {
+    expect(listenerFoo.isEnabled()).andReturn(true);
+    listenerFoo.onSnapshot(snapshot);
+    expectLastCall().andThrow(new IOException("catch me"));
+    expect(listenerBar.isEnabled()).andReturn(true);
+    listenerBar.onSnapshot(snapshot);
+
+    replayAll();
+
+    List<String> failures = createRdsDataPublisher().publish(snapshot);
+
+    verifyAll();
+
+    assertThat(failures).hasSize(1);
+    assertThat(failures.get(0)).startsWith("foo: ");
+    assertThat(failures.get(0)).contains("catch me");
+  }
+
+  @Test
+  public void testStartStopOnlyEnabled() throws Exception {
+    expect(listenerFoo.isEnabled()).andReturn(false).times(2);
+    expect(listenerBar.isEnabled()).andReturn(true).times(2);
+    listenerBar.start();
+    listenerBar.stop();
+
+    replayAll();
+
+    RdsDataPublisher publisher = createRdsDataPublisher();
+    publisher.start();
+    publisher.stop();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testStartFailureContinues() throws Exception {
+    expect(listenerFoo.isEnabled()).andReturn(true);
+    listenerFoo.start();
+    expectLastCall().andThrow(new IOException("catch me"));
+    expect(listenerBar.isEnabled()).andReturn(true);
+    listenerBar.start();
+
+    replayAll();
+
+    createRdsDataPublisher().start();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testPublishReportsStages() throws Exception {
+    expect(listenerFoo.isEnabled()).andReturn(true);
+    listenerFoo.onSnapshot(snapshot);
+    expectLastCall().andThrow(new IOException("catch me"));
+    expect(listenerBar.isEnabled()).andReturn(true);
+    listenerBar.onSnapshot(snapshot);
+
+    replayAll();
+
+    RdsDataRunReport report = reports.start();
+    createRdsDataPublisher().publish(snapshot);
+
+    verifyAll();
+
+    JsonArray phases = report.toJson().get("phases").getAsJsonArray();
+    assertThat(phases.size()).isEqualTo(2);
+    JsonObject foo = phases.get(0).getAsJsonObject();
+    assertThat(foo.get("name").getAsString()).isEqualTo("publish:foo");
+    assertThat(foo.get("errors").getAsJsonArray().get(0).getAsString()).contains("catch me");
+    JsonObject bar = phases.get(1).getAsJsonObject();
+    assertThat(bar.get("name").getAsString()).isEqualTo("publish:bar");
+    assertThat(bar.get("errors").getAsJsonArray().size()).isEqualTo(0);
+  }
+
+  private RdsDataPublisher createRdsDataPublisher() {
+    return new RdsDataPublisher(Arrays.asList(listenerFoo, listenerBar), reports);
+  }
+}
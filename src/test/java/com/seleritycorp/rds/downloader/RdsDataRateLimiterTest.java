@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RdsDataRateLimiterTest {
+  long now;
+  List<Long> sleeps;
+
+  @Before
+  public void setUp() {
+    now = 1000;
+    sleeps = new ArrayList<>();
+  }
+
+  @Test
+  public void testBurstDoesNotBlock() throws IOException {
+    RdsDataRateLimiter limiter = createRdsDataRateLimiter(100, 50);
+
+    assertThat(limiter.acquire(20)).isEqualTo(0);
+    assertThat(limiter.acquire(30)).isEqualTo(0);
+
+    assertThat(sleeps).isEmpty();
+  }
+
+  @Test
+  public void testDebtBlocks() throws IOException {
+    RdsDataRateLimiter limiter = createRdsDataRateLimiter(100, 50);
+
+    assertThat(limiter.acquire(50)).isEqualTo(0);
+    assertThat(limiter.acquire(10)).isEqualTo(100000000L);
+
+    assertThat(sleeps).containsExactly(100000000L);
+  }
+
+  @Test
+  public void testAcquireAboveBurst() throws IOException {
+    RdsDataRateLimiter limiter = createRdsDataRateLimiter(100, 50);
+
+    assertThat(limiter.acquire(150)).isEqualTo(1000000000L);
+  }
+
+  @Test
+  public void testRefill() throws IOException {
+    RdsDataRateLimiter limiter = createRdsDataRateLimiter(100, 50);
+
+    limiter.acquire(50);
+    now += 200000000L;
+
+    assertThat(limiter.acquire(20)).isEqualTo(0);
+    assertThat(limiter.acquire(10)).isEqualTo(100000000L);
+  }
+
+  @Test
+  public void testRefillCappedByBurst() throws IOException {
+    RdsDataRateLimiter limiter = createRdsDataRateLimiter(100, 50);
+
+    now += 10000000000L;
+
+    assertThat(limiter.acquire(50)).isEqualTo(0);
+    assertThat(limiter.acquire(10)).isEqualTo(100000000L);
+  }
+
+  @Test
+  public void testLongTermRate() throws IOException {
+    RdsDataRateLimiter limiter = createRdsDataRateLimiter(1000, 100);
+
+    long start = now;
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire(100);
+    }
+
+    // 10000 tokens at 1000 per second, minus the initial burst
+    assertThat(now - start).isEqualTo(9900000000L);
+  }
+
+  @Test
+  public void testInvalidRate() {
+    try {
+      createRdsDataRateLimiter(0, 50);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageContaining("Rate");
+    }
+  }
+
+  @Test
+  public void testInvalidBurst() {
+    try {
+      createRdsDataRateLimiter(100, 0);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageContaining("Burst");
+    }
+  }
+
+  private RdsDataRateLimiter createRdsDataRateLimiter(long rate, long burst) {
+    return new RdsDataRateLimiter(rate, burst, () -> now, nanos -> {
+      sleeps.add(nanos);
+      now += nanos;
+    });
+  }
+}
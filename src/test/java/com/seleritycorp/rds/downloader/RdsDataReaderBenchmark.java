@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link RdsDataReader} against parsing snapshots into a Gson DOM.
+ *
+ * <p>Run through {@link #main(String[])}, or through JMH's own main class with e.g.:
+ * {@code -prof gc} to also compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class RdsDataReaderBenchmark {
+  @Param({"10000"})
+  public int recordsPerEnumType;
+
+  @Param({"8"})
+  public int enumTypes;
+
+  @Param({"true", "false"})
+  public boolean manifest;
+
+  private Path directory;
+  private Path snapshotFile;
+  private List<String> allEnumTypes;
+  private String wantedEnumType;
+
+  /**
+   * Writes a synthetic snapshot.
+   *
+   * @throws IOException if writing fails.
+   */
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("rds-data-benchmark");
+    snapshotFile = directory.resolve("rds-data.json");
+    allEnumTypes = new ArrayList<>();
+    try (Writer writer = Files.newBufferedWriter(snapshotFile, StandardCharsets.UTF_8)) {
+      writer.write("{\"meta\":{\"format\":\"RdsData\",\"version\":2,\"agent\":\"benchmark\"},");
+      writer.write("\"data\":{");
+      for (int type = 0; type < enumTypes; type++) {
+        String enumType = "ENUM_TYPE_" + type;
+        allEnumTypes.add(enumType);
+        writer.write((type == 0 ? "" : ",") + "\"" + enumType + "\":{");
+        for (int i = 0; i < recordsPerEnumType; i++) {
+          writer.write((i == 0 ? "" : ",") + "\"" + enumType + "-" + i + "\":{"
+              + "\"name\":\"Record " + i + " of " + enumType + "\","
+              + "\"rank\":" + i + ","
+              + "\"country\":\"US\","
+              + "\"active\":" + (i % 2 == 0) + ","
+              + "\"tags\":[\"a\",\"b\",{\"c\":" + i + "}]}");
+        }
+        writer.write("}");
+      }
+      writer.write("}}");
+    }
+    wantedEnumType = allEnumTypes.get(enumTypes / 2);
+    if (manifest) {
+      RdsDataManifest.write(new RdsDataSnapshot(snapshotFile, Files.size(snapshotFile), 1, 0,
+          null, RdsDataSectionIndex.build(snapshotFile)));
+    }
+  }
+
+  /**
+   * Removes the synthetic snapshot.
+   *
+   * @throws IOException if removing fails.
+   */
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(RdsDataManifest.getPath(snapshotFile));
+    Files.deleteIfExists(snapshotFile);
+    Files.deleteIfExists(directory);
+  }
+
+  /**
+   * Reads all sections through a Gson DOM.
+   *
+   * @return a checksum over the read values.
+   * @throws IOException if reading fails.
+   */
+  @Benchmark
+  public long domAllSections() throws IOException {
+    return dom(allEnumTypes);
+  }
+
+  /**
+   * Reads all sections through the reader.
+   *
+   * @return a checksum over the read values.
+   * @throws IOException if reading fails.
+   */
+  @Benchmark
+  public long readerAllSections() throws IOException {
+    return reader(allEnumTypes);
+  }
+
+  /**
+   * Reads a single section through a Gson DOM.
+   *
+   * @return a checksum over the read values.
+   * @throws IOException if reading fails.
+   */
+  @Benchmark
+  public long domOneSection() throws IOException {
+    return dom(Collections.singletonList(wantedEnumType));
+  }
+
+  /**
+   * Reads a single section through the reader.
+   *
+   * @return a checksum over the read values.
+   * @throws IOException if reading fails.
+   */
+  @Benchmark
+  public long readerOneSection() throws IOException {
+    return reader(Collections.singletonList(wantedEnumType));
+  }
+
+  private long dom(List<String> wanted) throws IOException {
+    long checksum = 0;
+    try (Reader reader = new BufferedReader(new InputStreamReader(
+        Files.newInputStream(snapshotFile), StandardCharsets.UTF_8), 64 * 1024)) {
+      JsonObject data = new JsonParser().parse(reader).getAsJsonObject().getAsJsonObject("data");
+      for (String enumType : wanted) {
+        for (Map.Entry<String, JsonElement> entry
+            : data.getAsJsonObject(enumType).entrySet()) {
+          JsonObject record = entry.getValue().getAsJsonObject();
+          checksum += entry.getKey().length() + record.get("name").getAsString().length()
+              + record.get("rank").getAsLong();
+        }
+      }
+    }
+    return checksum;
+  }
+
+  private long reader(List<String> wanted) throws IOException {
+    long[] checksum = new long[1];
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      reader.forEach(wanted, record -> {
+        checksum[0] += record.getIdentifier().length() + record.get("name").length()
+            + record.getLong(record.indexOf("rank"));
+      });
+    }
+    return checksum[0];
+  }
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args Ignored.
+   * @throws RunnerException if running fails.
+   */
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(RdsDataReaderBenchmark.class.getSimpleName())
+        .addProfiler("gc")
+        .build()).run();
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+
+public class RdsDataReaderTest extends FileTestCase {
+  static final String META = "{\"format\":\"RdsData\",\"version\":2,\"agent\":\"foo\"}";
+
+  Path snapshotFile;
+
+  @Before
+  public void setUp() throws IOException {
+    snapshotFile = createTempDirectory().resolve("rds-data.json");
+  }
+
+  @Test
+  public void testMeta() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{}}");
+
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      assertThat(reader.getMeta()).containsEntry("format", "RdsData")
+          .containsEntry("version", "2").containsEntry("agent", "foo");
+      assertThat(reader.getEnumTypes()).isEmpty();
+      assertThat(reader.open("FOO")).isNull();
+    }
+  }
+
+  @Test
+  public void testUnsupportedVersion() throws Exception {
+    write("{\"meta\":{\"format\":\"RdsData\",\"version\":1},\"data\":{}}");
+
+    try {
+      new RdsDataReader(snapshotFile).close();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Unsupported");
+    }
+  }
+
+  @Test
+  public void testMissingMeta() throws Exception {
+    write("{\"data\":{\"FOO\":[]}}");
+
+    try {
+      new RdsDataReader(snapshotFile).close();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Unsupported");
+    }
+  }
+
+  @Test
+  public void testObjectSectionCursor() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":{\"foo1\":{\"name\":\"Foo 1\",\"rank\":1},\"foo2\":{\"name\":\"Foo 2\"}},"
+        + "\"BAR\":{\"bar1\":42}}}");
+
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      assertThat(reader.getEnumTypes()).containsExactly("FOO", "BAR");
+      try (RdsDataReader.Cursor cursor = reader.open("FOO")) {
+        assertThat(cursor.next()).isTrue();
+        RdsDataRecord record = cursor.getRecord();
+        assertThat(record.getEnumType()).isEqualTo("FOO");
+        assertThat(record.getIdentifier()).isEqualTo("foo1");
+        assertThat(record.getFieldCount()).isEqualTo(2);
+        assertThat(record.get("name")).isEqualTo("Foo 1");
+        assertThat(record.getLong(record.indexOf("rank"))).isEqualTo(1);
+
+        assertThat(cursor.next()).isTrue();
+        assertThat(cursor.getRecord()).isSameAs(record);
+        assertThat(record.getIdentifier()).isEqualTo("foo2");
+        assertThat(record.getFieldCount()).isEqualTo(1);
+        assertThat(record.get("name")).isEqualTo("Foo 2");
+        assertThat(record.get("rank")).isNull();
+
+        assertThat(cursor.next()).isFalse();
+        assertThat(cursor.next()).isFalse();
+      }
+      try (RdsDataReader.Cursor cursor = reader.open("BAR")) {
+        assertThat(cursor.next()).isTrue();
+        RdsDataRecord record = cursor.getRecord();
+        assertThat(record.getIdentifier()).isEqualTo("bar1");
+        assertThat(record.getFieldName(0)).isEqualTo("value");
+        assertThat(record.getLong(0)).isEqualTo(42);
+        assertThat(cursor.next()).isFalse();
+      }
+    }
+  }
+
+  @Test
+  public void testArraySections() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":[{\"identifier\":\"foo1\",\"name\":\"Foo 1\"},{\"name\":\"anonymous\"}],"
+        + "\"BAR\":[\"bar1\", \"bar2\"],"
+        + "\"BAZ\":[]}}");
+
+    List<String> seen = new ArrayList<>();
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      reader.forEach(Arrays.asList("FOO", "BAR", "BAZ"), record -> seen.add(
+          record.getEnumType() + "/" + record.getIdentifier() + "/" + record.getString(
+              record.getFieldCount() - 1)));
+    }
+
+    assertThat(seen).containsExactly("FOO/foo1/Foo 1", "FOO/null/anonymous", "BAR/bar1/bar1",
+        "BAR/bar2/bar2");
+  }
+
+  @Test
+  public void testCustomIdentifierField() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{\"FOO\":[{\"id\":7,\"name\":\"Foo 7\"}]}}");
+
+    List<String> seen = new ArrayList<>();
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile, "id")) {
+      reader.forEach("FOO", record -> seen.add(record.getIdentifier()));
+    }
+
+    assertThat(seen).containsExactly("7");
+  }
+
+  @Test
+  public void testForEachSkipsUnwantedSections() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":{\"foo1\":{\"nested\":{\"a\":[1,{\"b\":\"}]\\\"\"}]}}},"
+        + "\"BAR\":{\"bar1\":{\"name\":\"Bar 1\"}},"
+        + "\"BAZ\":{\"baz1\":\"x\"}}}");
+
+    List<String> seen = new ArrayList<>();
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      reader.forEach(Arrays.asList("BAR", "QUUX"), record -> seen.add(record.toString()));
+      assertThat(reader.getEnumTypes()).containsExactly("FOO", "BAR", "BAZ");
+    }
+
+    assertThat(seen).containsExactly("BAR/bar1{name=Bar 1}");
+  }
+
+  @Test
+  public void testNestedValuesAsJson() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":{\"foo1\":{\"tags\":[\"a\",\"]\"],\"parent\":{\"id\":\"p\"},\"none\":null}}}}");
+
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile);
+        RdsDataReader.Cursor cursor = reader.open("FOO")) {
+      assertThat(cursor.next()).isTrue();
+      RdsDataRecord record = cursor.getRecord();
+      assertThat(record.getType(0)).isEqualTo(RdsDataRecord.Type.ARRAY);
+      assertThat(record.getString(0)).isEqualTo("[\"a\",\"]\"]");
+      assertThat(record.getType(1)).isEqualTo(RdsDataRecord.Type.OBJECT);
+      assertThat(record.getString(1)).isEqualTo("{\"id\":\"p\"}");
+      assertThat(record.isNull(2)).isTrue();
+      assertThat(record.getString(2)).isNull();
+    }
+  }
+
+  @Test
+  public void testEscapes() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":{\"f\\\"oo\":{\"name\":\"a\\\\b\\n\\u00e4\\u20ac\\ud83d\\ude00 \u00f6\"}}}}");
+
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile);
+        RdsDataReader.Cursor cursor = reader.open("FOO")) {
+      assertThat(cursor.next()).isTrue();
+      RdsDataRecord record = cursor.getRecord();
+      assertThat(record.getIdentifier()).isEqualTo("f\"oo");
+      assertThat(record.get("name")).isEqualTo("a\\b\n\u00e4\u20ac\ud83d\ude00 \u00f6");
+    }
+  }
+
+  @Test
+  public void testLargeSectionsAcrossBuffers() throws Exception {
+    StringBuilder sb = new StringBuilder("{\"meta\":" + META + ",\"data\":{\"FOO\":{");
+    int count = 10000;
+    for (int i = 0; i < count; i++) {
+      sb.append(i == 0 ? "" : ",").append("\"foo").append(i).append("\":{\"name\":\"")
+          .append("Foo ").append(i).append("\\u00e4\",\"rank\":").append(i).append("}");
+    }
+    sb.append("},\"BAR\":{\"bar1\":1}}}");
+    write(sb.toString());
+
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      long[] sum = new long[2];
+      reader.forEach(Arrays.asList("FOO", "BAR"), record -> {
+        if (record.getEnumType().equals("FOO")) {
+          int rank = (int) record.getLong(1);
+          assertThat(record.getIdentifier()).isEqualTo("foo" + rank);
+          assertThat(record.getString(0)).isEqualTo("Foo " + rank + "\u00e4");
+          sum[0] += rank;
+        } else {
+          sum[1]++;
+        }
+      });
+      assertThat(sum[0]).isEqualTo((long) count * (count - 1) / 2);
+      assertThat(sum[1]).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void testSeeksThroughManifest() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":{\"foo1\":{\"name\":\"Foo 1\"}},"
+        + "\"BAR\":{\"bar1\":{\"name\":\"Bar 1\"}}}}");
+    writeManifest();
+
+    List<String> seen = new ArrayList<>();
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      reader.forEach("BAR", record -> seen.add(record.toString()));
+      assertThat(reader.getEnumTypes()).containsExactly("FOO", "BAR");
+    }
+
+    assertThat(seen).containsExactly("BAR/bar1{name=Bar 1}");
+  }
+
+  @Test
+  public void testStaleManifestFallsBackToScan() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"FOO\":{\"foo1\":{\"name\":\"Foo 1\"}},"
+        + "\"BAR\":{\"bar1\":{\"name\":\"Bar 1\"}}}}");
+    writeManifest();
+    // Same size, but different layout
+    write("{\"meta\":" + META + ",\"data\":{"
+        + "\"BAR\":{\"bar1\":{\"name\":\"Bar 1\"}},"
+        + "\"FOO\":{\"foo1\":{\"name\":\"Foo 1\"}}}}");
+
+    List<String> seen = new ArrayList<>();
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      reader.forEach("FOO", record -> seen.add(record.toString()));
+      assertThat(reader.getEnumTypes()).containsExactly("BAR", "FOO");
+    }
+
+    assertThat(seen).containsExactly("FOO/foo1{name=Foo 1}");
+  }
+
+  @Test
+  public void testHandlerFailure() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{\"FOO\":{\"foo1\":1,\"foo2\":2}}}");
+
+    List<String> seen = new ArrayList<>();
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      reader.forEach("FOO", record -> {
+        seen.add(record.getIdentifier());
+        throw new IOException("catch me");
+      });
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).isEqualTo("catch me");
+    }
+
+    assertThat(seen).containsExactly("foo1");
+  }
+
+  @Test
+  public void testMalformed() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{\"FOO\":{\"foo1\":{\"name\" \"Foo 1\"}}}}");
+
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      reader.forEach("FOO", record -> { });
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Malformed");
+    }
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    write("{\"meta\":" + META + ",\"data\":{\"FOO\":{\"foo1\":{\"name\":\"Foo");
+
+    try (RdsDataReader reader = new RdsDataReader(snapshotFile)) {
+      reader.forEach("FOO", record -> { });
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Malformed");
+    }
+  }
+
+  private void writeManifest() throws IOException {
+    RdsDataManifest.write(new RdsDataSnapshot(snapshotFile, Files.size(snapshotFile), 1, 0, null,
+        RdsDataSectionIndex.build(snapshotFile)));
+  }
+
+  private void write(String content) throws IOException {
+    Files.write(snapshotFile, content.getBytes(StandardCharsets.UTF_8));
+  }
+}
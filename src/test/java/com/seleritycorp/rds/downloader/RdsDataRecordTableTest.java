@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataRecordTableTest {
+  @Test
+  public void testEmpty() {
+    RdsDataRecordTable table = new RdsDataRecordTable.Builder("foo").build();
+
+    assertThat(table.size()).isEqualTo(0);
+    assertThat(table.contains("bar")).isFalse();
+    assertThat(table.getRecord("bar")).isNull();
+    assertThat(table.getRecordBytes("bar")).isNull();
+    assertThat(table.getIdentifiers()).isEmpty();
+  }
+
+  @Test
+  public void testLookup() throws IOException {
+    RdsDataRecordTable table = new RdsDataRecordTable.Builder("foo")
+        .add("bar", bytes("{\"a\":1}"))
+        .add("baz", bytes("{\"a\":2}"))
+        .build();
+
+    assertThat(table.size()).isEqualTo(2);
+    assertThat(table.contains("bar")).isTrue();
+    assertThat(table.contains("baz")).isTrue();
+    assertThat(table.contains("quux")).isFalse();
+    assertThat(table.getRecord("bar")).isEqualTo("{\"a\":1}");
+    assertThat(table.getRecord("baz")).isEqualTo("{\"a\":2}");
+    assertThat(table.getIdentifiers()).containsExactly("bar", "baz");
+    assertThat(table.getRecord(1)).isEqualTo("{\"a\":2}");
+  }
+
+  @Test
+  public void testRecordBytes() throws IOException {
+    RdsDataRecordTable table = new RdsDataRecordTable.Builder("foo")
+        .add("bar", bytes("[\"\u00e4\"]"))
+        .build();
+
+    ByteBuffer buffer = table.getRecordBytes("bar");
+    byte[] record = new byte[buffer.remaining()];
+    buffer.get(record);
+
+    assertThat(buffer.isReadOnly()).isTrue();
+    assertThat(new String(record, StandardCharsets.UTF_8)).isEqualTo("[\"\u00e4\"]");
+  }
+
+  @Test
+  public void testLastRecordWins() throws IOException {
+    RdsDataRecordTable table = new RdsDataRecordTable.Builder("foo")
+        .add("bar", bytes("1"))
+        .add("baz", bytes("2"))
+        .add("bar", bytes("3"))
+        .build();
+
+    assertThat(table.size()).isEqualTo(2);
+    assertThat(table.getRecord("bar")).isEqualTo("3");
+    assertThat(table.getIdentifiers()).containsExactly("baz", "bar");
+  }
+
+  @Test
+  public void testCollidingIdentifiers() throws IOException {
+    // "Aa" and "BB" share the same String hash code.
+    RdsDataRecordTable table = new RdsDataRecordTable.Builder("foo")
+        .add("Aa", bytes("1"))
+        .add("BB", bytes("2"))
+        .build();
+
+    assertThat(table.getRecord("Aa")).isEqualTo("1");
+    assertThat(table.getRecord("BB")).isEqualTo("2");
+    assertThat(table.contains("AaBB")).isFalse();
+  }
+
+  @Test
+  public void testManyIdentifiers() throws IOException {
+    RdsDataRecordTable.Builder builder = new RdsDataRecordTable.Builder("foo");
+    for (int i = 0; i < 10000; i++) {
+      builder.add("id-\u20ac" + i, bytes("{\"i\":" + i + "}"));
+    }
+    RdsDataRecordTable table = builder.build();
+
+    assertThat(table.size()).isEqualTo(10000);
+    for (int i = 0; i < 10000; i++) {
+      assertThat(table.getRecord("id-\u20ac" + i)).isEqualTo("{\"i\":" + i + "}");
+    }
+    assertThat(table.contains("id-\u20ac10000")).isFalse();
+    assertThat(table.getIdentifier(4711)).isEqualTo("id-\u20ac4711");
+  }
+
+  @Test
+  public void testExpectedBytes() throws IOException {
+    RdsDataRecordTable table = new RdsDataRecordTable.Builder("foo", 1000)
+        .add("bar", bytes("{\"a\":1}"))
+        .build();
+
+    assertThat(table.getDataSize()).isEqualTo(1000);
+    assertThat(table.getRecord("bar")).isEqualTo("{\"a\":1}");
+  }
+
+  @Test
+  public void testGrowsBeyondExpectedBytes() throws IOException {
+    RdsDataRecordTable.Builder builder = new RdsDataRecordTable.Builder("foo", 20);
+    for (int i = 0; i < 100; i++) {
+      builder.add("id" + i, bytes("{\"i\":" + i + "}"));
+    }
+    RdsDataRecordTable table = builder.build();
+
+    assertThat(table.size()).isEqualTo(100);
+    assertThat(table.getDataSize()).isGreaterThan(20);
+    for (int i = 0; i < 100; i++) {
+      assertThat(table.getRecord("id" + i)).isEqualTo("{\"i\":" + i + "}");
+    }
+  }
+
+  @Test
+  public void testReservesFromBudget() throws IOException {
+    RdsDataMemoryBudget memoryBudget = new RdsDataMemoryBudget(new SettableConfig(),
+        new RdsDataMetrics());
+    RdsDataRecordTable.Builder builder = new RdsDataRecordTable.Builder("foo", 20, memoryBudget);
+    for (int i = 0; i < 100; i++) {
+      builder.add("id" + i, bytes("{\"i\":" + i + "}"));
+    }
+    RdsDataRecordTable table = builder.build();
+
+    assertThat(memoryBudget.getReservedBytes()).isGreaterThan(table.getDataSize() + 100 * 20);
+
+    table.release();
+
+    assertThat(memoryBudget.getReservedBytes()).isEqualTo(0);
+    assertThat(table.getRecord("id42")).isEqualTo("{\"i\":42}");
+  }
+
+  @Test
+  public void testDiscardReleasesReservation() throws IOException {
+    RdsDataMemoryBudget memoryBudget = new RdsDataMemoryBudget(new SettableConfig(),
+        new RdsDataMetrics());
+    RdsDataRecordTable.Builder builder = new RdsDataRecordTable.Builder("foo", 1000,
+        memoryBudget);
+    builder.add("bar", bytes("{\"a\":1}"));
+    assertThat(memoryBudget.getReservedBytes()).isGreaterThanOrEqualTo(1000);
+
+    builder.discard();
+
+    assertThat(memoryBudget.getReservedBytes()).isEqualTo(0);
+  }
+
+  private byte[] bytes(String str) {
+    return str.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RdsDataRecordTest {
+  RdsDataRecord.Names names;
+
+  @Before
+  public void setUp() {
+    names = new RdsDataRecord.Names();
+  }
+
+  @Test
+  public void testEmpty() {
+    RdsDataRecord record = createRecord();
+
+    assertThat(record.getEnumType()).isEqualTo("FOO");
+    assertThat(record.getIdentifier()).isNull();
+    assertThat(record.getFieldCount()).isEqualTo(0);
+    assertThat(record.indexOf("foo")).isEqualTo(-1);
+    assertThat(record.get("foo")).isNull();
+  }
+
+  @Test
+  public void testFields() {
+    RdsDataRecord record = createRecord();
+    addField(record, "identifier", "foo1", RdsDataRecord.Type.STRING);
+    addField(record, "rank", "-42", RdsDataRecord.Type.NUMBER);
+    addField(record, "share", "0.5", RdsDataRecord.Type.NUMBER);
+    addField(record, "active", "true", RdsDataRecord.Type.BOOLEAN);
+    addField(record, "parent", "null", RdsDataRecord.Type.NULL);
+    record.setIdentifierFromField("identifier");
+
+    assertThat(record.getIdentifier()).isEqualTo("foo1");
+    assertThat(record.getFieldCount()).isEqualTo(5);
+    assertThat(record.getFieldName(1)).isEqualTo("rank");
+    assertThat(record.indexOf("share")).isEqualTo(2);
+    assertThat(record.getLong(1)).isEqualTo(-42);
+    assertThat(record.getDouble(2)).isEqualTo(0.5);
+    assertThat(record.getBoolean(3)).isTrue();
+    assertThat(record.isNull(4)).isTrue();
+    assertThat(record.isNull(3)).isFalse();
+    assertThat(record.getString(4)).isNull();
+    assertThat(record.toString()).isEqualTo(
+        "FOO/foo1{identifier=foo1, rank=-42, share=0.5, active=true, parent=null}");
+  }
+
+  @Test
+  public void testFieldNamesGetCached() {
+    RdsDataRecord record = createRecord();
+    addField(record, "name", "a", RdsDataRecord.Type.STRING);
+    String first = record.getFieldName(0);
+
+    record.clear();
+    addField(record, "name", "b", RdsDataRecord.Type.STRING);
+
+    assertThat(record.getFieldName(0)).isSameAs(first);
+  }
+
+  @Test
+  public void testClearRecycles() {
+    RdsDataRecord record = createRecord();
+    for (int i = 0; i < 100; i++) {
+      addField(record, "field" + i, "value" + i, RdsDataRecord.Type.STRING);
+    }
+    record.setIdentifierFromField("field7");
+    assertThat(record.getIdentifier()).isEqualTo("value7");
+
+    record.clear();
+
+    assertThat(record.getFieldCount()).isEqualTo(0);
+    assertThat(record.getIdentifier()).isNull();
+  }
+
+  @Test
+  public void testLongParsing() {
+    RdsDataRecord record = createRecord();
+    addField(record, "a", "123", RdsDataRecord.Type.STRING);
+    addField(record, "b", "9223372036854775807", RdsDataRecord.Type.NUMBER);
+    addField(record, "c", "1.5", RdsDataRecord.Type.NUMBER);
+
+    assertThat(record.getLong(0)).isEqualTo(123);
+    assertThat(record.getLong(1)).isEqualTo(Long.MAX_VALUE);
+    try {
+      record.getLong(2);
+      failBecauseExceptionWasNotThrown(NumberFormatException.class);
+    } catch (NumberFormatException e) {
+      assertThat(e.getMessage()).contains("1.5");
+    }
+  }
+
+  @Test
+  public void testIndexOutOfBounds() {
+    RdsDataRecord record = createRecord();
+    addField(record, "a", "1", RdsDataRecord.Type.NUMBER);
+
+    try {
+      record.getString(1);
+      failBecauseExceptionWasNotThrown(IndexOutOfBoundsException.class);
+    } catch (IndexOutOfBoundsException e) {
+      assertThat(e.getMessage()).contains("1 of 1");
+    }
+  }
+
+  private RdsDataRecord createRecord() {
+    return new RdsDataRecord("FOO", names);
+  }
+
+  private void addField(RdsDataRecord record, String name, String value,
+      RdsDataRecord.Type type) {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+    int nameStart = record.getLength();
+    record.append(nameBytes, 0, nameBytes.length);
+    int valueStart = record.getLength();
+    record.append(valueBytes, 0, valueBytes.length);
+    record.addField(nameStart, nameBytes.length, valueStart, valueBytes.length, type);
+  }
+}
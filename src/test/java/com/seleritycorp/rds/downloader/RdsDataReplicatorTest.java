@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.expect;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataReplicatorTest extends FileTestCase {
+  SettableConfig config;
+  ApplicationPaths paths;
+  RdsDataMetrics metrics;
+  Path target;
+  Path replicaDir1;
+  Path replicaDir2;
+
+  @Before
+  public void setUp() throws IOException {
+    Path tmpDir = createTempDirectory();
+    paths = createMock(ApplicationPaths.class);
+    expect(paths.getDataPath()).andReturn(tmpDir).anyTimes();
+
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.replicator.targets", "replica1, replica2");
+
+    metrics = new RdsDataMetrics();
+    target = tmpDir.resolve("rds").resolve("rds-data.json");
+    Files.createDirectories(target.getParent());
+    replicaDir1 = tmpDir.resolve("replica1");
+    replicaDir2 = tmpDir.resolve("replica2");
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    config = new SettableConfig();
+    replayAll();
+
+    RdsDataReplicator replicator = createRdsDataReplicator();
+
+    verifyAll();
+
+    assertThat(replicator.getName()).isEqualTo("replicator");
+    assertThat(replicator.isEnabled()).isFalse();
+  }
+
+  @Test
+  public void testHardLink() throws Exception {
+    byte[] content = randomBytes(1, 5000);
+    RdsDataSnapshot snapshot = persist(content, 1);
+    replayAll();
+
+    RdsDataReplicator replicator = createRdsDataReplicator();
+    replicator.onSnapshot(snapshot);
+
+    verifyAll();
+
+    assertThat(replicator.isEnabled()).isTrue();
+    for (Path replicaDir : new Path[] {replicaDir1, replicaDir2}) {
+      Path replica = replicaDir.resolve("rds-data.json");
+      assertThat(Files.readAllBytes(replica)).isEqualTo(content);
+      assertThat(Files.isSameFile(replica, target)).isTrue();
+      assertThat(RdsDataManifest.read(replica).getGeneration()).isEqualTo(1);
+    }
+    assertThat(metrics.getCounter("replicator.hardLinks")).isEqualTo(2);
+    assertThat(metrics.getCounter("replicator.bytesWritten")).isEqualTo(0);
+    assertThat(metrics.getTimer("replicator.replicate").getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testCopy() throws Exception {
+    config.set("RdsDataDownloader.replicator.hardLinks", "false");
+    byte[] content1 = randomBytes(2, 20000);
+    byte[] content2 = new byte[content1.length + 10];
+    System.arraycopy(content1, 0, content2, 0, 8000);
+    System.arraycopy(content1, 8000, content2, 8010, content1.length - 8000);
+    replayAll();
+
+    RdsDataReplicator replicator = createRdsDataReplicator();
+    replicator.onSnapshot(persist(content1, 1));
+
+    assertThat(metrics.getCounter("replicator.bytesWritten")).isEqualTo(2 * 20000);
+
+    replicator.onSnapshot(persist(content2, 2));
+
+    verifyAll();
+
+    for (Path replicaDir : new Path[] {replicaDir1, replicaDir2}) {
+      Path replica = replicaDir.resolve("rds-data.json");
+      assertThat(Files.readAllBytes(replica)).isEqualTo(content2);
+      assertThat(Files.isSameFile(replica, target)).isFalse();
+      assertThat(RdsDataManifest.read(replica).getGeneration()).isEqualTo(2);
+    }
+    assertThat(metrics.getCounter("replicator.bytesWritten"))
+        .isEqualTo(2 * 20000 + 2 * content2.length);
+    assertThat(metrics.getCounter("replicator.hardLinks")).isEqualTo(0);
+  }
+
+  @Test
+  public void testCopyDurable() throws Exception {
+    config.set("RdsDataDownloader.replicator.targets", "replica1");
+    config.set("RdsDataDownloader.replicator.hardLinks", "false");
+    config.set("RdsDataDownloader.persister.durability", "DATA_AND_DIRECTORY");
+    byte[] content = randomBytes(3, 10000);
+    replayAll();
+
+    RdsDataReplicator replicator = createRdsDataReplicator();
+    replicator.onSnapshot(persist(content, 1));
+
+    verifyAll();
+
+    Path replica = replicaDir1.resolve("rds-data.json");
+    assertThat(Files.readAllBytes(replica)).isEqualTo(content);
+    assertThat(RdsDataManifest.read(replica).getGeneration()).isEqualTo(1);
+  }
+
+  @Test
+  public void testFailingTargetDoesNotStopOthers() throws Exception {
+    config.set("RdsDataDownloader.replicator.hardLinks", "false");
+    Files.write(replicaDir1, new byte[0]);
+    byte[] content = randomBytes(5, 1000);
+    replayAll();
+
+    RdsDataReplicator replicator = createRdsDataReplicator();
+    try {
+      replicator.onSnapshot(persist(content, 1));
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("replica1").doesNotContain("replica2");
+    }
+
+    verifyAll();
+
+    assertThat(Files.readAllBytes(replicaDir2.resolve("rds-data.json"))).isEqualTo(content);
+    assertThat(metrics.getCounter("replicator.failures")).isEqualTo(1);
+  }
+
+  @Test
+  public void testReconfigure() throws Exception {
+    byte[] content = randomBytes(1, 5000);
+    RdsDataSnapshot snapshot = persist(content, 1);
+    replayAll();
+
+    RdsDataReplicator replicator = createRdsDataReplicator();
+    SettableConfig reloaded = new SettableConfig();
+    reloaded.set("RdsDataDownloader.replicator.targets", "replica2");
+    replicator.validate(reloaded);
+    replicator.reconfigure(reloaded);
+    replicator.onSnapshot(snapshot);
+
+    verifyAll();
+
+    assertThat(Files.exists(replicaDir1)).isFalse();
+    assertThat(Files.readAllBytes(replicaDir2.resolve("rds-data.json"))).isEqualTo(content);
+  }
+
+  @Test
+  public void testValidateRejectsBadDurability() {
+    replayAll();
+
+    RdsDataReplicator replicator = createRdsDataReplicator();
+    SettableConfig reloaded = new SettableConfig();
+    reloaded.set("RdsDataDownloader.persister.durability", "foo");
+    try {
+      replicator.validate(reloaded);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("FOO");
+    }
+
+    verifyAll();
+
+    assertThat(replicator.isEnabled()).isTrue();
+  }
+
+  private RdsDataSnapshot persist(byte[] content, long generation) throws IOException {
+    Files.write(target, content);
+    RdsDataSnapshot snapshot = new RdsDataSnapshot(target, content.length, generation,
+        Files.getLastModifiedTime(target).toMillis(), null, null);
+    return snapshot;
+  }
+
+  private byte[] randomBytes(long seed, int size) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private RdsDataReplicator createRdsDataReplicator() {
+    return new RdsDataReplicator(config, paths, metrics);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RdsDataRunReportSummaryTest {
+  @Test
+  public void testPercentile() {
+    List<Long> values = Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L);
+
+    assertThat(RdsDataRunReportSummary.percentile(values, 50)).isEqualTo(5);
+    assertThat(RdsDataRunReportSummary.percentile(values, 90)).isEqualTo(9);
+    assertThat(RdsDataRunReportSummary.percentile(values, 99)).isEqualTo(10);
+    assertThat(RdsDataRunReportSummary.percentile(Arrays.asList(7L), 1)).isEqualTo(7);
+  }
+
+  @Test
+  public void testSummarize() throws Exception {
+    List<JsonObject> reports = new ArrayList<>();
+    for (int i = 1; i <= 10; i++) {
+      reports.add(new JsonParser().parse("{\"durationMillis\":" + (i * 100)
+          + ",\"outcome\":\"" + (i == 10 ? "FAULTY" : "READY") + "\",\"phases\":["
+          + "{\"name\":\"fetch\",\"durationMillis\":" + (i * 10) + ",\"bytes\":" + (i * 1000)
+          + ",\"retries\":" + (i == 10 ? 1 : 0) + ",\"errors\":[]},"
+          + "{\"name\":\"move\",\"durationMillis\":1,\"bytes\":0,\"retries\":0,"
+          + "\"errors\":" + (i == 10 ? "[\"foo\"]" : "[]") + "}]}").getAsJsonObject());
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    RdsDataRunReportSummary.summarize(reports, new PrintStream(out, true, "UTF-8"));
+
+    String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    assertThat(lines).hasSize(5);
+    assertThat(lines[0]).isEqualTo("Runs: 10 {FAULTY=1, READY=9}");
+    assertThat(lines[1]).startsWith("phase").contains("p50 ms");
+    assertThat(lines[2].split(" +"))
+        .containsExactly("(run)", "10", "500", "900", "1000", "1000", "0", "0", "0");
+    assertThat(lines[3].split(" +"))
+        .containsExactly("fetch", "10", "50", "90", "100", "100", "5500", "1", "0");
+    assertThat(lines[4].split(" +"))
+        .containsExactly("move", "10", "1", "1", "1", "1", "0", "0", "1");
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class RdsDataRunReportTest {
+  @Test
+  public void testEmpty() {
+    RdsDataRunReport report = new RdsDataRunReport();
+    report.end();
+
+    JsonObject json = report.toJson();
+
+    assertThat(json.get("format").getAsString()).isEqualTo("RdsDataRunReport");
+    assertThat(json.get("version").getAsInt()).isEqualTo(1);
+    assertThat(json.get("startMillis").getAsLong()).isEqualTo(report.getStartMillis());
+    assertThat(json.get("durationMillis").getAsLong()).isGreaterThanOrEqualTo(0);
+    assertThat(json.has("outcome")).isFalse();
+    assertThat(json.has("generation")).isFalse();
+    assertThat(json.get("phases").getAsJsonArray().size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testPhases() throws Exception {
+    RdsDataRunReport report = new RdsDataRunReport();
+    try (RdsDataRunReport.Phase phase = report.begin("foo")) {
+      Thread.sleep(20);
+      phase.addBytes(3);
+      phase.addBytes(4);
+      phase.addRecords(2);
+      phase.addRetry();
+      phase.addError(new IOException("catch me"));
+    }
+    report.begin("bar").close();
+    report.setGeneration(42);
+    report.setOutcome("READY", null);
+    report.end();
+
+    JsonObject json = report.toJson();
+
+    assertThat(json.get("outcome").getAsString()).isEqualTo("READY");
+    assertThat(json.has("message")).isFalse();
+    assertThat(json.get("generation").getAsLong()).isEqualTo(42);
+    JsonArray phases = json.get("phases").getAsJsonArray();
+    assertThat(phases.size()).isEqualTo(2);
+    JsonObject foo = phases.get(0).getAsJsonObject();
+    assertThat(foo.get("name").getAsString()).isEqualTo("foo");
+    assertThat(foo.get("durationMillis").getAsLong()).isGreaterThanOrEqualTo(20);
+    assertThat(foo.get("firstByteMillis").getAsLong()).isGreaterThanOrEqualTo(20);
+    assertThat(foo.get("bytes").getAsLong()).isEqualTo(7);
+    assertThat(foo.get("records").getAsLong()).isEqualTo(2);
+    assertThat(foo.get("retries").getAsInt()).isEqualTo(1);
+    assertThat(foo.get("errors").getAsJsonArray().get(0).getAsString())
+        .isEqualTo("java.io.IOException: catch me");
+    JsonObject bar = phases.get(1).getAsJsonObject();
+    assertThat(bar.get("name").getAsString()).isEqualTo("bar");
+    assertThat(bar.has("firstByteMillis")).isFalse();
+    assertThat(bar.get("startMillis").getAsLong())
+        .isGreaterThanOrEqualTo(foo.get("durationMillis").getAsLong());
+  }
+
+  @Test
+  public void testAddErrorGoesToLastPhase() {
+    RdsDataRunReport report = new RdsDataRunReport();
+    RdsDataRunReport.Phase foo = report.begin("foo");
+    foo.close();
+    RdsDataRunReport.Phase bar = report.begin("bar");
+    IOException error = new IOException("catch me");
+    bar.addError(error);
+
+    report.addError(error);
+    report.setOutcome("FAULTY", "failed");
+
+    JsonObject json = report.toJson();
+    assertThat(json.get("message").getAsString()).isEqualTo("failed");
+    JsonArray phases = json.get("phases").getAsJsonArray();
+    assertThat(phases.get(0).getAsJsonObject().get("errors").getAsJsonArray().size())
+        .isEqualTo(0);
+    assertThat(phases.get(1).getAsJsonObject().get("errors").getAsJsonArray().size())
+        .isEqualTo(1);
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+
+public class RdsDataRunReportsTest extends FileTestCase {
+  Path directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = createTempDirectory().resolve("reports");
+  }
+
+  @Test
+  public void testGetCurrentWithoutRun() throws Exception {
+    RdsDataRunReports reports = new RdsDataRunReports(directory, 3);
+
+    reports.getCurrent().begin("foo").close();
+    reports.finish();
+
+    assertThat(directory).doesNotExist();
+  }
+
+  @Test
+  public void testFinishWritesReport() throws Exception {
+    RdsDataRunReports reports = new RdsDataRunReports(directory, 3);
+
+    RdsDataRunReport report = reports.start();
+    assertThat(reports.getCurrent()).isSameAs(report);
+    reports.getCurrent().begin("foo").close();
+    reports.finish();
+
+    List<JsonObject> read = RdsDataRunReports.readRecent(directory, 10);
+    assertThat(read).hasSize(1);
+    assertThat(read.get(0).get("startMillis").getAsLong()).isEqualTo(report.getStartMillis());
+    assertThat(read.get(0).get("phases").getAsJsonArray().size()).isEqualTo(1);
+    assertThat(reports.getCurrent()).isNotSameAs(report);
+  }
+
+  @Test
+  public void testKeepsHistory() throws Exception {
+    RdsDataRunReports reports = new RdsDataRunReports(directory, 3);
+
+    for (int i = 1; i <= 5; i++) {
+      reports.start().setGeneration(i);
+      reports.finish();
+      Thread.sleep(5);
+    }
+
+    assertThat(RdsDataRunReports.list(directory)).hasSize(3);
+    List<JsonObject> read = RdsDataRunReports.readRecent(directory, 2);
+    assertThat(read).hasSize(2);
+    assertThat(read.get(0).get("generation").getAsLong()).isEqualTo(4);
+    assertThat(read.get(1).get("generation").getAsLong()).isEqualTo(5);
+  }
+
+  @Test
+  public void testReadRecentSkipsUnreadable() throws Exception {
+    RdsDataRunReports reports = new RdsDataRunReports(directory, 3);
+    reports.start();
+    reports.finish();
+    Files.write(directory.resolve("run-9999999999999.json"),
+        "foo".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(RdsDataRunReports.readRecent(directory, 10)).hasSize(1);
+  }
+
+  @Test
+  public void testReadRecentMissingDirectory() throws Exception {
+    assertThat(RdsDataRunReports.readRecent(directory, 10)).isEmpty();
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyString;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.easymock.EasyMockSupport;
+import org.easymock.IAnswer;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.coreservices.RefDataClient;
+import com.seleritycorp.common.base.meta.MetaDataFormatter;
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+/**
+ * Runs the fetch, persist, and publish pipeline on synthetic data of growing size.
+ *
+ * <p>Publishing runs the post-persist stages that sort or encode the whole snapshot (key-value
+ * store, indexes, dictionary encoding, and compression) within a memory budget of half of the
+ * heap. The in-process cache and the server are left out, as they hold the data in memory
+ * by design.
+ *
+ * <p>The full suite forks a JVM for each combination of data size and heap cap, and takes long
+ * and needs several GB of disk. So it only runs if the system property
+ * {@code rds.scalability} is {@code true}:
+ *
+ * <pre>
+ * mvn test -Dtest=RdsDataScalabilityTest -Drds.scalability=true
+ * </pre>
+ *
+ * <p>Further system properties:
+ * <ul>
+ * <li>{@code rds.scalability.identifiers} comma separated numbers of identifiers to run with.
+ * </li>
+ * <li>{@code rds.scalability.heaps} comma separated heap caps (as for {@code -Xmx}).</li>
+ * <li>{@code rds.scalability.maxSlowdown} how much slower than for the smallest measured run
+ * (at least {@code rds.scalability.minIdentifiers} identifiers) processing an identifier may
+ * get for larger runs.</li>
+ * <li>{@code rds.scalability.results} the file to write the measurements to.</li>
+ * </ul>
+ */
+public class RdsDataScalabilityTest extends FileTestCase {
+  static final String[] ENUM_TYPES = {"SCALE_A", "SCALE_B", "SCALE_C", "SCALE_D"};
+
+  @Test
+  public void testPipelineSmall() throws Exception {
+    JsonObject result = run(10000, createTempDirectory());
+
+    assertThat(result.get("identifiers").getAsLong()).isEqualTo(10000);
+    assertThat(result.get("enumTypes").getAsInt()).isEqualTo(ENUM_TYPES.length);
+    assertThat(result.get("targetBytes").getAsLong()).isGreaterThan(10000 * 40);
+    assertThat(result.get("identifiersPerSecond").getAsLong()).isGreaterThan(0);
+    assertThat(result.get("peakHeapBytes").getAsLong()).isGreaterThan(0);
+    assertThat(result.get("publishMillis").getAsLong()).isGreaterThanOrEqualTo(0);
+    assertThat(result.get("peakReservedBytes").getAsLong()).isGreaterThan(0);
+  }
+
+  @Test
+  public void testScalesLinearly() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("rds.scalability"));
+    String[] identifierCounts = System.getProperty("rds.scalability.identifiers",
+        "10000,100000,1000000,10000000,50000000").split(",");
+    String[] heaps = System.getProperty("rds.scalability.heaps", "256m,1g").split(",");
+    double maxSlowdown = Double.parseDouble(
+        System.getProperty("rds.scalability.maxSlowdown", "2"));
+    long minIdentifiers = Long.getLong("rds.scalability.minIdentifiers", 100000);
+    Path resultsFile = Paths.get(System.getProperty("rds.scalability.results",
+        "target/scalability-results.json"));
+
+    JsonArray results = new JsonArray();
+    List<String> failures = new ArrayList<>();
+    for (String heap : heaps) {
+      JsonObject baseline = null;
+      for (String identifierCount : identifierCounts) {
+        long identifiers = Long.parseLong(identifierCount.trim());
+        JsonObject result = fork(heap.trim(), identifiers);
+        results.add(result);
+        writeResults(resultsFile, results);
+        if (!result.has("nanosPerIdentifier")) {
+          failures.add("Run with " + identifiers + " identifiers failed within heap " + heap
+              + " (exit code " + result.get("exitCode") + ")");
+          // Larger runs will not fit either.
+          break;
+        }
+        if (identifiers < minIdentifiers) {
+          continue;
+        }
+        if (baseline == null) {
+          baseline = result;
+        } else {
+          double slowdown = result.get("nanosPerIdentifier").getAsDouble()
+              / baseline.get("nanosPerIdentifier").getAsDouble();
+          result.addProperty("slowdown", slowdown);
+          if (slowdown > maxSlowdown) {
+            failures.add("Run with " + identifiers + " identifiers within heap " + heap
+                + " took " + slowdown + " times as long per identifier as the run with "
+                + baseline.get("identifiers") + " identifiers");
+          }
+        }
+      }
+    }
+    writeResults(resultsFile, results);
+
+    assertThat(failures).isEmpty();
+  }
+
+  /**
+   * Runs the pipeline once and prints the measurements as JSON.
+   *
+   * <p>This is the entry point of the JVMs forked by {@link #testScalesLinearly()}.
+   *
+   * @param args The number of identifiers, and the directory to write to.
+   * @throws Exception if the pipeline fails.
+   */
+  public static void main(String[] args) throws Exception {
+    JsonObject result = run(Long.parseLong(args[0]), Paths.get(args[1]));
+    System.out.println(result);
+  }
+
+  private JsonObject fork(String heap, long identifiers) throws Exception {
+    Path directory = createTempDirectory();
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    ProcessBuilder builder = new ProcessBuilder(java, "-Xmx" + heap,
+        "-XX:+ExitOnOutOfMemoryError", "-cp", System.getProperty("java.class.path"),
+        RdsDataScalabilityTest.class.getName(), Long.toString(identifiers),
+        directory.toString());
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    Process process = builder.start();
+    JsonObject result = null;
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("{")) {
+          result = new JsonParser().parse(line).getAsJsonObject();
+        }
+      }
+    }
+    int exitCode = process.waitFor();
+    deleteRecursively(directory);
+    if (exitCode != 0 || result == null) {
+      result = new JsonObject();
+      result.addProperty("identifiers", identifiers);
+      result.addProperty("exitCode", exitCode);
+    }
+    result.addProperty("heap", heap);
+    return result;
+  }
+
+  static JsonObject run(long identifiers, Path directory) throws Exception {
+    EasyMockSupport mocks = new EasyMockSupport();
+    ApplicationPaths paths = mocks.createMock(ApplicationPaths.class);
+    expect(paths.getDataPath()).andReturn(directory.resolve("data")).anyTimes();
+    expect(paths.getStatePath()).andReturn(directory.resolve("state")).anyTimes();
+    MetaDataFormatter metaDataFormatter = mocks.createMock(MetaDataFormatter.class);
+    expect(metaDataFormatter.getUserAgent()).andReturn("scalability").anyTimes();
+    RefDataClient refDataClient = mocks.createMock(RefDataClient.class);
+    refDataClient.getIdentifiersForEnumType(anyString(), anyObject(JsonWriter.class));
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      @Override
+      public Object answer() throws Throwable {
+        writeIdentifiers((String) getCurrentArguments()[0], identifiers / ENUM_TYPES.length,
+            (JsonWriter) getCurrentArguments()[1]);
+        return null;
+      }
+    }).anyTimes();
+    mocks.replayAll();
+
+    SettableConfig config = new SettableConfig();
+    config.set("RdsDataDownloader.fetcher.enumTypes", String.join(",", ENUM_TYPES));
+    config.set("RdsDataDownloader.memory.budgetBytes",
+        Long.toString(Runtime.getRuntime().maxMemory() / 2));
+    config.set("RdsDataDownloader.keyValue.enabled", "true");
+    config.set("RdsDataDownloader.indexer.enabled", "true");
+    config.set("RdsDataDownloader.dictionary.enabled", "true");
+    config.set("RdsDataDownloader.compressor.enabled", "true");
+    RdsDataMetrics metrics = new RdsDataMetrics();
+    RdsDataMemoryBudget memoryBudget = new RdsDataMemoryBudget(config, metrics);
+    RdsDataRunReports reports = new RdsDataRunReports(directory.resolve("reports"), 1);
+    RdsDataFetcher fetcher = new RdsDataFetcher(config, new RdsDataSegmentStore(config, paths),
+        refDataClient, metaDataFormatter, reports);
+    RdsDataPersister persister = new RdsDataPersister(config, paths, metrics, memoryBudget,
+        reports);
+    RdsDataPublisher publisher = new RdsDataPublisher(Arrays.asList(
+        new RdsDataKeyValueExporter(config, memoryBudget, metrics),
+        new RdsDataIndexer(config, memoryBudget, metrics, reports),
+        new RdsDataDictionaryExporter(config, memoryBudget, metrics),
+        new RdsDataCompressor(config, memoryBudget, metrics),
+        new RdsDataManifestPublisher(persister)), reports);
+
+    long gcCountBefore = getGcCount();
+    long gcMillisBefore = getGcMillis();
+    long start = System.nanoTime();
+    fetcher.fetch(persister.getCleanWriter());
+    RdsDataSnapshot snapshot = persister.persist();
+    long persistNanos = System.nanoTime() - start;
+    List<String> failures = publisher.publish(snapshot);
+    long nanos = System.nanoTime() - start;
+
+    mocks.verifyAll();
+    if (!failures.isEmpty()) {
+      throw new IllegalStateException("Post-persist stages failed: " + failures);
+    }
+
+    long written = identifiers / ENUM_TYPES.length * ENUM_TYPES.length;
+    JsonObject result = new JsonObject();
+    result.addProperty("identifiers", written);
+    result.addProperty("enumTypes", snapshot.getIndex().getEnumTypes().size());
+    result.addProperty("millis", nanos / 1000000);
+    result.addProperty("persistMillis", persistNanos / 1000000);
+    result.addProperty("publishMillis", (nanos - persistNanos) / 1000000);
+    result.addProperty("nanosPerIdentifier", (double) nanos / written);
+    result.addProperty("identifiersPerSecond", written * 1000000000L / Math.max(nanos, 1));
+    result.addProperty("bytesPerSecond", snapshot.getSize() * 1000000000L / Math.max(nanos, 1));
+    result.addProperty("maxHeapBytes", Runtime.getRuntime().maxMemory());
+    result.addProperty("peakHeapBytes", getPeakHeapBytes());
+    result.addProperty("peakReservedBytes", metrics.getCounter("memory.peakBytes"));
+    result.addProperty("peakRssBytes", getPeakRssBytes());
+    result.addProperty("gcCount", getGcCount() - gcCountBefore);
+    result.addProperty("gcMillis", getGcMillis() - gcMillisBefore);
+    // The temporary target becomes the target, so the target size is also the peak temporary
+    // disk usage.
+    result.addProperty("targetBytes", snapshot.getSize());
+    result.addProperty("dataDirectoryBytes", getSize(directory.resolve("data")));
+    result.addProperty("stateDirectoryBytes", getSize(directory.resolve("state")));
+    return result;
+  }
+
+  private static void writeIdentifiers(String enumType, long count, JsonWriter writer)
+      throws IOException {
+    writer.beginArray();
+    for (long i = 0; i < count; i++) {
+      writer.beginObject();
+      writer.name("identifier").value(enumType + "_" + i);
+      writer.name("name").value("Entity " + i + " of " + enumType);
+      writer.name("country").value((i % 3 == 0) ? "US" : "GB");
+      writer.name("active").value(i % 7 != 0);
+      writer.endObject();
+    }
+    writer.endArray();
+  }
+
+  private static long getPeakHeapBytes() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private static long getPeakRssBytes() throws IOException {
+    Path status = Paths.get("/proc/self/status");
+    if (!Files.isReadable(status)) {
+      return -1;
+    }
+    for (String line : Files.readAllLines(status, StandardCharsets.UTF_8)) {
+      if (line.startsWith("VmHWM:")) {
+        String[] parts = line.trim().split("\\s+");
+        return Long.parseLong(parts[1]) * 1024;
+      }
+    }
+    return -1;
+  }
+
+  private static long getGcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(gc.getCollectionCount(), 0);
+    }
+    return count;
+  }
+
+  private static long getGcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(gc.getCollectionTime(), 0);
+    }
+    return millis;
+  }
+
+  private static long getSize(Path directory) throws IOException {
+    if (!Files.isDirectory(directory)) {
+      return 0;
+    }
+    long size = 0;
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (Files.isRegularFile(file)) {
+          size += Files.size(file);
+        }
+      }
+    }
+    return size;
+  }
+
+  private static void deleteRecursively(Path directory) throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private static void writeResults(Path file, JsonArray results) throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    Files.write(file, new GsonBuilder().setPrettyPrinting().create().toJson(results)
+        .getBytes(StandardCharsets.UTF_8));
+  }
+}
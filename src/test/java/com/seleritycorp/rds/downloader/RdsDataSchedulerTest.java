@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.SettableConfig;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RdsDataSchedulerTest {
+  private SettableConfig config;
+  private RdsDataMetrics metrics;
+  private ScheduledExecutorService timer;
+  private AtomicInteger runs;
+  private AtomicInteger active;
+  private AtomicInteger maxActive;
+
+  @Before
+  public void setUp() {
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.lifecycle.interval", "100");
+    config.set("RdsDataDownloader.lifecycle.intervalUnit", "MILLISECONDS");
+    metrics = new RdsDataMetrics();
+    timer = Executors.newSingleThreadScheduledExecutor();
+    runs = new AtomicInteger();
+    active = new AtomicInteger();
+    maxActive = new AtomicInteger();
+  }
+
+  @After
+  public void tearDown() {
+    timer.shutdownNow();
+  }
+
+  @Test
+  public void testSlotAtOrAfter() {
+    assertThat(RdsDataScheduler.getSlotAtOrAfter(0, 3600000, 300000)).isEqualTo(300000);
+    assertThat(RdsDataScheduler.getSlotAtOrAfter(300000, 3600000, 300000)).isEqualTo(300000);
+    assertThat(RdsDataScheduler.getSlotAtOrAfter(300001, 3600000, 300000)).isEqualTo(3900000);
+    assertThat(RdsDataScheduler.getSlotAtOrAfter(7199999, 3600000, 0)).isEqualTo(7200000);
+    assertThat(RdsDataScheduler.getSlotAtOrAfter(-1, 1000, 0)).isEqualTo(0);
+  }
+
+  @Test
+  public void testPlainScheduling() throws Exception {
+    RdsDataScheduler scheduler = createRdsDataScheduler();
+
+    scheduler.start(timer, () -> track(0));
+    Thread.sleep(50);
+    assertThat(runs.get()).isEqualTo(1);
+    Thread.sleep(400);
+    scheduler.stop();
+
+    assertThat(runs.get()).isBetween(4, 6);
+    assertThat(metrics.getCounter("scheduler.missedSlots")).isEqualTo(0);
+    assertThat(metrics.getCounter("scheduler.overruns")).isEqualTo(0);
+  }
+
+  @Test
+  public void testAligned() throws Exception {
+    config.set("RdsDataDownloader.lifecycle.interval", "1");
+    config.set("RdsDataDownloader.lifecycle.intervalUnit", "HOURS");
+    config.set("RdsDataDownloader.lifecycle.aligned", "true");
+    config.set("RdsDataDownloader.lifecycle.slotOffset", "5");
+    config.set("RdsDataDownloader.lifecycle.slotOffsetUnit", "MINUTES");
+    RdsDataScheduler scheduler = createRdsDataScheduler();
+
+    long now = System.currentTimeMillis();
+    scheduler.start(timer, () -> track(0));
+    Thread.sleep(100);
+    scheduler.stop();
+
+    // Only starting right away if we happen to hit :05 exactly.
+    long slot = RdsDataScheduler.getSlotAtOrAfter(now, 3600000, 300000);
+    assertThat(runs.get()).isEqualTo(slot - now < 100 ? 1 : 0);
+  }
+
+  @Test
+  public void testSkip() throws Exception {
+    RdsDataScheduler scheduler = createRdsDataScheduler();
+
+    scheduler.start(timer, () -> track(runs.get() == 0 ? 350 : 0));
+    Thread.sleep(400);
+    scheduler.stop();
+
+    // Slots at 100, 200, and 300 are missed. The slot at 400 may or may not have come up.
+    assertThat(runs.get()).isBetween(1, 2);
+    assertThat(maxActive.get()).isEqualTo(1);
+    assertThat(metrics.getCounter("scheduler.missedSlots")).isEqualTo(3);
+    assertThat(metrics.getCounter("scheduler.overruns")).isEqualTo(1);
+  }
+
+  @Test
+  public void testCoalesce() throws Exception {
+    config.set("RdsDataDownloader.lifecycle.overlapPolicy", "coalesce");
+    RdsDataScheduler scheduler = createRdsDataScheduler();
+
+    scheduler.start(timer, () -> track(runs.get() == 0 ? 350 : 0));
+    Thread.sleep(380);
+    scheduler.stop();
+
+    // The slot at 100 is deferred right after the first run, the slots at 200 and 300 are
+    // missed.
+    assertThat(runs.get()).isEqualTo(2);
+    assertThat(maxActive.get()).isEqualTo(1);
+    assertThat(metrics.getCounter("scheduler.missedSlots")).isEqualTo(2);
+  }
+
+  @Test
+  public void testQueue() throws Exception {
+    config.set("RdsDataDownloader.lifecycle.overlapPolicy", "QUEUE");
+    config.set("RdsDataDownloader.lifecycle.maxQueuedRuns", "2");
+    RdsDataScheduler scheduler = createRdsDataScheduler();
+
+    scheduler.start(timer, () -> track(runs.get() == 0 ? 350 : 0));
+    Thread.sleep(380);
+    scheduler.stop();
+
+    // The slots at 100 and 200 are deferred right after the first run, the slot at 300 is
+    // missed.
+    assertThat(runs.get()).isEqualTo(3);
+    assertThat(maxActive.get()).isEqualTo(1);
+    assertThat(metrics.getCounter("scheduler.missedSlots")).isEqualTo(1);
+  }
+
+  @Test
+  public void testTrigger() throws Exception {
+    config.set("RdsDataDownloader.lifecycle.interval", "1");
+    config.set("RdsDataDownloader.lifecycle.intervalUnit", "HOURS");
+    RdsDataScheduler scheduler = createRdsDataScheduler();
+
+    scheduler.start(timer, () -> track(0));
+    Thread.sleep(50);
+    scheduler.trigger();
+    Thread.sleep(50);
+    scheduler.stop();
+    scheduler.trigger();
+    Thread.sleep(50);
+
+    assertThat(runs.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    config.set("RdsDataDownloader.lifecycle.interval", "1");
+    config.set("RdsDataDownloader.lifecycle.intervalUnit", "HOURS");
+    config.set("RdsDataDownloader.lifecycle.runDeadline", "100");
+    config.set("RdsDataDownloader.lifecycle.runDeadlineUnit", "MILLISECONDS");
+    RdsDataScheduler scheduler = createRdsDataScheduler();
+    CountDownLatch interrupted = new CountDownLatch(1);
+
+    scheduler.start(timer, () -> {
+      runs.incrementAndGet();
+      try {
+        Thread.sleep(10000);
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+    });
+
+    assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+    scheduler.stop();
+
+    assertThat(runs.get()).isEqualTo(1);
+    assertThat(metrics.getCounter("scheduler.deadlinesExceeded")).isEqualTo(1);
+  }
+
+  @Test
+  public void testDeadlineDumpsFlightRecording() throws Exception {
+    Assume.assumeTrue(RdsDataFlightEvents.isAvailable());
+    config.set("RdsDataDownloader.lifecycle.interval", "1");
+    config.set("RdsDataDownloader.lifecycle.intervalUnit", "HOURS");
+    config.set("RdsDataDownloader.lifecycle.runDeadline", "100");
+    config.set("RdsDataDownloader.lifecycle.runDeadlineUnit", "MILLISECONDS");
+    config.set("RdsDataDownloader.flightRecorder.enabled", "true");
+    Path stateDir = Files.createTempDirectory("state");
+    RdsDataFlightRecorder flightRecorder = new RdsDataFlightRecorder(config, stateDir);
+    RdsDataScheduler scheduler = new RdsDataScheduler(config, metrics, flightRecorder);
+    CountDownLatch interrupted = new CountDownLatch(1);
+
+    flightRecorder.start();
+    try {
+      scheduler.start(timer, () -> {
+        try {
+          Thread.sleep(10000);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+        }
+      });
+
+      assertThat(interrupted.await(10, TimeUnit.SECONDS)).isTrue();
+      scheduler.stop();
+    } finally {
+      flightRecorder.stop();
+    }
+
+    assertThat(RdsDataFlightRecorderTest.listDumps(stateDir.resolve("rds-recordings")))
+        .hasSize(1);
+  }
+
+  @Test
+  public void testDeadlineNotExceeded() throws Exception {
+    config.set("RdsDataDownloader.lifecycle.runDeadline", "50");
+    config.set("RdsDataDownloader.lifecycle.runDeadlineUnit", "MILLISECONDS");
+    RdsDataScheduler scheduler = createRdsDataScheduler();
+
+    scheduler.start(timer, () -> track(10));
+    Thread.sleep(250);
+    scheduler.stop();
+
+    assertThat(runs.get()).isBetween(2, 3);
+    assertThat(metrics.getCounter("scheduler.deadlinesExceeded")).isEqualTo(0);
+  }
+
+  @Test
+  public void testStopLetsRunFinish() throws Exception {
+    config.set("RdsDataDownloader.lifecycle.interval", "1");
+    config.set("RdsDataDownloader.lifecycle.intervalUnit", "HOURS");
+    RdsDataScheduler scheduler = createRdsDataScheduler();
+    AtomicInteger finished = new AtomicInteger();
+
+    scheduler.start(timer, () -> {
+      track(200);
+      finished.incrementAndGet();
+    });
+    Thread.sleep(50);
+
+    assertThat(scheduler.stop()).isTrue();
+    assertThat(finished.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testStopInterruptsRunAfterGrace() throws Exception {
+    config.set("RdsDataDownloader.lifecycle.interval", "1");
+    config.set("RdsDataDownloader.lifecycle.intervalUnit", "HOURS");
+    config.set("RdsDataDownloader.lifecycle.shutdownGrace", "100");
+    config.set("RdsDataDownloader.lifecycle.shutdownGraceUnit", "MILLISECONDS");
+    RdsDataScheduler scheduler = createRdsDataScheduler();
+    CountDownLatch interrupted = new CountDownLatch(1);
+
+    scheduler.start(timer, () -> {
+      try {
+        Thread.sleep(10000);
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+    });
+    Thread.sleep(50);
+
+    long start = System.nanoTime();
+    assertThat(scheduler.stop()).isTrue();
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertThat(interrupted.getCount()).isEqualTo(0);
+    assertThat(millis).isBetween(90L, 2000L);
+  }
+
+  @Test
+  public void testValidateRejectsNegativeShutdownGrace() {
+    config.set("RdsDataDownloader.lifecycle.shutdownGrace", "-1");
+
+    assertRejected();
+  }
+
+  @Test
+  public void testReconfigure() throws Exception {
+    config.set("RdsDataDownloader.lifecycle.interval", "1");
+    config.set("RdsDataDownloader.lifecycle.intervalUnit", "HOURS");
+    RdsDataScheduler scheduler = createRdsDataScheduler();
+    scheduler.start(timer, () -> track(0));
+    Thread.sleep(50);
+
+    SettableConfig newConfig = new SettableConfig();
+    newConfig.set("RdsDataDownloader.lifecycle.interval", "100");
+    newConfig.set("RdsDataDownloader.lifecycle.intervalUnit", "MILLISECONDS");
+    newConfig.set("RdsDataDownloader.lifecycle.overlapPolicy", "QUEUE");
+    scheduler.validate(newConfig);
+    scheduler.reconfigure(newConfig);
+    Thread.sleep(250);
+    scheduler.stop();
+
+    assertThat(scheduler.getIntervalMillis()).isEqualTo(100);
+    assertThat(scheduler.getOverlapPolicy()).isEqualTo(RdsDataScheduler.OverlapPolicy.QUEUE);
+    assertThat(runs.get()).isBetween(3, 4);
+  }
+
+  @Test
+  public void testValidateRejectsNonPositiveInterval() {
+    config.set("RdsDataDownloader.lifecycle.interval", "0");
+
+    assertRejected();
+  }
+
+  @Test
+  public void testValidateRejectsUnknownPolicy() {
+    config.set("RdsDataDownloader.lifecycle.overlapPolicy", "PARALLEL");
+
+    assertRejected();
+  }
+
+  @Test
+  public void testValidateRejectsNegativeDeadline() {
+    config.set("RdsDataDownloader.lifecycle.runDeadline", "-1");
+
+    assertRejected();
+  }
+
+  @Test
+  public void testValidateRejectsEmptyQueue() {
+    config.set("RdsDataDownloader.lifecycle.maxQueuedRuns", "0");
+
+    assertRejected();
+  }
+
+  private void assertRejected() {
+    RdsDataScheduler scheduler = new RdsDataScheduler(new SettableConfig(), metrics,
+        new RdsDataFlightRecorder(config, Paths.get("state")));
+    try {
+      scheduler.validate(config);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("RdsDataDownloader.lifecycle");
+    }
+  }
+
+  private void track(long millis) {
+    maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+    runs.incrementAndGet();
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      active.decrementAndGet();
+    }
+  }
+
+  private RdsDataScheduler createRdsDataScheduler() {
+    return new RdsDataScheduler(config, metrics,
+        new RdsDataFlightRecorder(config, Paths.get("state")));
+  }
+}
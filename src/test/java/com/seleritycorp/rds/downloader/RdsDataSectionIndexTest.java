@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class RdsDataSectionIndexTest {
+  @Test
+  public void testNoData() throws IOException {
+    String json = "{\"meta\":{\"version\":2}}";
+    RdsDataSectionIndex index = build(json);
+
+    assertThat(index.getSize()).isEqualTo(json.length());
+    assertThat(index.getEnumTypes()).isEmpty();
+  }
+
+  @Test
+  public void testEmptyData() throws IOException {
+    RdsDataSectionIndex index = build("{\"meta\":{\"version\":2},\"data\":{}}");
+
+    assertThat(index.getEnumTypes()).isEmpty();
+  }
+
+  @Test
+  public void testSections() throws IOException {
+    String json = "{\"meta\":{\"format\":\"RdsData\",\"data\":{\"x\":1}},\"data\":{"
+        + "\"FOO\":{\"foo1\":{\"name\":\"a}\\\"]\"},\"foo2\":[1,2]},"
+        + "\"BAR\":[{\"identifier\":\"bar1\"}],"
+        + "\"BAZ\":42,"
+        + "\"QUUX\":\"str,ing\""
+        + "}}";
+    RdsDataSectionIndex index = build(json);
+
+    assertThat(index.getEnumTypes()).containsExactly("FOO", "BAR", "BAZ", "QUUX");
+    assertThat(section(json, index, "FOO"))
+        .isEqualTo("{\"foo1\":{\"name\":\"a}\\\"]\"},\"foo2\":[1,2]}");
+    assertThat(section(json, index, "BAR")).isEqualTo("[{\"identifier\":\"bar1\"}]");
+    assertThat(section(json, index, "BAZ")).isEqualTo("42");
+    assertThat(section(json, index, "QUUX")).isEqualTo("\"str,ing\"");
+    assertThat(index.getSection("x")).isNull();
+  }
+
+  @Test
+  public void testSectionsWithWhitespace() throws IOException {
+    String json = "{\n  \"data\" : {\n    \"FOO\" : { \"a\" : 1 } ,\n    \"BAR\" : 2\n  }\n}\n";
+    RdsDataSectionIndex index = build(json);
+
+    assertThat(index.getEnumTypes()).containsExactly("FOO", "BAR");
+    assertThat(section(json, index, "FOO")).isEqualTo("{ \"a\" : 1 }");
+    assertThat(section(json, index, "BAR")).isEqualTo("2");
+  }
+
+  @Test
+  public void testEscapedKey() throws IOException {
+    String json = "{\"data\":{\"F\\u004fO\":null}}";
+    RdsDataSectionIndex index = build(json);
+
+    assertThat(index.getEnumTypes()).containsExactly("FOO");
+    assertThat(section(json, index, "FOO")).isEqualTo("null");
+  }
+
+  @Test
+  public void testTruncated() throws IOException {
+    try {
+      build("{\"data\":{\"FOO\":{\"a\":1}");
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e).hasMessageContaining("prematurely");
+    }
+  }
+
+  private RdsDataSectionIndex build(String json) throws IOException {
+    return RdsDataSectionIndex.build(
+        new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private String section(String json, RdsDataSectionIndex index, String enumType) {
+    RdsDataSectionIndex.Section section = index.getSection(enumType);
+    return json.substring((int) section.getOffset(),
+        (int) (section.getOffset() + section.getLength()));
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.expect;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataSegmentStoreTest extends FileTestCase {
+  ApplicationPaths paths;
+  SettableConfig config;
+  Path stateDir;
+
+  @Before
+  public void setUp() throws IOException {
+    stateDir = createTempDirectory();
+    paths = createMock(ApplicationPaths.class);
+    expect(paths.getStatePath()).andReturn(stateDir).anyTimes();
+    config = new SettableConfig();
+  }
+
+  @Test
+  public void testDefaults() throws Exception {
+    replayAll();
+
+    RdsDataSegmentStore store = createRdsDataSegmentStore();
+
+    verifyAll();
+
+    assertThat(store.isEnabled()).isFalse();
+    assertThat(store.getDirectory()).isEqualTo(stateDir.resolve("rds-segments"));
+    assertThat(store.get("foo")).isNull();
+    assertThat(store.getPublishedMillis()).isEqualTo(0);
+  }
+
+  @Test
+  public void testWriteAndGet() throws Exception {
+    replayAll();
+
+    RdsDataSegmentStore store = createRdsDataSegmentStore();
+    long before = System.currentTimeMillis();
+    RdsDataSegmentStore.Segment written = store.write("foo", writer -> writer.write("[\u00e4]"));
+    RdsDataSegmentStore.Segment segment = store.get("foo");
+
+    verifyAll();
+
+    assertThat(written.getPath()).isEqualTo(stateDir.resolve("rds-segments").resolve("foo.json"));
+    assertThat(written.getPath()).hasContent("[\u00e4]");
+    assertThat(segment.getEnumType()).isEqualTo("foo");
+    assertThat(segment.getPath()).isEqualTo(written.getPath());
+    assertThat(segment.getSize()).isEqualTo(4);
+    assertThat(segment.getSha256()).isEqualTo(RdsDataFiles.toHex(RdsDataFiles.newSha256()
+        .digest("[\u00e4]".getBytes(StandardCharsets.UTF_8))));
+    assertThat(segment.getFetchedMillis()).isEqualTo(written.getFetchedMillis())
+        .isGreaterThanOrEqualTo(before);
+    assertThat(stateDir.resolve("rds-segments").resolve("foo.json.tmp")).doesNotExist();
+  }
+
+  @Test
+  public void testWriteFailingKeepsPreviousSegment() throws Exception {
+    replayAll();
+
+    RdsDataSegmentStore store = createRdsDataSegmentStore();
+    store.write("foo", writer -> writer.write("[42]"));
+    try {
+      store.write("foo", writer -> {
+        writer.write("[4");
+        throw new IOException("quux");
+      });
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e).hasMessageContaining("quux");
+    }
+
+    verifyAll();
+
+    assertThat(store.get("foo").getPath()).hasContent("[42]");
+    assertThat(stateDir.resolve("rds-segments").resolve("foo.json.tmp")).doesNotExist();
+  }
+
+  @Test
+  public void testGetIgnoresSizeMismatch() throws Exception {
+    replayAll();
+
+    RdsDataSegmentStore store = createRdsDataSegmentStore();
+    Path path = store.write("foo", writer -> writer.write("[42]")).getPath();
+    Files.write(path, "[4".getBytes(StandardCharsets.UTF_8));
+
+    verifyAll();
+
+    assertThat(store.get("foo")).isNull();
+  }
+
+  @Test
+  public void testGetIgnoresDigestMismatch() throws Exception {
+    replayAll();
+
+    RdsDataSegmentStore store = createRdsDataSegmentStore();
+    Path path = store.write("foo", writer -> writer.write("[42]")).getPath();
+    Files.write(path, "[43]".getBytes(StandardCharsets.UTF_8));
+
+    verifyAll();
+
+    assertThat(store.get("foo")).isNull();
+    assertThat(store.getResumable("foo")).isNull();
+  }
+
+  @Test
+  public void testGetIgnoresMalformedMeta() throws Exception {
+    replayAll();
+
+    RdsDataSegmentStore store = createRdsDataSegmentStore();
+    Path path = store.write("foo", writer -> writer.write("[42]")).getPath();
+    Files.write(path.resolveSibling("foo.json.meta"), "{".getBytes(StandardCharsets.UTF_8));
+
+    verifyAll();
+
+    assertThat(store.get("foo")).isNull();
+  }
+
+  @Test
+  public void testGetResumable() throws Exception {
+    replayAll();
+
+    RdsDataSegmentStore store = createRdsDataSegmentStore();
+    store.write("foo", writer -> writer.write("[42]"));
+
+    assertThat(store.getResumable("foo").getPath()).hasContent("[42]");
+    assertThat(store.getResumable("bar")).isNull();
+
+    store.markPublished();
+
+    verifyAll();
+
+    assertThat(store.getPublishedMillis()).isGreaterThan(0);
+    assertThat(store.getResumable("foo")).isNull();
+    assertThat(store.get("foo").getPath()).hasContent("[42]");
+  }
+
+  @Test
+  public void testGetResumableTooOld() throws Exception {
+    config.set("RdsDataDownloader.segments.maxResumeAge", "0");
+
+    replayAll();
+
+    RdsDataSegmentStore store = createRdsDataSegmentStore();
+    store.write("foo", writer -> writer.write("[42]"));
+
+    verifyAll();
+
+    assertThat(store.getResumable("foo")).isNull();
+    assertThat(store.get("foo")).isNotNull();
+  }
+
+  @Test
+  public void testGetResumableDefaultAgeFollowsInterval() throws Exception {
+    replayAll();
+
+    RdsDataSegmentStore store = createRdsDataSegmentStore();
+    store.write("foo", writer -> writer.write("[42]"));
+
+    setFetchedMillis(store, "foo", System.currentTimeMillis() - 300 * 1000);
+    assertThat(store.getResumable("foo")).isNotNull();
+
+    setFetchedMillis(store, "foo", System.currentTimeMillis() - 400 * 1000);
+    assertThat(store.getResumable("foo")).isNull();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testGetResumableDefaultAgeFollowsCustomInterval() throws Exception {
+    config.set("RdsDataDownloader.lifecycle.interval", "36000");
+
+    replayAll();
+
+    RdsDataSegmentStore store = createRdsDataSegmentStore();
+    store.write("foo", writer -> writer.write("[42]"));
+
+    setFetchedMillis(store, "foo", System.currentTimeMillis() - 3000 * 1000);
+    assertThat(store.getResumable("foo")).isNotNull();
+
+    setFetchedMillis(store, "foo", System.currentTimeMillis() - 4000 * 1000);
+    assertThat(store.getResumable("foo")).isNull();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testCustomDirectory() throws Exception {
+    config.set("RdsDataDownloader.segments.enabled", "true");
+    config.set("RdsDataDownloader.segments.directory", "quux");
+
+    replayAll();
+
+    RdsDataSegmentStore store = createRdsDataSegmentStore();
+    store.write("foo", writer -> writer.write("[42]"));
+
+    verifyAll();
+
+    assertThat(store.isEnabled()).isTrue();
+    assertThat(stateDir.resolve("quux").resolve("foo.json")).hasContent("[42]");
+  }
+
+  private RdsDataSegmentStore createRdsDataSegmentStore() {
+    return new RdsDataSegmentStore(config, paths);
+  }
+
+  private void setFetchedMillis(RdsDataSegmentStore store, String enumType, long fetchedMillis)
+      throws IOException {
+    RdsDataSegmentStore.Segment segment = store.get(enumType);
+    String meta = "{\"enumType\":\"" + enumType + "\",\"size\":" + segment.getSize()
+        + ",\"sha256\":\"" + segment.getSha256() + "\",\"fetchedMillis\":" + fetchedMillis
+        + "}";
+    Files.write(segment.getPath().resolveSibling(enumType + ".json.meta"),
+        meta.getBytes(StandardCharsets.UTF_8));
+  }
+}
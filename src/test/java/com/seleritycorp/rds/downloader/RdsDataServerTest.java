@@ -0,0 +1,614 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.state.AppState;
+import com.seleritycorp.common.base.state.AppStatePushFacet;
+import com.seleritycorp.common.base.state.StateManager;
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataServerTest extends FileTestCase {
+  static final String JSON = "{\"meta\":{\"version\":2},\"data\":{\"FOO\":{\"foo1\":1},"
+      + "\"BAR\":[\"bar1\",\"bar2\"]}}";
+
+  SettableConfig config;
+  ApplicationPaths paths;
+  Path target;
+  RdsDataGenerationNotifier notifier;
+  RdsDataMetrics metrics;
+  StateManager sm;
+  AppStatePushFacet facet;
+  RdsDataFreshness freshness;
+  RdsDataServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    Path tmpDir = createTempDirectory();
+    paths = createMock(ApplicationPaths.class);
+    expect(paths.getDataPath()).andReturn(tmpDir).anyTimes();
+    expect(paths.getStatePath()).andReturn(tmpDir.resolve("state")).anyTimes();
+    sm = createMock(StateManager.class);
+    facet = createMock(AppStatePushFacet.class);
+    expect(sm.createRegisteredAppStatePushFacet("RdsDataFreshness")).andReturn(facet)
+        .anyTimes();
+
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.server.enabled", "true");
+    config.set("RdsDataDownloader.server.port", "0");
+
+    target = tmpDir.resolve("rds").resolve("rds-data.json");
+    Files.createDirectories(target.getParent());
+  }
+
+  @After
+  public void tearDown() {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testEnabled() {
+    replayAll();
+
+    assertThat(createRdsDataServer().isEnabled()).isTrue();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testNoSnapshot() throws Exception {
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/rds-data.json");
+
+    assertThat(connection.getResponseCode()).isEqualTo(503);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testServeExistingSnapshot() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/rds-data.json");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(read(connection)).isEqualTo(JSON);
+    assertThat(connection.getHeaderField("ETag")).startsWith("\"");
+    assertThat(connection.getHeaderField("Accept-Ranges")).isEqualTo("bytes");
+
+    verifyAll();
+  }
+
+  @Test
+  public void testHead() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/rds-data.json");
+    connection.setRequestMethod("HEAD");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getHeaderField("Content-Length"))
+        .isEqualTo(Integer.toString(JSON.length()));
+
+    verifyAll();
+  }
+
+  @Test
+  public void testMethodNotAllowed() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/rds-data.json");
+    connection.setRequestMethod("DELETE");
+
+    assertThat(connection.getResponseCode()).isEqualTo(405);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testNotFound() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/foo");
+
+    assertThat(connection.getResponseCode()).isEqualTo(404);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testConditional() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    String etag = open("/rds-data.json").getHeaderField("ETag");
+    HttpURLConnection connection = open("/rds-data.json");
+    connection.setRequestProperty("If-None-Match", etag);
+
+    assertThat(connection.getResponseCode()).isEqualTo(304);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testConditionalAfterNewSnapshot() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    String etag = open("/rds-data.json").getHeaderField("ETag");
+
+    write("{\"data\":{}}");
+    Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+    server.onSnapshot(new RdsDataSnapshot(target, Files.size(target)));
+
+    HttpURLConnection connection = open("/rds-data.json");
+    connection.setRequestProperty("If-None-Match", etag);
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(read(connection)).isEqualTo("{\"data\":{}}");
+    assertThat(connection.getHeaderField("ETag")).isNotEqualTo(etag);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testRange() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/rds-data.json");
+    connection.setRequestProperty("Range", "bytes=2-5");
+
+    assertThat(connection.getResponseCode()).isEqualTo(206);
+    assertThat(read(connection)).isEqualTo("meta");
+    assertThat(connection.getHeaderField("Content-Range"))
+        .isEqualTo("bytes 2-5/" + JSON.length());
+
+    verifyAll();
+  }
+
+  @Test
+  public void testRangeUnsatisfiable() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/rds-data.json");
+    connection.setRequestProperty("Range", "bytes=1000-");
+
+    assertThat(connection.getResponseCode()).isEqualTo(416);
+    assertThat(connection.getHeaderField("Content-Range"))
+        .isEqualTo("bytes */" + JSON.length());
+
+    verifyAll();
+  }
+
+  @Test
+  public void testSection() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/sections/BAR");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(read(connection)).isEqualTo("[\"bar1\",\"bar2\"]");
+
+    verifyAll();
+  }
+
+  @Test
+  public void testSectionRange() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/sections/BAR");
+    connection.setRequestProperty("Range", "bytes=-7");
+
+    assertThat(connection.getResponseCode()).isEqualTo(206);
+    assertThat(read(connection)).isEqualTo("\"bar2\"]");
+
+    verifyAll();
+  }
+
+  @Test
+  public void testSectionUnknown() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/sections/QUUX");
+
+    assertThat(connection.getResponseCode()).isEqualTo(404);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testSectionList() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/sections");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(read(connection)).isEqualTo("{\"sections\":["
+        + "{\"enumType\":\"FOO\",\"offset\":36,\"length\":10},"
+        + "{\"enumType\":\"BAR\",\"offset\":53,\"length\":15}]}");
+
+    verifyAll();
+  }
+
+  @Test
+  public void testGzipPassThrough() throws Exception {
+    write(JSON);
+    Path gzipTarget = target.resolveSibling("rds-data.json.gz");
+    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzipTarget))) {
+      out.write(JSON.getBytes(StandardCharsets.UTF_8));
+    }
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/rds-data.json");
+    connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getHeaderField("Content-Encoding")).isEqualTo("gzip");
+    try (InputStream in = new GZIPInputStream(connection.getInputStream())) {
+      assertThat(read(in)).isEqualTo(JSON);
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testGzipNotAccepted() throws Exception {
+    write(JSON);
+    Path gzipTarget = target.resolveSibling("rds-data.json.gz");
+    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzipTarget))) {
+      out.write(JSON.getBytes(StandardCharsets.UTF_8));
+    }
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/rds-data.json");
+    connection.setRequestProperty("Accept-Encoding", "gzip;q=0");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getHeaderField("Content-Encoding")).isNull();
+    assertThat(read(connection)).isEqualTo(JSON);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testSnapshotReplacedWithSameSize() throws Exception {
+    write(JSON);
+    FileTime lastModified = Files.getLastModifiedTime(target);
+    replayAll();
+
+    startServer();
+    Path replacement = target.resolveSibling("replacement.json");
+    Files.write(replacement, JSON.replace("foo1", "foo2").getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(replacement, lastModified);
+    Files.move(replacement, target, StandardCopyOption.ATOMIC_MOVE);
+    HttpURLConnection connection = open("/rds-data.json");
+    HttpURLConnection sectionConnection = open("/sections/FOO");
+
+    assertThat(connection.getResponseCode()).isEqualTo(503);
+    assertThat(connection.getHeaderField("Retry-After")).isEqualTo("1");
+    assertThat(sectionConnection.getResponseCode()).isEqualTo(503);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testManifest() throws Exception {
+    write(JSON);
+    RdsDataManifest.write(new RdsDataSnapshot(target, JSON.length(), 5, 1000, "abc", null));
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/manifest");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(read(connection)).isEqualTo("{\"format\":\"RdsDataManifest\",\"version\":1,"
+        + "\"file\":\"rds-data.json\",\"generation\":5,\"timestamp\":1000,"
+        + "\"size\":" + JSON.length() + ",\"sha256\":\"abc\"}");
+
+    verifyAll();
+  }
+
+  @Test
+  public void testGenerationAlreadyPublished() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    notifier.onSnapshot(new RdsDataSnapshot(target, JSON.length(), 3, 1000, null, null));
+    HttpURLConnection connection = open("/generation?after=2&timeoutMillis=10000");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(read(connection)).contains("\"generation\":3");
+
+    verifyAll();
+  }
+
+  @Test
+  public void testGenerationLongPoll() throws Exception {
+    write(JSON);
+    replayAll();
+
+    startServer();
+    notifier.onSnapshot(new RdsDataSnapshot(target, JSON.length(), 3, 1000, null, null));
+    Thread publisher = new Thread(() -> {
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      notifier.onSnapshot(new RdsDataSnapshot(target, JSON.length(), 4, 2000, null, null));
+    });
+    publisher.start();
+    HttpURLConnection connection = open("/generation?after=3&timeoutMillis=10000");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(read(connection)).contains("\"generation\":4");
+    publisher.join();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testGenerationLongPollsDoNotBlockServer() throws Exception {
+    write(JSON);
+    config.set("RdsDataDownloader.server.threads", "1");
+    config.set("RdsDataDownloader.server.maxLongPolls", "1");
+    replayAll();
+
+    startServer();
+    notifier.onSnapshot(new RdsDataSnapshot(target, JSON.length(), 3, 1000, null, null));
+    AtomicInteger waitingStatus = new AtomicInteger();
+    Thread waiting = new Thread(() -> {
+      try {
+        waitingStatus.set(open("/generation?after=3&timeoutMillis=10000").getResponseCode());
+      } catch (IOException e) {
+        waitingStatus.set(-1);
+      }
+    });
+    waiting.start();
+    Thread.sleep(300);
+
+    HttpURLConnection metricsConnection = open("/metrics");
+    HttpURLConnection rejectedConnection = open("/generation?after=3&timeoutMillis=10000");
+
+    assertThat(metricsConnection.getResponseCode()).isEqualTo(200);
+    assertThat(rejectedConnection.getResponseCode()).isEqualTo(503);
+    assertThat(rejectedConnection.getHeaderField("Retry-After")).isEqualTo("1");
+    assertThat(metrics.getCounter("server.longPollsRejected")).isEqualTo(1);
+
+    notifier.onSnapshot(new RdsDataSnapshot(target, JSON.length(), 4, 2000, null, null));
+    waiting.join(10000);
+    assertThat(waitingStatus.get()).isEqualTo(200);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testGenerationTimeout() throws Exception {
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/generation?after=0&timeoutMillis=50");
+
+    assertThat(connection.getResponseCode()).isEqualTo(204);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testGenerationMalformed() throws Exception {
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = open("/generation?after=foo");
+
+    assertThat(connection.getResponseCode()).isEqualTo(400);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    replayAll();
+
+    startServer();
+    metrics.increment("foo", 2);
+    HttpURLConnection connection = open("/metrics");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(read(connection)).isEqualTo("{\"counters\":{\"foo\":2},\"timers\":{}}");
+
+    verifyAll();
+  }
+
+  @Test
+  public void testHealth() throws Exception {
+    facet.setAppState(AppState.READY);
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.fetcher.enumTypes", "FOO,BAR");
+    write(JSON);
+    RdsDataManifest.write(new RdsDataSnapshot(target, JSON.length(), 7,
+        System.currentTimeMillis(), null, null));
+    startServer();
+    HttpURLConnection connection = open("/health");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getHeaderField("Cache-Control")).isEqualTo("no-store");
+    JsonObject health = new JsonParser().parse(read(connection)).getAsJsonObject();
+    assertThat(health.get("state").getAsString()).isEqualTo("READY");
+    assertThat(health.get("generation").getAsLong()).isEqualTo(7);
+    JsonObject sections = health.getAsJsonObject("sections");
+    assertThat(sections.getAsJsonObject("FOO").get("state").getAsString()).isEqualTo("READY");
+    assertThat(sections.getAsJsonObject("BAR").get("maxAgeMillis").getAsLong())
+        .isEqualTo(7200000);
+    assertThat(metrics.getCounter("freshness.staleEnumTypes")).isEqualTo(0);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testHealthFaulty() throws Exception {
+    facet.setAppState(eq(AppState.FAULTY), anyObject(String.class));
+    expectLastCall().once();
+
+    replayAll();
+
+    config.set("RdsDataDownloader.fetcher.enumTypes", "FOO");
+    config.set("RdsDataDownloader.freshness.FOO.maxAge", "1");
+    config.set("RdsDataDownloader.freshness.FOO.maxAgeUnit", "MINUTES");
+    write(JSON);
+    RdsDataManifest.write(new RdsDataSnapshot(target, JSON.length(), 7,
+        System.currentTimeMillis() - 180000, null, null));
+    startServer();
+    HttpURLConnection connection = open("/health");
+
+    assertThat(connection.getResponseCode()).isEqualTo(503);
+    assertThat(metrics.getCounter("freshness.staleEnumTypes")).isEqualTo(1);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testHealthDisabled() throws Exception {
+    replayAll();
+
+    config.set("RdsDataDownloader.freshness.enabled", "false");
+    startServer();
+    HttpURLConnection connection = open("/health");
+
+    assertThat(connection.getResponseCode()).isEqualTo(404);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testParseRange() {
+    assertThat(RdsDataServer.parseRange("bytes=0-9", 100)).containsExactly(0L, 9L);
+    assertThat(RdsDataServer.parseRange("bytes=90-", 100)).containsExactly(90L, 99L);
+    assertThat(RdsDataServer.parseRange("bytes=90-200", 100)).containsExactly(90L, 99L);
+    assertThat(RdsDataServer.parseRange("bytes=-10", 100)).containsExactly(90L, 99L);
+    assertThat(RdsDataServer.parseRange("bytes=-200", 100)).containsExactly(0L, 99L);
+    assertThat(RdsDataServer.parseRange("bytes=100-", 100)).isEmpty();
+    assertThat(RdsDataServer.parseRange("bytes=-0", 100)).isEmpty();
+    assertThat(RdsDataServer.parseRange("bytes=0-1,5-6", 100)).isNull();
+    assertThat(RdsDataServer.parseRange("bytes=5-1", 100)).isNull();
+    assertThat(RdsDataServer.parseRange("bytes=a-b", 100)).isNull();
+    assertThat(RdsDataServer.parseRange("lines=0-1", 100)).isNull();
+  }
+
+  private void write(String json) throws IOException {
+    Files.write(target, json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private RdsDataServer createRdsDataServer() {
+    metrics = new RdsDataMetrics();
+    RdsDataPersister persister = new RdsDataPersister(config, paths, metrics,
+        new RdsDataMemoryBudget(config, metrics), new RdsDataRunReports(Paths.get("reports"), 1));
+    notifier = new RdsDataGenerationNotifier(persister);
+    freshness = new RdsDataFreshness(config, sm, persister,
+        new RdsDataScheduler(config, metrics,
+        new RdsDataFlightRecorder(config, Paths.get("state"))), metrics);
+    return new RdsDataServer(config, persister, notifier, metrics, freshness);
+  }
+
+  private void startServer() throws IOException {
+    server = createRdsDataServer();
+    server.start();
+  }
+
+  private HttpURLConnection open(String path) throws IOException {
+    URL url = new URL("http", "127.0.0.1", server.getPort(), path);
+    return (HttpURLConnection) url.openConnection();
+  }
+
+  private String read(HttpURLConnection connection) throws IOException {
+    try (InputStream in = connection.getInputStream()) {
+      return read(in);
+    }
+  }
+
+  private String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.expect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataSharedMemoryPublisherTest extends FileTestCase {
+  SettableConfig config;
+  ApplicationPaths paths;
+  RdsDataMetrics metrics;
+  Path snapshotFile;
+  Path sharedDir;
+  Path target;
+
+  @Before
+  public void setUp() throws IOException {
+    Path tmpDir = createTempDirectory();
+    paths = createMock(ApplicationPaths.class);
+    expect(paths.getDataPath()).andReturn(tmpDir).anyTimes();
+
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.sharedMemory.enabled", "true");
+    config.set("RdsDataDownloader.sharedMemory.directory", "shm");
+
+    metrics = new RdsDataMetrics();
+    snapshotFile = tmpDir.resolve("rds-data.json");
+    sharedDir = tmpDir.resolve("shm");
+    target = sharedDir.resolve("rds-data.json");
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    config = new SettableConfig();
+    replayAll();
+
+    RdsDataSharedMemoryPublisher publisher = createRdsDataSharedMemoryPublisher();
+
+    verifyAll();
+
+    assertThat(publisher.getName()).isEqualTo("sharedMemory");
+    assertThat(publisher.isEnabled()).isFalse();
+  }
+
+  @Test
+  public void testPublishWithoutKeyValueStore() throws Exception {
+    replayAll();
+    write("foo");
+
+    RdsDataSharedMemoryPublisher publisher = createRdsDataSharedMemoryPublisher();
+    publisher.onSnapshot(snapshot(3));
+
+    verifyAll();
+
+    assertThat(publisher.getTarget(snapshot(3))).isEqualTo(target);
+    assertThat(sharedDir.resolve("rds-data.json.3")).hasContent("foo");
+    assertThat(sharedDir.resolve("rds-data.json.kv.3")).doesNotExist();
+    assertThat(sharedDir.resolve("rds-data.json.3.tmp")).doesNotExist();
+
+    ByteBuffer control = readControl();
+    assertThat(control.getLong(RdsDataSharedMemoryReader.MAGIC_OFFSET))
+        .isEqualTo(RdsDataSharedMemoryReader.MAGIC);
+    assertThat(control.getInt(RdsDataSharedMemoryReader.VERSION_OFFSET)).isEqualTo(1);
+    assertThat(control.getLong(RdsDataSharedMemoryReader.SEQUENCE_OFFSET)).isEqualTo(2);
+    assertThat(control.getLong(RdsDataSharedMemoryReader.GENERATION_OFFSET)).isEqualTo(3);
+    assertThat(control.getLong(RdsDataSharedMemoryReader.DATA_SIZE_OFFSET)).isEqualTo(3);
+    assertThat(control.getInt(RdsDataSharedMemoryReader.FLAGS_OFFSET)).isEqualTo(0);
+    assertThat(control.getLong(RdsDataSharedMemoryReader.KEY_VALUE_SIZE_OFFSET)).isEqualTo(-1);
+    assertThat(metrics.getTimer("sharedMemory.publish").getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPublishWithKeyValueStore() throws Exception {
+    replayAll();
+    write("foo");
+    writeStore(5);
+
+    createRdsDataSharedMemoryPublisher().onSnapshot(snapshot(5));
+
+    verifyAll();
+
+    Path keyValueFile = sharedDir.resolve("rds-data.json.kv.5");
+    assertThat(keyValueFile).exists();
+    ByteBuffer control = readControl();
+    assertThat(control.getInt(RdsDataSharedMemoryReader.FLAGS_OFFSET)).isEqualTo(1);
+    assertThat(control.getLong(RdsDataSharedMemoryReader.KEY_VALUE_SIZE_OFFSET))
+        .isEqualTo(Files.size(keyValueFile));
+  }
+
+  @Test
+  public void testSkipsStaleKeyValueStore() throws Exception {
+    replayAll();
+    write("foo");
+    writeStore(4);
+
+    createRdsDataSharedMemoryPublisher().onSnapshot(snapshot(5));
+
+    verifyAll();
+
+    assertThat(sharedDir.resolve("rds-data.json.5")).exists();
+    assertThat(sharedDir.resolve("rds-data.json.kv.5")).doesNotExist();
+    assertThat(readControl().getInt(RdsDataSharedMemoryReader.FLAGS_OFFSET)).isEqualTo(0);
+  }
+
+  @Test
+  public void testKeepsCurrentAndPreviousGeneration() throws Exception {
+    replayAll();
+    RdsDataSharedMemoryPublisher publisher = createRdsDataSharedMemoryPublisher();
+    for (int generation = 1; generation <= 3; generation++) {
+      write("foo" + generation);
+      writeStore(generation);
+      publisher.onSnapshot(snapshot(generation));
+    }
+
+    verifyAll();
+
+    assertThat(sharedDir.resolve("rds-data.json.1")).doesNotExist();
+    assertThat(sharedDir.resolve("rds-data.json.kv.1")).doesNotExist();
+    assertThat(sharedDir.resolve("rds-data.json.2")).hasContent("foo2");
+    assertThat(sharedDir.resolve("rds-data.json.kv.2")).exists();
+    assertThat(sharedDir.resolve("rds-data.json.3")).hasContent("foo3");
+    assertThat(sharedDir.resolve("rds-data.json.kv.3")).exists();
+    assertThat(RdsDataSharedMemoryReader.getControlPath(target)).exists();
+
+    ByteBuffer control = readControl();
+    assertThat(control.getLong(RdsDataSharedMemoryReader.SEQUENCE_OFFSET)).isEqualTo(6);
+    assertThat(control.getLong(RdsDataSharedMemoryReader.GENERATION_OFFSET)).isEqualTo(3);
+  }
+
+  @Test
+  public void testContinuesSequenceOfPreviousRun() throws Exception {
+    replayAll();
+    write("foo");
+    createRdsDataSharedMemoryPublisher().onSnapshot(snapshot(1));
+    createRdsDataSharedMemoryPublisher().onSnapshot(snapshot(2));
+
+    verifyAll();
+
+    ByteBuffer control = readControl();
+    assertThat(control.getLong(RdsDataSharedMemoryReader.SEQUENCE_OFFSET)).isEqualTo(4);
+    assertThat(control.getLong(RdsDataSharedMemoryReader.GENERATION_OFFSET)).isEqualTo(2);
+  }
+
+  private ByteBuffer readControl() throws IOException {
+    return ByteBuffer.wrap(Files.readAllBytes(RdsDataSharedMemoryReader.getControlPath(target)));
+  }
+
+  private RdsDataSnapshot snapshot(long generation) throws IOException {
+    return new RdsDataSnapshot(snapshotFile, Files.size(snapshotFile), generation, 0, null,
+        null);
+  }
+
+  private void write(String content) throws IOException {
+    Files.write(snapshotFile, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void writeStore(long generation) throws IOException {
+    Path file = RdsDataKeyValueStore.getPath(snapshotFile);
+    try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, 64)) {
+      writer.add(RdsDataKeyValueStore.toKey("FOO", "foo"),
+          Long.toString(generation).getBytes(StandardCharsets.UTF_8));
+      writer.finish(generation);
+    }
+  }
+
+  private RdsDataSharedMemoryPublisher createRdsDataSharedMemoryPublisher() {
+    return new RdsDataSharedMemoryPublisher(config, paths, metrics);
+  }
+}
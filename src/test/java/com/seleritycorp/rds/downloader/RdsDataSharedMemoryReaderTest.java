@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.expect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.config.ApplicationPaths;
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataSharedMemoryReaderTest extends FileTestCase {
+  SettableConfig config;
+  ApplicationPaths paths;
+  Path snapshotFile;
+  Path target;
+  RdsDataSharedMemoryPublisher publisher;
+
+  @Before
+  public void setUp() throws IOException {
+    Path tmpDir = createTempDirectory();
+    paths = createMock(ApplicationPaths.class);
+    expect(paths.getDataPath()).andReturn(tmpDir).anyTimes();
+
+    config = new SettableConfig();
+    config.set("RdsDataDownloader.sharedMemory.enabled", "true");
+    config.set("RdsDataDownloader.sharedMemory.directory", "shm");
+
+    snapshotFile = tmpDir.resolve("rds-data.json");
+    target = tmpDir.resolve("shm").resolve("rds-data.json");
+  }
+
+  @Test
+  public void testNothingPublished() throws Exception {
+    try (RdsDataSharedMemoryReader reader = new RdsDataSharedMemoryReader(target)) {
+      assertThat(reader.getGeneration()).isEqualTo(0);
+      assertThat(reader.acquire()).isNull();
+    }
+  }
+
+  @Test
+  public void testAcquire() throws Exception {
+    replayAll();
+    publish(4, "foo", true);
+
+    try (RdsDataSharedMemoryReader reader = new RdsDataSharedMemoryReader(target)) {
+      assertThat(reader.getGeneration()).isEqualTo(4);
+      RdsDataSharedMemoryReader.Snapshot snapshot = reader.acquire();
+
+      assertThat(snapshot.getGeneration()).isEqualTo(4);
+      assertThat(snapshot.getTimestamp()).isPositive();
+      assertThat(toString(snapshot.getData())).isEqualTo("foo");
+      assertThat(toString(snapshot.getData())).isEqualTo("foo");
+      assertThat(snapshot.getKeyValueStore().isMapped()).isTrue();
+      assertThat(snapshot.getKeyValueStore().getRecord("FOO", "foo")).isEqualTo("4");
+      assertThat(reader.acquire()).isSameAs(snapshot);
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testAcquireWithoutKeyValueStore() throws Exception {
+    replayAll();
+    publish(2, "foo", false);
+
+    try (RdsDataSharedMemoryReader reader = new RdsDataSharedMemoryReader(target)) {
+      RdsDataSharedMemoryReader.Snapshot snapshot = reader.acquire();
+
+      assertThat(snapshot.getGeneration()).isEqualTo(2);
+      assertThat(toString(snapshot.getData())).isEqualTo("foo");
+      assertThat(snapshot.getKeyValueStore()).isNull();
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testSwitchesToNewGeneration() throws Exception {
+    replayAll();
+    publish(1, "foo1", true);
+
+    try (RdsDataSharedMemoryReader reader = new RdsDataSharedMemoryReader(target)) {
+      RdsDataSharedMemoryReader.Snapshot snapshot1 = reader.acquire();
+      publish(2, "foo2", true);
+      publish(3, "foo3", true);
+
+      assertThat(reader.getGeneration()).isEqualTo(3);
+      RdsDataSharedMemoryReader.Snapshot snapshot3 = reader.acquire();
+
+      assertThat(snapshot3.getGeneration()).isEqualTo(3);
+      assertThat(toString(snapshot3.getData())).isEqualTo("foo3");
+      assertThat(snapshot3.getKeyValueStore().getRecord("FOO", "foo")).isEqualTo("3");
+
+      // The files of generation 1 are gone, but its mappings are still usable.
+      assertThat(RdsDataSharedMemoryReader.getDataPath(target, 1)).doesNotExist();
+      assertThat(toString(snapshot1.getData())).isEqualTo("foo1");
+      assertThat(snapshot1.getKeyValueStore().getRecord("FOO", "foo")).isEqualTo("1");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testSizeMismatch() throws Exception {
+    replayAll();
+    publish(1, "foo", false);
+    Files.write(RdsDataSharedMemoryReader.getDataPath(target, 1),
+        "foobar".getBytes(StandardCharsets.UTF_8));
+
+    try (RdsDataSharedMemoryReader reader = new RdsDataSharedMemoryReader(target)) {
+      reader.acquire();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("instead of 3");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testNotAControlFile() throws Exception {
+    Path control = RdsDataSharedMemoryReader.getControlPath(target);
+    Files.createDirectories(control.getParent());
+    Files.write(control, new byte[RdsDataSharedMemoryReader.CONTROL_SIZE]);
+
+    try (RdsDataSharedMemoryReader reader = new RdsDataSharedMemoryReader(target)) {
+      reader.getGeneration();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("magic number");
+    }
+  }
+
+  private void publish(long generation, String content, boolean withStore)
+      throws IOException {
+    Files.write(snapshotFile, content.getBytes(StandardCharsets.UTF_8));
+    if (withStore) {
+      Path file = RdsDataKeyValueStore.getPath(snapshotFile);
+      try (RdsDataKeyValueStore.Writer writer = new RdsDataKeyValueStore.Writer(file, 64)) {
+        writer.add(RdsDataKeyValueStore.toKey("FOO", "foo"),
+            Long.toString(generation).getBytes(StandardCharsets.UTF_8));
+        writer.finish(generation);
+      }
+    }
+    if (publisher == null) {
+      publisher = new RdsDataSharedMemoryPublisher(config, paths, new RdsDataMetrics());
+    }
+    publisher.onSnapshot(new RdsDataSnapshot(snapshotFile, content.length(), generation,
+        0, null, null));
+  }
+
+  private String toString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+import com.seleritycorp.common.base.test.SettableConfig;
+
+public class RdsDataSnapshotCacheTest extends FileTestCase {
+  SettableConfig config;
+  RdsDataMemoryBudget memoryBudget;
+  Path snapshotFile;
+
+  @Before
+  public void setUp() throws IOException {
+    config = new SettableConfig();
+    memoryBudget = null;
+    snapshotFile = createTempDirectory().resolve("rds-data.json");
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    RdsDataSnapshotCache cache = createRdsDataSnapshotCache();
+
+    assertThat(cache.isEnabled()).isFalse();
+    assertThat(cache.getEnumTypes()).isEmpty();
+  }
+
+  @Test
+  public void testEnabled() {
+    config.set("RdsDataDownloader.cache.enabled", "true");
+    RdsDataSnapshotCache cache = createRdsDataSnapshotCache();
+
+    assertThat(cache.isEnabled()).isTrue();
+  }
+
+  @Test
+  public void testRefreshObjectSections() throws Exception {
+    write("{\"meta\":{\"version\":2},\"data\":{"
+        + "\"FOO\":{\"foo1\":{\"name\":\"Foo 1\"},\"foo2\":{\"name\":\"Foo 2\"}},"
+        + "\"BAR\":{\"bar1\":42}}}");
+
+    RdsDataSnapshotCache cache = createRdsDataSnapshotCache();
+    cache.onSnapshot(new RdsDataSnapshot(snapshotFile, Files.size(snapshotFile)));
+
+    assertThat(cache.getEnumTypes()).containsExactly("FOO", "BAR");
+    assertThat(cache.getRecord("FOO", "foo1")).isEqualTo("{\"name\":\"Foo 1\"}");
+    assertThat(cache.getRecord("FOO", "foo2")).isEqualTo("{\"name\":\"Foo 2\"}");
+    assertThat(cache.getRecord("BAR", "bar1")).isEqualTo("42");
+    assertThat(cache.getRecord("BAR", "foo1")).isNull();
+    assertThat(cache.getRecord("BAZ", "foo1")).isNull();
+    assertThat(cache.contains("FOO", "foo2")).isTrue();
+    assertThat(cache.contains("BAZ", "foo2")).isFalse();
+    assertThat(cache.getIdentifiers("FOO")).containsExactly("foo1", "foo2");
+    assertThat(cache.getIdentifiers("BAZ")).isEmpty();
+  }
+
+  @Test
+  public void testRefreshSizesTablesFromIndex() throws Exception {
+    write("{\"data\":{\"FOO\":{\"foo1\":{\"name\":\"Foo 1\"}},\"BAR\":{\"bar1\":42}}}");
+    RdsDataSectionIndex index = RdsDataSectionIndex.build(snapshotFile);
+
+    RdsDataSnapshotCache cache = createRdsDataSnapshotCache();
+    cache.onSnapshot(new RdsDataSnapshot(snapshotFile, Files.size(snapshotFile), 1, 0, null,
+        index));
+
+    assertThat(cache.getRecord("FOO", "foo1")).isEqualTo("{\"name\":\"Foo 1\"}");
+    assertThat(cache.getTable("FOO").getDataSize())
+        .isEqualTo((int) index.getSection("FOO").getLength());
+  }
+
+  @Test
+  public void testRefreshArraySections() throws Exception {
+    write("{\"meta\":{\"version\":2},\"data\":{"
+        + "\"FOO\":[{\"identifier\":\"foo1\",\"name\":\"Foo 1\"},{\"name\":\"no id\"},\"foo2\"],"
+        + "\"BAR\":42}}");
+
+    RdsDataSnapshotCache cache = createRdsDataSnapshotCache();
+    cache.refresh(snapshotFile);
+
+    assertThat(cache.getEnumTypes()).containsExactly("FOO", "BAR");
+    assertThat(cache.getRecord("FOO", "foo1"))
+        .isEqualTo("{\"identifier\":\"foo1\",\"name\":\"Foo 1\"}");
+    assertThat(cache.getRecord("FOO", "foo2")).isEqualTo("\"foo2\"");
+    assertThat(cache.getIdentifiers("FOO")).hasSize(2);
+    assertThat(cache.getIdentifiers("BAR")).isEmpty();
+  }
+
+  @Test
+  public void testRefreshCustomIdentifierField() throws Exception {
+    write("{\"data\":{\"FOO\":[{\"id\":\"foo1\",\"name\":\"Foo 1\"}]}}");
+
+    config.set("RdsDataDownloader.cache.identifierField", "id");
+    RdsDataSnapshotCache cache = createRdsDataSnapshotCache();
+    cache.refresh(snapshotFile);
+
+    assertThat(cache.getRecord("FOO", "foo1")).isEqualTo("{\"id\":\"foo1\",\"name\":\"Foo 1\"}");
+  }
+
+  @Test
+  public void testRefreshReplacesData() throws Exception {
+    RdsDataSnapshotCache cache = createRdsDataSnapshotCache();
+
+    write("{\"data\":{\"FOO\":{\"foo1\":1}}}");
+    cache.refresh(snapshotFile);
+    RdsDataRecordTable oldTable = cache.getTable("FOO");
+
+    write("{\"data\":{\"BAR\":{\"bar1\":2}}}");
+    cache.refresh(snapshotFile);
+
+    assertThat(cache.getEnumTypes()).containsExactly("BAR");
+    assertThat(cache.getRecord("FOO", "foo1")).isNull();
+    assertThat(cache.getRecord("BAR", "bar1")).isEqualTo("2");
+    assertThat(oldTable.getRecord("foo1")).isEqualTo("1");
+  }
+
+  @Test
+  public void testRefreshMalformedKeepsData() throws Exception {
+    RdsDataSnapshotCache cache = createRdsDataSnapshotCache();
+
+    write("{\"data\":{\"FOO\":{\"foo1\":1}}}");
+    cache.refresh(snapshotFile);
+
+    write("{\"data\":{\"BAR\":{\"bar1\":");
+    try {
+      cache.refresh(snapshotFile);
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      // Expected
+    }
+
+    assertThat(cache.getRecord("FOO", "foo1")).isEqualTo("1");
+  }
+
+  @Test
+  public void testRefreshReservesTables() throws Exception {
+    RdsDataSnapshotCache cache = createRdsDataSnapshotCache();
+
+    write("{\"data\":{\"FOO\":{\"foo1\":1}}}");
+    cache.refresh(snapshotFile);
+    long reserved = memoryBudget.getReservedBytes();
+
+    write("{\"data\":{\"FOO\":{\"foo2\":2}}}");
+    cache.refresh(snapshotFile);
+
+    assertThat(reserved).isGreaterThanOrEqualTo(cache.getTable("FOO").getDataSize());
+    // The replaced table got released.
+    assertThat(memoryBudget.getReservedBytes()).isEqualTo(reserved);
+  }
+
+  @Test
+  public void testRefreshInsufficientMemoryKeepsData() throws Exception {
+    config.set("RdsDataDownloader.memory.budgetBytes", "8000");
+    RdsDataSnapshotCache cache = createRdsDataSnapshotCache();
+    write("{\"data\":{\"FOO\":{\"foo1\":1}}}");
+    cache.refresh(snapshotFile);
+    long reserved = memoryBudget.getReservedBytes();
+
+    StringBuilder sb = new StringBuilder("{\"data\":{\"BAR\":{");
+    for (int i = 0; i < 1000; i++) {
+      sb.append(i == 0 ? "" : ",").append("\"bar").append(i).append("\":").append(i);
+    }
+    write(sb.append("}}}").toString());
+    try {
+      cache.refresh(snapshotFile);
+      failBecauseExceptionWasNotThrown(RdsDataInsufficientMemoryException.class);
+    } catch (RdsDataInsufficientMemoryException e) {
+      assertThat(e.getMessage()).contains("cache table BAR");
+    }
+
+    assertThat(cache.getRecord("FOO", "foo1")).isEqualTo("1");
+    assertThat(cache.getTable("BAR")).isNull();
+    assertThat(memoryBudget.getReservedBytes()).isEqualTo(reserved);
+  }
+
+  private void write(String json) throws IOException {
+    Files.write(snapshotFile, json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private RdsDataSnapshotCache createRdsDataSnapshotCache() {
+    memoryBudget = new RdsDataMemoryBudget(config, new RdsDataMetrics());
+    return new RdsDataSnapshotCache(config, memoryBudget);
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+
+public class RdsDataSnapshotWatcherTest extends FileTestCase {
+  Path target;
+
+  @Before
+  public void setUp() throws IOException {
+    target = createTempDirectory().resolve("rds-data.json");
+  }
+
+  @Test
+  public void testNoManifest() throws Exception {
+    try (RdsDataSnapshotWatcher watcher = new RdsDataSnapshotWatcher(target)) {
+      assertThat(watcher.getCurrent()).isNull();
+      assertThat(watcher.awaitNewerThan(0, 10, TimeUnit.MILLISECONDS)).isNull();
+    }
+  }
+
+  @Test
+  public void testAlreadyPublished() throws Exception {
+    RdsDataManifest.write(snapshot(3));
+
+    try (RdsDataSnapshotWatcher watcher = new RdsDataSnapshotWatcher(target)) {
+      assertThat(watcher.getCurrent().getGeneration()).isEqualTo(3);
+      assertThat(watcher.awaitNewerThan(2, 0, TimeUnit.MILLISECONDS).getGeneration())
+          .isEqualTo(3);
+      assertThat(watcher.awaitNewerThan(3, 10, TimeUnit.MILLISECONDS)).isNull();
+    }
+  }
+
+  @Test
+  public void testAwaitWakesUp() throws Exception {
+    RdsDataManifest.write(snapshot(3));
+
+    try (RdsDataSnapshotWatcher watcher = new RdsDataSnapshotWatcher(target)) {
+      Thread publisher = new Thread(() -> {
+        try {
+          Thread.sleep(100);
+          RdsDataManifest.write(snapshot(4));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      publisher.start();
+      RdsDataSnapshot snapshot = watcher.awaitNewerThan(3, 30, TimeUnit.SECONDS);
+      publisher.join();
+
+      assertThat(snapshot.getGeneration()).isEqualTo(4);
+    }
+  }
+
+  private RdsDataSnapshot snapshot(long generation) {
+    return new RdsDataSnapshot(target, 2, generation, 1000, null, null);
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class RdsDataThreadsTest {
+  @Test
+  public void testDaemonThreadFactory() {
+    ThreadFactory factory = RdsDataThreads.newDaemonThreadFactory("foo");
+
+    Thread first = factory.newThread(() -> { });
+    Thread second = factory.newThread(() -> { });
+
+    assertThat(first.getName()).isEqualTo("foo-1");
+    assertThat(first.isDaemon()).isTrue();
+    assertThat(second.getName()).isEqualTo("foo-2");
+  }
+
+  @Test
+  public void testNewExecutor() throws Exception {
+    ExecutorService executor = RdsDataThreads.newExecutor("foo", 2);
+    try {
+      Future<Thread> future = executor.submit(Thread::currentThread);
+      Thread thread = future.get(5, TimeUnit.SECONDS);
+
+      if (!RdsDataThreads.isVirtualAvailable()) {
+        assertThat(thread.getName()).isEqualTo("foo-1");
+        assertThat(thread.isDaemon()).isTrue();
+      }
+      assertThat(thread).isNotSameAs(Thread.currentThread());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016-2018 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.rds.downloader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seleritycorp.common.base.test.FileTestCase;
+
+public class RdsDataThrottledOutputStreamTest extends FileTestCase {
+  Path file;
+  long now;
+
+  @Before
+  public void setUp() throws IOException {
+    file = createTempDirectory().resolve("foo");
+    now = 0;
+  }
+
+  @Test
+  public void testUnthrottled() throws IOException {
+    byte[] data = createData(200 * 1024);
+    try (RdsDataThrottledOutputStream out = createStream(null, 0)) {
+      out.write(data);
+      out.write(42);
+
+      assertThat(out.getWritten()).isEqualTo(data.length + 1);
+      assertThat(out.getThrottledNanos()).isEqualTo(0);
+    }
+
+    byte[] expected = new byte[data.length + 1];
+    System.arraycopy(data, 0, expected, 0, data.length);
+    expected[data.length] = 42;
+    assertThat(Files.readAllBytes(file)).isEqualTo(expected);
+  }
+
+  @Test
+  public void testThrottled() throws IOException {
+    RdsDataRateLimiter limiter = new RdsDataRateLimiter(1024 * 1024, 64 * 1024, () -> now,
+        nanos -> now += nanos);
+    byte[] data = createData(1024 * 1024 + 64 * 1024);
+    try (RdsDataThrottledOutputStream out = createStream(limiter, 100 * 1024)) {
+      out.write(data, 0, data.length);
+
+      assertThat(out.getThrottledNanos()).isEqualTo(1000000000L);
+    }
+
+    assertThat(now).isEqualTo(1000000000L);
+    assertThat(Files.readAllBytes(file)).isEqualTo(data);
+  }
+
+  @Test
+  public void testPreallocate() throws IOException {
+    RdsDataRateLimiter limiter = new RdsDataRateLimiter(1024, 1024, () -> now,
+        nanos -> now += nanos);
+    try (RdsDataThrottledOutputStream out = createStream(limiter, 0)) {
+      out.preallocate(1024 * 1024);
+
+      assertThat(Files.size(file)).isEqualTo(1024 * 1024);
+      assertThat(out.getThrottledNanos()).isEqualTo(0);
+
+      out.write(42);
+    }
+
+    assertThat(Files.readAllBytes(file)).isEqualTo(new byte[] {42});
+  }
+
+  @Test
+  public void testAppend() throws IOException {
+    byte[] data = createData(200 * 1024);
+    Path segment = file.resolveSibling("segment");
+    Files.write(segment, data);
+    try (RdsDataThrottledOutputStream out = createStream(null, 0)) {
+      out.write(42);
+      out.append(segment);
+      out.write(43);
+
+      assertThat(out.getWritten()).isEqualTo(data.length + 2);
+    }
+
+    byte[] expected = new byte[data.length + 2];
+    expected[0] = 42;
+    System.arraycopy(data, 0, expected, 1, data.length);
+    expected[data.length + 1] = 43;
+    assertThat(Files.readAllBytes(file)).isEqualTo(expected);
+  }
+
+  @Test
+  public void testAppendThrottled() throws IOException {
+    RdsDataRateLimiter limiter = new RdsDataRateLimiter(1024 * 1024, 64 * 1024, () -> now,
+        nanos -> now += nanos);
+    byte[] data = createData(1024 * 1024 + 64 * 1024);
+    Path segment = file.resolveSibling("segment");
+    Files.write(segment, data);
+    try (RdsDataThrottledOutputStream out = createStream(limiter, 100 * 1024)) {
+      out.append(segment);
+
+      assertThat(out.getThrottledNanos()).isEqualTo(1000000000L);
+    }
+
+    assertThat(Files.readAllBytes(file)).isEqualTo(data);
+  }
+
+  private byte[] createData(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i * 31);
+    }
+    return data;
+  }
+
+  private RdsDataThrottledOutputStream createStream(RdsDataRateLimiter limiter,
+      long syncEveryBytes) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    return new RdsDataThrottledOutputStream(channel, limiter, syncEveryBytes);
+  }
+}